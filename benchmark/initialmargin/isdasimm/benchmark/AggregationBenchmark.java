@@ -0,0 +1,84 @@
+package initialmargin.isdasimm.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import initialmargin.isdasimm.aggregationscheme.CalculationSchemeInitialMarginISDA;
+import initialmargin.isdasimm.aggregationscheme.SIMMParameterSet;
+import net.finmath.exception.CalculationException;
+import net.finmath.montecarlo.RandomVariable;
+import net.finmath.stochastic.RandomVariableInterface;
+
+/** Benchmark of the variance covariance aggregation of the SIMM: the aggregation of the weighted interest rate sensitivities
+ *  of one currency (5 curves x 12 vertices + inflation + cross currency basis) with the intra bucket correlation matrix, on random
+ *  variables and with the primitive kernel on path major arrays.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregationBenchmark {
+
+	@Param({"1000", "5000", "20000"})
+	public int numberOfPaths;
+
+	private RandomVariableInterface[] contributions;
+	private Double[][] correlation;
+	private Double crossCurrencyCorrelation;
+
+	private double[][] weightedSensitivities;
+	private double[] correlationArray;
+	private double[] aggregation;
+
+	@Setup(Level.Trial)
+	public void setUp() throws CalculationException {
+		CalculationSchemeInitialMarginISDA.ParameterCollection parameterCollection = new CalculationSchemeInitialMarginISDA.ParameterCollection();
+		correlation = parameterCollection.MapRiskClassCorrelationIntraBucketMap.get("InterestRate");
+		crossCurrencyCorrelation = parameterCollection.IRCorrelationCrossCurrency;
+
+		Random random = new Random(3141);
+		contributions = new RandomVariableInterface[correlation.length];
+		for(int i=0; i<contributions.length; i++){
+			double[] realizations = new double[numberOfPaths];
+			for(int path=0; path<numberOfPaths; path++) realizations[path] = 100.0 * random.nextGaussian();
+			contributions[i] = new RandomVariable(0.0, realizations);
+		}
+
+		weightedSensitivities = new double[numberOfPaths][contributions.length];
+		for(int i=0; i<contributions.length; i++) for(int path=0; path<numberOfPaths; path++) weightedSensitivities[path][i] = contributions[i].get(path);
+		correlationArray = SIMMParameterSet.getDefault().getIRIntraBucketCorrelation();
+		aggregation = new double[numberOfPaths];
+	}
+
+	@Benchmark
+	public RandomVariableInterface varianceCovarianceAggregation(){
+		return CalculationSchemeInitialMarginISDA.getVarianceCovarianceAggregation(contributions, correlation);
+	}
+
+	@Benchmark
+	public double[] varianceCovarianceAggregationKernel(){
+		CalculationSchemeInitialMarginISDA.getVarianceCovarianceAggregation(weightedSensitivities, correlationArray, aggregation);
+		return aggregation;
+	}
+
+	@Benchmark
+	public RandomVariableInterface varianceCovarianceAggregationConstantCorrelation(){
+		return CalculationSchemeInitialMarginISDA.getVarianceCovarianceAggregation(contributions, crossCurrencyCorrelation);
+	}
+}
@@ -0,0 +1,26 @@
+package initialmargin.isdasimm.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Runs the JMH benchmarks of the forward initial margin calculation. The command line is passed to JMH (e.g. a benchmark
+ *  name pattern or <code> -p numberOfPaths=10000 </code>); the GC profiler is always added, such that the allocation rate
+ *  (<code> gc.alloc.rate.norm </code>, bytes per operation) is reported next to the time per operation.
+ *
+ *  Build and run with
+ *  <code> mvn -P benchmark package </code> and <code> java -jar target/benchmarks.jar [JMH options] </code>.
+ *
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
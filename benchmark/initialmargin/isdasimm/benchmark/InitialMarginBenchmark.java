@@ -0,0 +1,64 @@
+package initialmargin.isdasimm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import initialmargin.isdasimm.products.AbstractSIMMProduct;
+import initialmargin.isdasimm.products.SIMMPortfolio;
+import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation.SensitivityMode;
+import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation.WeightMode;
+import net.finmath.exception.CalculationException;
+
+/** End-to-end benchmark of the forward initial margin of a portfolio: one invocation calculates <code> SIMMPortfolio.getInitialMargin </code>
+ *  on a time grid with step 0.5 over the first half of the Libor horizon (the lifetime of the products), including the gradients
+ *  of the products, the sensitivities and the SIMM aggregation.
+ *
+ *  The sensitivity mode and the netted gradient may be changed on the command line, e.g. <code> -p sensitivityMode=LinearMelting </code>.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InitialMarginBenchmark {
+
+	@Param({"1", "10"})
+	public int portfolioSize;
+
+	@Param({"Exact"})
+	public SensitivityMode sensitivityMode;
+
+	@Param({"false"})
+	public boolean isUseNettedGradient;
+
+	private AbstractSIMMProduct[] products;
+
+	@Setup(Level.Trial)
+	public void setUp(ModelState modelState) throws CalculationException {
+		products = modelState.createProducts(portfolioSize);
+	}
+
+	@Benchmark
+	public void initialMargin(ModelState modelState, Blackhole blackhole) throws CalculationException {
+		// A new portfolio resets the gradients and the sensitivities of the products
+		SIMMPortfolio portfolio = new SIMMPortfolio(products, "EUR", isUseNettedGradient);
+		for(double evaluationTime = 0.0; evaluationTime < modelState.getLiborHorizon()/2; evaluationTime += 0.5){
+			blackhole.consume(portfolio.getInitialMargin(evaluationTime, modelState.model, "EUR", sensitivityMode, WeightMode.Stochastic, 1.0 /*interpolationStep*/));
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package initialmargin.isdasimm.benchmark;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import initialmargin.isdasimm.changedfinmath.LIBORMarketModel;
+import initialmargin.isdasimm.changedfinmath.LIBORMarketModelInterface;
+import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulation;
+import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
+import initialmargin.isdasimm.changedfinmath.modelplugins.AbstractLIBORCovarianceModelParametric;
+import initialmargin.isdasimm.changedfinmath.modelplugins.BlendedLocalVolatilityModel;
+import initialmargin.isdasimm.changedfinmath.modelplugins.LIBORCovarianceModelFromVolatilityAndCorrelation;
+import initialmargin.isdasimm.changedfinmath.modelplugins.LIBORVolatilityModel;
+import initialmargin.isdasimm.changedfinmath.modelplugins.LIBORVolatilityModelPiecewiseConstant;
+import initialmargin.isdasimm.products.AbstractSIMMProduct;
+import initialmargin.isdasimm.products.SIMMBermudanSwaption;
+import initialmargin.isdasimm.products.SIMMBermudanSwaption.ExerciseType;
+import initialmargin.isdasimm.products.SIMMSimpleSwap;
+import initialmargin.isdasimm.products.SIMMSwaption;
+import initialmargin.isdasimm.products.SIMMSwaption.DeliveryType;
+import initialmargin.isdasimm.test.SIMMTest;
+import net.finmath.exception.CalculationException;
+import net.finmath.marketdata.model.curves.DiscountCurve;
+import net.finmath.marketdata.model.curves.ForwardCurve;
+import net.finmath.montecarlo.AbstractRandomVariableFactory;
+import net.finmath.montecarlo.BrownianMotionInterface;
+import net.finmath.montecarlo.interestrate.modelplugins.LIBORCorrelationModel;
+import net.finmath.montecarlo.interestrate.modelplugins.LIBORCorrelationModelExponentialDecay;
+import net.finmath.montecarlo.process.ProcessEulerScheme;
+import net.finmath.time.TimeDiscretization;
+
+/** The Libor market model shared by the benchmarks. The model is parameterized by the number of paths and the number of
+ *  Libor periods (of length 0.5) and is simulated once per trial, such that the benchmarks measure the products and the
+ *  SIMM calculations only. The model uses the AAD random variable factory as in <code> SIMMTest </code>.
+ *
+ */
+@State(Scope.Benchmark)
+public class ModelState {
+
+	static final double liborPeriodLength = 0.5;
+
+	static final String[] curveIndexNames = new String[]{"OIS", "Libor6m"};
+
+	@Param({"1000", "5000"})
+	public int numberOfPaths;
+
+	@Param({"20", "40"})
+	public int numberOfLiborPeriods;
+
+	public LIBORModelMonteCarloSimulationInterface model;
+
+	@Setup(Level.Trial)
+	public void setUp() throws CalculationException {
+		model = createLIBORMarketModel(SIMMTest.createRandomVariableFactoryAAD(), numberOfPaths, numberOfLiborPeriods);
+
+		// Trigger the simulation of the model
+		model.getLIBOR(0, 0);
+	}
+
+	/** The time horizon of the Libor period discretization.
+	 *
+	 * @return The last Libor time
+	 */
+	public double getLiborHorizon(){
+		return numberOfLiborPeriods * liborPeriodLength;
+	}
+
+	/** Create a portfolio of SIMM products. Two out of three products are swaps with staggered start dates, every third
+	 *  product is a physically settled swaption. The products cover half of the Libor horizon.
+	 *
+	 * @param numberOfProducts The number of products
+	 * @return The products
+	 * @throws CalculationException
+	 */
+	public AbstractSIMMProduct[] createProducts(int numberOfProducts) throws CalculationException {
+		int numberOfPeriods = numberOfLiborPeriods/2;
+		AbstractSIMMProduct[] products = new AbstractSIMMProduct[numberOfProducts];
+		for(int productIndex=0; productIndex<numberOfProducts; productIndex++){
+			double startTime = liborPeriodLength * (productIndex % 4);
+			double[] swapRates = new double[numberOfPeriods];
+			Arrays.fill(swapRates, 0.015 + 0.0005 * productIndex);
+			if(productIndex % 3 == 2){
+				double exerciseTime = startTime + 1.0;
+				products[productIndex] = new SIMMSwaption(exerciseTime, getPeriodStartTimes(exerciseTime, numberOfPeriods), getPeriodEndTimes(exerciseTime, numberOfPeriods),
+						swapRates, 100, DeliveryType.Physical, curveIndexNames, "EUR");
+			}
+			else products[productIndex] = new SIMMSimpleSwap(getPeriodStartTimes(startTime, numberOfPeriods), getPeriodEndTimes(startTime, numberOfPeriods),
+					swapRates, productIndex % 2 == 0 /*isPayFix*/, 100, curveIndexNames, "EUR");
+		}
+		return products;
+	}
+
+	/** Create a callable Bermudan swaption exercisable every other period, starting in one year and covering half of the Libor horizon.
+	 *
+	 * @return The Bermudan swaption
+	 * @throws CalculationException
+	 */
+	public SIMMBermudanSwaption createBermudanSwaption() throws CalculationException {
+		int numberOfPeriods = numberOfLiborPeriods/2;
+		double[] periodLengths   = new double[numberOfPeriods];
+		double[] periodNotionals = new double[numberOfPeriods];
+		double[] swapRates       = new double[numberOfPeriods];
+		boolean[] isPeriodStartDateExerciseDate = new boolean[numberOfPeriods];
+		Arrays.fill(periodLengths, liborPeriodLength);
+		Arrays.fill(periodNotionals, 100);
+		Arrays.fill(swapRates, 0.02);
+		for(int periodIndex=0; periodIndex<numberOfPeriods; periodIndex+=2) isPeriodStartDateExerciseDate[periodIndex] = true;
+
+		return new SIMMBermudanSwaption(getPeriodStartTimes(1.0, numberOfPeriods), periodLengths, getPeriodEndTimes(1.0, numberOfPeriods), periodNotionals,
+				swapRates, isPeriodStartDateExerciseDate, ExerciseType.Callable, curveIndexNames, "EUR");
+	}
+
+	static double[] getPeriodStartTimes(double startTime, int numberOfPeriods){
+		return IntStream.range(0, numberOfPeriods).mapToDouble(i -> startTime + i * liborPeriodLength).toArray();
+	}
+
+	static double[] getPeriodEndTimes(double startTime, int numberOfPeriods){
+		return IntStream.range(0, numberOfPeriods).mapToDouble(i -> startTime + (i+1) * liborPeriodLength).toArray();
+	}
+
+	/** Create the Libor market model of <code> SIMMTest </code> (blended local volatility, exponentially decaying correlation, spot measure)
+	 *  on a Libor horizon of the given number of periods, with flat curves and a constant volatility.
+	 *
+	 * @param randomVariableFactory The random variable factory
+	 * @param numberOfPaths The number of paths
+	 * @param numberOfLiborPeriods The number of Libor periods
+	 * @return The simulation of the Libor market model
+	 * @throws CalculationException
+	 */
+	static LIBORModelMonteCarloSimulationInterface createLIBORMarketModel(AbstractRandomVariableFactory randomVariableFactory, int numberOfPaths, int numberOfLiborPeriods) throws CalculationException {
+
+		DiscountCurve discountCurve = DiscountCurve.createDiscountCurveFromDiscountFactors("discountCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0} /*times*/,
+				new double[] {0.996 , 0.995, 0.994, 0.993, 0.98} /*discountFactors*/);
+
+		ForwardCurve forwardCurve = ForwardCurve.createForwardCurveFromForwards("forwardCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0} /*fixings of the forward*/,
+				new double[] {0.02, 0.02, 0.02, 0.02, 0.02},
+				liborPeriodLength);
+
+		double liborRateTimeHorizon = numberOfLiborPeriods * liborPeriodLength;
+		double dt = 0.1;
+		TimeDiscretization timeDiscretization = new TimeDiscretization(0.0, (int) Math.round(liborRateTimeHorizon / dt), dt);
+		TimeDiscretization liborPeriodDiscretization = new TimeDiscretization(0.0, numberOfLiborPeriods, liborPeriodLength);
+
+		int numberOfFactors = 1;
+		BrownianMotionInterface brownianMotion = new net.finmath.montecarlo.BrownianMotion(timeDiscretization, numberOfFactors, numberOfPaths, 31415 /* seed */);
+
+		LIBORVolatilityModel volatilityModel = new LIBORVolatilityModelPiecewiseConstant(randomVariableFactory, timeDiscretization, liborPeriodDiscretization,
+				new TimeDiscretization(0.0, 1.0, 2.0, 5.0, 10.0, 20.0, 30.0), new TimeDiscretization(0.0, 1.0, 2.0, 5.0, 10.0, 20.0, 30.0), new double[]{0.008}, false);
+		LIBORCorrelationModel correlationModel = new LIBORCorrelationModelExponentialDecay(timeDiscretization, liborPeriodDiscretization, numberOfFactors, 0.04 /*correlationDecayParameter*/, false);
+		AbstractLIBORCovarianceModelParametric covarianceModelParametric = new LIBORCovarianceModelFromVolatilityAndCorrelation(timeDiscretization, liborPeriodDiscretization, volatilityModel, correlationModel);
+		AbstractLIBORCovarianceModelParametric covarianceModelBlended = new BlendedLocalVolatilityModel(randomVariableFactory, covarianceModelParametric, 0.5880313623110442 /*displacement*/, false);
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("measure", LIBORMarketModel.Measure.SPOT.name());
+		properties.put("stateSpace", LIBORMarketModel.StateSpace.NORMAL.name());
+
+		LIBORMarketModelInterface liborMarketModel = new LIBORMarketModel(liborPeriodDiscretization, null, forwardCurve, discountCurve, randomVariableFactory,
+				covarianceModelBlended, new LIBORMarketModel.CalibrationItem[0], properties);
+
+		ProcessEulerScheme process = new ProcessEulerScheme(brownianMotion, ProcessEulerScheme.Scheme.EULER_FUNCTIONAL);
+
+		return new LIBORModelMonteCarloSimulation(liborMarketModel, process);
+	}
+}
@@ -0,0 +1,63 @@
+package initialmargin.isdasimm.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
+import initialmargin.isdasimm.changedfinmath.products.BermudanSwaption;
+import net.finmath.exception.CalculationException;
+import net.finmath.stochastic.RandomVariableInterface;
+
+/** Benchmark of the valuation primitives of the Libor market model: the forward bonds on the OIS curve (as used for the
+ *  discount curve sensitivities and the swap rate weights) and the valuation of a Bermudan swaption by backward induction.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelValuationBenchmark {
+
+	// Evaluation time between two Libor times
+	private static final double evaluationTime = 2.3;
+
+	private LIBORModelMonteCarloSimulationInterface model;
+	private double[] bondMaturities;
+	private BermudanSwaption bermudanSwaption;
+
+	@Setup(Level.Trial)
+	public void setUp(ModelState modelState) throws CalculationException {
+		model = modelState.model;
+
+		// The maturities of the forward bonds P(T;t) used for the swap rate sensitivities at evaluationTime
+		int nextLiborIndex = model.getLiborPeriodDiscretization().getTimeIndexNearestGreaterOrEqual(evaluationTime);
+		bondMaturities = Arrays.copyOfRange(model.getLiborPeriodDiscretization().getAsDoubleArray(), nextLiborIndex, model.getNumberOfLibors()+1);
+
+		bermudanSwaption = (BermudanSwaption) modelState.createBermudanSwaption().getLIBORMonteCarloProduct();
+	}
+
+	@Benchmark
+	public void forwardBondOIS(Blackhole blackhole) throws CalculationException {
+		for(double bondMaturity : bondMaturities) blackhole.consume(model.getForwardBondOIS(bondMaturity, evaluationTime));
+	}
+
+	@Benchmark
+	public RandomVariableInterface bermudanSwaptionValue() throws CalculationException {
+		return bermudanSwaption.getValue(0.0, model);
+	}
+}
@@ -0,0 +1,93 @@
+package initialmargin.isdasimm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
+import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation;
+import initialmargin.isdasimm.sensitivity.RandomVariableMatrix;
+import net.finmath.exception.CalculationException;
+import net.finmath.montecarlo.RandomVariable;
+import net.finmath.stochastic.RandomVariableInterface;
+
+/** Benchmark of the matrix operations used to transform Libor sensitivities to swap rate sensitivities:
+ *  the path-wise (pseudo) inverse of the lower triangular matrix dS/dP and of the n x (n+1) band matrix of the Libor time grid
+ *  adjustment, and the products of random variable vectors and matrices (also with a matrix whose structure is extracted once).
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SensitivityTransformationBenchmark {
+
+	// Evaluation time between two Libor times, such that the time grid adjustment is not the identity
+	private static final double evaluationTime = 2.3;
+
+	private int numberOfPaths;
+	private RandomVariableInterface[][] lowerTriangularMatrix;
+	private RandomVariableInterface[][] bandMatrix;
+	private RandomVariableInterface[]   vector;
+	private RandomVariableMatrix        bandMatrixCompressed;
+
+	@Setup(Level.Trial)
+	public void setUp(ModelState modelState) throws CalculationException {
+		LIBORModelMonteCarloSimulationInterface model = modelState.model;
+		numberOfPaths = model.getNumberOfPaths();
+
+		// The bond swap sensitivity dP/dS is lower triangular, its inverse is dS/dP
+		lowerTriangularMatrix = AbstractSIMMSensitivityCalculation.getBondSwapSensitivity(evaluationTime, model);
+
+		// A band matrix with the structure of the time grid adjustment dL/dL: entries (i,i) and (i,i+1)
+		int timeIndex = model.getTimeDiscretization().getTimeIndexNearestLessOrEqual(evaluationTime);
+		int nextLiborIndex = model.getLiborPeriodDiscretization().getTimeIndexNearestGreaterOrEqual(evaluationTime);
+		int numberOfRemainingLibors = AbstractSIMMSensitivityCalculation.getNumberOfRemainingLibors(evaluationTime, model);
+		bandMatrix = new RandomVariableInterface[numberOfRemainingLibors][numberOfRemainingLibors+1];
+		vector = new RandomVariableInterface[numberOfRemainingLibors];
+		for(int i=0; i<numberOfRemainingLibors; i++){
+			RandomVariableInterface libor = new RandomVariable(evaluationTime, model.getLIBOR(timeIndex, nextLiborIndex+i).getRealizations());
+			bandMatrix[i][i]   = libor.mult(ModelState.liborPeriodLength).add(1.0).mult(0.4);
+			bandMatrix[i][i+1] = libor.mult(ModelState.liborPeriodLength).add(1.0).mult(0.6);
+			vector[i] = libor.mult(100.0);
+		}
+		bandMatrixCompressed = new RandomVariableMatrix(bandMatrix);
+	}
+
+	@Benchmark
+	public RandomVariableInterface[][] pseudoInverseLowerTriangular(){
+		return AbstractSIMMSensitivityCalculation.getPseudoInverse(lowerTriangularMatrix, numberOfPaths);
+	}
+
+	@Benchmark
+	public RandomVariableInterface[][] pseudoInverseBand(){
+		return AbstractSIMMSensitivityCalculation.getPseudoInverse(bandMatrix, numberOfPaths);
+	}
+
+	@Benchmark
+	public RandomVariableInterface[] multiplyVectorMatrix(){
+		return AbstractSIMMSensitivityCalculation.multiply(vector, lowerTriangularMatrix);
+	}
+
+	@Benchmark
+	public RandomVariableInterface[] multiplyVectorBandMatrixCompressed(){
+		return bandMatrixCompressed.multiplyLeft(vector);
+	}
+
+	@Benchmark
+	public RandomVariableInterface[][] multiplyMatrixMatrix(){
+		return AbstractSIMMSensitivityCalculation.multiply(lowerTriangularMatrix, lowerTriangularMatrix);
+	}
+}
@@ -0,0 +1,67 @@
+package initialmargin.isdasimm.products;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import initialmargin.isdasimm.benchmark.ModelState;
+import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
+import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation.SensitivityMode;
+import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation.WeightMode;
+import initialmargin.isdasimm.sensitivity.SIMMSensitivityCalculation;
+import net.finmath.exception.CalculationException;
+import net.finmath.stochastic.RandomVariableInterface;
+
+/** Benchmark of the forward Libor sensitivities dV/dL of a product by AAD (<code> getValueLiborSensitivitiesAAD </code>): the
+ *  conditional expectation of the gradient w.r.t. the Libors at the evaluation time and the time grid adjustment. The gradient
+ *  (the backward sweep) is calculated once in the setup, as in the forward IM calculation.
+ *
+ *  This benchmark is in the package of the products since <code> getValueLiborSensitivitiesAAD </code> is protected.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProductSensitivityBenchmark {
+
+	// Evaluation time between two Libor times, after the first exercise date of the Bermudan
+	private static final double evaluationTime = 2.3;
+
+	private LIBORModelMonteCarloSimulationInterface model;
+	private AbstractSIMMProduct swap;
+	private AbstractSIMMProduct bermudanSwaption;
+
+	@Setup(Level.Trial)
+	public void setUp(ModelState modelState) throws CalculationException {
+		model = modelState.model;
+		swap = modelState.createProducts(1)[0];
+		bermudanSwaption = modelState.createBermudanSwaption();
+		for(AbstractSIMMProduct product : new AbstractSIMMProduct[]{swap, bermudanSwaption}){
+			product.setSIMMSensitivityCalculation(new SIMMSensitivityCalculation(SensitivityMode.Exact, WeightMode.Stochastic, 1.0 /*interpolationStep*/, model, false /*isUseAnalyticSwapSensitivities*/));
+			product.setGradient(model);
+		}
+	}
+
+	@Benchmark
+	public RandomVariableInterface[] swapLiborSensitivitiesAAD() throws CalculationException {
+		return swap.getValueLiborSensitivitiesAAD(evaluationTime, model);
+	}
+
+	@Benchmark
+	public RandomVariableInterface[] bermudanSwaptionLiborSensitivitiesAAD() throws CalculationException {
+		return bermudanSwaption.getValueLiborSensitivitiesAAD(evaluationTime, model);
+	}
+}
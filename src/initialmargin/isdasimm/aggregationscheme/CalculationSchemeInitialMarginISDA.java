@@ -5,11 +5,6 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -19,8 +14,9 @@ import net.finmath.exception.CalculationException;
 import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
 import initialmargin.isdasimm.products.*;
 import net.finmath.montecarlo.RandomVariable;
+import net.finmath.montecarlo.automaticdifferentiation.RandomVariableDifferentiableInterface;
 import net.finmath.optimizer.OptimizerFactoryInterface;
-import net.finmath.optimizer.OptimizerFactoryLevenbergMarquardt;
+import net.finmath.optimizer.LevenbergMarquardt;
 import net.finmath.optimizer.OptimizerInterface;
 import net.finmath.optimizer.OptimizerInterface.ObjectiveFunction;
 import net.finmath.optimizer.SolverException;
@@ -32,7 +28,7 @@ import net.finmath.stochastic.RandomVariableInterface;
 
 public class CalculationSchemeInitialMarginISDA {
 
-	public class ParameterCollection{
+	public static class ParameterCollection{
 	     public ParameterCollection(){//hard values inserted by Mario Viehmann
 	     	
 	     	// Set correlationMatrixWithinSubCurve
@@ -160,12 +156,63 @@ public class CalculationSchemeInitialMarginISDA {
 
     private AbstractSIMMProduct[] products;
     
-    private ParameterCollection parameterCollection;
+    private SIMMParameterSet parameterSet;
+    private ParameterCollection parameterCollection;	// the collection last set, created on request of getParameterCollection otherwise
     private String[] productClassKeys;
     private String[] riskClassKeys;
     private String[] IRCurveIndexNames;
     private String calculationCCY;
 
+    // Index of the net sensitivities per evaluation time: the products contained in the net sensitivities and, for each risk factor, the net sensitivities on all maturity buckets
+    private final Map<Double, NetSensitivityIndex> netSensitivityIndices = new HashMap<>();
+    private boolean isRetainNetSensitivities = false;	// if false only the index of the last evaluation time is kept
+
+    private static final class NetSensitivityIndex {
+        private AbstractSIMMProduct[]               activeProducts;
+        private final Map<String, NetSensitivities> netSensitivities = new HashMap<>();
+
+        private NetSensitivityIndex(AbstractSIMMProduct[] activeProducts){
+            this.activeProducts = activeProducts;
+        }
+    }
+
+    private static final class NetSensitivities {
+        private final String productClassKey;
+        private final String riskClassKey;
+        private final String riskFactor;
+        private final String bucketKey;
+        private final String riskType;
+        private final String[] maturityBuckets;
+        private final RandomVariableInterface[] values;	// null if no product has a sensitivity on the maturity bucket
+
+        private NetSensitivities(String productClassKey, String riskClassKey, String riskFactor, String bucketKey, String riskType, String[] maturityBuckets){
+            this.productClassKey = productClassKey;
+            this.riskClassKey = riskClassKey;
+            this.riskFactor = riskFactor;
+            this.bucketKey = bucketKey;
+            this.riskType = riskType;
+            this.maturityBuckets = maturityBuckets;
+            this.values = new RandomVariableInterface[maturityBuckets.length];
+        }
+
+        /*
+         * Adds (or subtracts) the sensitivities of a product on all maturity buckets.
+         */
+        private void add(AbstractSIMMProduct product, double atTime, boolean isSubtract) throws CalculationException {
+            for (int i = 0; i < maturityBuckets.length; i++) {
+                RandomVariableInterface sensitivity;
+                try {
+                    sensitivity = product.getSensitivity(productClassKey, riskClassKey, maturityBuckets[i], riskFactor, bucketKey, riskType, atTime);
+                } catch (SolverException | CloneNotSupportedException e) {
+                    throw new CalculationException(e);
+                }
+                if (sensitivity == null) continue;
+                if (isSubtract) values[i] = values[i] == null ? sensitivity.mult(-1.0) : values[i].sub(sensitivity);
+                else            values[i] = values[i] == null ? sensitivity : values[i].add(sensitivity);
+            }
+        }
+    }
+
    
     // SIMM constructor
     public CalculationSchemeInitialMarginISDA(SIMMPortfolio portfolio, 
@@ -174,8 +221,11 @@ public class CalculationSchemeInitialMarginISDA {
         this.resultMap = new HashMap<>();
         this.calculationCCY = calculationCCY;
         this.products = portfolio.getProducts();
-        this.parameterCollection = new ParameterCollection();
-        
+        this.parameterSet = SIMMParameterSet.getDefault();
+        setRelevantKeys();
+    }
+
+    private void setRelevantKeys(){
         // Inserted by Mario Viehmann: Screen portfolio products for relevant product classes, risk classes and curveIndexNames
         ArrayList<String> relevantProductClasses = new ArrayList<String>();
         ArrayList<String> relevantCurveIndices = new ArrayList<String>();
@@ -196,14 +246,13 @@ public class CalculationSchemeInitialMarginISDA {
         this.productClassKeys = relevantProductClasses.toArray(new String[relevantProductClasses.size()]);
         this.riskClassKeys   = relevantRiskClasses.toArray(new String[relevantRiskClasses.size()]);
         this.IRCurveIndexNames = relevantCurveIndices.toArray(new String[relevantCurveIndices.size()]);
-          
     }
     
     // SIMM constructor
     public CalculationSchemeInitialMarginISDA(AbstractSIMMProduct product, String calculationCCY) throws CalculationException{
         this.resultMap = new HashMap<>();
         this.calculationCCY = calculationCCY;
-        this.parameterCollection = new ParameterCollection();
+        this.parameterSet = SIMMParameterSet.getDefault();
         this.products = new AbstractSIMMProduct[]{product};
         this.productClassKeys = new String[]{product.getProductClass()};
         this.riskClassKeys = product.getRiskClasses();
@@ -224,13 +273,14 @@ public class CalculationSchemeInitialMarginISDA {
     public CalculationSchemeInitialMarginISDA(String calculationCCY) throws CalculationException{
         this.resultMap = new HashMap<>();
         this.calculationCCY = calculationCCY;
-        this.parameterCollection = new ParameterCollection();
+        this.parameterSet = SIMMParameterSet.getDefault();
     }
     
     
     public RandomVariableInterface getValue(AbstractSIMMProduct product, double evaluationTime) throws CalculationException{
     	RandomVariableInterface SIMMValue = null;
     	this.products = new AbstractSIMMProduct[]{product};
+    	this.netSensitivityIndices.clear(); // the index belongs to the previous product
         this.productClassKeys = new String[]{product.getProductClass()};
         this.riskClassKeys = product.getRiskClasses();
         this.IRCurveIndexNames = product.getCurveIndexNames();
@@ -242,7 +292,8 @@ public class CalculationSchemeInitialMarginISDA {
     }
     
     public void setRiskWeightsRegular(double[] weights){
-    	this.parameterCollection.setRiskWeightsRegular(weights);
+    	this.parameterSet = this.parameterSet.getCloneWithRegularRiskWeights(weights);
+    	if(parameterCollection != null) parameterCollection.setRiskWeightsRegular(weights);
     }
     
     
@@ -254,7 +305,7 @@ public class CalculationSchemeInitialMarginISDA {
     }
 
     // returns IM for productClass e.g. RatesFX
-    public RandomVariableInterface      getSIMMProduct(String productClass, double atTime){
+    public RandomVariableInterface      getSIMMProduct(String productClass, double atTime) throws CalculationException{
 
         Set<String> riskClassList = Stream.of(riskClassKeys).collect(Collectors.toSet());
 
@@ -273,11 +324,96 @@ public class CalculationSchemeInitialMarginISDA {
             i++;
         }
 
-        RandomVariableInterface simmProductClass = CalculationSchemeInitialMarginISDA.getVarianceCovarianceAggregation(contributions,parameterCollection.CrossRiskClassCorrelationMatrix);
+        RandomVariableInterface simmProductClass = CalculationSchemeInitialMarginISDA.getVarianceCovarianceAggregation(contributions,parameterSet.getCrossRiskClassCorrelation());
         resultMap.put(productClass,simmProductClass.getAverage());
         return simmProductClass;
     }
 
+    /** Returns the Euler allocation of the initial margin to the products, path by path: the sensitivities of each product contracted
+     *  with the derivatives of the initial margin w.r.t. the net sensitivities, \( IM_p = \sum_i s_{p,i} \partial IM / \partial S_i \).
+     *  With the concentration risk factors held fixed the initial margin is homogeneous of degree one in the net sensitivities S,
+     *  hence the allocations sum to the initial margin. The derivatives are calculated once for all products.
+     *  The allocation covers the interest rate delta margin, the only margin calculated by this scheme.
+     *
+     * @param evaluationTime The time of the initial margin
+     * @return The allocation for each product of this scheme
+     * @throws CalculationException Thrown if a sensitivity cannot be calculated
+     * @throws UnsupportedOperationException Thrown if the scheme has a risk class other than InterestRate
+     */
+    public RandomVariableInterface[] getEulerAllocation(double evaluationTime) throws CalculationException{
+        return getEulerAllocation(evaluationTime, products);
+    }
+
+    /** Returns the Euler allocation of the interest rate delta margin to given products, e.g. to the products of a portfolio of this
+     *  scheme: the derivatives of the initial margin w.r.t. the net sensitivities of this scheme are contracted with the sensitivities
+     *  of the given products. The allocations sum to the initial margin if the sensitivities of the given products sum to the net
+     *  sensitivities of this scheme.
+     *
+     * @param evaluationTime The time of the initial margin
+     * @param allocationProducts The products of this scheme or of the portfolios of this scheme
+     * @return The allocation for each of the given products
+     * @throws CalculationException Thrown if a sensitivity cannot be calculated
+     * @throws UnsupportedOperationException Thrown if the scheme has a risk class other than InterestRate
+     */
+    public RandomVariableInterface[] getEulerAllocation(double evaluationTime, AbstractSIMMProduct[] allocationProducts) throws CalculationException{
+        for (String riskClass : riskClassKeys) {
+            if (!riskClass.equals("InterestRate")) throw new UnsupportedOperationException("The Euler allocation supports the risk class InterestRate only, not " + riskClass + ".");
+        }
+        RandomVariableInterface[] allocation = new RandomVariableInterface[allocationProducts.length];
+        Arrays.fill(allocation, new RandomVariable(0.0));
+        if(riskClassKeys.length == 0) return allocation;
+
+        String[] maturityBuckets = parameterSet.getIRMaturityBuckets();
+        String[] curveIndexNames = parameterSet.getIRCurveIndexNames();
+        int nTenors = maturityBuckets.length;
+        int dimensionTotal = curveIndexNames.length*nTenors+2;
+
+        for (String productClass : productClassKeys) {
+            RandomVariableInterface productClassDerivative = getInterestRateContributionDerivative(productClass, evaluationTime);
+            MarginSchemeIRDelta deltaScheme = new MarginSchemeIRDelta(this, productClass);
+            RandomVariableInterface[][] netSensitivityDerivatives = deltaScheme.getNetSensitivityDerivatives(evaluationTime);
+            String[] bucketKeys = getInterestRateDeltaBucketKeys();
+
+            for (int productIndex = 0; productIndex < allocationProducts.length; productIndex++) {
+                AbstractSIMMProduct product = allocationProducts[productIndex];
+                RandomVariableInterface productAllocation = allocation[productIndex];
+                for (int i = 0; i < bucketKeys.length; i++) {
+                    for (int j = 0; j < dimensionTotal; j++) {
+                        String riskFactor = j < dimensionTotal-2 ? curveIndexNames[j/nTenors] : (j == dimensionTotal-2 ? "inflation" : "ccybasis");
+                        String maturityBucket = j < dimensionTotal-2 ? maturityBuckets[j % nTenors] : maturityBuckets[0];
+                        RandomVariableInterface sensitivity;
+                        try {
+                            sensitivity = product.getSensitivity(productClass, "InterestRate", maturityBucket, riskFactor, bucketKeys[i], "delta", evaluationTime);
+                        } catch (SolverException | CloneNotSupportedException e) {
+                            throw new CalculationException(e);
+                        }
+                        if (sensitivity != null) productAllocation = productAllocation.add(sensitivity.mult(netSensitivityDerivatives[i][j]).mult(productClassDerivative));
+                    }
+                }
+                allocation[productIndex] = productAllocation;
+            }
+        }
+        return allocation;
+    }
+
+    /*
+     * Returns the derivative of the initial margin of a product class w.r.t. the margin of the interest rate risk class, (R c)_IR / sqrt(c^T R c).
+     */
+    private RandomVariableInterface getInterestRateContributionDerivative(String productClass, double evaluationTime) throws CalculationException{
+        int interestRateIndex = Arrays.asList(riskClassKeys).indexOf("InterestRate");
+        double[] correlation = parameterSet.getCrossRiskClassCorrelation();
+
+        RandomVariableInterface[] contributions = new RandomVariableInterface[riskClassKeys.length];
+        for (int i = 0; i < riskClassKeys.length; i++) contributions[i] = this.getIMForRiskClass(riskClassKeys[i], productClass, evaluationTime);
+        RandomVariableInterface simmProductClass = getVarianceCovarianceAggregation(contributions, correlation);
+
+        RandomVariableInterface correlatedContribution = contributions[interestRateIndex];
+        for (int i = 0; i < contributions.length; i++) {
+            if (i != interestRateIndex) correlatedContribution = correlatedContribution.add(contributions[i].mult(correlation[interestRateIndex*contributions.length+i]));
+        }
+        return MarginSchemeIRDelta.divideOrZero(correlatedContribution, simmProductClass);
+    }
+
 
 //    public RandomVariableInterface getIMForRiskClass(String riskClassKey,String productClass, double atTime){
 //        RandomVariableInterface    deltaMargin = this.getDeltaMargin(riskClassKey,productClass,atTime);
@@ -325,7 +461,7 @@ public class CalculationSchemeInitialMarginISDA {
 //    }
     
     
-    public RandomVariableInterface      getIMForRiskClass(String riskClassKey,String productClass, double atTime){
+    public RandomVariableInterface      getIMForRiskClass(String riskClassKey,String productClass, double atTime) throws CalculationException{
         RandomVariableInterface    deltaMargin = this.getDeltaMargin(riskClassKey,productClass,atTime);
         RandomVariableInterface    vegaMargin = this.getVegaMargin(riskClassKey,productClass,atTime);
         //RandomVariableInterface    curatureMargin = this.getDeltaMargin(riskClassKey,productClass, atTime);
@@ -336,7 +472,7 @@ public class CalculationSchemeInitialMarginISDA {
 
     }
 
-    public RandomVariableInterface      getDeltaMargin(String riskClassKey,String productClassKey, double atTime){
+    public RandomVariableInterface      getDeltaMargin(String riskClassKey,String productClassKey, double atTime) throws CalculationException{
         RandomVariableInterface deltaMargin = null;
         //DeltaMarginSchemeNonIR DeltaScheme = new DeltaMarginSchemeNonIR(this,"Risk_IRCurve",productClassKey,
         //                                        this.riskClassRiskWeightMap.get(riskClassKey),this.riskClassCorrelationMap.get(riskClassKey),this.riskClassThresholdMap.get(riskClassKey));
@@ -387,25 +523,120 @@ public class CalculationSchemeInitialMarginISDA {
 
 
 
+    /** Calculates the variance covariance aggregation \( \sqrt{ S^T \rho S } \) of the contributions S path by path.
+     *  Contributions which are null are not part of the aggregation. The diagonal of the correlation is not used (it may be null).
+     *
+     * @param contributions The (weighted) sensitivities S
+     * @param correlation The symmetric correlation matrix
+     * @return The aggregated sensitivity
+     */
     public  static  RandomVariableInterface  getVarianceCovarianceAggregation(RandomVariableInterface[] contributions, Double[][] correlation){
-        int i = 0;
-        RandomVariableInterface value = null;
-        for (RandomVariableInterface contribution1 : contributions) {
-            int j=0;
-            if ( contribution1!=null) {
-                value = value == null ? contribution1.squared() : value.add(contribution1.squared());
-                for (RandomVariableInterface contribution2 : contributions) {
-                    if (contribution2 != null && i != j) {
-                        RandomVariableInterface contribution = contribution1.mult(contribution2).mult(correlation[i][j]);
-                        value = value == null ? contribution : value.add(contribution);
-                    }
-                    j++;
-                }
+        return getVarianceCovarianceAggregation(contributions, correlation != null ? getCorrelationArray(correlation) : null);
+    }
+
+    /** Calculates the variance covariance aggregation \( \sqrt{ S^T \rho S } \) of the contributions S path by path.
+     *  Contributions which are null are not part of the aggregation. If a contribution is differentiable (AAD), the aggregation
+     *  is calculated by operations on the random variables, such that the derivatives w.r.t. the contributions are retained.
+     *  Otherwise the contributions are aggregated by the primitive kernel.
+     *
+     * @param contributions The (weighted) sensitivities S
+     * @param correlation The symmetric correlation matrix in row major order (see <code> getCorrelationArray </code>), may be null for a single contribution
+     * @return The aggregated sensitivity
+     */
+    public  static  RandomVariableInterface  getVarianceCovarianceAggregation(RandomVariableInterface[] contributions, double[] correlation){
+        for (RandomVariableInterface contribution : contributions) {
+            if (contribution instanceof RandomVariableDifferentiableInterface) return getVarianceCovarianceAggregationDifferentiable(contributions, correlation);
+        }
+
+        int numberOfPaths = 1;
+        double filtrationTime = Double.NEGATIVE_INFINITY;
+        for (RandomVariableInterface contribution : contributions) {
+            if (contribution != null) {
+                numberOfPaths = Math.max(numberOfPaths, contribution.size());
+                filtrationTime = Math.max(filtrationTime, contribution.getFiltrationTime());
             }
-            i++;
         }
-        value = value.sqrt();
-        return value;
+        if (filtrationTime == Double.NEGATIVE_INFINITY) throw new NullPointerException("No contribution to aggregate.");
+
+        // Path major sensitivities, null contributions are zero
+        double[][] weightedSensitivities = new double[numberOfPaths][contributions.length];
+        for (int i = 0; i < contributions.length; i++) {
+            if (contributions[i] == null) continue;
+            if (contributions[i].isDeterministic()) {
+                double value = contributions[i].get(0);
+                for (int path = 0; path < numberOfPaths; path++) weightedSensitivities[path][i] = value;
+            }
+            else {
+                for (int path = 0; path < numberOfPaths; path++) weightedSensitivities[path][i] = contributions[i].get(path);
+            }
+        }
+
+        double[] aggregation = new double[numberOfPaths];
+        getVarianceCovarianceAggregation(weightedSensitivities, correlation == null && contributions.length == 1 ? new double[] { 1.0 } : correlation, aggregation);
+
+        return numberOfPaths == 1 ? new RandomVariable(filtrationTime, aggregation[0]) : new RandomVariable(filtrationTime, aggregation);
+    }
+
+    /*
+     * The aggregation \( \sum_i S_i ( S_i + 2 \sum_{j>i} \rho_{i,j} S_j ) \) by operations on the random variables (retains the AAD tape).
+     * Contributions which are not differentiable (e.g. zero sensitivities) are never the receiver of an operation with a differentiable one.
+     */
+    private static  RandomVariableInterface  getVarianceCovarianceAggregationDifferentiable(RandomVariableInterface[] contributions, double[] correlation){
+        int numberOfRiskFactors = contributions.length;
+        RandomVariableInterface variance = null;
+        for (int i = 0; i < numberOfRiskFactors; i++) {
+            if (contributions[i] == null) continue;
+            RandomVariableInterface covariance = contributions[i];
+            for (int j = i+1; j < numberOfRiskFactors; j++) {
+                if (contributions[j] != null) covariance = add(covariance, contributions[j].mult(2.0 * correlation[i*numberOfRiskFactors+j]));
+            }
+            RandomVariableInterface contribution = contributions[i] instanceof RandomVariableDifferentiableInterface ? contributions[i].mult(covariance) : covariance.mult(contributions[i]);
+            variance = variance == null ? contribution : add(variance, contribution);
+        }
+        if (variance == null) throw new NullPointerException("No contribution to aggregate.");
+        return variance.sqrt();
+    }
+
+    private static  RandomVariableInterface  add(RandomVariableInterface summand1, RandomVariableInterface summand2){
+        return summand2 instanceof RandomVariableDifferentiableInterface && !(summand1 instanceof RandomVariableDifferentiableInterface) ? summand2.add(summand1) : summand1.add(summand2);
+    }
+
+    /** Calculates the variance covariance aggregation \( \sqrt{ S^T \rho S } \) for each path, without allocation.
+     *  Since the correlation is symmetric only the upper triangle is visited: \( \sum_i S_i ( S_i + 2 \sum_{j>i} \rho_{i,j} S_j ) \).
+     *
+     * @param weightedSensitivities The weighted sensitivities, path major: <code> weightedSensitivities[path][riskFactor] </code>
+     * @param correlation The symmetric correlation matrix in row major order, <code> correlation[i*n+j] </code> for n risk factors
+     * @param aggregation The array to which the aggregated sensitivity of each path is written
+     */
+    public  static  void  getVarianceCovarianceAggregation(double[][] weightedSensitivities, double[] correlation, double[] aggregation){
+        for (int path = 0; path < weightedSensitivities.length; path++) {
+            double[] sensitivities = weightedSensitivities[path];
+            int numberOfRiskFactors = sensitivities.length;
+            double variance = 0.0;
+            for (int i = 0; i < numberOfRiskFactors; i++) {
+                double sensitivity = sensitivities[i];
+                if (sensitivity == 0.0) continue;
+                double covariance = 0.0;
+                int rowOffset = i*numberOfRiskFactors;
+                for (int j = i+1; j < numberOfRiskFactors; j++) covariance += correlation[rowOffset+j] * sensitivities[j];
+                variance += sensitivity * (sensitivity + 2.0 * covariance);
+            }
+            aggregation[path] = Math.sqrt(variance);
+        }
+    }
+
+    /** Returns the correlation matrix as primitive array in row major order, with unit diagonal.
+     *
+     * @param correlation The correlation matrix (the diagonal may be null)
+     * @return The correlation matrix, <code> correlation[i*n+j] </code>
+     */
+    public  static  double[]  getCorrelationArray(Double[][] correlation){
+        int n = correlation.length;
+        double[] correlationArray = new double[n*n];
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++)
+                correlationArray[i*n+j] = i == j ? 1.0 : correlation[i][j];
+        return correlationArray;
     }
     
  
@@ -430,30 +661,99 @@ public class CalculationSchemeInitialMarginISDA {
     }
     
 
+    /** Returns the sum of the sensitivities of the products of the portfolio on a given risk factor.
+     *  The products are not filtered by final maturity: the sensitivities of a product after its final maturity are those of the product (e.g. zero
+     *  or, for a cash settled swaption, interpolated after the exercise date). The net sensitivities of a risk factor are calculated
+     *  on all IR maturity buckets in one pass over the products and are kept in an index until the evaluation time changes, or for all evaluation
+     *  times if the net sensitivities are retained (see <code> setRetainNetSensitivities </code>).
+     * 
+     * @param productClassKey The SIMM product class
+     * @param riskClassKey The SIMM risk class
+     * @param maturityBucket The maturity bucket (only for IR and Credit risk class)
+     * @param riskFactor The risk factor, for IR the curve index name (e.g. Libor6m), "inflation" or "ccybasis"
+     * @param bucketKey The bucket, for IR the currency
+     * @param riskType The risk type (delta, vega or curvature)
+     * @param atTime The evaluation time
+     * @return The net sensitivity, null if no product has a sensitivity on the risk factor, zero if the scheme has no products
+     * @throws CalculationException Thrown if the sensitivity of a product cannot be calculated
+     */
     // BUCKET IS CURRENCY FOR IR   risk Factor = index Name (e.g. Libor6m)
-    public RandomVariableInterface   getNetSensitivity(String productClassKey, String riskClassKey, String maturityBucket,String riskFactor, String bucketKey,String riskType, double atTime) {
-
-        //SIMMSchemeSensitivitySet.Key key = this.getKeySensitivitySet(iRateTenor,riskFactor,bucketKey,productClassKey,riskClassKey,riskType);
-        
-        RandomVariableInterface isdasimmsensiofAllProducts = Stream.of(products).map(
-        		product->{try{
-        					return product.getSensitivity(productClassKey, 
-        							                      riskClassKey, 
-                                                          maturityBucket, // only for IR and Credit risk class, null otherwise
-                                                          riskFactor,     // CurveIndexName, can be inflation?! 
-                                                          bucketKey,      // currency for IR otherwise null ?
-                                                          riskType, atTime);
-        					 }
-        					catch(Exception e){ return null;
-        						              }
-        		          }).reduce(null, (e1, e2) -> {
-                             if (e1 == null) return e2;
-                             if (e2 == null) return e1;
-                             return e1.add(e2);
-                          });
-        
-        return isdasimmsensiofAllProducts;
+    public RandomVariableInterface   getNetSensitivity(String productClassKey, String riskClassKey, String maturityBucket,String riskFactor, String bucketKey,String riskType, double atTime) throws CalculationException {
+
+        NetSensitivityIndex netSensitivityIndex = getNetSensitivityIndex(atTime);
+        if (netSensitivityIndex.activeProducts.length == 0) return new RandomVariable(0.0);
+
+        int maturityBucketIndex = Arrays.asList(parameterSet.getIRMaturityBuckets()).indexOf(maturityBucket);
+        String[] maturityBuckets = maturityBucketIndex >= 0 ? parameterSet.getIRMaturityBuckets() : new String[]{maturityBucket};
+        String riskFactorKey = productClassKey + "|" + riskClassKey + "|" + riskFactor + "|" + bucketKey + "|" + riskType + (maturityBucketIndex >= 0 ? "" : "|" + maturityBucket);
+
+        NetSensitivities netSensitivities = netSensitivityIndex.netSensitivities.get(riskFactorKey);
+        if (netSensitivities == null) {
+            netSensitivities = new NetSensitivities(productClassKey, riskClassKey, riskFactor, bucketKey, riskType, maturityBuckets);
+            for (AbstractSIMMProduct product : netSensitivityIndex.activeProducts) netSensitivities.add(product, atTime, false);
+            netSensitivityIndex.netSensitivities.put(riskFactorKey, netSensitivities);
+        }
 
+        return netSensitivities.values[Math.max(maturityBucketIndex, 0)];
+    }
+
+    private NetSensitivityIndex getNetSensitivityIndex(double atTime){
+        NetSensitivityIndex netSensitivityIndex = netSensitivityIndices.get(atTime);
+        if (netSensitivityIndex == null) {
+            if (!isRetainNetSensitivities) netSensitivityIndices.clear();
+            netSensitivityIndex = new NetSensitivityIndex(products.clone());
+            netSensitivityIndices.put(atTime, netSensitivityIndex);
+        }
+        return netSensitivityIndex;
+    }
+
+    /** Keep the net sensitivities of all evaluation times instead of the last one only. Then <code> addProduct </code> and
+     *  <code> removeProduct </code> update the net sensitivities of the evaluation times calculated so far by the sensitivities of the
+     *  added or removed product, and the initial margin at these times is the aggregation only.
+     *  The memory of the retained net sensitivities grows with the number of evaluation times.
+     *
+     * @param isRetainNetSensitivities True if the net sensitivities of all evaluation times are kept
+     */
+    public void setRetainNetSensitivities(boolean isRetainNetSensitivities){
+        this.isRetainNetSensitivities = isRetainNetSensitivities;
+    }
+
+    /** Add a product to the products of this scheme. The net sensitivities calculated so far are updated by adding the sensitivities
+     *  of the new product; the sensitivities of the other products are not recalculated.
+     *
+     * @param product The product to add
+     * @throws CalculationException Thrown if a sensitivity of the product cannot be calculated
+     */
+    public void addProduct(AbstractSIMMProduct product) throws CalculationException {
+        this.products = ArrayUtils.add(this.products, product);
+        setRelevantKeys();
+        for (Map.Entry<Double, NetSensitivityIndex> entry : netSensitivityIndices.entrySet()) {
+            double atTime = entry.getKey();
+            NetSensitivityIndex netSensitivityIndex = entry.getValue();
+            netSensitivityIndex.activeProducts = ArrayUtils.add(netSensitivityIndex.activeProducts, product);
+            for (NetSensitivities netSensitivities : netSensitivityIndex.netSensitivities.values()) netSensitivities.add(product, atTime, false);
+        }
+    }
+
+    /** Remove a product from the products of this scheme. The net sensitivities calculated so far are updated by subtracting the sensitivities
+     *  of the product; the sensitivities of the other products are not recalculated.
+     *
+     * @param product The product to remove
+     * @throws CalculationException Thrown if a sensitivity of the product cannot be calculated
+     */
+    public void removeProduct(AbstractSIMMProduct product) throws CalculationException {
+        int productIndex = ArrayUtils.indexOf(this.products, product);
+        if (productIndex < 0) throw new IllegalArgumentException("The product is not part of the scheme.");
+        this.products = ArrayUtils.remove(this.products, productIndex);
+        setRelevantKeys();
+        for (Map.Entry<Double, NetSensitivityIndex> entry : netSensitivityIndices.entrySet()) {
+            NetSensitivityIndex netSensitivityIndex = entry.getValue();
+            int activeProductIndex = ArrayUtils.indexOf(netSensitivityIndex.activeProducts, product);
+            if (activeProductIndex < 0) continue;
+            netSensitivityIndex.activeProducts = ArrayUtils.remove(netSensitivityIndex.activeProducts, activeProductIndex);
+            if (netSensitivityIndex.activeProducts.length == 0) netSensitivityIndex.netSensitivities.clear();
+            else for (NetSensitivities netSensitivities : netSensitivityIndex.netSensitivities.values()) netSensitivities.add(product, entry.getKey(), true);
+        }
     }
     
     
@@ -472,12 +772,37 @@ public class CalculationSchemeInitialMarginISDA {
         return 1;
     }
 
+    /** Sets the parameters of this scheme. The collection is compiled into a <code> SIMMParameterSet </code>,
+     *  hence later changes of the collection take effect only when it is set again.
+     * 
+     * @param parameterCollection The parameter collection
+     */
+    public void setParameterCollection(ParameterCollection parameterCollection) {
+        this.parameterSet = new SIMMParameterSet(parameterCollection);
+        this.parameterCollection = parameterCollection;
+    }
+
+    /** Returns the parameter collection last set on this scheme (with the calibrated risk weights), or a new collection with the
+     *  parameters of this scheme if none was set. Changes of the returned collection take effect only when it is set again.
+     * 
+     * @return The parameter collection
+     * @deprecated The scheme calculates with the compiled parameters, use {@link #getParameterSet()}.
+     */
+    @Deprecated
     public ParameterCollection getParameterCollection() {
+        if(parameterCollection == null) {
+            parameterCollection = new ParameterCollection();
+            parameterCollection.setRiskWeightsRegular(parameterSet.getIRDeltaRiskWeights(SIMMParameterSet.VolatilityClass.Regular).clone());
+        }
         return parameterCollection;
     }
 
-    public void setParameterCollection(ParameterCollection parameterCollection) {
-        this.parameterCollection = parameterCollection;
+    /** Returns the compiled SIMM parameters with which this scheme calculates.
+     * 
+     * @return The parameter set
+     */
+    public SIMMParameterSet getParameterSet() {
+        return parameterSet;
     }
     
     // Inserted by Mario Viehmann
@@ -497,86 +822,91 @@ public class CalculationSchemeInitialMarginISDA {
 		Double	parameterStepParameter	= (Double)calibrationParameters.get("parameterStep");
 		Double	accuracyParameter		= (Double)calibrationParameters.get("accuracy");
 		
-		double[] initialParameters = Arrays.stream(this.parameterCollection.riskWeightsRegularCurrency).map(n->Math.log(n)).toArray();
+		double[] initialParameters = Arrays.stream(this.parameterSet.getIRDeltaRiskWeights(SIMMParameterSet.VolatilityClass.Regular)).map(n->Math.log(n)).toArray();
 		double[] lowerBound = new double[initialParameters.length];
 		double[] upperBound = new double[initialParameters.length];
 		double[] parameterStep = new double[initialParameters.length];
-		double[] zero = new double[calibrationTargetValues.length];
 		Arrays.fill(lowerBound, 0.0);
 		Arrays.fill(upperBound, 1.0);
 		Arrays.fill(parameterStep, parameterStepParameter != null ? parameterStepParameter.doubleValue() : 1E-5);
-		Arrays.fill(zero, 0);
 
-		int numberOfThreads = 2;
 		OptimizerFactoryInterface optimizerFactoryParameter = (OptimizerFactoryInterface)calibrationParameters.get("optimizerFactory");
 
 		int maxIterations	= maxIterationsParameter != null ? maxIterationsParameter.intValue() : 2000;
 		double accuracy		= accuracyParameter != null ? accuracyParameter.doubleValue() : 1E-5;
-		OptimizerFactoryInterface optimizerFactory = optimizerFactoryParameter != null ? optimizerFactoryParameter : new OptimizerFactoryLevenbergMarquardt(maxIterations, accuracy, numberOfThreads);
 
-		//int numberOfThreadsForProductValuation = 2 * Math.max(2, Runtime.getRuntime().availableProcessors());
-		final ExecutorService executor = null;//Executors.newFixedThreadPool(numberOfThreadsForProductValuation);
+		/*
+		 * The sensitivities of the calibration products do not depend on the risk weights. They are calculated once, one product
+		 * after another since the valuations share the model, and frozen in a snapshot. An evaluation for trial risk weights is the
+		 * aggregation of the snapshot only. Products which fail are excluded (their value is the target value).
+		 */
+		final SIMMParameterSet initialParameterSet = this.parameterSet;
+		ArrayList<SIMMSimpleSwap> snapshotProducts = new ArrayList<SIMMSimpleSwap>();
+		final int[] snapshotProductIndex = new int[calibrationProducts.length];
+		for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
+			try {
+				calibrationProducts[calibrationProductIndex].getInitialMargin(0.0 /*evaluationTime*/, model, this);
+				snapshotProductIndex[calibrationProductIndex] = snapshotProducts.size();
+				snapshotProducts.add(calibrationProducts[calibrationProductIndex]);
+			} catch (Exception e) {
+				// We do not signal exceptions to keep the solver working and automatically exclude non-working calibration products.
+				snapshotProductIndex[calibrationProductIndex] = -1;
+			}
+		}
+		final SIMMSensitivitySnapshot snapshot = new SIMMSensitivitySnapshot(snapshotProducts.toArray(new SIMMSimpleSwap[snapshotProducts.size()]), new double[] { 0.0 } /*evaluationTimes*/, initialParameterSet, calculationCCY);
 
 		ObjectiveFunction calibrationError = new ObjectiveFunction() {			
 			// Calculate ISDA SIMM IM 
 			@Override
 			public void setValues(double[] parameters, double[] values) throws SolverException {
+				SIMMParameterSet trialParameterSet = initialParameterSet.getCloneWithRegularRiskWeights(Arrays.stream(parameters).map(n->Math.exp(n)).toArray());
+				double[][] expectedInitialMargin = snapshot.getExpectedInitialMargin(trialParameterSet);
+				for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
+					int productIndex = snapshotProductIndex[calibrationProductIndex];
+					values[calibrationProductIndex] = productIndex >= 0 ? expectedInitialMargin[productIndex][0] : calibrationTargetValues[calibrationProductIndex];
+				}
+			}
+		};
 
-				parameters = Arrays.stream(parameters).map(n->Math.exp(n)).toArray();
-				CalculationSchemeInitialMarginISDA.this.setRiskWeightsRegular(parameters);
+		OptimizerInterface optimizer;
+		if(optimizerFactoryParameter != null) {
+			optimizer = optimizerFactoryParameter.getOptimizer(calibrationError, initialParameters, lowerBound, upperBound, parameterStep, calibrationTargetValues);
+		}
+		else {
+			// Levenberg-Marquardt with the analytic Jacobian: dIM/d log(w) = dIM/dw * w for the risk weights w
+			optimizer = new LevenbergMarquardt(initialParameters, calibrationTargetValues, maxIterations, 1 /*numberOfThreads*/) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public void setValues(double[] parameters, double[] values) throws SolverException {
+					calibrationError.setValues(parameters, values);
+				}
 
-				ArrayList<Future<Double>> valueFutures = new ArrayList<Future<Double>>(calibrationProducts.length);
-				for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
-					final int workerCalibrationProductIndex = calibrationProductIndex;
-					Callable<Double> worker = new  Callable<Double>() {
-						public Double call() throws SolverException {
-							try {
-								return calibrationProducts[workerCalibrationProductIndex].getInitialMargin(0.0 /*evaluationTime*/, model, CalculationSchemeInitialMarginISDA.this).getAverage();
-							} catch (CalculationException e) {
-								// We do not signal exceptions to keep the solver working and automatically exclude non-working calibration products.
-								return calibrationTargetValues[workerCalibrationProductIndex];
-							} catch (Exception e) {
-								// We do not signal exceptions to keep the solver working and automatically exclude non-working calibration products.
-								return calibrationTargetValues[workerCalibrationProductIndex];
-							}
+				@Override
+				public void setDerivatives(double[] parameters, double[][] derivatives) throws SolverException {
+					double[] riskWeights = Arrays.stream(parameters).map(n->Math.exp(n)).toArray();
+					SIMMParameterSet trialParameterSet = initialParameterSet.getCloneWithRegularRiskWeights(riskWeights);
+					double[][] expectedInitialMargin = snapshot.getExpectedInitialMargin(trialParameterSet);
+					double[][][] riskWeightDerivatives = snapshot.getExpectedInitialMarginRiskWeightDerivatives(trialParameterSet, SIMMParameterSet.VolatilityClass.Regular);
+					for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
+						int productIndex = snapshotProductIndex[calibrationProductIndex];
+						for(int parameterIndex=0; parameterIndex<parameters.length; parameterIndex++) {
+							double derivative = productIndex >= 0 ? riskWeightDerivatives[productIndex][0][parameterIndex] * riskWeights[parameterIndex] : 0.0;
+							// Derivatives below the precision of the margin are rounding errors of the sensitivities on other buckets. They would make the normal equations ill conditioned.
+							if(productIndex >= 0 && Math.abs(derivative) < 1E-10 * Math.abs(expectedInitialMargin[productIndex][0])) derivative = 0.0;
+							derivatives[parameterIndex][calibrationProductIndex] = derivative;
 						}
-					};
-					if(executor != null) {
-						Future<Double> valueFuture = executor.submit(worker);
-						valueFutures.add(calibrationProductIndex, valueFuture);
-					}
-					else {
-						FutureTask<Double> valueFutureTask = new FutureTask<Double>(worker);
-						valueFutureTask.run();
-						valueFutures.add(calibrationProductIndex, valueFutureTask);
-					}
-				}
-				for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
-					try {
-						double value = valueFutures.get(calibrationProductIndex).get();
-						values[calibrationProductIndex] = value;
-					}
-					catch (InterruptedException e) {
-						throw new SolverException(e);
-					} catch (ExecutionException e) {
-						throw new SolverException(e);
 					}
 				}
-			}
-		};
+			}.setErrorTolerance(accuracy).setParameterSteps(parameterStep);
+		}
 
-		OptimizerInterface optimizer = optimizerFactory.getOptimizer(calibrationError, initialParameters, lowerBound, upperBound, parameterStep, calibrationTargetValues);
 		try {
 			optimizer.run();
 		}
 		catch(SolverException e) {
 			throw new CalculationException(e);
 		}
-		finally {
-			if(executor != null) {
-				executor.shutdown();
-			}
-		}
 
 		// Set optimized parameters
 		double[] bestFitParameters = Arrays.stream(optimizer.getBestFitParameters()).map(n->Math.exp(n)).toArray();
@@ -1,5 +1,6 @@
 package initialmargin.isdasimm.aggregationscheme;
 
+import net.finmath.exception.CalculationException;
 import net.finmath.montecarlo.RandomVariable;
 import net.finmath.stochastic.RandomVariableInterface;
 
@@ -36,7 +37,7 @@ public class MarginSchemeIRDelta {
         this.bucketKeys = calculationSchemeInitialMarginISDA.getInterestRateDeltaBucketKeys();
     }
 
-    public RandomVariableInterface getValue(double atTime){
+    public RandomVariableInterface getValue(double atTime) throws CalculationException{
 
         if (this.bucketKeys.length==0)
             return new RandomVariable(atTime,this.calculationSchemeInitialMarginISDA.getPathDimension(),0.0);
@@ -61,7 +62,7 @@ public class MarginSchemeIRDelta {
         RandomVariableInterface VarCovar = null;
         Double[][] correlationMatrix = null;
 
-        double singleCorrelation = calculationSchemeInitialMarginISDA.getParameterCollection().IRCorrelationCrossCurrency;
+        double singleCorrelation = calculationSchemeInitialMarginISDA.getParameterSet().getIRCrossCurrencyCorrelation();
         correlationMatrix = new Double[this.bucketKeys.length][this.bucketKeys.length];
         for (i = 0; i< bucketKeys.length;i++)
         for (int j = 0; j< bucketKeys.length;j++)
@@ -86,17 +87,119 @@ public class MarginSchemeIRDelta {
     }
 
 
-    private RandomVariableInterface[][] getNetSensitivities(String bucketKey, double atTime){
-        int nTenors = calculationSchemeInitialMarginISDA.getParameterCollection().IRMaturityBuckets.length;
-        int nCurves = calculationSchemeInitialMarginISDA.getParameterCollection().IRCurveIndexNames.length; //calculationSchemeInitialMarginISDA.getIRCurveIndexNames().length;
+    /** Returns the derivatives of the delta margin w.r.t. the weighted net sensitivities WS of each currency (curves x maturity buckets,
+     *  inflation and cross currency basis, as in <code> getAggregatedSensitivityForBucket </code>). The concentration risk factors
+     *  and the correlation parameters g between the currencies are kept fixed. With \( K_b = \sqrt{WS_b^T \rho WS_b} \),
+     *  \( S_b = \max(\min(\sum WS_b, K_b), -K_b) \) and the delta margin \( M \) we have
+     *  \( dM/dWS_{b,i} = ( K_b dK_b/dWS_{b,i} + dS_b/dWS_{b,i} \sum_{c \neq b} \gamma_{b,c} S_c ) / M \).
+     *
+     * @param atTime The evaluation time
+     * @return The derivatives <code> [currency][riskFactor] </code>
+     * @throws CalculationException Thrown if the net sensitivities cannot be calculated
+     */
+    public RandomVariableInterface[][] getWeightedSensitivityDerivatives(double atTime) throws CalculationException{
+        SIMMParameterSet parameterSet = calculationSchemeInitialMarginISDA.getParameterSet();
+        int nTenors = parameterSet.getIRMaturityBuckets().length;
+        int nCurves = parameterSet.getIRCurveIndexNames().length;
+        int dimensionTotal = nTenors*nCurves+2;
+        double[] crossTenorCorrelation = parameterSet.getIRIntraBucketCorrelation();
+
+        RandomVariableInterface zero = new RandomVariable(atTime,0.0);
+        RandomVariableInterface[] S1Contributions = new RandomVariableInterface[this.bucketKeys.length];
+        RandomVariableInterface[] KContributions = new RandomVariableInterface[this.bucketKeys.length];
+        RandomVariableInterface[] concentrationFactors = new RandomVariableInterface[this.bucketKeys.length];
+        RandomVariableInterface[][] KDerivatives = new RandomVariableInterface[this.bucketKeys.length][dimensionTotal];
+        RandomVariableInterface[][] S1Derivatives = new RandomVariableInterface[this.bucketKeys.length][dimensionTotal];
+        for (int i = 0; i < this.bucketKeys.length; i++) {
+            String bucketKey = bucketKeys[i];
+            RandomVariableInterface[][] netSensitivities = this.getNetSensitivities(bucketKey,atTime);
+            concentrationFactors[i] = getConcentrationRiskFactor(bucketKey,netSensitivities,atTime);
+            KContributions[i] = this.getAggregatedSensitivityForBucket(bucketKey,netSensitivities,concentrationFactors[i],atTime);
+            S1Contributions[i] = this.getFactorS(bucketKey,KContributions[i],netSensitivities,concentrationFactors[i],atTime);
+            RandomVariableInterface sum = this.getWeightedSensitivitySum(bucketKey,netSensitivities,concentrationFactors[i],atTime);
+
+            RandomVariableInterface[] contributions = new RandomVariableInterface[dimensionTotal];
+            for (int iCurve = 0; iCurve <nCurves; iCurve++)
+                for (int iTenor = 0; iTenor <nTenors; iTenor++)
+                    contributions[iCurve*nTenors+iTenor] = this.getWeightedNetSensitivity(iTenor, iCurve, parameterSet.getIRCurveIndexNames()[iCurve], bucketKey, netSensitivities, concentrationFactors[i], atTime);
+            contributions[dimensionTotal-2] = this.getWeightedNetSensitivity(0,0,"inflation",bucketKey,netSensitivities,concentrationFactors[i],atTime);
+            contributions[dimensionTotal-1] = this.getWeightedNetSensitivity(0,0,"ccybasis",bucketKey,netSensitivities,concentrationFactors[i],atTime);
+
+            for (int j = 0; j < dimensionTotal; j++) {
+                // dK/dWS_j = (rho WS)_j / K
+                RandomVariableInterface correlatedSensitivity = contributions[j] != null ? contributions[j] : zero;
+                for (int l = 0; l < dimensionTotal; l++)
+                    if (l != j && contributions[l] != null) correlatedSensitivity = correlatedSensitivity.add(contributions[l].mult(crossTenorCorrelation[j*dimensionTotal+l]));
+                KDerivatives[i][j] = divideOrZero(correlatedSensitivity, KContributions[i]);
+
+                // S = K if sum >= K, S = sum if -K <= sum < K, S = -K otherwise
+                RandomVariableInterface S1DerivativeBelowK = KDerivatives[i][j].barrier(sum.add(KContributions[i]), new RandomVariable(atTime,1.0), KDerivatives[i][j].mult(-1.0));
+                S1Derivatives[i][j] = KDerivatives[i][j].barrier(sum.sub(KContributions[i]), KDerivatives[i][j], S1DerivativeBelowK);
+            }
+        }
+
+        RandomVariableInterface deltaMargin = this.getValue(atTime);
+        double singleCorrelation = parameterSet.getIRCrossCurrencyCorrelation();
+        RandomVariableInterface[][] derivatives = new RandomVariableInterface[this.bucketKeys.length][dimensionTotal];
+        for (int i = 0; i < this.bucketKeys.length; i++) {
+            RandomVariableInterface correlatedS1 = zero;
+            for (int k = 0; k < this.bucketKeys.length; k++)
+                if (k != i) correlatedS1 = correlatedS1.add(S1Contributions[k].mult(getParameterG(concentrationFactors[i],concentrationFactors[k]).getAverage()*singleCorrelation));
+            for (int j = 0; j < dimensionTotal; j++)
+                derivatives[i][j] = divideOrZero(KContributions[i].mult(KDerivatives[i][j]).add(S1Derivatives[i][j].mult(correlatedS1)), deltaMargin);
+        }
+        return derivatives;
+    }
+
+
+    /** Returns the derivatives of the delta margin w.r.t. the net sensitivities of each currency (curves x maturity buckets, inflation
+     *  and cross currency basis), with the concentration risk factors fixed: the derivatives w.r.t. the weighted sensitivities
+     *  (<code> getWeightedSensitivityDerivatives </code>) times the risk weight and the concentration risk factor. The delta margin is
+     *  then homogeneous of degree one in the net sensitivities S, i.e. \( \sum S_i dM/dS_i = M \).
+     *
+     * @param atTime The evaluation time
+     * @return The derivatives <code> [currency][riskFactor] </code>
+     * @throws CalculationException Thrown if the net sensitivities cannot be calculated
+     */
+    public RandomVariableInterface[][] getNetSensitivityDerivatives(double atTime) throws CalculationException{
+        SIMMParameterSet parameterSet = calculationSchemeInitialMarginISDA.getParameterSet();
+        int nTenors = parameterSet.getIRMaturityBuckets().length;
+        int nCurves = parameterSet.getIRCurveIndexNames().length;
+        int dimensionTotal = nTenors*nCurves+2;
+
+        RandomVariableInterface[][] derivatives = this.getWeightedSensitivityDerivatives(atTime);
+        for (int i = 0; i < this.bucketKeys.length; i++) {
+            RandomVariableInterface concentrationFactor = getConcentrationRiskFactor(bucketKeys[i],this.getNetSensitivities(bucketKeys[i],atTime),atTime);
+            double[] riskWeights = parameterSet.getIRDeltaRiskWeights(parameterSet.getVolatilityClass(bucketKeys[i]));
+            for (int j = 0; j < dimensionTotal-2; j++) derivatives[i][j] = derivatives[i][j].mult(concentrationFactor).mult(riskWeights[j % nTenors]);
+            derivatives[i][dimensionTotal-2] = derivatives[i][dimensionTotal-2].mult(concentrationFactor).mult(parameterSet.getIRInflationRiskWeight());
+            derivatives[i][dimensionTotal-1] = derivatives[i][dimensionTotal-1].mult(parameterSet.getIRCcyBasisRiskWeight());
+        }
+        return derivatives;
+    }
+
+
+    /*
+     * Returns numerator/denominator on the paths where the denominator is not zero and zero otherwise.
+     */
+    static RandomVariableInterface divideOrZero(RandomVariableInterface numerator, RandomVariableInterface denominator){
+        RandomVariableInterface isZero = denominator.abs().mult(-1.0); // non-negative only where the denominator is zero
+        RandomVariableInterface quotient = numerator.div(isZero.barrier(isZero, new RandomVariable(1.0), denominator));
+        return quotient.barrier(isZero, new RandomVariable(0.0), quotient);
+    }
+
+
+    private RandomVariableInterface[][] getNetSensitivities(String bucketKey, double atTime) throws CalculationException{
+        int nTenors = calculationSchemeInitialMarginISDA.getParameterSet().getIRMaturityBuckets().length;
+        int nCurves = calculationSchemeInitialMarginISDA.getParameterSet().getIRCurveIndexNames().length; //calculationSchemeInitialMarginISDA.getIRCurveIndexNames().length;
         RandomVariableInterface[][] netSensitivities = new RandomVariableInterface[nCurves][nTenors];
         
         for (int iCurve = 0; iCurve <nCurves; iCurve++)
         {
-            String curveKey = calculationSchemeInitialMarginISDA.getParameterCollection().IRCurveIndexNames[iCurve];
+            String curveKey = calculationSchemeInitialMarginISDA.getParameterSet().getIRCurveIndexNames()[iCurve];
             
                 for (int iTenor = 0; iTenor < nTenors; iTenor++) {
-                    String maturityBucketKey = calculationSchemeInitialMarginISDA.getParameterCollection().IRMaturityBuckets[iTenor];               
+                    String maturityBucketKey = calculationSchemeInitialMarginISDA.getParameterSet().getIRMaturityBuckets()[iTenor];               
                     netSensitivities[iCurve][iTenor] = calculationSchemeInitialMarginISDA.getNetSensitivity(this.productClassKey, this.riskClassKey, maturityBucketKey, curveKey, bucketKey, "delta", atTime);
                 }
             
@@ -104,11 +207,11 @@ public class MarginSchemeIRDelta {
         return netSensitivities;
     }
 
-    private RandomVariableInterface getAggregatedSensitivityForBucket(String bucketKey, RandomVariableInterface[][] netSensitivities,RandomVariableInterface concentrationRiskFactor, double atTime){
+    private RandomVariableInterface getAggregatedSensitivityForBucket(String bucketKey, RandomVariableInterface[][] netSensitivities,RandomVariableInterface concentrationRiskFactor, double atTime) throws CalculationException{
         RandomVariableInterface aggregatedSensi = null;
 
-        int nTenors = calculationSchemeInitialMarginISDA.getParameterCollection().IRMaturityBuckets.length;
-        int nCurves = calculationSchemeInitialMarginISDA.getParameterCollection().IRCurveIndexNames.length;
+        int nTenors = calculationSchemeInitialMarginISDA.getParameterSet().getIRMaturityBuckets().length;
+        int nCurves = calculationSchemeInitialMarginISDA.getParameterSet().getIRCurveIndexNames().length;
 
         int dimensionTotal=nTenors*nCurves+2;
         RandomVariableInterface[] contributions = new RandomVariableInterface[dimensionTotal];
@@ -116,7 +219,7 @@ public class MarginSchemeIRDelta {
         for (int iCurve = 0; iCurve <nCurves; iCurve++)
             for (int iTenor = 0; iTenor <nTenors; iTenor++)
             {
-                String curveKey = calculationSchemeInitialMarginISDA.getParameterCollection().IRCurveIndexNames[iCurve];
+                String curveKey = calculationSchemeInitialMarginISDA.getParameterSet().getIRCurveIndexNames()[iCurve];
                 RandomVariableInterface iBucketSensi = this.getWeightedNetSensitivity(iTenor, iCurve,curveKey, bucketKey,netSensitivities,concentrationRiskFactor, atTime);
                 contributions[iCurve*nTenors+iTenor] = iBucketSensi;
             }
@@ -126,7 +229,7 @@ public class MarginSchemeIRDelta {
         contributions[dimensionTotal-2] = inflationSensi;
         contributions[dimensionTotal-1] = ccyBasisSensi;
 
-        Double[][] crossTenorCorrelation = calculationSchemeInitialMarginISDA.getParameterCollection().MapRiskClassCorrelationIntraBucketMap.get(riskClassKey);
+        double[] crossTenorCorrelation = calculationSchemeInitialMarginISDA.getParameterSet().getIRIntraBucketCorrelation();
 
         aggregatedSensi = CalculationSchemeInitialMarginISDA.getVarianceCovarianceAggregation(contributions, crossTenorCorrelation);
 
@@ -136,21 +239,14 @@ public class MarginSchemeIRDelta {
 
 
 
-    private RandomVariableInterface   getWeightedNetSensitivity(int iRateTenor,int iIndex, String indexName,  String bucketKey, RandomVariableInterface[][] netSensitivities,RandomVariableInterface concentrationRiskFactor, double atTime)
+    private RandomVariableInterface   getWeightedNetSensitivity(int iRateTenor,int iIndex, String indexName,  String bucketKey, RandomVariableInterface[][] netSensitivities,RandomVariableInterface concentrationRiskFactor, double atTime) throws CalculationException
     {
         double riskWeight = 0;
 
         if (!indexName.equals("inflation") && !indexName.equals("ccybasis"))
         {
-            Optional<Map.Entry<String, String>> optional = calculationSchemeInitialMarginISDA.getParameterCollection().IRCurrencyMap.entrySet().stream().filter(entry -> entry.getKey().contains(bucketKey)).findAny();
-            String currencyMapKey;
-            if (!optional.isPresent())
-                currencyMapKey = "High_Volatility_Currencies";
-            else
-                currencyMapKey = optional.get().getValue();
-            currencyMapKey = currencyMapKey.replace("_Traded", "").replace("_Well", "").replace("_Less", "");
-            Double[] riskWeights = calculationSchemeInitialMarginISDA.getParameterCollection().MapRiskClassRiskweightMap.get(riskTypeKey).get("InterestRate").get(currencyMapKey)[0];
-            riskWeight = riskWeights[iRateTenor];
+            SIMMParameterSet parameterSet = calculationSchemeInitialMarginISDA.getParameterSet();
+            riskWeight = parameterSet.getIRDeltaRiskWeights(parameterSet.getVolatilityClass(bucketKey))[iRateTenor];
             RandomVariableInterface netSensi =  netSensitivities[iIndex][iRateTenor];
             if (netSensi!=null) {
                 return netSensi.mult(riskWeight).mult(concentrationRiskFactor);
@@ -159,8 +255,8 @@ public class MarginSchemeIRDelta {
                 return new RandomVariable(atTime,this.calculationSchemeInitialMarginISDA.getPathDimension(),0.0);
         }
         else { /* Inflation or CCYBasis*/
-            riskWeight = calculationSchemeInitialMarginISDA.getParameterCollection().MapRiskClassRiskweightMap.get(riskTypeKey).get("InterestRate").get(indexName)[0][0];
-            String maturityBucket = calculationSchemeInitialMarginISDA.getParameterCollection().IRMaturityBuckets[iRateTenor];
+            riskWeight = indexName.equals("inflation") ? calculationSchemeInitialMarginISDA.getParameterSet().getIRInflationRiskWeight() : calculationSchemeInitialMarginISDA.getParameterSet().getIRCcyBasisRiskWeight();
+            String maturityBucket = calculationSchemeInitialMarginISDA.getParameterSet().getIRMaturityBuckets()[iRateTenor];
             RandomVariableInterface netSensi =  calculationSchemeInitialMarginISDA.getNetSensitivity(this.productClassKey,this.riskClassKey,maturityBucket, indexName, bucketKey,this.riskTypeKey, atTime);
             if (netSensi!=null)
             {
@@ -184,7 +280,7 @@ public class MarginSchemeIRDelta {
 
 
 
-    public RandomVariableInterface getFactorS(String bucketKey, RandomVariableInterface K,RandomVariableInterface[][] netSensitivities,RandomVariableInterface concentrationRiskFactor, double atTime){
+    public RandomVariableInterface getFactorS(String bucketKey, RandomVariableInterface K,RandomVariableInterface[][] netSensitivities,RandomVariableInterface concentrationRiskFactor, double atTime) throws CalculationException{
         RandomVariableInterface sum = this.getWeightedSensitivitySum(bucketKey,netSensitivities,concentrationRiskFactor, atTime);
         RandomVariableInterface S1 = K.barrier(sum.sub(K),K,sum);
         RandomVariableInterface KNegative = K.mult(-1);
@@ -192,12 +288,12 @@ public class MarginSchemeIRDelta {
         return S1;
     }
 
-    private RandomVariableInterface   getWeightedSensitivitySum(String bucketKey,RandomVariableInterface[][] netSensitivities,RandomVariableInterface concentrationRiskFactor, double atTime){
+    private RandomVariableInterface   getWeightedSensitivitySum(String bucketKey,RandomVariableInterface[][] netSensitivities,RandomVariableInterface concentrationRiskFactor, double atTime) throws CalculationException{
         RandomVariableInterface aggregatedSensi = new RandomVariable(atTime,0.0);
 
-        for (int iIndex = 0; iIndex < calculationSchemeInitialMarginISDA.getParameterCollection().IRCurveIndexNames.length; iIndex++) {
-            for (int iTenor = 0; iTenor < calculationSchemeInitialMarginISDA.getParameterCollection().IRMaturityBuckets.length; iTenor++) {
-                String key = calculationSchemeInitialMarginISDA.getParameterCollection().IRCurveIndexNames[iIndex];
+        for (int iIndex = 0; iIndex < calculationSchemeInitialMarginISDA.getParameterSet().getIRCurveIndexNames().length; iIndex++) {
+            for (int iTenor = 0; iTenor < calculationSchemeInitialMarginISDA.getParameterSet().getIRMaturityBuckets().length; iTenor++) {
+                String key = calculationSchemeInitialMarginISDA.getParameterSet().getIRCurveIndexNames()[iIndex];
                 RandomVariableInterface summand = getWeightedNetSensitivity(iTenor,iIndex, key, bucketKey,netSensitivities,concentrationRiskFactor, atTime);
                 if (summand !=null)
                     aggregatedSensi = aggregatedSensi == null ? aggregatedSensi = summand : aggregatedSensi.add(summand);
@@ -209,11 +305,11 @@ public class MarginSchemeIRDelta {
     }
 
 
-    public RandomVariableInterface getConcentrationRiskFactor(String bucketKey, RandomVariableInterface[][] netSensitivities, double atTime){
+    public RandomVariableInterface getConcentrationRiskFactor(String bucketKey, RandomVariableInterface[][] netSensitivities, double atTime) throws CalculationException{
         RandomVariableInterface sensitivitySum = new RandomVariable(atTime,0.0);
-        for (int iIndex = 0; iIndex < calculationSchemeInitialMarginISDA.getParameterCollection().IRCurveIndexNames.length; iIndex++) {
-            for (int iTenor = 0; iTenor < calculationSchemeInitialMarginISDA.getParameterCollection().IRMaturityBuckets.length; iTenor++) {
-                String key = calculationSchemeInitialMarginISDA.getParameterCollection().IRCurveIndexNames[iIndex];
+        for (int iIndex = 0; iIndex < calculationSchemeInitialMarginISDA.getParameterSet().getIRCurveIndexNames().length; iIndex++) {
+            for (int iTenor = 0; iTenor < calculationSchemeInitialMarginISDA.getParameterSet().getIRMaturityBuckets().length; iTenor++) {
+                String key = calculationSchemeInitialMarginISDA.getParameterSet().getIRCurveIndexNames()[iIndex];
                 RandomVariableInterface summand = netSensitivities[iIndex][iTenor];//calculationSchemeInitialMarginISDA.getNetSensitivity(this.productClassKey,this.riskClassKey,iTenor,key,bucketKey,"delta",atTime);//"ccybasis",bucketKey,"delta",atTime);//getWeightedNetSensitivity(iTenor, key, bucketKey, atTime);
                 if (summand !=null)
                     sensitivitySum = sensitivitySum == null ? sensitivitySum = summand : sensitivitySum.add(summand);
@@ -223,14 +319,8 @@ public class MarginSchemeIRDelta {
         if ( sensitivitySum !=null && inflationSensi !=null)
             sensitivitySum = sensitivitySum.add(inflationSensi); // Inflation Sensi are included in Sum, CCYBasis not
 
-        Optional<Map.Entry<String,String> > optional = calculationSchemeInitialMarginISDA.getParameterCollection().IRCurrencyMap.entrySet().stream().filter(entry->entry.getKey().contains(bucketKey)).findAny();
-        String currencyMapKey;
-        if (!optional.isPresent())
-            currencyMapKey="High_Volatility_Currencies";
-        else
-            currencyMapKey = optional.get().getValue();
-
-        double concentrationThreshold = calculationSchemeInitialMarginISDA.getParameterCollection().MapRiskClassThresholdMap.get(this.riskTypeKey).get(riskClassKey).get(currencyMapKey)[0][0];
+        SIMMParameterSet parameterSet = calculationSchemeInitialMarginISDA.getParameterSet();
+        double concentrationThreshold = parameterSet.getIRDeltaConcentrationThreshold(parameterSet.getVolatilityClass(bucketKey));
         RandomVariableInterface CR = (sensitivitySum.abs().div(concentrationThreshold)).sqrt();
         CR = CR.barrier(CR.sub(1.0), CR, 1.0);
         return CR;
@@ -0,0 +1,217 @@
+package initialmargin.isdasimm.aggregationscheme;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import initialmargin.isdasimm.aggregationscheme.CalculationSchemeInitialMarginISDA.ParameterCollection;
+
+/** The parameters of the SIMM interest rate delta margin, compiled from a <code> ParameterCollection </code> into primitive arrays:
+ *  risk weights and concentration thresholds indexed by the ordinal of the volatility class of the currency, the intra bucket
+ *  correlation as one row major <code> double[] </code> with unit diagonal and a table from currency to volatility class.
+ *
+ *  The parameter set is immutable and may be shared by all calculation schemes and threads. The parameters of the SIMM version
+ *  of this project are compiled once (<code> getDefault </code>). Calibrated risk weights give a new parameter set
+ *  (<code> getCloneWithRegularRiskWeights </code>). The arrays returned by the getters are the arrays of the parameter set and must not be modified.
+ *
+ */
+public final class SIMMParameterSet {
+
+	/** The volatility classes of the currencies for interest rate risk, with the keys of the <code> ParameterCollection </code>.
+	 */
+	public enum VolatilityClass {
+		Regular("Regular_Volatility_Currencies"),
+		Low("Low_Volatility_Currencies"),
+		High("High_Volatility_Currencies");
+
+		private final String key;
+
+		VolatilityClass(String key){
+			this.key = key;
+		}
+
+		public String getKey(){
+			return key;
+		}
+
+		/** Returns the volatility class of a key of the <code> ParameterCollection </code>, ignoring the suffixes _Traded, _Well and _Less.
+		 *
+		 * @param key The key, e.g. "Regular_Volatility_Currencies"
+		 * @return The volatility class
+		 */
+		public static VolatilityClass getVolatilityClass(String key){
+			String volatilityClassKey = key.replace("_Traded", "").replace("_Well", "").replace("_Less", "");
+			for(VolatilityClass volatilityClass : values()) if(volatilityClass.key.equals(volatilityClassKey)) return volatilityClass;
+			throw new IllegalArgumentException("Unknown volatility class " + key + ".");
+		}
+	}
+
+	private static final int numberOfVolatilityClasses = VolatilityClass.values().length;
+
+	private static final class DefaultHolder {
+		private static final SIMMParameterSet defaultParameterSet = new SIMMParameterSet(new ParameterCollection());
+	}
+
+	private final String[]   irMaturityBuckets;
+	private final String[]   irCurveIndexNames;
+
+	private final double[][] irDeltaRiskWeights;				// [volatility class][maturity bucket]
+	private final double     irInflationRiskWeight;
+	private final double     irCcyBasisRiskWeight;
+	private final double[]   irDeltaConcentrationThresholds;	// [volatility class], NaN if not given
+	private final double[]   irIntraBucketCorrelation;			// [i*n+j], n = curves x maturity buckets + inflation + ccy basis
+	private final double     irCrossCurrencyCorrelation;
+	private final double[]   crossRiskClassCorrelation;			// [i*n+j], n = risk classes, null if not given
+
+	private final Map<String, String>                   irCurrencyMap;
+	private final ConcurrentHashMap<String, VolatilityClass> currencyVolatilityClasses;
+
+	/** Compile the interest rate delta parameters of a parameter collection.
+	 *
+	 * @param parameterCollection The parameter collection
+	 */
+	public SIMMParameterSet(ParameterCollection parameterCollection){
+		this.irMaturityBuckets = parameterCollection.IRMaturityBuckets.clone();
+		this.irCurveIndexNames = parameterCollection.IRCurveIndexNames.clone();
+
+		Map<String, Double[][]> riskWeightMap = parameterCollection.MapRiskClassRiskweightMap.get("delta").get("InterestRate");
+		this.irDeltaRiskWeights = new double[numberOfVolatilityClasses][];
+		for(VolatilityClass volatilityClass : VolatilityClass.values()) {
+			Double[][] riskWeights = riskWeightMap.get(volatilityClass.getKey());
+			if(riskWeights != null) irDeltaRiskWeights[volatilityClass.ordinal()] = toPrimitive(riskWeights[0]);
+		}
+		this.irInflationRiskWeight = riskWeightMap.get("inflation")[0][0];
+		this.irCcyBasisRiskWeight  = riskWeightMap.get("ccybasis")[0][0];
+
+		Map<String, Double[][]> thresholdMap = parameterCollection.MapRiskClassThresholdMap.get("delta").get("InterestRate");
+		this.irDeltaConcentrationThresholds = new double[numberOfVolatilityClasses];
+		for(VolatilityClass volatilityClass : VolatilityClass.values()) {
+			Double[][] threshold = thresholdMap.get(volatilityClass.getKey());
+			irDeltaConcentrationThresholds[volatilityClass.ordinal()] = threshold != null ? threshold[0][0] : Double.NaN;
+		}
+
+		this.irIntraBucketCorrelation   = CalculationSchemeInitialMarginISDA.getCorrelationArray(parameterCollection.MapRiskClassCorrelationIntraBucketMap.get("InterestRate"));
+		this.irCrossCurrencyCorrelation = parameterCollection.IRCorrelationCrossCurrency;
+		this.crossRiskClassCorrelation  = parameterCollection.CrossRiskClassCorrelationMatrix != null ? CalculationSchemeInitialMarginISDA.getCorrelationArray(parameterCollection.CrossRiskClassCorrelationMatrix) : null;
+
+		this.irCurrencyMap = Collections.unmodifiableMap(new HashMap<String, String>(parameterCollection.IRCurrencyMap));
+		this.currencyVolatilityClasses = new ConcurrentHashMap<String, VolatilityClass>();
+		for(Map.Entry<String, String> entry : irCurrencyMap.entrySet()) currencyVolatilityClasses.put(entry.getKey(), VolatilityClass.getVolatilityClass(entry.getValue()));
+	}
+
+	private SIMMParameterSet(SIMMParameterSet parameterSet, double[][] irDeltaRiskWeights){
+		this.irMaturityBuckets              = parameterSet.irMaturityBuckets;
+		this.irCurveIndexNames              = parameterSet.irCurveIndexNames;
+		this.irDeltaRiskWeights             = irDeltaRiskWeights;
+		this.irInflationRiskWeight          = parameterSet.irInflationRiskWeight;
+		this.irCcyBasisRiskWeight           = parameterSet.irCcyBasisRiskWeight;
+		this.irDeltaConcentrationThresholds = parameterSet.irDeltaConcentrationThresholds;
+		this.irIntraBucketCorrelation       = parameterSet.irIntraBucketCorrelation;
+		this.irCrossCurrencyCorrelation     = parameterSet.irCrossCurrencyCorrelation;
+		this.crossRiskClassCorrelation      = parameterSet.crossRiskClassCorrelation;
+		this.irCurrencyMap                  = parameterSet.irCurrencyMap;
+		this.currencyVolatilityClasses      = parameterSet.currencyVolatilityClasses;
+	}
+
+	/** Returns the parameter set of the SIMM version of this project (the values of <code> ParameterCollection </code>). It is compiled once.
+	 *
+	 * @return The default parameter set
+	 */
+	public static SIMMParameterSet getDefault(){
+		return DefaultHolder.defaultParameterSet;
+	}
+
+	/** Returns a parameter set with the given risk weights of the regular volatility currencies and the other parameters of this parameter set.
+	 *
+	 * @param riskWeights The interest rate delta risk weights of the regular volatility currencies on the maturity buckets
+	 * @return The new parameter set
+	 */
+	public SIMMParameterSet getCloneWithRegularRiskWeights(double[] riskWeights){
+		double[][] newRiskWeights = irDeltaRiskWeights.clone();
+		newRiskWeights[VolatilityClass.Regular.ordinal()] = riskWeights.clone();
+		return new SIMMParameterSet(this, newRiskWeights);
+	}
+
+	public String[] getIRMaturityBuckets(){
+		return irMaturityBuckets;
+	}
+
+	public String[] getIRCurveIndexNames(){
+		return irCurveIndexNames;
+	}
+
+	/** Returns the volatility class of a currency. A currency which is not part of the currency map is a high volatility currency.
+	 *
+	 * @param currency The currency
+	 * @return The volatility class
+	 */
+	public VolatilityClass getVolatilityClass(String currency){
+		VolatilityClass volatilityClass = currencyVolatilityClasses.get(currency);
+		if(volatilityClass == null) {
+			// A key of the currency map may be a list of currencies
+			volatilityClass = VolatilityClass.High;
+			for(Map.Entry<String, String> entry : irCurrencyMap.entrySet()) {
+				if(entry.getKey().contains(currency)) { volatilityClass = VolatilityClass.getVolatilityClass(entry.getValue()); break; }
+			}
+			currencyVolatilityClasses.putIfAbsent(currency, volatilityClass);
+		}
+		return volatilityClass;
+	}
+
+	/** Returns the interest rate delta risk weights on the maturity buckets.
+	 *
+	 * @param volatilityClass The volatility class of the currency
+	 * @return The risk weights
+	 */
+	public double[] getIRDeltaRiskWeights(VolatilityClass volatilityClass){
+		double[] riskWeights = irDeltaRiskWeights[volatilityClass.ordinal()];
+		if(riskWeights == null) throw new IllegalArgumentException("No risk weights for " + volatilityClass.getKey() + ".");
+		return riskWeights;
+	}
+
+	public double getIRInflationRiskWeight(){
+		return irInflationRiskWeight;
+	}
+
+	public double getIRCcyBasisRiskWeight(){
+		return irCcyBasisRiskWeight;
+	}
+
+	/** Returns the interest rate delta concentration threshold.
+	 *
+	 * @param volatilityClass The volatility class of the currency
+	 * @return The concentration threshold
+	 */
+	public double getIRDeltaConcentrationThreshold(VolatilityClass volatilityClass){
+		double threshold = irDeltaConcentrationThresholds[volatilityClass.ordinal()];
+		if(Double.isNaN(threshold)) throw new IllegalArgumentException("No concentration threshold for " + volatilityClass.getKey() + ".");
+		return threshold;
+	}
+
+	/** Returns the correlation of the interest rate sensitivities within a currency: curves x maturity buckets, inflation and
+	 *  cross currency basis, in row major order with unit diagonal.
+	 *
+	 * @return The intra bucket correlation
+	 */
+	public double[] getIRIntraBucketCorrelation(){
+		return irIntraBucketCorrelation;
+	}
+
+	public double getIRCrossCurrencyCorrelation(){
+		return irCrossCurrencyCorrelation;
+	}
+
+	/** Returns the correlation between the risk classes in row major order with unit diagonal.
+	 *
+	 * @return The cross risk class correlation, null if the parameter collection has none
+	 */
+	public double[] getCrossRiskClassCorrelation(){
+		return crossRiskClassCorrelation;
+	}
+
+	private static double[] toPrimitive(Double[] values){
+		return Arrays.stream(values).mapToDouble(Double::doubleValue).toArray();
+	}
+}
@@ -0,0 +1,218 @@
+package initialmargin.isdasimm.aggregationscheme;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import initialmargin.isdasimm.products.AbstractSIMMProduct;
+import net.finmath.exception.CalculationException;
+import net.finmath.stochastic.RandomVariableInterface;
+
+/** The interest rate delta net sensitivities of single products on evaluation times, frozen into primitive arrays:
+ *  <code> [product][time][path][riskFactor] </code>, with the risk factors curves x maturity buckets (curve major), inflation and
+ *  cross currency basis as in <code> MarginSchemeIRDelta </code>.
+ *
+ *  The sensitivities do not depend on the SIMM parameters. The initial margin of the products for a trial parameter set
+ *  (e.g. risk weights during a calibration or a risk weight study) is then the aggregation of the snapshot only, without the
+ *  model, the gradients of the products or random variables. A product has its sensitivities in one currency (one bucket).
+ *  The snapshot accepts products of the interest rate risk class only, for which the initial margin of
+ *  <code> CalculationSchemeInitialMarginISDA </code> (delta margin of one currency, one risk class and one product class)
+ *  is the aggregated sensitivity K of the currency.
+ *
+ *  The snapshot is immutable and may be evaluated by several threads.
+ *
+ */
+public final class SIMMSensitivitySnapshot {
+
+	private final double[]         evaluationTimes;
+	private final String[]         currencies;					// [product]
+	private final double[][][][]   netSensitivities;			// [product][time][path][riskFactor]
+	private final double[][][]     concentrationSums;			// [product][time][path], the sum of the sensitivities for the concentration risk factor
+
+	private final int numberOfMaturityBuckets;
+	private final int numberOfRiskFactors;
+
+	/** Take the snapshot of the net sensitivities of the products. The sensitivities of the products must be available, i.e. the
+	 *  products have calculated their initial margin on the model (see <code> AbstractSIMMProduct.getInitialMargin </code>).
+	 *  The risk factors are the maturity buckets and curves of the parameter set of the scheme (see <code> CalculationSchemeInitialMarginISDA.getParameterSet </code>).
+	 *
+	 * @param products The products
+	 * @param evaluationTimes The evaluation times
+	 * @param parameterSet The SIMM parameters of the scheme
+	 * @param calculationCCY The calculation currency
+	 * @throws CalculationException Thrown if a sensitivity cannot be calculated
+	 * @throws IllegalArgumentException Thrown if a product has risk classes other than InterestRate
+	 */
+	public SIMMSensitivitySnapshot(AbstractSIMMProduct[] products, double[] evaluationTimes, SIMMParameterSet parameterSet, String calculationCCY) throws CalculationException {
+		for(AbstractSIMMProduct product : products) {
+			if(!Arrays.equals(product.getRiskClasses(), new String[]{"InterestRate"}))
+				throw new IllegalArgumentException("The sensitivity snapshot supports products of the risk class InterestRate only, not " + Arrays.toString(product.getRiskClasses()) + ".");
+		}
+
+		String[] maturityBuckets = parameterSet.getIRMaturityBuckets();
+		String[] curveIndexNames = parameterSet.getIRCurveIndexNames();
+
+		this.evaluationTimes = evaluationTimes.clone();
+		this.numberOfMaturityBuckets = maturityBuckets.length;
+		this.numberOfRiskFactors = curveIndexNames.length*maturityBuckets.length+2;
+		this.currencies = new String[products.length];
+		this.netSensitivities = new double[products.length][evaluationTimes.length][][];
+		this.concentrationSums = new double[products.length][evaluationTimes.length][];
+
+		for(int productIndex=0; productIndex<products.length; productIndex++) {
+			AbstractSIMMProduct product = products[productIndex];
+			String productClass = product.getProductClass();
+			String currency = product.getCurrency();
+			CalculationSchemeInitialMarginISDA productScheme = new CalculationSchemeInitialMarginISDA(product, calculationCCY);
+			currencies[productIndex] = currency;
+
+			for(int timeIndex=0; timeIndex<evaluationTimes.length; timeIndex++) {
+				double time = evaluationTimes[timeIndex];
+				RandomVariableInterface[] sensitivities = new RandomVariableInterface[numberOfRiskFactors];
+				for(int iCurve=0; iCurve<curveIndexNames.length; iCurve++)
+					for(int iTenor=0; iTenor<maturityBuckets.length; iTenor++)
+						sensitivities[iCurve*maturityBuckets.length+iTenor] = productScheme.getNetSensitivity(productClass, "InterestRate", maturityBuckets[iTenor], curveIndexNames[iCurve], currency, "delta", time);
+				sensitivities[numberOfRiskFactors-2] = productScheme.getNetSensitivity(productClass, "InterestRate", maturityBuckets[0], "inflation", currency, "delta", time);
+				sensitivities[numberOfRiskFactors-1] = productScheme.getNetSensitivity(productClass, "InterestRate", maturityBuckets[0], "ccybasis", currency, "delta", time);
+				// The concentration risk factor uses the inflation sensitivity without maturity bucket
+				RandomVariableInterface inflationSensitivity = productScheme.getNetSensitivity(productClass, "InterestRate", "", "inflation", currency, "delta", time);
+
+				int numberOfPaths = 1;
+				for(RandomVariableInterface sensitivity : sensitivities) if(sensitivity != null) numberOfPaths = Math.max(numberOfPaths, sensitivity.size());
+				if(inflationSensitivity != null) numberOfPaths = Math.max(numberOfPaths, inflationSensitivity.size());
+
+				double[][] netSensitivitiesAtTime = new double[numberOfPaths][numberOfRiskFactors];
+				double[] concentrationSumAtTime = new double[numberOfPaths];
+				for(int riskFactorIndex=0; riskFactorIndex<numberOfRiskFactors; riskFactorIndex++) {
+					RandomVariableInterface sensitivity = sensitivities[riskFactorIndex];
+					if(sensitivity == null) continue;
+					boolean isCurveSensitivity = riskFactorIndex < numberOfRiskFactors-2;
+					for(int path=0; path<numberOfPaths; path++) {
+						double value = sensitivity.get(sensitivity.isDeterministic() ? 0 : path);
+						netSensitivitiesAtTime[path][riskFactorIndex] = value;
+						if(isCurveSensitivity) concentrationSumAtTime[path] += value;
+					}
+				}
+				if(inflationSensitivity != null)
+					for(int path=0; path<numberOfPaths; path++) concentrationSumAtTime[path] += inflationSensitivity.get(inflationSensitivity.isDeterministic() ? 0 : path);
+
+				netSensitivities[productIndex][timeIndex] = netSensitivitiesAtTime;
+				concentrationSums[productIndex][timeIndex] = concentrationSumAtTime;
+			}
+		}
+	}
+
+	public int getNumberOfProducts(){
+		return currencies.length;
+	}
+
+	public double[] getEvaluationTimes(){
+		return evaluationTimes.clone();
+	}
+
+	/** Returns the initial margin of a product at an evaluation time path by path.
+	 *
+	 * @param parameterSet The SIMM parameters
+	 * @param productIndex The index of the product
+	 * @param timeIndex The index of the evaluation time
+	 * @return The initial margin on the paths (one value if the sensitivities are deterministic)
+	 */
+	public double[] getInitialMargin(SIMMParameterSet parameterSet, int productIndex, int timeIndex){
+		double[][] weightedSensitivities = getWeightedSensitivities(parameterSet, productIndex, timeIndex, null);
+		double[] initialMargin = new double[weightedSensitivities.length];
+		CalculationSchemeInitialMarginISDA.getVarianceCovarianceAggregation(weightedSensitivities, parameterSet.getIRIntraBucketCorrelation(), initialMargin);
+		return initialMargin;
+	}
+
+	/** Returns the expected initial margin of the products on the evaluation times. The products are evaluated concurrently.
+	 *
+	 * @param parameterSet The SIMM parameters
+	 * @return The expected initial margin <code> [product][time] </code>
+	 */
+	public double[][] getExpectedInitialMargin(SIMMParameterSet parameterSet){
+		double[][] expectedInitialMargin = new double[currencies.length][evaluationTimes.length];
+		IntStream.range(0, currencies.length).parallel().forEach(productIndex -> {
+			for(int timeIndex=0; timeIndex<evaluationTimes.length; timeIndex++) expectedInitialMargin[productIndex][timeIndex] = getAverage(getInitialMargin(parameterSet, productIndex, timeIndex));
+		});
+		return expectedInitialMargin;
+	}
+
+	/** Returns the derivatives of the expected initial margin of the products w.r.t. the interest rate delta risk weights of a
+	 *  volatility class on the maturity buckets (the concentration risk factors are fixed). With \( K = \sqrt{WS^T \rho WS} \) and
+	 *  \( WS_i = RW_i s_i CR \) we have \( dK/dRW_i = (\rho WS)_i s_i CR / K \), summed over the curves. The products are evaluated concurrently.
+	 *
+	 * @param parameterSet The SIMM parameters
+	 * @param volatilityClass The volatility class of the risk weights
+	 * @return The derivatives <code> [product][time][maturityBucket] </code>, zero for products of currencies of another volatility class
+	 */
+	public double[][][] getExpectedInitialMarginRiskWeightDerivatives(SIMMParameterSet parameterSet, SIMMParameterSet.VolatilityClass volatilityClass){
+		double[] correlation = parameterSet.getIRIntraBucketCorrelation();
+		double[][][] derivatives = new double[currencies.length][evaluationTimes.length][numberOfMaturityBuckets];
+		IntStream.range(0, currencies.length).parallel().forEach(productIndex -> {
+			if(parameterSet.getVolatilityClass(currencies[productIndex]) != volatilityClass) return;
+			for(int timeIndex=0; timeIndex<evaluationTimes.length; timeIndex++) {
+				double[] concentrationFactors = new double[netSensitivities[productIndex][timeIndex].length];
+				double[][] weightedSensitivities = getWeightedSensitivities(parameterSet, productIndex, timeIndex, concentrationFactors);
+				double[] derivativesAtTime = derivatives[productIndex][timeIndex];
+				for(int path=0; path<weightedSensitivities.length; path++) {
+					double[] sensitivities = weightedSensitivities[path];
+					double variance = 0.0;
+					double[] correlatedSensitivities = new double[numberOfRiskFactors];
+					for(int i=0; i<numberOfRiskFactors; i++) {
+						double correlatedSensitivity = 0.0;
+						for(int j=0; j<numberOfRiskFactors; j++) correlatedSensitivity += correlation[i*numberOfRiskFactors+j] * sensitivities[j];
+						correlatedSensitivities[i] = correlatedSensitivity;
+						variance += sensitivities[i] * correlatedSensitivity;
+					}
+					if(variance <= 0.0) continue;
+					double aggregatedSensitivity = Math.sqrt(variance);
+					double[] netSensitivitiesOnPath = netSensitivities[productIndex][timeIndex][path];
+					for(int i=0; i<numberOfRiskFactors-2; i++)
+						derivativesAtTime[i % numberOfMaturityBuckets] += correlatedSensitivities[i] * netSensitivitiesOnPath[i] * concentrationFactors[path] / aggregatedSensitivity;
+				}
+				for(int iTenor=0; iTenor<numberOfMaturityBuckets; iTenor++) derivativesAtTime[iTenor] /= weightedSensitivities.length;
+			}
+		});
+		return derivatives;
+	}
+
+	/*
+	 * The weighted sensitivities WS = RW s CR (without CR for the cross currency basis), path major. The concentration risk factors are stored if an array is given.
+	 */
+	private double[][] getWeightedSensitivities(SIMMParameterSet parameterSet, int productIndex, int timeIndex, double[] concentrationFactors){
+		SIMMParameterSet.VolatilityClass volatilityClass = parameterSet.getVolatilityClass(currencies[productIndex]);
+		double[] riskWeights = parameterSet.getIRDeltaRiskWeights(volatilityClass);
+		if(riskWeights.length != numberOfMaturityBuckets) throw new IllegalArgumentException("The parameter set has " + riskWeights.length + " maturity buckets, the snapshot " + numberOfMaturityBuckets + ".");
+		double concentrationThreshold = parameterSet.getIRDeltaConcentrationThreshold(volatilityClass);
+		double inflationRiskWeight = parameterSet.getIRInflationRiskWeight();
+		double ccyBasisRiskWeight = parameterSet.getIRCcyBasisRiskWeight();
+
+		double[][] netSensitivitiesAtTime = netSensitivities[productIndex][timeIndex];
+		double[] concentrationSumAtTime = concentrationSums[productIndex][timeIndex];
+		double[][] weightedSensitivities = new double[netSensitivitiesAtTime.length][numberOfRiskFactors];
+		for(int path=0; path<netSensitivitiesAtTime.length; path++) {
+			double concentrationFactor = Math.max(Math.sqrt(Math.abs(concentrationSumAtTime[path]) / concentrationThreshold), 1.0);
+			if(concentrationFactors != null) concentrationFactors[path] = concentrationFactor;
+			double[] sensitivities = netSensitivitiesAtTime[path];
+			double[] weighted = weightedSensitivities[path];
+			for(int i=0; i<numberOfRiskFactors-2; i++) weighted[i] = sensitivities[i] * riskWeights[i % numberOfMaturityBuckets] * concentrationFactor;
+			weighted[numberOfRiskFactors-2] = sensitivities[numberOfRiskFactors-2] * inflationRiskWeight * concentrationFactor;
+			weighted[numberOfRiskFactors-1] = sensitivities[numberOfRiskFactors-1] * ccyBasisRiskWeight;
+		}
+		return weightedSensitivities;
+	}
+
+	/*
+	 * The average with Kahan summation, as RandomVariable.getAverage.
+	 */
+	private static double getAverage(double[] values){
+		double sum = 0.0;
+		double error = 0.0;
+		for(int i=0; i<values.length; i++){
+			double value = values[i] - error;
+			double newSum = sum + value;
+			error = (newSum - sum) - value;
+			sum = newSum;
+		}
+		return sum / values.length;
+	}
+}
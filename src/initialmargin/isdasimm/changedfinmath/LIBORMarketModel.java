@@ -6,6 +6,7 @@
 package initialmargin.isdasimm.changedfinmath;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -143,7 +144,7 @@ public class LIBORMarketModel extends AbstractModel implements LIBORMarketModelI
 	public enum StateSpace			{ NORMAL, LOGNORMAL }
 
 	private final TimeDiscretizationInterface		liborPeriodDiscretization;
-	private Map<Double, RandomVariableInterface> numeraireAdjustmentCache = new HashMap<Double, RandomVariableInterface>();
+	private final Map<Double, RandomVariableInterface> numeraireAdjustmentCache = new ConcurrentHashMap<Double, RandomVariableInterface>(); // shared by concurrent valuations, cleared with the numeraire table
 
 	private String							forwardCurveName;
 	private AnalyticModelInterface			curveModel;
@@ -169,6 +170,20 @@ public class LIBORMarketModel extends AbstractModel implements LIBORMarketModelI
 	private final ConcurrentHashMap<Integer, RandomVariableInterface>	numeraires;
 	private AbstractProcessInterface									numerairesProcess = null;
 
+	// The numeraires and their adjustments for the current process, filled on request, read without locking
+	private volatile NumeraireTable	numeraireTable;
+	private final Object			numeraireTableLazyInitLock = new Object();
+
+	// Cache for the products of the Libor discount factors per simulation time index, needs to be invalidated if process changes
+	private final ConcurrentHashMap<Integer, RandomVariableInterface[]>	forwardBondTables;
+	private AbstractProcessInterface									forwardBondTablesProcess = null;
+
+	// The drift is calculated on the realizations unless the Libors or factor loadings are AAD random variables (set on first detection)
+	private volatile boolean	isDriftOnRealizationsDisabled = false;
+
+	// Per thread buffer of the covariance factor sums [factor][path] of the drift on the realizations
+	private static final ThreadLocal<double[][]>	covarianceFactorSumsBuffer = new ThreadLocal<double[][]>();
+
 	public static class CalibrationItem {
 		public final AbstractLIBORMonteCarloProduct		calibrationProduct;
 		public final double								calibrationTargetValue;
@@ -307,6 +322,7 @@ public class LIBORMarketModel extends AbstractModel implements LIBORMarketModelI
 		}
 
 		numeraires = new ConcurrentHashMap<Integer, RandomVariableInterface>();
+		forwardBondTables = new ConcurrentHashMap<Integer, RandomVariableInterface[]>();
 	}
 
 
@@ -551,50 +567,31 @@ public class LIBORMarketModel extends AbstractModel implements LIBORMarketModelI
 	 */
 	@Override
 	public RandomVariableInterface getNumeraire(double time) throws CalculationException {
-		int timeIndex = getLiborPeriodIndex(time);
-
-		if(timeIndex < 0) {
-			// Interpolation of Numeraire: log linear interpolation.
-			int upperIndex = -timeIndex-1;
-			int lowerIndex = upperIndex-1;
-			if(lowerIndex < 0) throw new IllegalArgumentException("Numeraire requested for time " + time + ". Unsupported");
-			double alpha = (time-getLiborPeriod(lowerIndex)) / (getLiborPeriod(upperIndex) - getLiborPeriod(lowerIndex));
-			RandomVariableInterface numeraire = getUnadjustedNumeraire(upperIndex).log().mult(alpha).add(getUnadjustedNumeraire(lowerIndex).log().mult(1.0-alpha)).exp();
-
-			// Adjust for discounting, i.e. funding or collateralization 
-			if(discountCurve != null) {							
-				if(!numeraireAdjustmentCache.containsKey(time)){
-				   RandomVariableInterface deterministicNumeraireAdjustment = getRandomVariableForConstant(numeraire.pow(-1.0).getAverage()).div(discountCurve.getDiscountFactor(time));
-				   numeraireAdjustmentCache.put(time, deterministicNumeraireAdjustment);
-				}				
-				numeraire = numeraire.mult(numeraireAdjustmentCache.get(time));
-			}
+		NumeraireTable.NumeraireAtTime numeraire = getNumeraireTable().getNumeraire(time);
 
-			return numeraire;
-		}
+		// Adjust for discounting, i.e. funding or collateralization. The adjustment is recorded, the derivatives w.r.t. the recorded adjustments are the discount curve sensitivities.
+		if(discountCurve != null) numeraireAdjustmentCache.putIfAbsent(time, numeraire.adjustment);
 
-		// Check if numeraire cache is values (i.e. process did not change)
-		if(getProcess() != numerairesProcess) {
-			numeraires.clear();
-			numerairesProcess = getProcess();
-		}
+		return numeraire.numeraire;
+	}
 
-		// Check if numeraire is part of the cache		
-		if(numeraires.get(timeIndex) == null) doCalculateNumeraire(timeIndex);
-		RandomVariableInterface numeraire = numeraires.get(timeIndex);
-		
-		//Adjust for discounting, i.e. funding or collateralization				
-		if(discountCurve != null) {
-							
-			if(!numeraireAdjustmentCache.containsKey(time)){
-			   RandomVariableInterface deterministicNumeraireAdjustment = getRandomVariableForConstant(numeraire.pow(-1.0).getAverage()).div(discountCurve.getDiscountFactor(time));
-			   numeraireAdjustmentCache.put(time, deterministicNumeraireAdjustment);
+	/*
+	 * Returns the numeraires and adjustments of the current process. The (empty) table is created once per process by one thread,
+	 * other threads read the published table without locking. The recorded adjustments belong to the previous process and are cleared.
+	 */
+	private NumeraireTable getNumeraireTable() throws CalculationException {
+		NumeraireTable table = numeraireTable;
+		if(table != null && table.getProcess() == getProcess()) return table;
+
+		synchronized(numeraireTableLazyInitLock) {
+			table = numeraireTable;
+			if(table == null || table.getProcess() != getProcess()) {
+				table = new NumeraireTable(getProcess(), liborPeriodDiscretization, getTimeDiscretization(), this::getUnadjustedNumeraire, discountCurve, randomVariableFactory);
+				numeraireAdjustmentCache.clear();
+				numeraireTable = table;
 			}
-			
-				numeraire = numeraire.mult(numeraireAdjustmentCache.get(time));
 		}
-			
-		return numeraire;
+		return table;
 	}
 	
 	private void doCalculateNumeraire(int timeIndex) throws CalculationException{ // Unadjusted numeraires
@@ -667,28 +664,7 @@ public class LIBORMarketModel extends AbstractModel implements LIBORMarketModelI
 	
 	 
 	public RandomVariableInterface getNumeraireAdjustment(double time) throws CalculationException {
-		if(numeraireAdjustmentCache.containsKey(time)) return numeraireAdjustmentCache.get(time);
-		
-		// Get unadjusted Numeraire
-		int timeIndex = getLiborPeriodIndex(time);
-		RandomVariableInterface numeraireUnadjusted;
-
-		if(timeIndex < 0) {
-			// Interpolation of Numeraire: log linear interpolation.
-			int upperIndex = -timeIndex-1;
-			int lowerIndex = upperIndex-1;
-			if(lowerIndex < 0) throw new IllegalArgumentException("Numeraire requested for time " + time + ". Unsupported");
-
-			double alpha = (time-getLiborPeriod(lowerIndex)) / (getLiborPeriod(upperIndex) - getLiborPeriod(lowerIndex));  
-			numeraireUnadjusted = getUnadjustedNumeraire(upperIndex).log().mult(alpha).add(getUnadjustedNumeraire(lowerIndex).log().mult(1.0-alpha)).exp();
-					
-		} else {
-			numeraireUnadjusted = getUnadjustedNumeraire(timeIndex);
-		}
-		
-		RandomVariableInterface adjustment = getRandomVariableForConstant(numeraireUnadjusted.invert().getAverage()).div(discountCurve.getDiscountFactor(time));
-		
-	    return adjustment;
+		return getNumeraireTable().getNumeraire(time).adjustment;
 	}
 	
 	
@@ -711,21 +687,50 @@ public class LIBORMarketModel extends AbstractModel implements LIBORMarketModelI
 		
 		double firstLiborTime = getLiborPeriod(initialIndex);
 		double lastLiborTime  = getLiborPeriod(finalIndex);
-		RandomVariableInterface bond = new RandomVariable(1.0);
 		
 		RandomVariableInterface firstBond =  firstLiborIndex < 0 ? getLIBOR(t, t, firstLiborTime).mult(firstLiborTime-t).add(1.0).invert() : new RandomVariable(1.0);
 		RandomVariableInterface lastBond  =  lastLiborIndex < 0 ? getLIBOR(t, lastLiborTime,T).mult(T-lastLiborTime).add(1.0).invert() : new RandomVariable(1.0);
 		
-		for(int i = initialIndex; i<finalIndex; i++){
-			double liborPeriodLength = getLiborPeriod(i+1)-getLiborPeriod(i);
-			RandomVariableInterface factor = getLIBOR(getTimeDiscretization().getTimeIndexNearestLessOrEqual(t), i).mult(liborPeriodLength).add(1.0).invert();
-			bond = bond.mult(factor);
-		}
+		// P(T_final;T_initial) = prod_{initial<=i<final} 1/(1+L_i(t)\delta_i) is the ratio of two entries of the forward bond table
+		RandomVariableInterface[] forwardBondTable = getForwardBondTable(getTimeDiscretization().getTimeIndexNearestLessOrEqual(t));
+		RandomVariableInterface bond = forwardBondTable[initialIndex].div(forwardBondTable[finalIndex]);
 		
 		return bond.mult(firstBond).mult(lastBond);
 
 	}
 	
+	/**Returns the cumulative products of the Libor discount factors at a simulation time, i.e. the entry k is
+	 * \( \prod_{i_0 \leq i < k} (1+L_i(t) \delta_i) \) where \( i_0 \) is the index of the first Libor not fixed before t.
+	 * The table is calculated once per simulation time with one multiplication per Libor, such that the forward bond between
+	 * any two Libor times is the ratio of two entries. The tables are shared by all products and may be read concurrently.
+	 * 
+	 * @param timeIndex The simulation time index
+	 * @return The cumulative products of 1+L_i(t)\delta_i, null for the entries before i_0
+	 * @throws CalculationException
+	 */
+	private RandomVariableInterface[] getForwardBondTable(int timeIndex) throws CalculationException{
+		
+		if(getProcess() != forwardBondTablesProcess) {
+			forwardBondTables.clear();
+			forwardBondTablesProcess = getProcess();
+		}
+		
+		RandomVariableInterface[] forwardBondTable = forwardBondTables.get(timeIndex);
+		if(forwardBondTable != null) return forwardBondTable;
+		
+		int firstLiborIndex = liborPeriodDiscretization.getTimeIndexNearestGreaterOrEqual(getTimeDiscretization().getTime(timeIndex));
+		forwardBondTable = new RandomVariableInterface[getNumberOfLibors()+1];
+		forwardBondTable[firstLiborIndex] = new RandomVariable(1.0);
+		for(int liborIndex = firstLiborIndex; liborIndex<getNumberOfLibors(); liborIndex++){
+			double liborPeriodLength = getLiborPeriod(liborIndex+1)-getLiborPeriod(liborIndex);
+			forwardBondTable[liborIndex+1] = getLIBOR(timeIndex, liborIndex).mult(liborPeriodLength).add(1.0).mult(forwardBondTable[liborIndex]);
+		}
+		
+		// A table calculated concurrently by another thread is identical: keep the one published first
+		RandomVariableInterface[] publishedForwardBondTable = forwardBondTables.putIfAbsent(timeIndex, forwardBondTable);
+		return publishedForwardBondTable != null ? publishedForwardBondTable : forwardBondTable;
+	}
+	
 	/**Returns the forward bond P(T;t) from on the OIS curve for a given Libor market model
 	 * 
 	 * @param T The maturity of the forward bond 
@@ -795,6 +800,11 @@ public class LIBORMarketModel extends AbstractModel implements LIBORMarketModelI
 		int		firstLiborIndex		= this.getLiborPeriodIndex(time)+1;
 		if(firstLiborIndex<0) firstLiborIndex = -firstLiborIndex-1 + 1;
 
+		if(!isDriftOnRealizationsDisabled) {
+			RandomVariableInterface[] drift = getDriftOnRealizations(timeIndex, firstLiborIndex, realizationAtTimeIndex);
+			if(drift != null) return drift;
+		}
+
 		RandomVariableInterface		zero	= getRandomVariableForConstant(0.0);
 
 		// Allocate drift vector and initialize to zero (will be used to sum up drift components)
@@ -817,6 +827,16 @@ public class LIBORMarketModel extends AbstractModel implements LIBORMarketModelI
 
 				if(stateSpace == StateSpace.LOGNORMAL) oneStepMeasureTransform = oneStepMeasureTransform.mult(libor);
 
+				double[]					factorLoadingValues	= getFactorLoadingValues(timeIndex, componentIndex, realizationAtTimeIndex);
+				if(factorLoadingValues != null) {
+					// Scalar factor loadings (deterministic volatility model)
+					for(int factorIndex=0; factorIndex<getNumberOfFactors(); factorIndex++) {
+						covarianceFactorSums[factorIndex] = covarianceFactorSums[factorIndex].addProduct(oneStepMeasureTransform, factorLoadingValues[factorIndex]);
+						drift[componentIndex] = drift[componentIndex].addProduct(covarianceFactorSums[factorIndex], factorLoadingValues[factorIndex]);
+					}
+					continue;
+				}
+
 				RandomVariableInterface[]	factorLoading   	= getFactorLoading(timeIndex, componentIndex, realizationAtTimeIndex);
 				for(int factorIndex=0; factorIndex<getNumberOfFactors(); factorIndex++) {
 					covarianceFactorSums[factorIndex] = covarianceFactorSums[factorIndex].add(oneStepMeasureTransform.mult(factorLoading[factorIndex]));
@@ -833,6 +853,16 @@ public class LIBORMarketModel extends AbstractModel implements LIBORMarketModelI
 
 				if(stateSpace == StateSpace.LOGNORMAL) oneStepMeasureTransform = oneStepMeasureTransform.mult(libor);
 
+				double[]					factorLoadingValues	= getFactorLoadingValues(timeIndex, componentIndex, realizationAtTimeIndex);
+				if(factorLoadingValues != null) {
+					// Scalar factor loadings (deterministic volatility model)
+					for(int factorIndex=0; factorIndex<getNumberOfFactors(); factorIndex++) {
+						drift[componentIndex] = drift[componentIndex].addProduct(covarianceFactorSums[factorIndex], factorLoadingValues[factorIndex]);
+						covarianceFactorSums[factorIndex] = covarianceFactorSums[factorIndex].addProduct(oneStepMeasureTransform, -factorLoadingValues[factorIndex]);
+					}
+					continue;
+				}
+
 				RandomVariableInterface[]	factorLoading   	= getFactorLoading(timeIndex, componentIndex, realizationAtTimeIndex);
 				for(int factorIndex=0; factorIndex<getNumberOfFactors(); factorIndex++) {
 					drift[componentIndex] = drift[componentIndex].addProduct(covarianceFactorSums[factorIndex], factorLoading[factorIndex]);
@@ -852,12 +882,115 @@ public class LIBORMarketModel extends AbstractModel implements LIBORMarketModelI
 		return drift;
 	}
 
+	/*
+	 * The drift of getDrift calculated directly on the realizations in one loop over the paths per component: the covariance factor sums
+	 * are accumulated in a per thread buffer, hence only the drift vector is allocated. The operations are those of getDrift in the same
+	 * order, such that the drift is identical. Returns null if the drift has to be calculated on random variables: if the Libors are
+	 * deterministic (the first time step) or if the Libors, factor loadings or variances are not plain random variables (AAD), which
+	 * disables the calculation on the realizations for this model.
+	 */
+	private RandomVariableInterface[] getDriftOnRealizations(int timeIndex, int firstLiborIndex, RandomVariableInterface[] realizationAtTimeIndex) {
+		int numberOfComponents	= getNumberOfComponents();
+		int numberOfFactors		= getNumberOfFactors();
+		if(firstLiborIndex >= numberOfComponents) return null;
+
+		int numberOfPaths = 1;
+		for(int componentIndex=firstLiborIndex; componentIndex<numberOfComponents; componentIndex++) {
+			RandomVariableInterface libor = realizationAtTimeIndex[componentIndex];
+			if(!(libor instanceof RandomVariable)) {
+				isDriftOnRealizationsDisabled = true;
+				return null;
+			}
+			numberOfPaths = Math.max(numberOfPaths, libor.size());
+		}
+		if(numberOfPaths == 1) return null;
+
+		double[][] covarianceFactorSums = covarianceFactorSumsBuffer.get();
+		if(covarianceFactorSums == null || covarianceFactorSums.length < numberOfFactors || covarianceFactorSums[0].length < numberOfPaths) {
+			covarianceFactorSums = new double[numberOfFactors][numberOfPaths];
+			covarianceFactorSumsBuffer.set(covarianceFactorSums);
+		}
+		for(int factorIndex=0; factorIndex<numberOfFactors; factorIndex++) Arrays.fill(covarianceFactorSums[factorIndex], 0, numberOfPaths, 0.0);
+
+		double		time						= getTime(timeIndex);
+		boolean		isLogNormal					= stateSpace == StateSpace.LOGNORMAL;
+		double		covarianceFactorSumsTime	= getRandomVariableForConstant(0.0).getFiltrationTime();
+		RandomVariableInterface[] drift = new RandomVariableInterface[numberOfComponents];
+		for(int step=0; step<numberOfComponents-firstLiborIndex; step++) {
+			int componentIndex = measure == Measure.SPOT ? firstLiborIndex+step : numberOfComponents-1-step;
+
+			double					periodLength	= liborPeriodDiscretization.getTimeStep(componentIndex);
+			RandomVariableInterface	libor			= realizationAtTimeIndex[componentIndex];
+
+			double[]					factorLoadingValues	= getFactorLoadingValues(timeIndex, componentIndex, realizationAtTimeIndex);
+			RandomVariableInterface[]	factorLoading		= factorLoadingValues == null ? getFactorLoading(timeIndex, componentIndex, realizationAtTimeIndex) : null;
+			RandomVariableInterface		variance			= isLogNormal ? covarianceModel.getCovariance(time, componentIndex, componentIndex, realizationAtTimeIndex) : null;
+
+			double factorLoadingTime = Double.NEGATIVE_INFINITY;
+			if(factorLoading != null) {
+				for(RandomVariableInterface factorLoadingOfFactor : factorLoading) {
+					if(!(factorLoadingOfFactor instanceof RandomVariable) || (!factorLoadingOfFactor.isDeterministic() && factorLoadingOfFactor.size() != numberOfPaths)) {
+						isDriftOnRealizationsDisabled = !(factorLoadingOfFactor instanceof RandomVariable);
+						return null;
+					}
+					factorLoadingTime = Math.max(factorLoadingTime, factorLoadingOfFactor.getFiltrationTime());
+				}
+			}
+			if(variance != null && !(variance instanceof RandomVariable)) {
+				isDriftOnRealizationsDisabled = true;
+				return null;
+			}
+
+			double[] driftOfComponent = new double[numberOfPaths];
+			for(int path=0; path<numberOfPaths; path++) {
+				double liborOnPath = libor.get(path);
+				double oneStepMeasureTransform = periodLength / (1.0 + liborOnPath * periodLength);
+				if(isLogNormal) oneStepMeasureTransform = oneStepMeasureTransform * liborOnPath;
+
+				double driftOnPath = 0.0;
+				for(int factorIndex=0; factorIndex<numberOfFactors; factorIndex++) {
+					double factorLoadingOnPath = factorLoadingValues != null ? factorLoadingValues[factorIndex] : factorLoading[factorIndex].get(path);
+					if(measure == Measure.SPOT) {
+						covarianceFactorSums[factorIndex][path] = covarianceFactorSums[factorIndex][path] + oneStepMeasureTransform * factorLoadingOnPath;
+						driftOnPath = driftOnPath + covarianceFactorSums[factorIndex][path] * factorLoadingOnPath;
+					}
+					else {
+						driftOnPath = driftOnPath + covarianceFactorSums[factorIndex][path] * factorLoadingOnPath;
+						covarianceFactorSums[factorIndex][path] = covarianceFactorSums[factorIndex][path] - oneStepMeasureTransform * factorLoadingOnPath;
+					}
+				}
+				// Drift adjustment for log-coordinate
+				if(isLogNormal) driftOnPath = driftOnPath + variance.get(path) * -0.5;
+
+				driftOfComponent[path] = driftOnPath;
+			}
+
+			// The filtration time of the drift as for the operations on random variables
+			double driftTime = Math.max(covarianceFactorSumsTime, factorLoadingTime);
+			covarianceFactorSumsTime = Math.max(driftTime, libor.getFiltrationTime());
+			if(measure == Measure.SPOT) driftTime = covarianceFactorSumsTime;
+			if(variance != null) driftTime = Math.max(driftTime, variance.getFiltrationTime());
+
+			drift[componentIndex] = new RandomVariable(driftTime, driftOfComponent);
+		}
+
+		return drift;
+	}
+
 	@Override
 	public	RandomVariableInterface[]	getFactorLoading(int timeIndex, int componentIndex, RandomVariableInterface[] realizationAtTimeIndex)
 	{
 		return covarianceModel.getFactorLoading(getTime(timeIndex), getLiborPeriod(componentIndex), realizationAtTimeIndex);
 	}
 
+	/*
+	 * The values of the factor loading if the covariance model provides them as constants (e.g. deterministic volatility model), null otherwise.
+	 */
+	private double[] getFactorLoadingValues(int timeIndex, int componentIndex, RandomVariableInterface[] realizationAtTimeIndex)
+	{
+		return covarianceModel.getFactorLoadingValues(getTime(timeIndex), getLiborPeriod(componentIndex), realizationAtTimeIndex);
+	}
+
 	@Override
 	public RandomVariableInterface applyStateSpaceTransform(int componentIndex, RandomVariableInterface randomVariable) {
 		RandomVariableInterface value = randomVariable;
@@ -1038,6 +1171,13 @@ public class LIBORMarketModel extends AbstractModel implements LIBORMarketModelI
 		return measure;
 	}
 
+	/**
+	 * @return Returns the state space.
+	 */
+	public StateSpace getStateSpace() {
+		return stateSpace;
+	}
+
 	/* (non-Javadoc)
 	 * @see net.finmath.montecarlo.interestrate.LIBORMarketModelInterface#getIntegratedLIBORCovariance()
 	 */
@@ -1061,9 +1201,9 @@ public class LIBORMarketModel extends AbstractModel implements LIBORMarketModelI
 						// Sum the libor cross terms (use symmetry)
 						for(int componentIndex2 = componentIndex1; componentIndex2 < liborPeriodDiscretization.getNumberOfTimeSteps(); componentIndex2++) {
 							double integratedLIBORCovarianceValue = 0.0;
-							if(getLiborPeriod(componentIndex1) > getTime(timeIndex)) {
+							if(getLiborPeriod(componentIndex1) > simulationTimeDiscretization.getTime(timeIndex)) {
 								RandomVariableInterface[] factorLoadingOfComponent2 = factorLoadings[componentIndex2];
-								for(int factorIndex = 0; factorIndex < getNumberOfFactors(); factorIndex++) {
+								for(int factorIndex = 0; factorIndex < getCovarianceModel().getNumberOfFactors(); factorIndex++) {
 									integratedLIBORCovarianceValue += factorLoadingOfComponent1[factorIndex].get(0) * factorLoadingOfComponent2[factorIndex].get(0) * dt;
 								}
 							}
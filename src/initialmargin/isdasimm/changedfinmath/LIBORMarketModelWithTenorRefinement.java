@@ -81,7 +81,7 @@ public class LIBORMarketModelWithTenorRefinement extends AbstractModel implement
 
 	private final TimeDiscretizationInterface[]		liborPeriodDiscretizations;
 	private final Integer[]							numberOfDiscretizationIntervalls;
-	private Map<Double, RandomVariableInterface> numeraireAdjustmentCache = new HashMap<Double, RandomVariableInterface>();
+	private Map<Double, RandomVariableInterface> numeraireAdjustmentCache = new ConcurrentHashMap<Double, RandomVariableInterface>(); // shared by concurrent valuations
 
 
 	private String							forwardCurveName;
@@ -96,6 +96,58 @@ public class LIBORMarketModelWithTenorRefinement extends AbstractModel implement
 	private final ConcurrentHashMap<Integer, RandomVariableInterface>	numeraires;
 	private AbstractProcessInterface									numerairesProcess = null;
 
+	// Cache for the prefix sums of the scaled state variables per simulation time index, needs to be invalidated if process changes
+	private final ConcurrentHashMap<Integer, StateVariablePrefixSums>	stateVariablePrefixSums = new ConcurrentHashMap<Integer, StateVariablePrefixSums>();
+	private AbstractProcessInterface									stateVariablePrefixSumsProcess = null;
+
+	// Cache for the tenor discretizations (per index of the start time on the finest discretization) and the tenor refinement weights
+	private final ConcurrentHashMap<Integer, TimeDiscretizationInterface>		liborPeriodDiscretizationsForTime = new ConcurrentHashMap<Integer, TimeDiscretizationInterface>();
+	private final ConcurrentHashMap<TenorRefinementWeightKey, Double>			tenorRefinementWeights = new ConcurrentHashMap<TenorRefinementWeightKey, Double>();
+
+	/*
+	 * The tenor discretization at a simulation time and the prefix sums \( S_{k} = \sum_{i<k} Y_{i} \tau_{i} \) of the state variables
+	 * scaled by their tenor times, such that the sum over the periods i to k-1 is S_{k} - S_{i}.
+	 */
+	private static final class StateVariablePrefixSums {
+		private final TimeDiscretizationInterface	liborPeriodDiscretization;
+		private final RandomVariableInterface[]		scaledStateVariableSums;
+
+		private StateVariablePrefixSums(TimeDiscretizationInterface liborPeriodDiscretization, RandomVariableInterface[] scaledStateVariableSums) {
+			this.liborPeriodDiscretization = liborPeriodDiscretization;
+			this.scaledStateVariableSums = scaledStateVariableSums;
+		}
+	}
+
+	private static final class TenorRefinementWeightKey {
+		private final double periodStartPrevious;
+		private final double periodEndPrevious;
+		private final double periodStart;
+		private final double periodEnd;
+
+		private TenorRefinementWeightKey(double periodStartPrevious, double periodEndPrevious, double periodStart, double periodEnd) {
+			this.periodStartPrevious = periodStartPrevious;
+			this.periodEndPrevious = periodEndPrevious;
+			this.periodStart = periodStart;
+			this.periodEnd = periodEnd;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if(!(other instanceof TenorRefinementWeightKey)) return false;
+			TenorRefinementWeightKey key = (TenorRefinementWeightKey) other;
+			return Double.compare(periodStartPrevious, key.periodStartPrevious) == 0 && Double.compare(periodEndPrevious, key.periodEndPrevious) == 0
+					&& Double.compare(periodStart, key.periodStart) == 0 && Double.compare(periodEnd, key.periodEnd) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			int hashCode = Double.hashCode(periodStartPrevious);
+			hashCode = 31 * hashCode + Double.hashCode(periodEndPrevious);
+			hashCode = 31 * hashCode + Double.hashCode(periodStart);
+			return 31 * hashCode + Double.hashCode(periodEnd);
+		}
+	}
+
 	public static class CalibrationItem {
 		public final AbstractLIBORMonteCarloProduct		calibrationProduct;
 		public final double								calibrationTargetValue;
@@ -242,7 +294,7 @@ public class LIBORMarketModelWithTenorRefinement extends AbstractModel implement
 				
 				if(!numeraireAdjustmentCache.containsKey(time)){
 					   RandomVariableInterface deterministicNumeraireAdjustment = getRandomVariableForConstant(numeraire.pow(-1.0).getAverage()).div(discountCurve.getDiscountFactor(time));
-					   numeraireAdjustmentCache.put(time, deterministicNumeraireAdjustment);
+					   numeraireAdjustmentCache.putIfAbsent(time, deterministicNumeraireAdjustment);
 				}
 				
 				numeraire = numeraire.mult(numeraireAdjustmentCache.get(time));
@@ -275,7 +327,7 @@ public class LIBORMarketModelWithTenorRefinement extends AbstractModel implement
 				
 			if(!numeraireAdjustmentCache.containsKey(time)){
 			   RandomVariableInterface deterministicNumeraireAdjustment = getRandomVariableForConstant(numeraire.pow(-1.0).getAverage()).div(discountCurve.getDiscountFactor(time));
-			   numeraireAdjustmentCache.put(time, deterministicNumeraireAdjustment);
+			   numeraireAdjustmentCache.putIfAbsent(time, deterministicNumeraireAdjustment);
 			}
 			
 				numeraire = numeraire.mult(numeraireAdjustmentCache.get(time));
@@ -616,6 +668,8 @@ public class LIBORMarketModelWithTenorRefinement extends AbstractModel implement
 	}
 
 	/**
+	 * The weight depends on the periods and the covariance model only and is calculated once.
+	 * 
 	 * @param periodStartPrevious
 	 * @param periodEndPrevious
 	 * @param periodStart
@@ -623,6 +677,16 @@ public class LIBORMarketModelWithTenorRefinement extends AbstractModel implement
 	 * @return
 	 */
 	private double getWeightForTenorRefinement(double periodStartPrevious, double periodEndPrevious, double periodStart, double periodEnd) {
+		TenorRefinementWeightKey key = new TenorRefinementWeightKey(periodStartPrevious, periodEndPrevious, periodStart, periodEnd);
+		Double weight = tenorRefinementWeights.get(key);
+		if(weight == null) {
+			weight = calculateWeightForTenorRefinement(periodStartPrevious, periodEndPrevious, periodStart, periodEnd);
+			tenorRefinementWeights.putIfAbsent(key, weight);
+		}
+		return weight;
+	}
+
+	private double calculateWeightForTenorRefinement(double periodStartPrevious, double periodEndPrevious, double periodStart, double periodEnd) {
 		TimeDiscretizationInterface numeriareDiscretization = liborPeriodDiscretizations[0];
 
 		int periodStartPreviousIndex = numeriareDiscretization.getTimeIndex(periodStartPrevious);
@@ -693,6 +757,18 @@ public class LIBORMarketModelWithTenorRefinement extends AbstractModel implement
 	}
 
 	private TimeDiscretizationInterface getLiborPeriodDiscretization(double time) {
+		// The discretization depends on the start time (rounded to the finest discretization) only
+		int firstTimeIndex = liborPeriodDiscretizations[0].getTimeIndexNearestLessOrEqual(time);
+		TimeDiscretizationInterface liborPeriodDiscretization = liborPeriodDiscretizationsForTime.get(firstTimeIndex);
+		if(liborPeriodDiscretization == null) {
+			liborPeriodDiscretization = calculateLiborPeriodDiscretization(time);
+			TimeDiscretizationInterface publishedDiscretization = liborPeriodDiscretizationsForTime.putIfAbsent(firstTimeIndex, liborPeriodDiscretization);
+			if(publishedDiscretization != null) liborPeriodDiscretization = publishedDiscretization;
+		}
+		return liborPeriodDiscretization;
+	}
+
+	private TimeDiscretizationInterface calculateLiborPeriodDiscretization(double time) {
 		ArrayList<Double> tenorTimes = new ArrayList<Double>();
 		double firstTime	= liborPeriodDiscretizations[0].getTime(liborPeriodDiscretizations[0].getTimeIndexNearestLessOrEqual(time));
 		double lastTime		= firstTime;
@@ -764,18 +840,26 @@ public class LIBORMarketModelWithTenorRefinement extends AbstractModel implement
 		return null;//libor;
 	}
 
+	/**
+	 * Returns the state variable of the period from <code>periodStart</code> to <code>periodEnd</code> at a simulation time index: the sum of the
+	 * state variables of the periods of the tenor discretization weighted by their scaled tenor times. The sum over the full periods
+	 * is the difference of two prefix sums, calculated once per simulation time index.
+	 * 
+	 * @param timeIndex The simulation time index.
+	 * @param periodStart The start of the period.
+	 * @param periodEnd The end of the period.
+	 * @return The state variable of the period.
+	 */
 	public RandomVariableInterface getStateVariable(int timeIndex, double periodStart, double periodEnd)
 	{
-		// @TODO: Make getLiborPeriodDiscretization to use timeIndex
-		double time = this.getTimeDiscretization().getTime(timeIndex);
-		TimeDiscretizationInterface liborPeriodDiscretization = this.getLiborPeriodDiscretization(time);
-//		return getStateVariableForPeriod(liborPeriodDiscretization, stateVariables, periodStart, periodEnd);
-
-		int periodStartIndex = liborPeriodDiscretization.getTimeIndex(periodStart);
-		int periodEndIndex = liborPeriodDiscretization.getTimeIndex(periodEnd);
-
 		RandomVariableInterface stateVariableSum = null;
 		try {
+			StateVariablePrefixSums prefixSums = getStateVariablePrefixSums(timeIndex);
+			TimeDiscretizationInterface liborPeriodDiscretization = prefixSums.liborPeriodDiscretization;
+
+			int periodStartIndex = liborPeriodDiscretization.getTimeIndex(periodStart);
+			int periodEndIndex = liborPeriodDiscretization.getTimeIndex(periodEnd);
+
 			stateVariableSum = this.getProcess().getStochasticDriver().getRandomVariableForConstant(0.0);
 
 			if(periodStartIndex < 0) {
@@ -802,10 +886,9 @@ public class LIBORMarketModelWithTenorRefinement extends AbstractModel implement
 				periodEndIndex--;
 			}
 
-			for(int periodIndex = periodStartIndex; periodIndex<periodEndIndex; periodIndex++) {
-				RandomVariableInterface stateVariable = getProcessValue(timeIndex, periodIndex);
-
-				stateVariableSum = stateVariableSum.addProduct(stateVariable, covarianceModel.getScaledTenorTime(liborPeriodDiscretization.getTime(periodIndex), liborPeriodDiscretization.getTime(periodIndex+1)));
+			if(periodStartIndex < periodEndIndex) {
+				RandomVariableInterface[] scaledStateVariableSums = prefixSums.scaledStateVariableSums;
+				stateVariableSum = stateVariableSum.add(scaledStateVariableSums[periodEndIndex].sub(scaledStateVariableSums[periodStartIndex]));
 			}
 			stateVariableSum = stateVariableSum.div(covarianceModel.getScaledTenorTime(periodStart,periodEnd));
 		} catch (CalculationException e) {
@@ -815,6 +898,37 @@ public class LIBORMarketModelWithTenorRefinement extends AbstractModel implement
 	}
 
 
+	/*
+	 * The prefix sums of the scaled state variables on the tenor discretization of a simulation time index, calculated on first request.
+	 */
+	private StateVariablePrefixSums getStateVariablePrefixSums(int timeIndex) throws CalculationException {
+		/*
+		 * Check if the cache is valid (i.e. process did not change)
+		 */
+		if(getProcess() != stateVariablePrefixSumsProcess) {
+			stateVariablePrefixSums.clear();
+			stateVariablePrefixSumsProcess = getProcess();
+		}
+
+		StateVariablePrefixSums prefixSums = stateVariablePrefixSums.get(timeIndex);
+		if(prefixSums == null) {
+			TimeDiscretizationInterface liborPeriodDiscretization = getLiborPeriodDiscretization(getTime(timeIndex));
+			int numberOfPeriods = Math.min(liborPeriodDiscretization.getNumberOfTimeSteps(), getNumberOfLibors());
+
+			RandomVariableInterface[] scaledStateVariableSums = new RandomVariableInterface[numberOfPeriods+1];
+			scaledStateVariableSums[0] = getProcess().getStochasticDriver().getRandomVariableForConstant(0.0);
+			for(int periodIndex=0; periodIndex<numberOfPeriods; periodIndex++) {
+				double tenorTime = covarianceModel.getScaledTenorTime(liborPeriodDiscretization.getTime(periodIndex), liborPeriodDiscretization.getTime(periodIndex+1));
+				scaledStateVariableSums[periodIndex+1] = scaledStateVariableSums[periodIndex].addProduct(getProcessValue(timeIndex, periodIndex), tenorTime);
+			}
+
+			prefixSums = new StateVariablePrefixSums(liborPeriodDiscretization, scaledStateVariableSums);
+			StateVariablePrefixSums publishedPrefixSums = stateVariablePrefixSums.putIfAbsent(timeIndex, prefixSums);
+			if(publishedPrefixSums != null) prefixSums = publishedPrefixSums;
+		}
+		return prefixSums;
+	}
+
 	@Override
 	public RandomVariableInterface getLIBOR(double time, double periodStart, double periodEnd) {
 		int timeIndex = getProcess().getTimeIndex(time);
@@ -0,0 +1,165 @@
+package initialmargin.isdasimm.changedfinmath;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.finmath.exception.CalculationException;
+import net.finmath.marketdata.model.curves.DiscountCurveInterface;
+import net.finmath.montecarlo.AbstractRandomVariableFactory;
+import net.finmath.montecarlo.process.AbstractProcessInterface;
+import net.finmath.stochastic.RandomVariableInterface;
+import net.finmath.time.TimeDiscretizationInterface;
+
+/** The numeraires of a Libor market model and their deterministic adjustments to the discount curve,
+ *  \( a(t) = E[1/N(t)] / P(0,t) \), for one simulation (process) of the model.
+ *
+ *  The numeraires and adjustments are calculated on first request of a Libor period time or a simulation time index and stored per index;
+ *  numeraires at other times are stored in a concurrent map. Between two Libor period times the numeraire is interpolated log-linearly
+ *  from the logarithms of the numeraires on the Libor period times, which are calculated once. Stored numeraires are read without locking,
+ *  a missing numeraire is calculated under the lock of the table, such that every numeraire (an AAD leaf) is created only once.
+ *
+ *  The numeraires on the Libor period times are AAD leaves (as the numeraires of the model). The interpolated numeraires are calculated
+ *  by operations on these leaves, such that the derivatives w.r.t. an interpolated numeraire propagate to the numeraires on the Libor
+ *  period times. The adjustments are derived from a constant of the random variable factory of the model, such that the derivatives
+ *  w.r.t. the adjustments are part of the gradient of a product. All valuations share the same adjustments.
+ *
+ */
+final class NumeraireTable {
+
+	/** The unadjusted numeraires on the Libor period times, calculated by the model.
+	 */
+	interface UnadjustedNumeraires {
+		RandomVariableInterface getUnadjustedNumeraire(int liborIndex) throws CalculationException;
+	}
+
+	/** The numeraire at one time: the unadjusted numeraire, its adjustment (null if there is no discount curve) and the adjusted numeraire.
+	 */
+	static final class NumeraireAtTime {
+		final RandomVariableInterface unadjustedNumeraire;
+		final RandomVariableInterface adjustment;
+		final RandomVariableInterface numeraire;
+
+		private NumeraireAtTime(RandomVariableInterface unadjustedNumeraire, RandomVariableInterface adjustment){
+			this.unadjustedNumeraire = unadjustedNumeraire;
+			this.adjustment = adjustment;
+			this.numeraire = adjustment == null ? unadjustedNumeraire : unadjustedNumeraire.mult(adjustment);
+		}
+	}
+
+	private final AbstractProcessInterface     process;
+	private final TimeDiscretizationInterface  liborPeriodDiscretization;
+	private final TimeDiscretizationInterface  timeDiscretization;
+	private final DiscountCurveInterface       discountCurve;
+	private final AbstractRandomVariableFactory randomVariableFactory;
+	private final UnadjustedNumeraires         unadjustedNumeraires;
+
+	private final AtomicReferenceArray<RandomVariableInterface> logNumerairesOnLiborPeriodTimes;
+	private final AtomicReferenceArray<NumeraireAtTime> numerairesOnLiborPeriodTimes;
+	private final AtomicReferenceArray<NumeraireAtTime> numerairesOnSimulationTimes;  // only for simulation times between the Libor period times
+	private final ConcurrentHashMap<Double, NumeraireAtTime> numerairesOnOtherTimes = new ConcurrentHashMap<Double, NumeraireAtTime>();
+
+	/** Create the (empty) table of numeraires and adjustments.
+	 *
+	 * @param process The process of the simulation of the model
+	 * @param liborPeriodDiscretization The Libor period discretization
+	 * @param timeDiscretization The simulation time discretization
+	 * @param unadjustedNumeraires The unadjusted numeraires on the Libor period times, requested on first use of a Libor period time
+	 * @param discountCurve The discount curve (may be null, then the numeraires are not adjusted)
+	 * @param randomVariableFactory The random variable factory of the model, used for the adjustments
+	 */
+	NumeraireTable(AbstractProcessInterface process, TimeDiscretizationInterface liborPeriodDiscretization, TimeDiscretizationInterface timeDiscretization,
+			UnadjustedNumeraires unadjustedNumeraires, DiscountCurveInterface discountCurve, AbstractRandomVariableFactory randomVariableFactory){
+		this.process = process;
+		this.liborPeriodDiscretization = liborPeriodDiscretization;
+		this.timeDiscretization = timeDiscretization;
+		this.discountCurve = discountCurve;
+		this.randomVariableFactory = randomVariableFactory;
+		this.unadjustedNumeraires = unadjustedNumeraires;
+
+		logNumerairesOnLiborPeriodTimes = new AtomicReferenceArray<RandomVariableInterface>(liborPeriodDiscretization.getNumberOfTimes());
+		numerairesOnLiborPeriodTimes = new AtomicReferenceArray<NumeraireAtTime>(liborPeriodDiscretization.getNumberOfTimes());
+		numerairesOnSimulationTimes = new AtomicReferenceArray<NumeraireAtTime>(timeDiscretization.getNumberOfTimes());
+	}
+
+	AbstractProcessInterface getProcess(){
+		return process;
+	}
+
+	/** Returns the numeraire at a given time.
+	 *
+	 * @param time The time
+	 * @return The unadjusted numeraire, the adjustment and the adjusted numeraire
+	 * @throws CalculationException Thrown if the calculation of an unadjusted numeraire fails
+	 */
+	NumeraireAtTime getNumeraire(double time) throws CalculationException {
+		int liborIndex = liborPeriodDiscretization.getTimeIndex(time);
+		if(liborIndex >= 0) return getNumeraireOnLiborPeriodTime(liborIndex);
+
+		int timeIndex = timeDiscretization.getTimeIndex(time);
+		if(timeIndex >= 0) {
+			NumeraireAtTime numeraire = numerairesOnSimulationTimes.get(timeIndex);
+			if(numeraire != null) return numeraire;
+			synchronized(this) {
+				numeraire = numerairesOnSimulationTimes.get(timeIndex);
+				if(numeraire == null) {
+					numeraire = getInterpolatedNumeraire(time);
+					numerairesOnSimulationTimes.set(timeIndex, numeraire);
+				}
+			}
+			return numeraire;
+		}
+
+		NumeraireAtTime numeraire = numerairesOnOtherTimes.get(time);
+		if(numeraire != null) return numeraire;
+		synchronized(this) {
+			numeraire = numerairesOnOtherTimes.get(time);
+			if(numeraire == null) {
+				numeraire = getInterpolatedNumeraire(time);
+				numerairesOnOtherTimes.put(time, numeraire);
+			}
+		}
+		return numeraire;
+	}
+
+	private NumeraireAtTime getNumeraireOnLiborPeriodTime(int liborIndex) throws CalculationException {
+		NumeraireAtTime numeraire = numerairesOnLiborPeriodTimes.get(liborIndex);
+		if(numeraire != null) return numeraire;
+		synchronized(this) {
+			numeraire = numerairesOnLiborPeriodTimes.get(liborIndex);
+			if(numeraire == null) {
+				RandomVariableInterface unadjustedNumeraire = unadjustedNumeraires.getUnadjustedNumeraire(liborIndex);
+				numeraire = new NumeraireAtTime(unadjustedNumeraire, getAdjustment(liborPeriodDiscretization.getTime(liborIndex), unadjustedNumeraire));
+				logNumerairesOnLiborPeriodTimes.set(liborIndex, unadjustedNumeraire.log());
+				numerairesOnLiborPeriodTimes.set(liborIndex, numeraire);
+			}
+		}
+		return numeraire;
+	}
+
+	private RandomVariableInterface getLogNumeraireOnLiborPeriodTime(int liborIndex) throws CalculationException {
+		RandomVariableInterface logNumeraire = logNumerairesOnLiborPeriodTimes.get(liborIndex);
+		if(logNumeraire != null) return logNumeraire;
+		getNumeraireOnLiborPeriodTime(liborIndex);
+		return logNumerairesOnLiborPeriodTimes.get(liborIndex);
+	}
+
+	/*
+	 * Log linear interpolation of the numeraire between two Libor period times, by operations on the logarithms of the numeraires.
+	 */
+	private NumeraireAtTime getInterpolatedNumeraire(double time) throws CalculationException {
+		int upperIndex = -liborPeriodDiscretization.getTimeIndex(time)-1;
+		int lowerIndex = upperIndex-1;
+		if(lowerIndex < 0) throw new IllegalArgumentException("Numeraire requested for time " + time + ". Unsupported");
+		if(upperIndex >= liborPeriodDiscretization.getNumberOfTimes()) throw new ArrayIndexOutOfBoundsException("Index for LIBOR period discretization out of bounds: " + upperIndex + ".");
+
+		double alpha = (time-liborPeriodDiscretization.getTime(lowerIndex)) / (liborPeriodDiscretization.getTime(upperIndex) - liborPeriodDiscretization.getTime(lowerIndex));
+		RandomVariableInterface numeraire = getLogNumeraireOnLiborPeriodTime(upperIndex).mult(alpha).add(getLogNumeraireOnLiborPeriodTime(lowerIndex).mult(1.0-alpha)).exp();
+
+		return new NumeraireAtTime(numeraire, getAdjustment(time, numeraire));
+	}
+
+	private RandomVariableInterface getAdjustment(double time, RandomVariableInterface unadjustedNumeraire){
+		if(discountCurve == null) return null;
+		return randomVariableFactory.createRandomVariable(unadjustedNumeraire.pow(-1.0).getAverage()).div(discountCurve.getDiscountFactor(time));
+	}
+}
@@ -98,6 +98,39 @@ public abstract class AbstractLIBORCovarianceModel {
 	 */
 	public abstract	RandomVariableInterface[]	getFactorLoading(int timeIndex, int component, RandomVariableInterface[] realizationAtTimeIndex);
 
+	/**
+	 * Returns the values of the factor loading for a given time and a given component if the factor loading is a vector of
+	 * deterministic constants (not differentiable), null otherwise. The time and the component are mapped on the time discretization
+	 * and the LIBOR period discretization of this model as in <code>getFactorLoading(double, double, RandomVariableInterface[])</code>.
+	 * 
+	 * @param time The time <i>t</i> at which factor loading is requested.
+	 * @param component The component time (as a double associated with the fixing of the forward rate)  <i>T<sub>i</sub></i>.
+	 * @param realizationAtTimeIndex The realization of the stochastic process (may be used to implement local volatility/covariance/correlation models).
+	 * @return The values of the factor loading <i>f<sub>i</sub>(t)</i> or null.
+	 */
+	public double[] getFactorLoadingValues(double time, double component, RandomVariableInterface[] realizationAtTimeIndex) {
+		int timeIndex = timeDiscretization.getTimeIndex(time);
+		if(timeIndex < 0) timeIndex = -timeIndex - 2;
+		int componentIndex = liborPeriodDiscretization.getTimeIndex(component);
+		if(componentIndex < 0) componentIndex = -componentIndex - 2;
+		return getFactorLoadingValues(timeIndex, componentIndex, realizationAtTimeIndex);
+	}
+
+	/**
+	 * Returns the values of the factor loading for a given time index and component index if the factor loading is a vector of
+	 * deterministic constants (not differentiable), null otherwise. The values are equal to those of <code>getFactorLoading</code>,
+	 * they allow the drift to be calculated with scalar multiplications. Models which keep the values override this method, the
+	 * default returns null.
+	 * 
+	 * @param timeIndex The time index at which factor loading is requested.
+	 * @param component The index of the component  <i>i</i>.
+	 * @param realizationAtTimeIndex The realization of the stochastic process (may be used to implement local volatility/covariance/correlation models).
+	 * @return The values of the factor loading <i>f<sub>i</sub>(t)</i> or null. The returned array may be shared and must not be modified.
+	 */
+	public double[] getFactorLoadingValues(int timeIndex, int component, RandomVariableInterface[] realizationAtTimeIndex) {
+		return null;
+	}
+
 	/**
 	 * Returns the pseudo inverse of the factor matrix.
 	 * 
@@ -12,6 +12,7 @@ import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
@@ -20,12 +21,16 @@ import java.util.logging.Logger;
 import initialmargin.isdasimm.changedfinmath.LIBORMarketModelInterface;
 import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulation;
 import initialmargin.isdasimm.changedfinmath.products.AbstractLIBORMonteCarloProduct;
+import initialmargin.isdasimm.changedfinmath.products.SwaptionAnalyticApproximation;
+import initialmargin.isdasimm.changedfinmath.products.SwaptionSimple;
 import net.finmath.exception.CalculationException;
 import net.finmath.montecarlo.BrownianMotion;
 import net.finmath.montecarlo.BrownianMotionInterface;
 import net.finmath.montecarlo.MonteCarloSimulationInterface;
+import net.finmath.montecarlo.RandomVariable;
 import net.finmath.montecarlo.automaticdifferentiation.RandomVariableDifferentiableInterface;
 import net.finmath.montecarlo.process.ProcessEulerScheme;
+import net.finmath.optimizer.LevenbergMarquardt;
 import net.finmath.optimizer.OptimizerFactoryInterface;
 import net.finmath.optimizer.OptimizerFactoryLevenbergMarquardt;
 import net.finmath.optimizer.OptimizerInterface;
@@ -139,8 +144,23 @@ public abstract class AbstractLIBORCovarianceModelParametric extends AbstractLIB
 	 * 	<li><tt>brownianMotion</tt>: Under this key an object implementing {@link net.finmath.montecarlo.BrownianMotionInterface} may be provided. If so, this Brownian motion is used to build the valuation model.</li>
 	 * 	<li><tt>maxIterations</tt>: Under this key an object of type Integer may be provided specifying the maximum number of iterations.</li>
 	 * 	<li><tt>accuracy</tt>: Under this key an object of type Double may be provided specifying the desired accuracy. Note that this is understood in the sense that the solver will stop if the iteration does not improve by more than this number.</li>
+	 * 	<li><tt>numberOfThreads</tt>: Under this key an object of type Integer may be provided specifying the number of threads valuing the calibration products in parallel. The default is 1, i.e., the products are valued in the calling thread (note that the default optimizer already values 2 parameter sets in parallel).</li>
+	 * 	<li><tt>executor</tt>: Under this key an {@link java.util.concurrent.ExecutorService} may be provided which values the calibration products. It is not shut down.</li>
+	 * 	<li><tt>optimizerFactory</tt>: Under this key an object implementing {@link net.finmath.optimizer.OptimizerFactoryInterface} may be provided. If so, the Jacobian is calculated by the optimizer (finite differences).</li>
+	 * 	<li><tt>jacobianByAAD</tt>: Under this key an object of type Boolean may be provided. If true (default is false), the parameters are differentiable random variables and no optimizer factory is given, the Jacobian is calculated by AAD (see below).</li>
+	 * 	<li><tt>analyticPreCalibration</tt>: Under this key an object of type Boolean may be provided. If true, the parameters are first calibrated to the analytic approximations of the calibration products (see below) and the Monte-Carlo calibration starts from these parameters with a default of 20 iterations.</li>
+	 * 	<li><tt>analyticMaxIterations</tt>: Under this key an object of type Integer may be provided specifying the maximum number of iterations of the analytic pre-calibration.</li>
 	 * </ul>
 	 * 
+	 * The analytic pre-calibration values the {@link SwaptionAnalyticApproximation}
+	 * of the calibration products of type {@link SwaptionSimple} (in the same unit, hence
+	 * to the same target values), which is cheap and deterministic. Other calibration products are only used in the Monte-Carlo calibration.
+	 * 
+	 * All trial parameters are valued on the same Brownian motion (common random numbers). By default the Jacobian
+	 * is calculated by finite differences. If requested by <tt>jacobianByAAD</tt>, the parameters are of type
+	 * {@link RandomVariableDifferentiableInterface} and no optimizer factory is given, the Jacobian is
+	 * obtained by AAD from the valuation of the trial parameters: one backward sweep per calibration product.
+	 * 
 	 * @param calibrationModel The LIBOR market model to be used for calibrations (specifies forward curve and tenor discretization).
 	 * @param calibrationProducts The array of calibration products.
 	 * @param calibrationTargetValues The array of target values.
@@ -157,12 +177,17 @@ public abstract class AbstractLIBORCovarianceModelParametric extends AbstractLIB
 		Integer maxIterationsParameter	= (Integer)calibrationParameters.get("maxIterations");
 		Double	parameterStepParameter	= (Double)calibrationParameters.get("parameterStep");
 		Double	accuracyParameter		= (Double)calibrationParameters.get("accuracy");
+		Integer numberOfThreadsParameter	= (Integer)calibrationParameters.get("numberOfThreads");
+		ExecutorService executorParameter	= (ExecutorService)calibrationParameters.get("executor");
+		Boolean	jacobianByAADParameter		= (Boolean)calibrationParameters.get("jacobianByAAD");
+		Boolean	analyticPreCalibrationParameter	= (Boolean)calibrationParameters.get("analyticPreCalibration");
+		Integer analyticMaxIterationsParameter	= (Integer)calibrationParameters.get("analyticMaxIterations");
 		BrownianMotionInterface brownianMotionParameter	= (BrownianMotionInterface)calibrationParameters.get("brownianMotion");
 
 		double[] initialParameters = this.getParameter();
 		double[] lowerBound = new double[initialParameters.length];
 		double[] upperBound = new double[initialParameters.length];
-		double[] parameterStep = new double[initialParameters.length];
+		final double[] parameterStep = new double[initialParameters.length];
 		double[] zero = new double[calibrationTargetValues.length];
 		Arrays.fill(lowerBound, Double.NEGATIVE_INFINITY);
 		Arrays.fill(upperBound, Double.POSITIVE_INFINITY);
@@ -180,67 +205,142 @@ public abstract class AbstractLIBORCovarianceModelParametric extends AbstractLIB
 
 		int numberOfPaths	= numberOfPathsParameter != null ? numberOfPathsParameter.intValue() : 2000;
 		int seed			= seedParameter != null ? seedParameter.intValue() : 31415;
-		int maxIterations	= maxIterationsParameter != null ? maxIterationsParameter.intValue() : 400;
+		boolean isAnalyticPreCalibration = analyticPreCalibrationParameter != null && analyticPreCalibrationParameter.booleanValue();
+		int maxIterations	= maxIterationsParameter != null ? maxIterationsParameter.intValue() : (isAnalyticPreCalibration ? 20 : 400);
+		int analyticMaxIterations	= analyticMaxIterationsParameter != null ? analyticMaxIterationsParameter.intValue() : 400;
 		double accuracy		= accuracyParameter != null ? accuracyParameter.doubleValue() : 1E-7;
 		final BrownianMotionInterface brownianMotion = brownianMotionParameter != null ? brownianMotionParameter : new BrownianMotion(getTimeDiscretization(), getNumberOfFactors(), numberOfPaths, seed);
 		OptimizerFactoryInterface optimizerFactory = optimizerFactoryParameter != null ? optimizerFactoryParameter : new OptimizerFactoryLevenbergMarquardt(maxIterations, accuracy, numberOfThreads);
 
-		int numberOfThreadsForProductValuation = 2 * Math.max(2, Runtime.getRuntime().availableProcessors());
-		final ExecutorService executor = null;//Executors.newFixedThreadPool(numberOfThreadsForProductValuation);
+		/*
+		 * Analytic pre-calibration: most iterations of a calibration are spent far from the optimum, where the analytic
+		 * approximation is good enough. The Monte-Carlo calibration starts from the analytically calibrated parameters.
+		 */
+		if(isAnalyticPreCalibration) {
+			initialParameters = getParameterCalibratedAnalytic(calibrationModel, calibrationProducts, calibrationTargetValues, initialParameters, parameterStep, analyticMaxIterations, accuracy, numberOfThreads);
+		}
+
+		/*
+		 * Common random numbers: all trial parameters are valued on the same Brownian motion. Its increments are generated
+		 * once here (and not by the first of several concurrent valuations), such that the calibration error is a smooth
+		 * function of the parameters.
+		 */
+		brownianMotion.getBrownianIncrement(0, 0);
+
+		int numberOfThreadsForProductValuation = numberOfThreadsParameter != null ? numberOfThreadsParameter.intValue() : 1;
+		final ExecutorService executor = executorParameter != null ? executorParameter : (numberOfThreadsForProductValuation > 1 ? Executors.newFixedThreadPool(numberOfThreadsForProductValuation) : null);
 
-		ObjectiveFunction calibrationError = new ObjectiveFunction() {			
+		final ObjectiveFunction calibrationError = new ObjectiveFunction() {
 			// Calculate model values for given parameters
 			@Override
 			public void setValues(double[] parameters, double[] values) throws SolverException {
+				RandomVariableInterface[] modelValues = getCalibrationProductValues(parameters, calibrationModel, calibrationProducts, calibrationTargetValues, brownianMotion, executor);
+				for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
+					values[calibrationProductIndex] = modelValues[calibrationProductIndex].getAverage();
+				}
+			}
+		};
+
+		/*
+		 * If requested, the parameters are differentiable random variables (created by an AAD random variable factory) and no optimizer is given,
+		 * the Jacobian is obtained by AAD: the model values of a valuation are kept and the derivatives w.r.t. all parameters
+		 * are obtained by one backward sweep per calibration product (in parallel) instead of one valuation per parameter.
+		 */
+		RandomVariableInterface[] initialParametersAsRandomVariable = getParameterAsRandomVariable();
+		boolean isParameterDifferentiable = false;
+		for(RandomVariableInterface parameter : initialParametersAsRandomVariable) isParameterDifferentiable |= parameter instanceof RandomVariableDifferentiableInterface;
+		boolean isJacobianByAAD = jacobianByAADParameter != null && jacobianByAADParameter.booleanValue();
 
-				AbstractLIBORCovarianceModelParametric calibrationCovarianceModel = AbstractLIBORCovarianceModelParametric.this.getCloneWithModifiedParameters(parameters);
+		OptimizerInterface optimizer;
+		if(optimizerFactoryParameter == null && isJacobianByAAD && isParameterDifferentiable) {
+			optimizer = new LevenbergMarquardt(initialParameters, calibrationTargetValues, maxIterations, 1) {
+				private static final long serialVersionUID = -3618431474284096493L;
 
-				// Create a LIBOR market model with the new covariance structure.
-				LIBORMarketModelInterface model = calibrationModel.getCloneWithModifiedCovarianceModel(calibrationCovarianceModel);
-				ProcessEulerScheme process = new ProcessEulerScheme(brownianMotion);
-				final LIBORModelMonteCarloSimulation liborMarketModelMonteCarloSimulation =  new LIBORModelMonteCarloSimulation(model, process);
+				// The last valuation, the derivatives are requested for the parameters of the last accepted valuation
+				private double[]					lastParameters;
+				private AbstractLIBORCovarianceModelParametric	lastCovarianceModel;
+				private RandomVariableInterface[]	lastModelValues;
 
-				ArrayList<Future<Double>> valueFutures = new ArrayList<Future<Double>>(calibrationProducts.length);
-				for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
-					final int workerCalibrationProductIndex = calibrationProductIndex;
-					Callable<Double> worker = new  Callable<Double>() {
-						public Double call() throws SolverException {
-							try {
-								return calibrationProducts[workerCalibrationProductIndex].getValue((MonteCarloSimulationInterface) liborMarketModelMonteCarloSimulation);
-							} catch (CalculationException e) {
-								// We do not signal exceptions to keep the solver working and automatically exclude non-working calibration products.
-								return calibrationTargetValues[workerCalibrationProductIndex];
-							} catch (Exception e) {
-								// We do not signal exceptions to keep the solver working and automatically exclude non-working calibration products.
-								return calibrationTargetValues[workerCalibrationProductIndex];
+				@Override
+				public void setValues(double[] parameters, double[] values) throws SolverException {
+					RandomVariableInterface[] modelValues = getModelValues(parameters);
+					for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
+						values[calibrationProductIndex] = modelValues[calibrationProductIndex].getAverage();
+					}
+				}
+
+				@Override
+				public void setDerivatives(double[] parameters, double[][] derivatives) throws SolverException {
+					RandomVariableInterface[] modelValues = getModelValues(parameters);
+					RandomVariableInterface[] parametersAsRandomVariable = lastCovarianceModel.getParameterAsRandomVariable();
+
+					ArrayList<Future<Map<Long, RandomVariableInterface>>> gradientFutures = new ArrayList<Future<Map<Long, RandomVariableInterface>>>(calibrationProducts.length);
+					for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
+						final RandomVariableInterface modelValue = modelValues[calibrationProductIndex];
+						Callable<Map<Long, RandomVariableInterface>> worker = new Callable<Map<Long, RandomVariableInterface>>() {
+							public Map<Long, RandomVariableInterface> call() {
+								// Only the derivatives of the average are needed
+								RandomVariableInterface value = modelValue.average();
+								if(!(value instanceof RandomVariableDifferentiableInterface)) return null;
+								return ((RandomVariableDifferentiableInterface) value).getGradient();
 							}
+						};
+						gradientFutures.add(calibrationProductIndex, submit(worker, executor));
+					}
+
+					boolean[] isParameterOnTape = new boolean[parameters.length];
+					for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
+						Map<Long, RandomVariableInterface> gradient;
+						try {
+							gradient = gradientFutures.get(calibrationProductIndex).get();
+						}
+						catch (InterruptedException e) {
+							throw new SolverException(e);
+						} catch (ExecutionException e) {
+							throw new SolverException(e);
+						}
+						for(int parameterIndex=0; parameterIndex<parameters.length; parameterIndex++) {
+							RandomVariableInterface derivative = null;
+							if(gradient != null && parametersAsRandomVariable[parameterIndex] instanceof RandomVariableDifferentiableInterface) {
+								derivative = gradient.get(((RandomVariableDifferentiableInterface) parametersAsRandomVariable[parameterIndex]).getID());
+							}
+							derivatives[parameterIndex][calibrationProductIndex] = derivative != null ? derivative.getAverage() : 0.0;
+							isParameterOnTape[parameterIndex] |= derivative != null;
 						}
-					};
-					if(executor != null) {
-						Future<Double> valueFuture = executor.submit(worker);
-						valueFutures.add(calibrationProductIndex, valueFuture);
 					}
-					else {
-						FutureTask<Double> valueFutureTask = new FutureTask<Double>(worker);
-						valueFutureTask.run();
-						valueFutures.add(calibrationProductIndex, valueFutureTask);
+
+					/*
+					 * Parameters which are not recorded on the tape (e.g. parameters which are not differentiable random variables)
+					 * are bumped (finite differences).
+					 */
+					for(int parameterIndex=0; parameterIndex<parameters.length; parameterIndex++) {
+						if(isParameterOnTape[parameterIndex]) continue;
+
+						double[] parametersShifted = parameters.clone();
+						parametersShifted[parameterIndex] += parameterStep[parameterIndex];
+						RandomVariableInterface[] modelValuesShifted = getCalibrationProductValues(parametersShifted, calibrationModel, calibrationProducts, calibrationTargetValues, brownianMotion, executor);
+						for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
+							derivatives[parameterIndex][calibrationProductIndex] = (modelValuesShifted[calibrationProductIndex].getAverage() - modelValues[calibrationProductIndex].getAverage()) / parameterStep[parameterIndex];
+						}
 					}
 				}
-				for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
-					try {
-						double value = valueFutures.get(calibrationProductIndex).get();
-						values[calibrationProductIndex] = value;
-					}
-					catch (InterruptedException e) {
-						throw new SolverException(e);
-					} catch (ExecutionException e) {
-						throw new SolverException(e);
+
+				private RandomVariableInterface[] getModelValues(double[] parameters) throws SolverException {
+					if(!Arrays.equals(parameters, lastParameters)) {
+						lastParameters		= parameters.clone();
+						lastCovarianceModel	= AbstractLIBORCovarianceModelParametric.this.getCloneWithModifiedParameters(lastParameters);
+						lastModelValues		= getCalibrationProductValues(lastCovarianceModel, calibrationModel, calibrationProducts, calibrationTargetValues, brownianMotion, executor);
 					}
+					return lastModelValues;
 				}
 			}
-		};
+			.setErrorTolerance(accuracy)
+			.setParameterSteps(parameterStep);
+		}
+		else {
+			optimizer = optimizerFactory.getOptimizer(calibrationError, initialParameters, lowerBound, upperBound, parameterStep, calibrationTargetValues);
+		}
 
-		OptimizerInterface optimizer = optimizerFactory.getOptimizer(calibrationError, initialParameters, lowerBound, upperBound, parameterStep, calibrationTargetValues);
 		try {
 			optimizer.run();
 		}
@@ -248,7 +348,7 @@ public abstract class AbstractLIBORCovarianceModelParametric extends AbstractLIB
 			throw new CalculationException(e);
 		}
 		finally {
-			if(executor != null) {
+			if(executor != null && executor != executorParameter) {
 				executor.shutdown();
 			}
 		}
@@ -271,6 +371,145 @@ public abstract class AbstractLIBORCovarianceModelParametric extends AbstractLIB
 		return calibrationCovarianceModel;    	
 	}
 
+	/*
+	 * The parameters calibrated to the analytic approximations of the calibration products (of type SwaptionSimple or
+	 * SwaptionAnalyticApproximation). Products whose analytic value is not available for the initial parameters (e.g. the
+	 * Black value for negative rates) are ignored. Returns the initial parameters if there are no analytic products.
+	 */
+	private double[] getParameterCalibratedAnalytic(final LIBORMarketModelInterface calibrationModel, AbstractLIBORMonteCarloProduct[] calibrationProducts, double[] calibrationTargetValues, double[] initialParameters, double[] parameterStep, int maxIterations, double accuracy, int numberOfThreads) throws CalculationException {
+
+		LIBORModelMonteCarloSimulation initialModel = new LIBORModelMonteCarloSimulation(calibrationModel.getCloneWithModifiedCovarianceModel(getCloneWithModifiedParameters(initialParameters)));
+
+		final ArrayList<AbstractLIBORMonteCarloProduct> analyticProducts = new ArrayList<AbstractLIBORMonteCarloProduct>();
+		final ArrayList<Double> analyticTargetValues = new ArrayList<Double>();
+		for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
+			AbstractLIBORMonteCarloProduct analyticProduct;
+			if(calibrationProducts[calibrationProductIndex] instanceof SwaptionSimple) {
+				analyticProduct = ((SwaptionSimple) calibrationProducts[calibrationProductIndex]).getAnalyticApproximation();
+			}
+			else if(calibrationProducts[calibrationProductIndex] instanceof SwaptionAnalyticApproximation) {
+				analyticProduct = calibrationProducts[calibrationProductIndex];
+			}
+			else {
+				continue;
+			}
+
+			try {
+				double value = analyticProduct.getValue(0.0, initialModel).getAverage();
+				if(Double.isNaN(value) || Double.isInfinite(value)) continue;
+			} catch (Exception e) {
+				continue;
+			}
+			analyticProducts.add(analyticProduct);
+			analyticTargetValues.add(calibrationTargetValues[calibrationProductIndex]);
+		}
+
+		if(analyticProducts.isEmpty()) return initialParameters;
+
+		final double[] targetValues = new double[analyticTargetValues.size()];
+		for(int analyticProductIndex=0; analyticProductIndex<targetValues.length; analyticProductIndex++) targetValues[analyticProductIndex] = analyticTargetValues.get(analyticProductIndex);
+
+		ObjectiveFunction calibrationError = new ObjectiveFunction() {
+			// Calculate analytic model values for given parameters
+			@Override
+			public void setValues(double[] parameters, double[] values) throws SolverException {
+				LIBORModelMonteCarloSimulation model = new LIBORModelMonteCarloSimulation(calibrationModel.getCloneWithModifiedCovarianceModel(getCloneWithModifiedParameters(parameters)));
+				for(int analyticProductIndex=0; analyticProductIndex<values.length; analyticProductIndex++) {
+					try {
+						values[analyticProductIndex] = analyticProducts.get(analyticProductIndex).getValue(0.0, model).getAverage();
+					} catch (Exception e) {
+						// We do not signal exceptions to keep the solver working and automatically exclude non-working calibration products.
+						values[analyticProductIndex] = targetValues[analyticProductIndex];
+					}
+				}
+			}
+		};
+
+		double[] lowerBound = new double[initialParameters.length];
+		double[] upperBound = new double[initialParameters.length];
+		Arrays.fill(lowerBound, Double.NEGATIVE_INFINITY);
+		Arrays.fill(upperBound, Double.POSITIVE_INFINITY);
+
+		OptimizerInterface optimizer = new OptimizerFactoryLevenbergMarquardt(maxIterations, accuracy, numberOfThreads).getOptimizer(calibrationError, initialParameters, lowerBound, upperBound, parameterStep, targetValues);
+		try {
+			optimizer.run();
+		}
+		catch(SolverException e) {
+			throw new CalculationException(e);
+		}
+
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("The analytic pre-calibration required " + optimizer.getIterations() + " iterations.");
+		}
+
+		return optimizer.getBestFitParameters();
+	}
+
+	/*
+	 * The values of the calibration products in the model with the covariance model for the given parameters.
+	 */
+	private RandomVariableInterface[] getCalibrationProductValues(double[] parameters, LIBORMarketModelInterface calibrationModel, AbstractLIBORMonteCarloProduct[] calibrationProducts, double[] calibrationTargetValues, BrownianMotionInterface brownianMotion, ExecutorService executor) throws SolverException {
+		return getCalibrationProductValues(getCloneWithModifiedParameters(parameters), calibrationModel, calibrationProducts, calibrationTargetValues, brownianMotion, executor);
+	}
+
+	/*
+	 * The values of the calibration products in the model with the given covariance model, valued in parallel (if an executor is given)
+	 * on one simulation. The values are random variables, such that they may be differentiated (AAD).
+	 */
+	private static RandomVariableInterface[] getCalibrationProductValues(AbstractLIBORCovarianceModelParametric calibrationCovarianceModel, LIBORMarketModelInterface calibrationModel, final AbstractLIBORMonteCarloProduct[] calibrationProducts, final double[] calibrationTargetValues, BrownianMotionInterface brownianMotion, ExecutorService executor) throws SolverException {
+
+		// Create a LIBOR market model with the new covariance structure.
+		LIBORMarketModelInterface model = calibrationModel.getCloneWithModifiedCovarianceModel(calibrationCovarianceModel);
+		ProcessEulerScheme process = new ProcessEulerScheme(brownianMotion);
+		final LIBORModelMonteCarloSimulation liborMarketModelMonteCarloSimulation =  new LIBORModelMonteCarloSimulation(model, process);
+
+		ArrayList<Future<RandomVariableInterface>> valueFutures = new ArrayList<Future<RandomVariableInterface>>(calibrationProducts.length);
+		for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
+			final int workerCalibrationProductIndex = calibrationProductIndex;
+			Callable<RandomVariableInterface> worker = new  Callable<RandomVariableInterface>() {
+				public RandomVariableInterface call() throws SolverException {
+					try {
+						return calibrationProducts[workerCalibrationProductIndex].getValue(0.0, (MonteCarloSimulationInterface) liborMarketModelMonteCarloSimulation);
+					} catch (CalculationException e) {
+						// We do not signal exceptions to keep the solver working and automatically exclude non-working calibration products.
+						return new RandomVariable(calibrationTargetValues[workerCalibrationProductIndex]);
+					} catch (Exception e) {
+						// We do not signal exceptions to keep the solver working and automatically exclude non-working calibration products.
+						return new RandomVariable(calibrationTargetValues[workerCalibrationProductIndex]);
+					}
+				}
+			};
+			valueFutures.add(calibrationProductIndex, submit(worker, executor));
+		}
+
+		RandomVariableInterface[] values = new RandomVariableInterface[calibrationProducts.length];
+		for(int calibrationProductIndex=0; calibrationProductIndex<calibrationProducts.length; calibrationProductIndex++) {
+			try {
+				values[calibrationProductIndex] = valueFutures.get(calibrationProductIndex).get();
+			}
+			catch (InterruptedException e) {
+				throw new SolverException(e);
+			} catch (ExecutionException e) {
+				throw new SolverException(e);
+			}
+		}
+		return values;
+	}
+
+	/*
+	 * Submit a worker to the executor or run it in the calling thread if there is no executor.
+	 */
+	private static <V> Future<V> submit(Callable<V> worker, ExecutorService executor) {
+		if(executor != null) {
+			return executor.submit(worker);
+		}
+		else {
+			FutureTask<V> futureTask = new FutureTask<V>(worker);
+			futureTask.run();
+			return futureTask;
+		}
+	}
+
 	@Override
 	public String toString() {
 		return "AbstractLIBORCovarianceModelParametric [getParameter()="
@@ -11,6 +11,7 @@ import org.apache.commons.lang3.ArrayUtils;
 
 import net.finmath.marketdata.model.curves.ForwardCurveInterface;
 import net.finmath.montecarlo.AbstractRandomVariableFactory;
+import net.finmath.montecarlo.automaticdifferentiation.RandomVariableDifferentiableInterface;
 import net.finmath.stochastic.RandomVariableInterface;
 
 /**
@@ -149,6 +150,38 @@ public class BlendedLocalVolatilityModel extends AbstractLIBORCovarianceModelPar
 	public RandomVariableInterface[] getFactorLoading(int timeIndex, int component, RandomVariableInterface[] realizationAtTimeIndex) {
 		RandomVariableInterface[] factorLoading = covarianceModel.getFactorLoading(timeIndex, component, realizationAtTimeIndex);
 
+		if(realizationAtTimeIndex != null && realizationAtTimeIndex[component] != null) {
+			RandomVariableInterface localVolatilityFactor = getLocalVolatilityFactor(timeIndex, component, realizationAtTimeIndex);
+			factorLoading = Arrays.stream(factorLoading).map(factor -> factor.mult(localVolatilityFactor)).toArray(RandomVariableInterface[]::new);
+		}
+
+		return factorLoading;
+	}
+
+	/**
+	 * Returns the values of the factor loading of the given covariance model, multiplied by the local volatility factor if it is
+	 * a deterministic constant, e.g. on the initial Libors. Returns null if the factor loading depends on the realization of the paths
+	 * or if the given covariance model does not provide the values.
+	 * 
+	 * @see initialmargin.isdasimm.changedfinmath.modelplugins.AbstractLIBORCovarianceModel#getFactorLoadingValues(int, int, net.finmath.stochastic.RandomVariableInterface[])
+	 */
+	@Override
+	public double[] getFactorLoadingValues(int timeIndex, int component, RandomVariableInterface[] realizationAtTimeIndex) {
+		double[] factorLoadingValues = covarianceModel.getFactorLoadingValues(timeIndex, component, realizationAtTimeIndex);
+
+		if(factorLoadingValues != null && realizationAtTimeIndex != null && realizationAtTimeIndex[component] != null) {
+			RandomVariableInterface localVolatilityFactor = getLocalVolatilityFactor(timeIndex, component, realizationAtTimeIndex);
+			if(!localVolatilityFactor.isDeterministic() || localVolatilityFactor instanceof RandomVariableDifferentiableInterface) return null;
+			factorLoadingValues = Arrays.stream(factorLoadingValues).map(factor -> factor * localVolatilityFactor.get(0)).toArray();
+		}
+
+		return factorLoadingValues;
+	}
+
+	/*
+	 * The local volatility factor a L_{i,0} + (1-a) L_i(t) of a component.
+	 */
+	private RandomVariableInterface getLocalVolatilityFactor(int timeIndex, int component, RandomVariableInterface[] realizationAtTimeIndex) {
 		double forward = 1.0;
 		if(forwardCurve != null) {
 			double timeToMaturity = getLiborPeriodDiscretization().getTime(component) - getTimeDiscretization().getTime(timeIndex);
@@ -156,12 +189,7 @@ public class BlendedLocalVolatilityModel extends AbstractLIBORCovarianceModelPar
 			forward = forwardCurve.getForward(null, Math.max(timeToMaturity, 0.0));
 		}
 
-		if(realizationAtTimeIndex != null && realizationAtTimeIndex[component] != null) {
-			RandomVariableInterface localVolatilityFactor = realizationAtTimeIndex[component].mult(displacement.mult(-1.0).add(1.0)).add(displacement.mult(forward));			
-			factorLoading = Arrays.stream(factorLoading).map(factor -> factor.mult(localVolatilityFactor)).toArray(RandomVariableInterface[]::new);
-		}
-
-		return factorLoading;
+		return realizationAtTimeIndex[component].mult(displacement.mult(-1.0).add(1.0)).add(displacement.mult(forward));
 	}
 
 	@Override
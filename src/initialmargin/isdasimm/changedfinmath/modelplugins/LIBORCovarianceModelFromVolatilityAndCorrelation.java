@@ -6,12 +6,14 @@
 package initialmargin.isdasimm.changedfinmath.modelplugins;
 
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.stream.IntStream;
 
 import org.apache.commons.lang3.ArrayUtils;
 
 import net.finmath.montecarlo.AbstractRandomVariableFactory;
 import net.finmath.montecarlo.RandomVariable;
+import net.finmath.montecarlo.automaticdifferentiation.RandomVariableDifferentiableInterface;
 import net.finmath.montecarlo.automaticdifferentiation.backward.RandomVariableDifferentiableAAD;
 import net.finmath.montecarlo.interestrate.modelplugins.LIBORCorrelationModel;
 import net.finmath.stochastic.RandomVariableInterface;
@@ -29,32 +31,102 @@ import net.finmath.time.TimeDiscretizationInterface;
  * in this ordering
  * </p>
  * 
+ * <p>
+ * The volatility model does not depend on the realization of the process, hence the factor loadings and the
+ * variances are calculated once per time index (lazy init tables). If all factor loadings at a time index are
+ * deterministic constants (i.e. not differentiable, e.g. created by a <code>RandomVariableFactory</code>), their values
+ * are additionally provided as <code>double[time][component][factor]</code> (see <code>getFactorLoadingValues</code>),
+ * such that the drift may be calculated with scalar multiplications.
+ * The volatility and correlation model must not be modified after the creation of this model, use
+ * <code>getCloneWithModifiedParameters</code> instead.
+ * </p>
+ * 
  * @author Christian Fries
  */
 public class LIBORCovarianceModelFromVolatilityAndCorrelation extends AbstractLIBORCovarianceModelParametric {
 
 	private LIBORVolatilityModel	volatilityModel;
 	private LIBORCorrelationModel	correlationModel;
+
+	// Lazy init table of the factor loadings and variances, calculated per time index
+	private final AtomicReferenceArray<FactorLoadingsAtTime>	factorLoadings;
+
+	private static final class FactorLoadingsAtTime {
+		private final RandomVariableInterface[][]	factorLoadings;			// [component][factor]
+		private final RandomVariableInterface[]		variances;				// [component]
+		private final double[][]					factorLoadingValues;	// [component][factor], null if a factor loading is stochastic or differentiable
+
+		private FactorLoadingsAtTime(RandomVariableInterface[][] factorLoadings, RandomVariableInterface[] variances, double[][] factorLoadingValues) {
+			this.factorLoadings = factorLoadings;
+			this.variances = variances;
+			this.factorLoadingValues = factorLoadingValues;
+		}
+	}
 	
 	public LIBORCovarianceModelFromVolatilityAndCorrelation(TimeDiscretizationInterface timeDiscretization, TimeDiscretizationInterface liborPeriodDiscretization, LIBORVolatilityModel volatilityModel, LIBORCorrelationModel correlationModel) {
 		super(timeDiscretization, liborPeriodDiscretization, correlationModel.getNumberOfFactors());
 
 		this.volatilityModel = volatilityModel;
 		this.correlationModel = correlationModel;
+
+		this.factorLoadings = new AtomicReferenceArray<FactorLoadingsAtTime>(timeDiscretization.getNumberOfTimes());
 	}
 
+	/**
+	 * Returns the factor loading for a given time index and component index from the table of factor loadings.
+	 * The returned array is shared and must not be modified.
+	 * 
+	 * @see initialmargin.isdasimm.changedfinmath.modelplugins.AbstractLIBORCovarianceModel#getFactorLoading(int, int, net.finmath.stochastic.RandomVariableInterface[])
+	 */
 	@Override
     public RandomVariableInterface[] getFactorLoading(int timeIndex, int component, RandomVariableInterface[] realizationAtTimeIndex) {
+		return getFactorLoadingsAtTime(timeIndex).factorLoadings[component];
+	}
 
-		RandomVariableInterface volatility	= volatilityModel.getVolatility(timeIndex, component);
-		
-		RandomVariableInterface[] factorLoading = IntStream.range(0, correlationModel.getNumberOfFactors())
-				.mapToObj(factorIndex -> volatility.mult(correlationModel.getFactorLoading(timeIndex, factorIndex, component)))
-				.toArray(RandomVariableInterface[]::new);
-		
-		return factorLoading;
+	/**
+	 * Returns the values of the factor loading for a given time index and component index from the table of factor loadings
+	 * if all factor loadings of this model at this time are deterministic constants, null otherwise.
+	 * The returned array is shared and must not be modified.
+	 * 
+	 * @see initialmargin.isdasimm.changedfinmath.modelplugins.AbstractLIBORCovarianceModel#getFactorLoadingValues(int, int, net.finmath.stochastic.RandomVariableInterface[])
+	 */
+	@Override
+	public double[] getFactorLoadingValues(int timeIndex, int component, RandomVariableInterface[] realizationAtTimeIndex) {
+		double[][] factorLoadingValues = getFactorLoadingsAtTime(timeIndex).factorLoadingValues;
+		return factorLoadingValues != null ? factorLoadingValues[component] : null;
 	}
-	
+
+	/*
+	 * The factor loadings, the variances and (if constant) the values of the factor loadings of a time index. The table is read
+	 * without locking (the Euler scheme requests the components concurrently), concurrent initializations keep the first result.
+	 */
+	private FactorLoadingsAtTime getFactorLoadingsAtTime(int timeIndex) {
+		FactorLoadingsAtTime factorLoadingsAtTime = factorLoadings.get(timeIndex);
+		if(factorLoadingsAtTime != null) return factorLoadingsAtTime;
+
+		int numberOfComponents = getLiborPeriodDiscretization().getNumberOfTimeSteps();
+		int numberOfFactors = correlationModel.getNumberOfFactors();
+		RandomVariableInterface[][] loadingsAtTime = new RandomVariableInterface[numberOfComponents][];
+		RandomVariableInterface[] variancesAtTime = new RandomVariableInterface[numberOfComponents];
+		double[][] factorLoadingValuesAtTime = new double[numberOfComponents][numberOfFactors];
+		boolean isConstant = true;
+		for(int component=0; component<numberOfComponents; component++) {
+			final int componentOfFactorLoading = component;
+			RandomVariableInterface volatility	= volatilityModel.getVolatility(timeIndex, component);
+			loadingsAtTime[component] = IntStream.range(0, numberOfFactors)
+					.mapToObj(factorIndex -> volatility.mult(correlationModel.getFactorLoading(timeIndex, factorIndex, componentOfFactorLoading)))
+					.toArray(RandomVariableInterface[]::new);
+			variancesAtTime[component] = volatility.mult(volatility).mult(correlationModel.getCorrelation(timeIndex, component, component));
+
+			isConstant &= volatility.isDeterministic() && !(volatility instanceof RandomVariableDifferentiableInterface);
+			if(isConstant) {
+				for(int factorIndex=0; factorIndex<numberOfFactors; factorIndex++) factorLoadingValuesAtTime[component][factorIndex] = loadingsAtTime[component][factorIndex].get(0);
+			}
+		}
+		factorLoadings.compareAndSet(timeIndex, null, new FactorLoadingsAtTime(loadingsAtTime, variancesAtTime, isConstant ? factorLoadingValuesAtTime : null));
+		return factorLoadings.get(timeIndex);
+	}
+
 	@Override
     public RandomVariableInterface getFactorLoadingPseudoInverse(int timeIndex, int component, int factor, RandomVariableInterface[] realizationAtTimeIndex) {
 		// Note that we assume that the correlation model getFactorLoading gives orthonormal vectors
@@ -78,6 +150,11 @@ public class LIBORCovarianceModelFromVolatilityAndCorrelation extends AbstractLI
     @Override
     public RandomVariableInterface getCovariance(int timeIndex, int component1, int component2, RandomVariableInterface[] realizationAtTimeIndex) {
 
+    	// The variances (e.g. of the drift adjustment of the log-normal model) are taken from the table
+    	if(component1 == component2) {
+    		return getFactorLoadingsAtTime(timeIndex).variances[component1];
+    	}
+
     	RandomVariableInterface volatilityOfComponent1 = volatilityModel.getVolatility(timeIndex, component1);
     	RandomVariableInterface volatilityOfComponent2 = volatilityModel.getVolatility(timeIndex, component2);
     	
@@ -65,7 +65,11 @@ public class SwaptionAnalyticApproximation extends AbstractLIBORMonteCarloProduc
 		/** Returns the Black-Scholes implied integrated variance, i.e., <i>&sigma;<sup>2</sup> T</i> **/
 		INTEGRATEDVARIANCE,
 		/** Returns the Black-Scholes implied volatility, i.e., <i>&sigma;</i> **/
-		VOLATILITY
+		VOLATILITY,
+		/** Returns the Bachelier (normal) implied volatility of the value **/
+		VOLATILITYNORMAL,
+		/** Returns the Bachelier (normal) implied integrated variance of the value, i.e., <i>&sigma;<sup>2</sup> T</i> **/
+		INTEGRATEDNORMALVARIANCE
 	}
 
 	private final double      swaprate;
@@ -119,6 +123,9 @@ public class SwaptionAnalyticApproximation extends AbstractLIBORMonteCarloProduc
 	/**
 	 * Calculates the approximated integrated instantaneous variance of the swap rate,
 	 * using the approximation d log(S(t))/d log(L(t)) = d log(S(0))/d log(L(0)).
+	 * If the model has a normal state space (see <code>LIBORMarketModel.getStateSpace</code>, for other models: its state space
+	 * transform is the identity) the approximation
+	 * d S(t)/d L(t) = d S(0)/d L(0) is used and the value is given by the Bachelier formula.
 	 * 
 	 * @param evaluationTime Time at which the product is evaluated.
 	 * @param model A model implementing the LIBORModelMonteCarloSimulationInterface
@@ -138,7 +145,26 @@ public class SwaptionAnalyticApproximation extends AbstractLIBORMonteCarloProduc
 		int optionMaturityIndex = model.getCovarianceModel().getTimeDiscretization().getTimeIndex(swapStart)-1;
 
 		Map<String, double[]>  logSwaprateDerivative  = getLogSwaprateDerivative(model.getLiborPeriodDiscretization(), model.getDiscountCurve(), model.getForwardRateCurve());
-		double[]    swapCovarianceWeights  = logSwaprateDerivative.get("values");
+
+		double parSwaprate		= net.finmath.marketdata.products.Swap.getForwardSwapRate(new TimeDiscretization(swapTenor), new TimeDiscretization(swapTenor), model.getForwardRateCurve(), model.getDiscountCurve());
+		double swapAnnuity      = net.finmath.marketdata.products.SwapAnnuity.getSwapAnnuity(new TimeDiscretization(swapTenor), model.getDiscountCurve());
+
+		double optionMaturity	= swapStart;
+
+		/*
+		 * In the lognormal state space the integrated covariance is that of log(L), hence the weights are d log(S) / d log(L).
+		 * In the normal state space it is that of L and the weights are d S / d L = S d log(S) / d L.
+		 */
+		boolean isNormalStateSpace = isNormalStateSpace(model);
+		double[]    swapCovarianceWeights;
+		if(isNormalStateSpace) {
+			double[] logSwaprateDerivativeNormal = logSwaprateDerivative.get("valuesNormal");
+			swapCovarianceWeights = new double[logSwaprateDerivativeNormal.length];
+			for(int i=0; i<swapCovarianceWeights.length; i++) swapCovarianceWeights[i] = parSwaprate * logSwaprateDerivativeNormal[i];
+		}
+		else {
+			swapCovarianceWeights = logSwaprateDerivative.get("values");
+		}
 
 		// Get the integrated libor covariance from the model
 		double[][]	integratedLIBORCovariance = model.getIntegratedLIBORCovariance()[optionMaturityIndex];
@@ -154,6 +180,22 @@ public class SwaptionAnalyticApproximation extends AbstractLIBORMonteCarloProduc
 			integratedSwapRateVariance += swapCovarianceWeights[componentIndex1-swapStartIndex] * swapCovarianceWeights[componentIndex1-swapStartIndex] * integratedLIBORCovariance[componentIndex1][componentIndex1];
 		}
 
+		if(isNormalStateSpace) {
+			// Use the Bachelier formula for the swaption to calculate the price, the lognormal units are implied from the price
+			if(valueUnit == ValueUnit.INTEGRATEDNORMALVARIANCE) return new RandomVariable(evaluationTime, integratedSwapRateVariance);
+
+			double volatilityNormal = Math.sqrt(integratedSwapRateVariance / swapStart);
+			if(valueUnit == ValueUnit.VOLATILITYNORMAL) return new RandomVariable(evaluationTime, volatilityNormal);
+
+			double valueSwaption = AnalyticFormulas.bachelierOptionValue(parSwaprate, volatilityNormal, optionMaturity, swaprate, swapAnnuity);
+			if(valueUnit == ValueUnit.VALUE) return new RandomVariable(evaluationTime, valueSwaption);
+
+			double volatility = AnalyticFormulas.blackScholesOptionImpliedVolatility(parSwaprate, optionMaturity, swaprate, swapAnnuity, valueSwaption);
+			if(valueUnit == ValueUnit.VOLATILITY) return new RandomVariable(evaluationTime, volatility);
+
+			return new RandomVariable(evaluationTime, volatility * volatility * optionMaturity);
+		}
+
 		// Return integratedSwapRateVariance if requested
 		if(valueUnit == ValueUnit.INTEGRATEDVARIANCE) return new RandomVariable(evaluationTime, integratedSwapRateVariance);
 
@@ -163,13 +205,25 @@ public class SwaptionAnalyticApproximation extends AbstractLIBORMonteCarloProduc
 		if(valueUnit == ValueUnit.VOLATILITY) return new RandomVariable(evaluationTime, volatility);
 
 		// Use black formula for swaption to calculate the price
-		double parSwaprate		= net.finmath.marketdata.products.Swap.getForwardSwapRate(new TimeDiscretization(swapTenor), new TimeDiscretization(swapTenor), model.getForwardRateCurve(), model.getDiscountCurve());
-		double swapAnnuity      = net.finmath.marketdata.products.SwapAnnuity.getSwapAnnuity(new TimeDiscretization(swapTenor), model.getDiscountCurve());
+		double valueSwaption = AnalyticFormulas.blackModelSwaptionValue(parSwaprate, volatility, optionMaturity, swaprate, swapAnnuity);
+		if(valueUnit == ValueUnit.VALUE) return new RandomVariable(evaluationTime, valueSwaption);
 
-		double optionMaturity	= swapStart;
+		// Convert the value to a normal implied volatility (as SwaptionSimple does for the Monte-Carlo value)
+		double volatilityNormal = AnalyticFormulas.bachelierOptionImpliedVolatility(parSwaprate, optionMaturity, swaprate, swapAnnuity, valueSwaption);
+		if(valueUnit == ValueUnit.VOLATILITYNORMAL) return new RandomVariable(evaluationTime, volatilityNormal);
 
-		double valueSwaption = AnalyticFormulas.blackModelSwaptionValue(parSwaprate, volatility, optionMaturity, swaprate, swapAnnuity);
-		return new RandomVariable(evaluationTime, valueSwaption);
+		return new RandomVariable(evaluationTime, volatilityNormal * volatilityNormal * optionMaturity);
+	}
+
+	/*
+	 * The state space of a Libor market model is that of its properties. For other models the state space is normal if the state space
+	 * transform is the identity (in the lognormal state space it is exp).
+	 */
+	private static boolean isNormalStateSpace(AbstractModelInterface model) {
+		if(model instanceof LIBORMarketModel) return ((LIBORMarketModel)model).getStateSpace() == LIBORMarketModel.StateSpace.NORMAL;
+
+		return model.applyStateSpaceTransform(0, new RandomVariable(0.0)).get(0) == 0.0
+				&& model.applyStateSpaceTransform(0, new RandomVariable(0.01)).get(0) == 0.01;
 	}
 
 	/**
@@ -181,7 +235,7 @@ public class SwaptionAnalyticApproximation extends AbstractLIBORMonteCarloProduc
 	 * @param liborPeriodDiscretization The libor period discretization.
 	 * @param discountCurveInterface The discount curve. If this parameter is null, the discount curve will be calculated from the forward curve.
 	 * @param forwardCurveInterface The forward curve.
-	 * @return A map containing the partial derivatives (key "value"), the discount factors (key "discountFactors") and the annuities (key "annuities") as vectors of double[] (indexed by forward rate tenor index starting at swap start)
+	 * @return A map containing the partial derivatives (key "value"), the partial derivatives <i>d log(S) / d L<sub>k</sub></i> (key "valuesNormal"), the discount factors (key "discountFactors") and the annuities (key "annuities") as vectors of double[] (indexed by forward rate tenor index starting at swap start)
 	 */
 	public Map<String, double[]> getLogSwaprateDerivative(TimeDiscretizationInterface liborPeriodDiscretization, DiscountCurveInterface discountCurveInterface, ForwardCurveInterface forwardCurveInterface) {
 
@@ -244,6 +298,7 @@ public class SwaptionAnalyticApproximation extends AbstractLIBORMonteCarloProduc
 
 			// Precalculate weights: The formula is take from ISBN 0470047224
 			double[] swapCovarianceWeights = new double[swapEndIndex-swapStartIndex];
+			double[] swapCovarianceWeightsNormal = new double[swapEndIndex-swapStartIndex];
 
 			double valueFloatLeg = 0.0;
 			for(int liborPeriodIndex = swapStartIndex; liborPeriodIndex < swapEndIndex; liborPeriodIndex++) {
@@ -266,12 +321,14 @@ public class SwaptionAnalyticApproximation extends AbstractLIBORMonteCarloProduc
 				double derivativeFixLeg		= - swapAnnuities[swapPeriodIndex] / swapAnnuity * liborPeriodLength / (1.0 + libor * liborPeriodLength);
 
 				swapCovarianceWeights[liborPeriodIndex-swapStartIndex] = (derivativeFloatLeg - derivativeFixLeg) * libor;
+				swapCovarianceWeightsNormal[liborPeriodIndex-swapStartIndex] = derivativeFloatLeg - derivativeFixLeg;
 
 			}
 
 			// Return results
 			Map<String, double[]> results = new HashMap<String, double[]>();
 			results.put("values",			swapCovarianceWeights);
+			results.put("valuesNormal",		swapCovarianceWeightsNormal);
 			results.put("discountFactors",	discountFactors);
 			results.put("swapAnnuities",	swapAnnuities);
 
@@ -7,11 +7,13 @@ package initialmargin.isdasimm.changedfinmath.products;
 
 import net.finmath.exception.CalculationException;
 import net.finmath.functions.AnalyticFormulas;
+import net.finmath.functions.NormalDistribution;
 import net.finmath.marketdata.model.curves.DiscountCurveInterface;
 import net.finmath.marketdata.model.curves.ForwardCurveInterface;
 import net.finmath.marketdata.products.Swap;
 import net.finmath.marketdata.products.SwapAnnuity;
 import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
+import net.finmath.montecarlo.automaticdifferentiation.RandomVariableDifferentiableInterface;
 import net.finmath.stochastic.RandomVariableInterface;
 import net.finmath.time.RegularSchedule;
 import net.finmath.time.TimeDiscretization;
@@ -90,18 +92,34 @@ public class SwaptionSimple extends AbstractLIBORMonteCarloProduct {
 
 		if(valueUnit == ValueUnit.VOLATILITY || valueUnit == ValueUnit.VOLATILITYLOGNORMAL) {
 			double volatility = AnalyticFormulas.blackScholesOptionImpliedVolatility(parSwaprate, optionMaturity, strikeSwaprate, swapAnnuity, value.getAverage());
+			if(value instanceof RandomVariableDifferentiableInterface) {
+				double vega = swapAnnuity * AnalyticFormulas.blackScholesOptionVega(parSwaprate, 0.0, volatility, optionMaturity, strikeSwaprate);
+				return getImpliedVolatilityDifferentiable(value, volatility, vega);
+			}
 			return model.getRandomVariableForConstant(volatility);
 		}
 		else if(valueUnit == ValueUnit.VOLATILITYNORMAL) {
 			double volatility = AnalyticFormulas.bachelierOptionImpliedVolatility(parSwaprate, optionMaturity, strikeSwaprate, swapAnnuity, value.getAverage());
+			if(value instanceof RandomVariableDifferentiableInterface) {
+				double vega = getBachelierOptionVega(parSwaprate, volatility, optionMaturity, strikeSwaprate, swapAnnuity);
+				return getImpliedVolatilityDifferentiable(value, volatility, vega);
+			}
 			return model.getRandomVariableForConstant(volatility);
 		}
 		else if(valueUnit == ValueUnit.INTEGRATEDVARIANCE  || valueUnit == ValueUnit.INTEGRATEDLOGNORMALVARIANCE) {
 			double volatility = AnalyticFormulas.blackScholesOptionImpliedVolatility(parSwaprate, optionMaturity, strikeSwaprate, swapAnnuity, value.getAverage());
+			if(value instanceof RandomVariableDifferentiableInterface) {
+				double vega = swapAnnuity * AnalyticFormulas.blackScholesOptionVega(parSwaprate, 0.0, volatility, optionMaturity, strikeSwaprate);
+				return getImpliedVolatilityDifferentiable(value, volatility, vega).squared().mult(optionMaturity);
+			}
 			return model.getRandomVariableForConstant(volatility * volatility * optionMaturity);
 		}
 		else if(valueUnit == ValueUnit.INTEGRATEDNORMALVARIANCE) {
 			double volatility = AnalyticFormulas.bachelierOptionImpliedVolatility(parSwaprate, optionMaturity, strikeSwaprate, swapAnnuity, value.getAverage());
+			if(value instanceof RandomVariableDifferentiableInterface) {
+				double vega = getBachelierOptionVega(parSwaprate, volatility, optionMaturity, strikeSwaprate, swapAnnuity);
+				return getImpliedVolatilityDifferentiable(value, volatility, vega).squared().mult(optionMaturity);
+			}
 			return model.getRandomVariableForConstant(volatility * volatility * optionMaturity);
 		}
 		else {
@@ -109,6 +127,52 @@ public class SwaptionSimple extends AbstractLIBORMonteCarloProduct {
 		}
 	}
 
+	/*
+	 * The implied volatility of a differentiable (AAD) value: vol + (E(value) - price) / vega, which is vol, since price = E(value),
+	 * but records the derivative d vol / d value = 1 / vega (implicit function theorem), such that the volatility may be differentiated
+	 * w.r.t. the model parameters (e.g. in the calibration of the covariance model).
+	 */
+	private static RandomVariableInterface getImpliedVolatilityDifferentiable(RandomVariableInterface value, double volatility, double vega) {
+		return value.average().sub(value.getAverage()).div(vega).add(volatility);
+	}
+
+	/*
+	 * The vega of the Bachelier (normal) model: annuity * sqrt(T) * phi((F-K) / (sigma sqrt(T))).
+	 */
+	private static double getBachelierOptionVega(double forward, double volatility, double optionMaturity, double optionStrike, double payoffUnit) {
+		double volatilityOnPaths = volatility * Math.sqrt(optionMaturity);
+		return payoffUnit * Math.sqrt(optionMaturity) * NormalDistribution.density((forward - optionStrike) / volatilityOnPaths);
+	}
+
+	/**
+	 * Returns the analytic approximation of this swaption, see {@link SwaptionAnalyticApproximation}, with a value of the same unit,
+	 * e.g. to pre-calibrate a model analytically to the targets of a Monte-Carlo calibration.
+	 * 
+	 * @return The analytic approximation of this swaption.
+	 */
+	public SwaptionAnalyticApproximation getAnalyticApproximation() {
+		SwaptionAnalyticApproximation.ValueUnit analyticValueUnit = SwaptionAnalyticApproximation.ValueUnit.VALUE;
+		switch(valueUnit) {
+		case VALUE:
+			break;
+		case INTEGRATEDLOGNORMALVARIANCE:
+		case INTEGRATEDVARIANCE:
+			analyticValueUnit = SwaptionAnalyticApproximation.ValueUnit.INTEGRATEDVARIANCE;
+			break;
+		case VOLATILITYLOGNORMAL:
+		case VOLATILITY:
+			analyticValueUnit = SwaptionAnalyticApproximation.ValueUnit.VOLATILITY;
+			break;
+		case VOLATILITYNORMAL:
+			analyticValueUnit = SwaptionAnalyticApproximation.ValueUnit.VOLATILITYNORMAL;
+			break;
+		case INTEGRATEDNORMALVARIANCE:
+			analyticValueUnit = SwaptionAnalyticApproximation.ValueUnit.INTEGRATEDNORMALVARIANCE;
+			break;
+		}
+		return new SwaptionAnalyticApproximation(swaprate, tenor.getAsDoubleArray(), analyticValueUnit);
+	}
+
 	@Override
 	public String toString() {
 		return "SwaptionSimple [tenor=" + tenor + ", swaprate=" + swaprate
@@ -1,10 +1,8 @@
 package initialmargin.isdasimm.products;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -18,7 +16,11 @@ import initialmargin.isdasimm.changedfinmath.products.AbstractLIBORMonteCarloPro
 import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation;
 import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation.SensitivityMode;
 import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation.WeightMode;
+import initialmargin.isdasimm.sensitivity.MemoryBoundedCache;
+import initialmargin.isdasimm.sensitivity.RegressionOperator;
 import initialmargin.isdasimm.sensitivity.SIMMSensitivityCalculation;
+import initialmargin.isdasimm.sensitivity.SensitivityTransformCache;
+import initialmargin.isdasimm.sensitivity.SensitivityCache;
 import net.finmath.exception.CalculationException;
 import net.finmath.montecarlo.RandomVariable;
 import net.finmath.montecarlo.automaticdifferentiation.RandomVariableDifferentiableInterface;
@@ -34,7 +36,7 @@ import net.finmath.time.TimeDiscretizationInterface;
  * @author Mario Viehmann
  *
  */
-public abstract class AbstractSIMMProduct implements SIMMProductInterface {
+public abstract class AbstractSIMMProduct implements SIMMProductInterface, Cloneable {
 	
     // Product classification within ISDA SIMM
     private String   productClass;      // RatesFX, Credit, 
@@ -69,15 +71,36 @@ public abstract class AbstractSIMMProduct implements SIMMProductInterface {
      *  <code> MarginSchemeIRDelta </code> picks the sensitivies for a specified riskClass, curveIndexName and maturityBucket
      *  from this map. This map may - in contrast to the second map "exactDeltaCache" - contain interpolated sensitivities.
      */
-    private HashMap<String/*RiskClass*/,List<HashMap<String/*curveIndexName*/,
-            HashMap<String/*maturityBucket*/,RandomVariableInterface>>>> deltaAtTime = new HashMap<String,List<HashMap<String,HashMap<String,RandomVariableInterface>>>>(); // currently only for InterestRate riskClass
+    private SensitivityCache deltaAtTime = new SensitivityCache(IRMaturityBuckets.length); // currently only for InterestRate riskClass
     
     /**
-     * The cache for the exact delta sensitivities as given by AAD (or analytic). Unlike the map
-     * "deltaAtTime", this map is not cleared if evaluationTime differs from lastEvaluationTime
+     * The cache for the exact delta sensitivities as given by AAD (or analytic), per time and risk class as [curve][vertex]. Unlike the map
+     * "deltaAtTime", this map is not cleared if evaluationTime differs from lastEvaluationTime. It has a memory budget (unbounded by default),
+     * evicted sensitivities are recalculated on request. It is shared with the evaluation contexts of this product (the cache is thread safe).
      */
-    private HashMap<Double /*time*/,List<HashMap<String/*RiskClass*/,List<HashMap<String/*curveIndexName*/,
-            RandomVariableInterface[]>>>>> exactDeltaCache = new HashMap<Double /*time*/,List<HashMap<String/*RiskClass*/,List<HashMap<String/*curveIndexName*/,RandomVariableInterface[]>>>>>();
+    private final MemoryBoundedCache<ExactDeltaKey, RandomVariableInterface[][]> exactDeltaCache = new MemoryBoundedCache<>(MemoryBoundedCache.UNBOUNDED, MemoryBoundedCache::getSizeInBytes);
+    
+    private static final class ExactDeltaKey {
+    	private final double time;
+    	private final SensitivityCache.RiskClass riskClass;
+    	
+    	private ExactDeltaKey(double time, SensitivityCache.RiskClass riskClass){
+    		this.time = time;
+    		this.riskClass = riskClass;
+    	}
+    	
+    	@Override
+    	public boolean equals(Object other){
+    		if(!(other instanceof ExactDeltaKey)) return false;
+    		ExactDeltaKey key = (ExactDeltaKey) other;
+    		return Double.compare(time, key.time) == 0 && riskClass == key.riskClass;
+    	}
+    	
+    	@Override
+    	public int hashCode(){
+    		return 31 * Double.hashCode(time) + riskClass.ordinal();
+    	}
+    }
     
 	//private RandomVariableInterface vegaSensitivity=null; 
     
@@ -183,8 +206,11 @@ public abstract class AbstractSIMMProduct implements SIMMProductInterface {
 
                       if(Arrays.asList(curveIndexNames).contains(curveIndexName) && bucketKey==this.currency){
                          // There exists a sensitivity. Check if the sensitivities (on all maturityBuckets) have already been calculated for given riskClass and riskType)
+                         SensitivityCache.RiskClass riskClassKey = SensitivityCache.getRiskClass(riskClass);
+                         SensitivityCache.CurveIndex curveKey    = SensitivityCache.getCurveIndex(curveIndexName);
+                         int timeIndex = deltaAtTime.getOrCreateTimeIndex(evaluationTime);
 
-                         if(!deltaAtTime.containsKey(riskClass) || !deltaAtTime.get(riskClass).stream().filter(n-> n.containsKey(curveIndexName)).findAny().isPresent()){
+                         if(!deltaAtTime.contains(timeIndex, riskClassKey, curveKey)){
 
                             // The sensitivities need to be calculated for the given riskClass and riskType                     	            		                     
                             maturityBucketSensis = sensitivityCalculationScheme.getDeltaSensitivities(this, riskClass, curveIndexName, evaluationTime, modelCache);
@@ -192,22 +218,9 @@ public abstract class AbstractSIMMProduct implements SIMMProductInterface {
                             if(isPrintSensis && curveIndexName=="Libor6m") {                            	
                             	System.out.println(evaluationTime + "\t" + maturityBucketSensis[3].getAverage() + "\t" + maturityBucketSensis[4].getAverage() + "\t"+ maturityBucketSensis[5].getAverage() + "\t"+ maturityBucketSensis[6].getAverage() + "\t"+ maturityBucketSensis[7].getAverage() + "\t"+ maturityBucketSensis[8].getAverage() + "\t"+maturityBucketSensis[9].getAverage() + "\t"+maturityBucketSensis[10].getAverage() + "\t"+maturityBucketSensis[11].getAverage());
                             }                          
-                            // Create a new element of the curveIndex List for given risk class		         
-                            HashMap<String,HashMap<String,RandomVariableInterface>> curveIndexNameexactDeltaCache = new HashMap<String,HashMap<String,RandomVariableInterface>>();
-                            HashMap<String,RandomVariableInterface> bucketSensitivities = new HashMap<String,RandomVariableInterface>();
-
-                            for(int i=0;i<IRMaturityBuckets.length;i++) bucketSensitivities.put(IRMaturityBuckets[i], maturityBucketSensis[i]);
-                            curveIndexNameexactDeltaCache.put(curveIndexName,bucketSensitivities);
-                            
-                            // Check if list already exist
-                            if(deltaAtTime.containsKey(riskClass)) deltaAtTime.get(riskClass).add(curveIndexNameexactDeltaCache);
-                            else {
-                              List<HashMap<String/*curveIndexName*/,HashMap<String/*maturityBucket*/,RandomVariableInterface>>> list = new ArrayList<HashMap<String/*curveIndexName*/,HashMap<String/*maturityBucket*/,RandomVariableInterface>>>();
-                              list.add(curveIndexNameexactDeltaCache);
-                              deltaAtTime.put(riskClass, list);
-                            }					    					        					          
+                            deltaAtTime.put(timeIndex, riskClassKey, curveKey, maturityBucketSensis);
                          }
-                         result = deltaAtTime.get(riskClass).stream().filter(n -> n.containsKey(curveIndexName)).findFirst().get().get(curveIndexName).get(maturityBucket);			                  
+                         result = deltaAtTime.get(timeIndex, riskClassKey, curveKey, SensitivityCache.getVertexIndexIR(maturityBucket));
                     } else result = new RandomVariable(0.0); // There exists no delta Sensi for risk Class InterestRate
                     break;
                     // @Todo Add sensitivity calculation for the subsequent cases
@@ -269,53 +282,6 @@ public abstract class AbstractSIMMProduct implements SIMMProductInterface {
 	}
  	  
  	 
- 	/** Set the cache of exact delta sensitivities (calculated by AAD or analytically for Swaps). This cache is used in the class 
- 	 *  <code> SIMMSensitivityCalculation <code> to obtain the sensitivities used for melting and interpolation.
- 	 * 
- 	 * @param riskClass The risk class
- 	 * @param curveIndexName The name of the curve (OIS or Libor6m)
- 	 * @param time The time for which the forward sensitivity is calculated
- 	 * @param model The Libor Market model
- 	 * @throws SolverException
- 	 * @throws CloneNotSupportedException
- 	 * @throws CalculationException
- 	 */
-    private void setExactDeltaCache(String riskClass, String curveIndexName, 
- 				                   double time, LIBORModelMonteCarloSimulationInterface model) throws SolverException, CloneNotSupportedException, CalculationException{
- 			
-       // Calculate the sensitivities 
- 	   RandomVariableInterface[] deltaSensis = sensitivityCalculationScheme.getExactDeltaSensitivities(this, curveIndexName, riskClass, time, model);
- 			
- 	   // Create a new element of the curveIndex List for given risk class		         
- 	   HashMap<String,RandomVariableInterface[]> curveIndexNameDeltaCache = new HashMap<String,RandomVariableInterface[]>();
- 	   curveIndexNameDeltaCache.put(curveIndexName,deltaSensis);
- 	        
- 	   // Check if the list of riskClasses in the HashMap already exist
- 	   if(exactDeltaCache.containsKey(new Double(time))){
- 	      if(exactDeltaCache.get(new Double(time)).stream().filter(n-> n.containsKey(riskClass)).findAny().isPresent()){
- 	         exactDeltaCache.get(new Double(time)).stream().filter(n-> n.containsKey(riskClass)).findAny().get().get(riskClass).add(curveIndexNameDeltaCache);
- 	        	  
- 	      	           
- 	      } else { // there is no of risk classes. Set it.
- 	   	     List<HashMap<String/*curveIndexName*/,RandomVariableInterface[]>> curveList = new ArrayList<HashMap<String/*curveIndexName*/,RandomVariableInterface[]>>();
- 	 	     curveList.add(curveIndexNameDeltaCache);
- 	 	     HashMap<String/*RiskClass*/,List<HashMap<String/*curveIndexName*/,RandomVariableInterface[]>>> riskClassMap = new HashMap<String/*RiskClass*/,List<HashMap<String/*curveIndexName*/,RandomVariableInterface[]>>>();
- 	 	     riskClassMap.put(riskClass, curveList);	 	          
- 	 	     exactDeltaCache.get(time).add(riskClassMap);	        	   
- 	      }
- 	           	            
- 	   } else { // no entry at time
- 	      List<HashMap<String/*curveIndexName*/,RandomVariableInterface[]>> curveList = new ArrayList<HashMap<String/*curveIndexName*/,RandomVariableInterface[]>>();
- 	      curveList.add(curveIndexNameDeltaCache);
- 	      HashMap<String/*RiskClass*/,List<HashMap<String/*curveIndexName*/,RandomVariableInterface[]>>> riskClassMap = new HashMap<String/*RiskClass*/,List<HashMap<String/*curveIndexName*/,RandomVariableInterface[]>>>();
- 	      riskClassMap.put(riskClass, curveList);
- 	      List<HashMap<String/*RiskClass*/,List<HashMap<String/*curveIndexName*/,RandomVariableInterface[]>>>> riskClassList = new ArrayList<HashMap<String/*RiskClass*/,List<HashMap<String/*curveIndexName*/,RandomVariableInterface[]>>>>();
- 	      riskClassList.add(riskClassMap);
- 	      exactDeltaCache.put(time, riskClassList);
- 	   }
- 				
- 	}
-    
     /** Calculate the forward derivatives of the product w.r.t. the Libors at a given evaluation time.
      *  These derivatives are not w.r.t. the libors on the Libor period discretization, but w.r.t. the general libors 
      *  L(t+i\Delta_T,t+(i+1)\Delta_T;t). This function is called by the subclasses in the overridden functions
@@ -349,16 +315,19 @@ public abstract class AbstractSIMMProduct implements SIMMProductInterface {
 			valueLiborSensitivities[0] = dVdL.mult(numeraire);
 		}
 		
+		// The derivatives w.r.t. the remaining libors are regressed together
+		RandomVariableInterface[] dVdLTimesNumeraire = new RandomVariableInterface[model.getNumberOfLibors()-lastLiborIndex-timeGridIndicator];
 		for(int liborIndex=lastLiborIndex+timeGridIndicator;liborIndex<model.getNumberOfLibors(); liborIndex++){
 			RandomVariableInterface liborAtTimeIndex = model.getLIBOR(timeIndexAtEval, liborIndex);
 		    RandomVariableInterface dVdL = getDerivative(liborAtTimeIndex);
-		    valueLiborSensitivities[liborIndex-lastLiborIndex] = dVdL.mult(numeraire).getConditionalExpectation(conditionalExpectationOperator);
+		    dVdLTimesNumeraire[liborIndex-lastLiborIndex-timeGridIndicator] = dVdL.mult(numeraire);
 		}
+		RandomVariableInterface[] conditionalExpectations = getConditionalExpectations(dVdLTimesNumeraire);
+		System.arraycopy(conditionalExpectations, 0, valueLiborSensitivities, timeGridIndicator, conditionalExpectations.length);
 
 		if(sensitivityCalculationScheme.isUseTimeGridAdjustment){
 		    // Up to now dVdL is wrt the Libors on the LiborPeriodDiscretization. Adjust it such that we have dVdL wrt Libors starting at evaluationTime 
-		    RandomVariableInterface[][] dLdL = AbstractSIMMSensitivityCalculation.getLiborTimeGridAdjustment(evaluationTime, model);
-		    RandomVariableInterface[] dVdLAdjusted = AbstractSIMMSensitivityCalculation.multiply(valueLiborSensitivities,dLdL);
+		    RandomVariableInterface[] dVdLAdjusted = SensitivityTransformCache.getLiborTimeGridAdjustment(model, evaluationTime).multiplyLeft(valueLiborSensitivities);
 		
 		    return dVdLAdjusted; 
 		} else return valueLiborSensitivities;
@@ -387,8 +356,8 @@ public abstract class AbstractSIMMProduct implements SIMMProductInterface {
        
        if(dVdP == null || futureDiscountTimes == null){ //i.e. need to calculate it with AAD
        
-    	   // Get map with all numeraire adjustments used for this product
-	       Map<Double, RandomVariableInterface> adjustmentMap = getNumeraireAdjustmentMap();
+    	   // Get map with all numeraire adjustments used for this product (a copy, since we only keep the adjustments after evaluationTime)
+	       Map<Double, RandomVariableInterface> adjustmentMap = new HashMap<>(getNumeraireAdjustmentMap());
 	
 	       // Return zero if evaluationTime is later than the last time where an adjustment is available (i.e. the last time where a cash flow occurred)
 	       if(!adjustmentMap.keySet().stream().filter(time -> time > evaluationTime).findAny().isPresent()){
@@ -411,11 +380,15 @@ public abstract class AbstractSIMMProduct implements SIMMProductInterface {
 	       setConditionalExpectationOperator(evaluationTime);
 	       RandomVariableInterface numeraireAtEval  = model.getNumeraire(evaluationTime);
 	
+	       RandomVariableInterface[] dVdAUnconditional = new RandomVariableInterface[dVdP.length];
+	       for(int i=0;i<dVdP.length;i++) dVdAUnconditional[i] = getDerivative(adjustmentMap.get(futureDiscountTimes[i]));
+	       RandomVariableInterface[] dVdAConditional = getConditionalExpectations(dVdAUnconditional);
+	
 	       for(int i=0;i<dVdP.length;i++){
 		
 		      // Calculate dVdA
 		      RandomVariableInterface adjustment = adjustmentMap.get(futureDiscountTimes[i]);
-		      RandomVariableInterface dVdA = getDerivative(adjustment).getConditionalExpectation(conditionalExpectationOperator).mult(numeraireAtEval);
+		      RandomVariableInterface dVdA = dVdAConditional[i].mult(numeraireAtEval);
 		
 		      // Calculate dV(t)/dP(t_cf;t) where t_cf are the cash flow times of this product
 		      RandomVariableInterface bond = model.getForwardBondLibor(futureDiscountTimes[i],evaluationTime);
@@ -446,8 +419,7 @@ public abstract class AbstractSIMMProduct implements SIMMProductInterface {
 	   dVdP = AbstractSIMMSensitivityCalculation.multiply(dVdP,dPdP);
 	
 	   // Calculate dP(t+i\Delta_T;t)/dS_i(t) and dV(t)/dS_i(t)
-	   RandomVariableInterface[][] dPdS = AbstractSIMMSensitivityCalculation.getBondSwapSensitivity(evaluationTime,model);
-	   RandomVariableInterface[]   dVdS = AbstractSIMMSensitivityCalculation.multiply(dVdP,dPdS);
+	   RandomVariableInterface[]   dVdS = SensitivityTransformCache.getBondSwapSensitivity(model, evaluationTime).multiplyLeft(dVdP);
 	
 	   return AbstractSIMMSensitivityCalculation.mapSensitivitiesOnBuckets(dVdS, riskClass, null, model);
    }
@@ -456,20 +428,27 @@ public abstract class AbstractSIMMProduct implements SIMMProductInterface {
  	 *  This is performed always upon change of the evaluation time of initial margin.
  	 */
 	public void clearMaps(){
-		   if(this.deltaAtTime!=null) this.deltaAtTime.clear();
+		   this.deltaAtTime.clear();
 		   //this.vegaSensitivity = null;
 	}
 	
 	@Override
     public RandomVariableInterface[] getExactDeltaFromCache(double time, String riskClass, String curveIndexName) throws SolverException, CloneNotSupportedException, CalculationException{
     
-    	if(!exactDeltaCache.containsKey(time) || !exactDeltaCache.get(time).stream().filter(n->n.containsKey(riskClass)).findAny().isPresent()){
-        	
-    		for(String curveName : curveIndexNames) setExactDeltaCache(riskClass, curveName, time, modelCache);
-        
-    	}
-    	
-    	return exactDeltaCache.get(time).stream().filter(n->n.containsKey(riskClass)).findAny().get().get(riskClass).stream().filter(n->n.containsKey(curveIndexName)).findAny().get().get(curveIndexName);
+    	SensitivityCache.CurveIndex curveKey = SensitivityCache.getCurveIndex(curveIndexName);
+    	// Calculate the sensitivities on first request or after eviction. If two evaluation contexts calculate the same sensitivities, the first result is kept (both are equal).
+    	RandomVariableInterface[][] deltaSensis = exactDeltaCache.get(new ExactDeltaKey(time, SensitivityCache.getRiskClass(riskClass)), key -> {
+    		RandomVariableInterface[][] deltaSensisOfCurves = new RandomVariableInterface[SensitivityCache.numberOfCurves][];
+    		for(int curveIndex=0; curveIndex<curveIndexNames.length; curveIndex++) {
+    			try {
+    				deltaSensisOfCurves[SensitivityCache.getCurveIndex(curveIndexNames[curveIndex]).ordinal()] = sensitivityCalculationScheme.getExactDeltaSensitivities(this, curveIndexNames[curveIndex], riskClass, time, modelCache);
+    			} catch (SolverException | CloneNotSupportedException e) {
+    				throw new CalculationException(e);
+    			}
+    		}
+    		return deltaSensisOfCurves;
+    	});
+    	return deltaSensis[curveKey.ordinal()];
     				
     }
 	
@@ -495,6 +474,72 @@ public abstract class AbstractSIMMProduct implements SIMMProductInterface {
     
     public abstract AbstractLIBORMonteCarloProduct getLIBORMonteCarloProduct();
     
+    /** Returns the conditional expectations of several random variables under the conditional expectation operator of this product.
+     *  A <code> RegressionOperator </code> regresses all random variables in one pass with one factorization of its basis.
+     * 
+     * @param randomVariables The random variables
+     * @return The conditional expectations
+     */
+    protected RandomVariableInterface[] getConditionalExpectations(RandomVariableInterface[] randomVariables){
+    	if(conditionalExpectationOperator instanceof RegressionOperator) return ((RegressionOperator)conditionalExpectationOperator).getConditionalExpectations(randomVariables);
+    	RandomVariableInterface[] conditionalExpectations = new RandomVariableInterface[randomVariables.length];
+    	for(int i=0;i<randomVariables.length;i++) conditionalExpectations[i] = randomVariables[i].getConditionalExpectation(conditionalExpectationOperator);
+    	return conditionalExpectations;
+    }
+    
+    /** Calculate all lazily initialized data of this product which is shared with its evaluation contexts 
+     *  (the gradient, exercise indicators, gradients of delivery products). This function is called once, before the
+     *  evaluation contexts are used concurrently.
+     * 
+     * @throws CalculationException
+     */
+    protected void prepareEvaluationContexts() throws CalculationException{
+    	getGradient();
+    }
+    
+    /** Returns a copy of this product for the calculation of initial margin at one evaluation time, such that several 
+     *  evaluation times can be calculated concurrently. The copy shares the model, the gradient and the cache of exact 
+     *  delta sensitivities with this product but has its own time dependent state (the sensitivities at evaluation time,
+     *  the last evaluation time and the conditional expectation operator). 
+     *  The function <code> prepareEvaluationContexts </code> must have been called before.
+     * 
+     * @return The evaluation context
+     */
+    protected AbstractSIMMProduct getEvaluationContext(){
+    	AbstractSIMMProduct context;
+    	try {
+    		context = (AbstractSIMMProduct)super.clone();
+    	} catch (CloneNotSupportedException e) {
+    		throw new IllegalStateException(e); // AbstractSIMMProduct implements Cloneable
+    	}
+    	context.deltaAtTime = new SensitivityCache(IRMaturityBuckets.length);
+    	context.lastEvaluationTime = -1;
+    	context.conditionalExpectationOperator = null;
+    	context.numeraireAdjustmentMap = new HashMap<>(numeraireAdjustmentMap);
+    	context.simmScheme = null;
+    	return context;
+    }
+    
+    /** Returns true if the sensitivities of this product are not (only) given by the gradient of its own value, i.e. if the
+     *  product switches to the gradient of a delivery product (e.g. the swap of a physically settled swaption after exercise).
+     *  Such products cannot be recorded on the AAD tape of a netting set (see <code> SIMMNettingSet </code>).
+     * 
+     * @return True if the product uses the gradient of a delivery product
+     */
+    protected boolean hasDeliveryProductGradient(){
+    	return false;
+    }
+    
+    /** Returns true if the sensitivities of this product can be recorded on the AAD tape of a netting set (see <code> SIMMNettingSet </code>),
+     *  i.e. if they are given by the gradient of its own value and their conditional expectations use the Libor regression operator
+     *  shared by the products at each evaluation time.
+     * 
+     * @return True if the product can be netted on one tape
+     */
+    protected boolean isNettable(){
+    	return !hasDeliveryProductGradient();
+    }
+    
     public String getProductClass(){
     	return this.productClass;
     }
@@ -514,11 +559,19 @@ public abstract class AbstractSIMMProduct implements SIMMProductInterface {
     	return this.bucketKey;
     }
     
-    public HashMap<Double /*time*/,List<HashMap<String/*RiskClass*/,List<HashMap<String/*curveIndexName*/,
-    RandomVariableInterface[]>>>>> getExactDeltaCache(){
+    public MemoryBoundedCache<?, RandomVariableInterface[][]> getExactDeltaCache(){
     	return this.exactDeltaCache;
     }
     
+    /** Set the memory budget of the cache of exact delta sensitivities. If the budget is exceeded, the least recently used
+     *  sensitivities are evicted and recalculated on request.
+     * 
+     * @param memoryBudget The memory budget in bytes (<code> MemoryBoundedCache.UNBOUNDED </code> for no limit)
+     */
+    public void setExactDeltaCacheMemoryBudget(long memoryBudget){
+    	this.exactDeltaCache.setMemoryBudget(memoryBudget);
+    }
+    
     public void clearDeltaCache(){
     	this.exactDeltaCache.clear();
     }
@@ -2,17 +2,18 @@ package initialmargin.isdasimm.products;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
 import initialmargin.isdasimm.changedfinmath.products.AbstractLIBORMonteCarloProduct;
 import initialmargin.isdasimm.changedfinmath.products.BermudanSwaption;
 import initialmargin.isdasimm.changedfinmath.products.SimpleSwap;
 import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation;
+import initialmargin.isdasimm.sensitivity.RegressionOperator;
+import initialmargin.isdasimm.sensitivity.SensitivityTransformCache;
 import net.finmath.exception.CalculationException;
 import net.finmath.montecarlo.RandomVariable;
-import net.finmath.montecarlo.conditionalexpectation.MonteCarloConditionalExpectationRegression;
 import net.finmath.optimizer.SolverException;
 import net.finmath.stochastic.RandomVariableInterface;
 
@@ -36,7 +37,7 @@ public class SIMMBermudanSwaption extends AbstractSIMMProduct{
 	
 	public enum ExerciseType {Callable, Cancelable};
 	private ExerciseType exerciseType;
-	private Map<String, RandomVariableInterface[]> swapSensitivityMap = new HashMap<>();
+	private Map<String, RandomVariableInterface[]> swapSensitivityMap = new ConcurrentHashMap<>(); // shared by the evaluation contexts
 
 			
 	/** Construct a bermudan swaption as a product for the SIMM. Initial margin and MVA can be calculated for this product.
@@ -107,8 +108,7 @@ public class SIMMBermudanSwaption extends AbstractSIMMProduct{
 			      // Calculate sensis analytically
 				  RandomVariableInterface[] swapSensisAna = SIMMSimpleSwap.getAnalyticSensitivities(evaluationTime, swap.getFixingDates(), swap.getSwapRates(), model.getLiborPeriodDiscretization().getTimeStep(0), swap.getNotional(), model, "Libor");				  
 				  // Get time grid adjustment
-				  RandomVariableInterface[][] dLdL =  AbstractSIMMSensitivityCalculation.getLiborTimeGridAdjustment(evaluationTime, model);	   
-				  RandomVariableInterface[] swapSensis = AbstractSIMMSensitivityCalculation.multiply(swapSensisAna,dLdL);
+				  RandomVariableInterface[] swapSensis = SensitivityTransformCache.getLiborTimeGridAdjustment(model, evaluationTime).multiplyLeft(swapSensisAna);
 			   
 				  if(evaluationTime>=bermudan.getExerciseTimes()[bermudan.getExerciseTimes().length-1]) {
 			    		
@@ -233,20 +233,10 @@ public class SIMMBermudanSwaption extends AbstractSIMMProduct{
 		         double initialMeltingTime = swap.getStartTime();
 		         RandomVariableInterface[] meltedSwapSensis = sensitivityCalculationScheme.getMeltedSensitivities(this, swapSensis, initialMeltingTime, evaluationTime, curveIndexName, "InterestRate");
 		   
-		         // Put swap sensis on exercised paths
-		         for(int i=0;i <meltedBermudanSensis.length;i++) meltedBermudanSensis[i] = meltedBermudanSensis[i].barrier(indicator, meltedSwapSensis[i], meltedBermudanSensis[i]);
-		      
-				 if(evaluationTime>=bermudan.getExerciseTimes()[bermudan.getExerciseTimes().length-1]) {
-			    		
-					  // Set sensis of not exercised paths to zero
-			    	  for(int i=0; i<meltedBermudanSensis.length;i++) meltedBermudanSensis[i] = meltedBermudanSensis[i].barrier(indicator,meltedSwapSensis[i],new RandomVariable(0.0));
-			 			    	    				    	 
-				 } else {
-			    	    			    	
-				      // Set sensitivities on paths: Bermudan sensis if not exercised, swap sensis if exercised.
-				      for(int i=0; i<meltedBermudanSensis.length;i++) meltedBermudanSensis[i] = meltedBermudanSensis[i].barrier(indicator, meltedSwapSensis[i], meltedBermudanSensis[i]);
-			   	
-				 }
+		         // Swap sensis on exercised paths. On the other paths: zero after the last exercise time, Bermudan sensis otherwise (one pass per bucket)
+		         boolean isAfterLastExercise = evaluationTime>=bermudan.getExerciseTimes()[bermudan.getExerciseTimes().length-1];
+		         RandomVariableInterface zero = new RandomVariable(0.0);
+		         for(int i=0;i <meltedBermudanSensis.length;i++) meltedBermudanSensis[i] = meltedBermudanSensis[i].barrier(indicator, meltedSwapSensis[i], isAfterLastExercise ? zero : meltedBermudanSensis[i]);
 				 
 		         break;
 		      
@@ -285,8 +275,7 @@ public class SIMMBermudanSwaption extends AbstractSIMMProduct{
             // Get forward curve sensis
 			RandomVariableInterface[] swapSensisAna = SIMMSimpleSwap.getAnalyticSensitivities(evaluationTime, swap.getFixingDates(), swap.getSwapRates(), modelCache.getLiborPeriodDiscretization().getTimeStep(0), swap.getNotional(), modelCache, "Libor");				  
 			// Get time grid adjustment
-			RandomVariableInterface[][] dLdL =  AbstractSIMMSensitivityCalculation.getLiborTimeGridAdjustment(evaluationTime, modelCache);	   
-			RandomVariableInterface[] dVdL = AbstractSIMMSensitivityCalculation.multiply(swapSensisAna,dLdL);
+			RandomVariableInterface[] dVdL = SensitivityTransformCache.getLiborTimeGridAdjustment(modelCache, evaluationTime).multiplyLeft(swapSensisAna);
             
 			// Calculate dV/dS = dV/dL * dL/dS
 		    RandomVariableInterface[] swapSensisLibor = sensitivityCalculationScheme.getValueSwapSensitivities(evaluationTime, dVdL, modelCache);  
@@ -332,10 +321,16 @@ public class SIMMBermudanSwaption extends AbstractSIMMProduct{
         regressor[0]= modelCache.getLIBOR(evaluationTime, evaluationTime,evaluationTime+modelCache.getLiborPeriodDiscretization().getTimeStep(0));
 		regressor[1]= modelCache.getLIBOR(evaluationTime, evaluationTime, modelCache.getLiborPeriodDiscretization().getTime(modelCache.getNumberOfLibors()-1));
        	ArrayList<RandomVariableInterface> basisFunctions = getRegressionBasisFunctions(regressor, 2, indicator);
-       	this.conditionalExpectationOperator = new MonteCarloConditionalExpectationRegression(basisFunctions.toArray(new RandomVariableInterface[0]));
+       	this.conditionalExpectationOperator = new RegressionOperator(basisFunctions.toArray(new RandomVariableInterface[0]));
 
 	}
 	
+	@Override
+	protected boolean hasDeliveryProductGradient(){
+		// On exercised paths the sensitivities are those of the swap (see getValueLiborSensitivities)
+		return true;
+	}
+	
 	private static ArrayList<RandomVariableInterface> getRegressionBasisFunctions(RandomVariableInterface[] libors, int order, RandomVariableInterface indicator) {
 		ArrayList<RandomVariableInterface> basisFunctions = new ArrayList<RandomVariableInterface>();
 		// Create basis functions - here: 1, S, S^2, S^3, S^4
@@ -0,0 +1,214 @@
+package initialmargin.isdasimm.products;
+
+import java.util.Arrays;
+
+import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
+import initialmargin.isdasimm.changedfinmath.products.AbstractLIBORMonteCarloProduct;
+import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation;
+import initialmargin.isdasimm.sensitivity.RegressionOperator;
+import net.finmath.exception.CalculationException;
+import net.finmath.montecarlo.RandomVariable;
+import net.finmath.optimizer.SolverException;
+import net.finmath.stochastic.RandomVariableInterface;
+
+/** This class describes the products of a netting set as one product for SIMM initial margin (MVA) calculation.
+ *  The value of the netting set is the sum of the values of its products, such that the AAD tape of the whole netting set
+ *  is recorded once and one backward sweep (<code> getGradient </code>) provides the netted derivatives dV/dL and dV/dA
+ *  (w.r.t. the numeraire adjustments). The netted sensitivities are fed directly into the SIMM aggregation, i.e.
+ *  N backward sweeps are replaced by one.
+ *
+ *  The sensitivities of the products on the tape are calculated by AAD and their conditional expectation is estimated with the Libor
+ *  basis functions of the swap. Hence, the netted sensitivities coincide with the sum of the sensitivities of the single products.
+ *  If analytic swap sensitivities are used, the swaps are not recorded on the tape but use their analytic sensitivities.
+ *
+ *  Products whose sensitivities switch to the gradient of a delivery product on exercised paths (physically settled swaptions, Bermudan swaptions)
+ *  or whose conditional expectations after exercise are estimated on the exercised paths (swaptions) are not recorded on the tape.
+ *  Their sensitivities are calculated separately and added to the netted sensitivities.
+ *
+ *  Note that sensitivity melting is applied to the netted sensitivities, i.e. the maturities of the single products are not known to the melting.
+ *
+ */
+public class SIMMNettingSet extends AbstractSIMMProduct{
+
+	private final AbstractSIMMProduct[] products;
+	private final AbstractSIMMProduct[] nettedProducts;    // products recorded on the AAD tape of the netting set
+	private AbstractSIMMProduct[]       separateProducts;  // products using the gradient of a delivery product or analytic sensitivities
+	private final AbstractLIBORMonteCarloProduct nettingSetProduct;
+	private final boolean isUseAnalyticSwapSensitivities;
+
+	/** Construct a netting set of SIMM products whose swaps are recorded on the tape (AAD sensitivities).
+	 *  All products must have the same product class and currency.
+	 *
+	 * @param products The products of the netting set
+	 */
+	public SIMMNettingSet(AbstractSIMMProduct[] products) {
+		this(products, false /*isUseAnalyticSwapSensitivities*/);
+	}
+
+	/** Construct a netting set of SIMM products. All products must have the same product class and currency.
+	 *
+	 * @param products The products of the netting set
+	 * @param isUseAnalyticSwapSensitivities true if the swaps use analytic sensitivities, i.e. are not recorded on the tape
+	 */
+	public SIMMNettingSet(AbstractSIMMProduct[] products, boolean isUseAnalyticSwapSensitivities) {
+		super(products[0].getProductClass(), getRiskClasses(products), getCurveIndexNames(products), products[0].getCurrency(), null /*bucketKey*/,
+				Arrays.stream(products).anyMatch(AbstractSIMMProduct::getHasOptionality));
+
+		for(AbstractSIMMProduct product : products){
+			if(product.getProductClass()!=products[0].getProductClass() || product.getCurrency()!=products[0].getCurrency()) {
+				throw new IllegalArgumentException("All products of a netting set must have the same product class and currency.");
+			}
+		}
+		this.products = products;
+		this.isUseAnalyticSwapSensitivities = isUseAnalyticSwapSensitivities;
+		this.nettedProducts = Arrays.stream(products).filter(this::isOnTape).toArray(AbstractSIMMProduct[]::new);
+		this.separateProducts = Arrays.stream(products).filter(product -> !isOnTape(product)).toArray(AbstractSIMMProduct[]::new);
+		this.nettingSetProduct = new SumOfProducts(Arrays.stream(nettedProducts).map(AbstractSIMMProduct::getLIBORMonteCarloProduct).toArray(AbstractLIBORMonteCarloProduct[]::new));
+	}
+
+	@Override
+	public RandomVariableInterface getSensitivity(String productClass, String riskClass, String maturityBucket, String curveIndexName,
+			                                      String bucketKey, String riskType, double evaluationTime) throws SolverException, CloneNotSupportedException, CalculationException{
+
+		RandomVariableInterface result = null;
+		if(nettedProducts.length > 0) {
+			result = super.getSensitivity(productClass, riskClass, maturityBucket, curveIndexName, bucketKey, riskType, evaluationTime);
+		}
+		for(AbstractSIMMProduct product : separateProducts){
+			RandomVariableInterface sensitivity = product.getSensitivity(productClass, riskClass, maturityBucket, curveIndexName, bucketKey, riskType, evaluationTime);
+			if(sensitivity != null) result = result == null ? sensitivity : result.add(sensitivity);
+		}
+		return result;
+	}
+
+	@Override
+	public AbstractLIBORMonteCarloProduct getLIBORMonteCarloProduct() {
+		return nettingSetProduct;
+	}
+
+	@Override
+	public void setGradient(LIBORModelMonteCarloSimulationInterface model) throws CalculationException{
+		// The products on the tape are not differentiated, but the exercise indicators need the model.
+		for(AbstractSIMMProduct product : nettedProducts){
+			product.modelCache = model;
+			product.setNullExerciseIndicator();
+		}
+		for(AbstractSIMMProduct product : separateProducts){
+			product.setGradient(model);
+			product.setNullExerciseIndicator();
+		}
+		if(nettedProducts.length > 0) super.setGradient(model);
+		else this.modelCache = model;
+	}
+
+	@Override
+	protected void prepareEvaluationContexts() throws CalculationException{
+		if(nettedProducts.length > 0) super.prepareEvaluationContexts();
+		for(AbstractSIMMProduct product : separateProducts) product.prepareEvaluationContexts();
+	}
+
+	@Override
+	protected AbstractSIMMProduct getEvaluationContext(){
+		SIMMNettingSet context = (SIMMNettingSet)super.getEvaluationContext();
+		context.separateProducts = Arrays.stream(separateProducts).map(AbstractSIMMProduct::getEvaluationContext).toArray(AbstractSIMMProduct[]::new);
+		return context;
+	}
+
+	@Override
+	public void clearDeltaCache(){
+		super.clearDeltaCache();
+		for(AbstractSIMMProduct product : separateProducts) product.clearDeltaCache();
+	}
+
+	@Override
+	public void setExactDeltaCacheMemoryBudget(long memoryBudget){
+		super.setExactDeltaCacheMemoryBudget(memoryBudget);
+		for(AbstractSIMMProduct product : separateProducts) product.setExactDeltaCacheMemoryBudget(memoryBudget);
+	}
+
+	@Override
+	public void setSIMMSensitivityCalculation(AbstractSIMMSensitivityCalculation sensitivityCalculation){
+		super.setSIMMSensitivityCalculation(sensitivityCalculation);
+		for(AbstractSIMMProduct product : separateProducts) product.setSIMMSensitivityCalculation(sensitivityCalculation);
+	}
+
+	@Override
+	public RandomVariableInterface[] getValueLiborSensitivities(double evaluationTime, LIBORModelMonteCarloSimulationInterface model) throws CalculationException {
+		return getValueLiborSensitivitiesAAD(evaluationTime, model);
+	}
+
+	@Override
+	public RandomVariableInterface[] getDiscountCurveSensitivities(String riskClass, double evaluationTime, LIBORModelMonteCarloSimulationInterface model) throws CalculationException {
+		return getDiscountCurveSensitivities(evaluationTime, null /*futureDiscountTimes*/, null /*dVdP, i.e. use AAD*/, riskClass, model);
+	}
+
+	@Override
+	public RandomVariableInterface getExerciseIndicator(double time) throws CalculationException {
+		return new RandomVariable(1.0);
+	}
+
+	@Override
+	public double getFinalMaturity() {
+		return getFinalMaturity(products);
+	}
+
+	@Override
+	public double getMeltingResetTime() {
+		return Arrays.stream(nettedProducts.length > 0 ? nettedProducts : products).mapToDouble(AbstractSIMMProduct::getMeltingResetTime).min().getAsDouble();
+	}
+
+	@Override
+	public void setConditionalExpectationOperator(double evaluationTime) throws CalculationException {
+
+		// Create a conditional expectation estimator with some basis functions (predictor variables) for conditional expectation estimation.
+		// The products on the tape have no exercise (or are not yet exercised), hence the same (shared) operator is used as for the swap.
+		this.conditionalExpectationOperator = RegressionOperator.getLiborRegressionOperator(modelCache, evaluationTime, 2);
+	}
+
+	public AbstractSIMMProduct[] getProducts(){
+		return products;
+	}
+
+	public boolean isUseAnalyticSwapSensitivities(){
+		return isUseAnalyticSwapSensitivities;
+	}
+
+	private boolean isOnTape(AbstractSIMMProduct product){
+		return product.isNettable() && !(isUseAnalyticSwapSensitivities && product instanceof SIMMSimpleSwap);
+	}
+
+	private static double getFinalMaturity(AbstractSIMMProduct[] products){
+		return Arrays.stream(products).mapToDouble(AbstractSIMMProduct::getFinalMaturity).max().getAsDouble();
+	}
+
+	private static String[] getRiskClasses(AbstractSIMMProduct[] products){
+		return Arrays.stream(products).flatMap(product -> Arrays.stream(product.getRiskClasses())).distinct().toArray(String[]::new);
+	}
+
+	private static String[] getCurveIndexNames(AbstractSIMMProduct[] products){
+		return Arrays.stream(products).flatMap(product -> Arrays.stream(product.getCurveIndexNames())).distinct().toArray(String[]::new);
+	}
+
+	/**
+	 * The value of the netting set: the sum of the values of its products, recorded on one AAD tape.
+	 */
+	private static class SumOfProducts extends AbstractLIBORMonteCarloProduct {
+
+		private final AbstractLIBORMonteCarloProduct[] products;
+
+		SumOfProducts(AbstractLIBORMonteCarloProduct[] products){
+			super();
+			this.products = products;
+		}
+
+		@Override
+		public RandomVariableInterface getValue(double evaluationTime, LIBORModelMonteCarloSimulationInterface model) throws CalculationException {
+			RandomVariableInterface value = null;
+			for(AbstractLIBORMonteCarloProduct product : products){
+				RandomVariableInterface productValue = product.getValue(evaluationTime, model);
+				value = value == null ? productValue : value.add(productValue);
+			}
+			return value;
+		}
+	}
+}
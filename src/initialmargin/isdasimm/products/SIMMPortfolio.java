@@ -1,12 +1,23 @@
 package initialmargin.isdasimm.products;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.ArrayUtils;
+
 import initialmargin.isdasimm.aggregationscheme.CalculationSchemeInitialMarginISDA;
 import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
 import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation;
 import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation.SensitivityMode;
 import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation.WeightMode;
+import initialmargin.isdasimm.sensitivity.MemoryBoundedCache;
 import initialmargin.isdasimm.sensitivity.SIMMSensitivityCalculation;
 import net.finmath.exception.CalculationException;
 import net.finmath.stochastic.RandomVariableInterface;
+import net.finmath.time.TimeDiscretizationInterface;
 
 /** This class is a wrapper of single <code> AbstractSIMMProduct <code> 's into one portfolio. 
  *  Within the portfolio all products share the same <code> LIBORModelMonteCarloSimulationInterface <code>,
@@ -23,6 +34,9 @@ public class SIMMPortfolio {
     private AbstractSIMMSensitivityCalculation sensitivityCalculationScheme;  // WeightMode and SensitivityMode are set in the class SIMMSensitivityMapping
     private CalculationSchemeInitialMarginISDA SIMMScheme;
     private LIBORModelMonteCarloSimulationInterface model;
+    private SIMMNettingSet nettingSet; // not null if the netted sensitivities are calculated with one AAD sweep for the whole portfolio
+    private boolean isRetainNetSensitivities = false;
+    private long cacheMemoryBudget = MemoryBoundedCache.UNBOUNDED; // of each cache of exact delta sensitivities
     
    
 	/**Construct a <code> SIMMPortfolio </code>. 
@@ -34,8 +48,22 @@ public class SIMMPortfolio {
 	 * @throws CalculationException 
 	 */
 	public SIMMPortfolio(AbstractSIMMProduct[] products, String currency) throws CalculationException{
+		   this(products, currency, false);
+	}	
+	
+	/**Construct a <code> SIMMPortfolio </code>. 
+	 * If <code> isUseNettedGradient </code> is true, the values of all products are summed on one AAD tape and the netted sensitivities
+	 * are obtained from a single backward sweep (see <code> SIMMNettingSet </code>) instead of one sweep per product. 
+	 * 
+	 * @param products The products of which the portfolio consists 
+	 * @param calculationCurrency The calculation currency
+	 * @param isUseNettedGradient True if the netted sensitivities are calculated from one gradient of the portfolio value
+	 * @throws CalculationException 
+	 */
+	public SIMMPortfolio(AbstractSIMMProduct[] products, String currency, boolean isUseNettedGradient) throws CalculationException{
 		   this.products=products;
-		   this.SIMMScheme = new CalculationSchemeInitialMarginISDA(this, currency);
+		   if(isUseNettedGradient) this.nettingSet = new SIMMNettingSet(products);
+		   this.SIMMScheme = isUseNettedGradient ? new CalculationSchemeInitialMarginISDA(nettingSet, currency) : new CalculationSchemeInitialMarginISDA(this, currency);
 		   
 	}	
 	
@@ -43,6 +71,73 @@ public class SIMMPortfolio {
 		return this.products;
 	}
 	
+	public boolean isUseNettedGradient(){
+		return this.nettingSet != null;
+	}
+	
+	
+	/**Keep the netted sensitivities of the portfolio at all evaluation times of <code> getInitialMargin </code> and <code> getInitialMarginProfile </code>
+	 * (see <code> CalculationSchemeInitialMarginISDA.setRetainNetSensitivities </code>). Then adding or removing a product only adds or subtracts
+	 * the sensitivities of this product and the initial margin at the evaluation times calculated so far is the aggregation only.
+	 * The evaluation times of <code> getInitialMarginProfile </code> are then calculated serially, not on the given executor.
+	 * 
+	 * @param isRetainNetSensitivities True if the netted sensitivities of all evaluation times are kept
+	 */
+	public void setRetainNetSensitivities(boolean isRetainNetSensitivities){
+		this.isRetainNetSensitivities = isRetainNetSensitivities;
+		this.SIMMScheme.setRetainNetSensitivities(isRetainNetSensitivities);
+	}
+	
+	
+	/**Set the memory budget of the caches of the portfolio, i.e. of the cache of exact delta sensitivities of each product. If a cache exceeds
+	 * its budget, the least recently used entries are evicted and recalculated on request, i.e. large runs become slower instead of running out of memory.
+	 * The cache of the sensitivity transformations (dL/dL, dL/dS, dP/dS) is shared by all portfolios on the model, its budget is a setting of
+	 * the model (see <code> SensitivityTransformCache.setMemoryBudget </code>).
+	 * 
+	 * @param cacheMemoryBudget The memory budget of each cache in bytes (<code> MemoryBoundedCache.UNBOUNDED </code> for no limit)
+	 */
+	public void setCacheMemoryBudget(long cacheMemoryBudget){
+		this.cacheMemoryBudget = cacheMemoryBudget;
+		for(AbstractSIMMProduct product : getSchemeProducts()) product.setExactDeltaCacheMemoryBudget(cacheMemoryBudget);
+	}
+	
+	
+	/**Add a product to the portfolio (e.g. for the marginal initial margin of a new trade). The gradients and the sensitivities
+	 * of the other products are reused, only the sensitivities of the new product are calculated. With netted gradient the
+	 * sensitivities of the new product are calculated from its own gradient and added to those of the netting set; the product
+	 * is recorded on the tape of the netting set when the netting set is rebuilt (e.g. for a new model).
+	 * 
+	 * @param product The product to add
+	 * @throws CalculationException
+	 */
+	public void addProduct(AbstractSIMMProduct product) throws CalculationException{
+		if(model != null) setModel(product);
+		if(cacheMemoryBudget != MemoryBoundedCache.UNBOUNDED) product.setExactDeltaCacheMemoryBudget(cacheMemoryBudget);
+		this.products = ArrayUtils.add(this.products, product);
+		this.SIMMScheme.addProduct(product);
+	}
+	
+	
+	/**Remove a product from the portfolio. The gradients and the sensitivities of the other products are reused. With netted gradient
+	 * a product which is recorded on the tape of the netting set cannot be subtracted: the netting set of the remaining products is
+	 * rebuilt (one backward sweep) and the netted sensitivities are calculated anew.
+	 * 
+	 * @param product The product to remove
+	 * @throws CalculationException
+	 */
+	public void removeProduct(AbstractSIMMProduct product) throws CalculationException{
+		int productIndex = ArrayUtils.indexOf(this.products, product);
+		if(productIndex < 0) throw new IllegalArgumentException("The product is not part of the portfolio.");
+		if(nettingSet != null && ArrayUtils.contains(nettingSet.getProducts(), product)) {
+			if(products.length == 1) throw new IllegalArgumentException("The last product of a portfolio with netted gradient cannot be removed.");
+			this.products = ArrayUtils.remove(this.products, productIndex);
+			setNettingSet(SIMMScheme.getCalculationCCY());
+			return;
+		}
+		this.SIMMScheme.removeProduct(product);
+		this.products = ArrayUtils.remove(this.products, productIndex);
+	}
+	
 	
 	/**Calculate the forward initial margin of the portfolio.
 	 * 
@@ -88,15 +183,206 @@ public class SIMMPortfolio {
              										boolean isConsiderOISSensis) throws CalculationException{
 		
 		
-	 	if(this.model==null || !model.equals(this.model) || (sensitivityCalculationScheme!=null && (sensitivityMode !=sensitivityCalculationScheme.getSensitivityMode() || liborWeightMode !=sensitivityCalculationScheme.getWeightMode()))) { // At inception (t=0) or if the model is reset            
+		setCalculationScheme(model, calculationCCY, sensitivityMode, liborWeightMode, interpolationStep, isUseTimeGridAdjustment, isUseAnalyticSwapSensis, isConsiderOISSensis);
+		
+		return SIMMScheme.getValue(evaluationTime);
+	}
+	
+	
+	/**Calculate the forward initial margin of the portfolio at all times of a time discretization. The evaluation times are
+	 * calculated concurrently on the given executor, unless the netted sensitivities are retained (see <code> setRetainNetSensitivities </code>).
+	 * 
+	 * @param evaluationTimes The forward initial margin times
+	 * @param model The Libor market model
+	 * @param calculationCCY The currency in which the IM is calculated
+	 * @param sensitivityMode The method to be used for sensitivity calculation (Exact, LinearMelting or Interpolation)
+	 * @param liborWeightMode The method to be used for converting the libor sensitivities to swap sensitivities (Constant or Stochastic)
+	 * @param interpolationStep The step size of the exact sensitivities used for interpolation
+	 * @param executor The executor on which the evaluation times are calculated, not used if the netted sensitivities are retained
+	 * @return The forward initial margin for each evaluation time
+	 * @throws CalculationException
+	 */
+	public RandomVariableInterface[] getInitialMarginProfile(TimeDiscretizationInterface evaluationTimes, 
+			 												 LIBORModelMonteCarloSimulationInterface model, 
+			 												 String calculationCCY,
+			 												 SensitivityMode sensitivityMode,
+			 												 WeightMode liborWeightMode,
+			 												 double interpolationStep,
+			 												 ExecutorService executor) throws CalculationException{
+		return getInitialMarginProfile(evaluationTimes, model, calculationCCY, sensitivityMode, liborWeightMode, interpolationStep, true, false, true, executor);
+	}
+	
+	
+	/**Calculate the forward initial margin of the portfolio at all times of a time discretization. The evaluation times are
+	 * calculated concurrently on the given executor. Each evaluation time uses its own evaluation context of the products
+	 * (see <code> AbstractSIMMProduct.getEvaluationContext </code>), which shares the gradient and the exact delta sensitivities with 
+	 * the products of this portfolio. Hence, the initial margin at a given time does not depend on the number of threads.
+	 * If the netted sensitivities are retained (see <code> setRetainNetSensitivities </code>), the executor is not used: the evaluation
+	 * times are calculated one after another in the calling thread on the SIMM scheme of the portfolio, such that <code> addProduct </code>
+	 * and <code> removeProduct </code> update the netted sensitivities of the whole profile.
+	 * 
+	 * @param evaluationTimes The forward initial margin times
+	 * @param model The Libor market model
+	 * @param calculationCCY The currency in which the IM is calculated
+	 * @param sensitivityMode The method to be used for sensitivity calculation (Exact, LinearMelting or Interpolation)
+	 * @param liborWeightMode The method to be used for converting the libor sensitivities to swap sensitivities (Constant or Stochastic)
+	 * @param interpolationStep The step size of the exact sensitivities used for interpolation
+	 * @param isUseTimeGridAdjustment true if we do the time grid adjustment dL/dL
+	 * @param isUseAnalyticSwapSensis true if for swaps we use analytic sensitivities
+	 * @param isConsiderOISSensis true if we consider OIS sensitivities for the SIMM calculation
+	 * @param executor The executor on which the evaluation times are calculated, not used if the netted sensitivities are retained
+	 * @return The forward initial margin for each evaluation time
+	 * @throws CalculationException
+	 */
+	public RandomVariableInterface[] getInitialMarginProfile(TimeDiscretizationInterface evaluationTimes, 
+															 LIBORModelMonteCarloSimulationInterface model, 
+															 String calculationCCY,
+															 SensitivityMode sensitivityMode,
+															 WeightMode liborWeightMode,
+															 double interpolationStep,
+															 boolean isUseTimeGridAdjustment,
+															 boolean isUseAnalyticSwapSensis,
+															 boolean isConsiderOISSensis,
+															 ExecutorService executor) throws CalculationException{
+		
+		setCalculationScheme(model, calculationCCY, sensitivityMode, liborWeightMode, interpolationStep, isUseTimeGridAdjustment, isUseAnalyticSwapSensis, isConsiderOISSensis);
+		
+		if(isRetainNetSensitivities) {
+			RandomVariableInterface[] initialMargin = new RandomVariableInterface[evaluationTimes.getNumberOfTimes()];
+			for(int timeIndex=0; timeIndex<initialMargin.length; timeIndex++) initialMargin[timeIndex] = SIMMScheme.getValue(evaluationTimes.getTime(timeIndex));
+			return initialMargin;
+		}
+		
+		// Calculate the data shared by the evaluation contexts before the concurrent evaluation
+		for(AbstractSIMMProduct product : getSchemeProducts()) product.prepareEvaluationContexts();
+		
+		List<Future<RandomVariableInterface>> initialMarginFutures = new ArrayList<Future<RandomVariableInterface>>();
+		for(int timeIndex=0; timeIndex<evaluationTimes.getNumberOfTimes(); timeIndex++){
+			double evaluationTime = evaluationTimes.getTime(timeIndex);
+			initialMarginFutures.add(executor.submit(() -> getInitialMarginInContext(evaluationTime, calculationCCY)));
+		}
+		
+		RandomVariableInterface[] initialMargin = new RandomVariableInterface[initialMarginFutures.size()];
+		try {
+			for(int timeIndex=0; timeIndex<initialMargin.length; timeIndex++) initialMargin[timeIndex] = initialMarginFutures.get(timeIndex).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CalculationException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof CalculationException) throw (CalculationException)e.getCause();
+			throw new CalculationException(e.getCause());
+		} finally {
+			for(Future<RandomVariableInterface> future : initialMarginFutures) future.cancel(true); // no effect on completed calculations
+		}
+		
+		return initialMargin;
+	}
+	
+	
+	/**Allocate the forward initial margin of the portfolio to its products (Euler allocation, see 
+	 * <code> CalculationSchemeInitialMarginISDA.getEulerAllocation </code>). At each evaluation time the derivatives of the initial margin
+	 * w.r.t. the netted sensitivities are calculated once and contracted with the sensitivities of each product, path by path.
+	 * The allocations of the products sum to the initial margin of the portfolio. The allocation requires the sensitivities of each
+	 * product, hence it is not supported for a portfolio with netted gradient, which calculates the netted sensitivities only.
+	 * 
+	 * @param evaluationTimes The forward initial margin times
+	 * @param model The Libor market model
+	 * @param calculationCCY The currency in which the IM is calculated
+	 * @param sensitivityMode The method to be used for sensitivity calculation (Exact, LinearMelting or Interpolation)
+	 * @param liborWeightMode The method to be used for converting the libor sensitivities to swap sensitivities (Constant or Stochastic)
+	 * @param interpolationStep The step size of the exact sensitivities used for interpolation
+	 * @return The allocation <code> [product][time] </code>
+	 * @throws CalculationException
+	 * @throws UnsupportedOperationException Thrown if the portfolio uses the netted gradient
+	 */
+	public RandomVariableInterface[][] getInitialMarginAllocation(TimeDiscretizationInterface evaluationTimes, 
+																  LIBORModelMonteCarloSimulationInterface model, 
+																  String calculationCCY,
+																  SensitivityMode sensitivityMode,
+																  WeightMode liborWeightMode,
+																  double interpolationStep) throws CalculationException{
+		
+		if(nettingSet != null) throw new UnsupportedOperationException("The initial margin allocation requires the sensitivities of each product, not supported with netted gradient.");
+		
+		setCalculationScheme(model, calculationCCY, sensitivityMode, liborWeightMode, interpolationStep, true, false, true);
+		
+		RandomVariableInterface[][] allocation = new RandomVariableInterface[products.length][evaluationTimes.getNumberOfTimes()];
+		for(int timeIndex=0; timeIndex<evaluationTimes.getNumberOfTimes(); timeIndex++){
+			RandomVariableInterface[] allocationAtTime = SIMMScheme.getEulerAllocation(evaluationTimes.getTime(timeIndex), products);
+			for(int productIndex=0; productIndex<products.length; productIndex++) allocation[productIndex][timeIndex] = allocationAtTime[productIndex];
+		}
+		return allocation;
+	}
+	
+	
+	/**Calculate the forward initial margin at one evaluation time on new evaluation contexts of the products.
+	 * 
+	 * @param evaluationTime The forward initial margin time
+	 * @param calculationCCY The currency in which the IM is calculated
+	 * @return The forward initial margin
+	 * @throws CalculationException
+	 */
+	private RandomVariableInterface getInitialMarginInContext(double evaluationTime, String calculationCCY) throws CalculationException{
+		
+		AbstractSIMMProduct[] productContexts = Arrays.stream(getSchemeProducts()).map(AbstractSIMMProduct::getEvaluationContext).toArray(AbstractSIMMProduct[]::new);
+		return new SIMMPortfolio(productContexts, calculationCCY).SIMMScheme.getValue(evaluationTime);
+	}
+	
+	
+	/**Set the sensitivity calculation scheme and the SIMM scheme at inception or if the model or the sensitivity mode has changed.
+	 */
+	private void setCalculationScheme(LIBORModelMonteCarloSimulationInterface model, 
+			                          String calculationCCY,
+			                          SensitivityMode sensitivityMode,
+			                          WeightMode liborWeightMode,
+			                          double interpolationStep,         										
+			                          boolean isUseTimeGridAdjustment,
+			                          boolean isUseAnalyticSwapSensis,
+			                          boolean isConsiderOISSensis) throws CalculationException{
+		
+	 	if(this.model==null || !model.equals(this.model) || (sensitivityCalculationScheme!=null && (sensitivityMode !=sensitivityCalculationScheme.getSensitivityMode() || liborWeightMode !=sensitivityCalculationScheme.getWeightMode() || isUseAnalyticSwapSensis != sensitivityCalculationScheme.isUseAnalyticSwapSensitivities))) { // At inception (t=0) or if the model is reset            
 	 	    
 	 	    this.sensitivityCalculationScheme = new SIMMSensitivityCalculation(sensitivityMode, liborWeightMode, interpolationStep, model, isUseTimeGridAdjustment, isUseAnalyticSwapSensis, isConsiderOISSensis);
+	 	    this.model = model;
+	 	    if(nettingSet != null) {
+	 	    	setNettingSet(calculationCCY); // records the products added since the netting set was built on the tape
+	 	    	return;
+	 	    }
 	 	    setModel(model); // Set the (new) model. The method setModel also clears the sensitivity maps and the gradient.
 	 	    this.SIMMScheme= new CalculationSchemeInitialMarginISDA(this,calculationCCY);
+	 	    this.SIMMScheme.setRetainNetSensitivities(isRetainNetSensitivities);
 	 	}  
-		
-		
-		return SIMMScheme.getValue(evaluationTime);
+	}
+	
+	
+	/**Build the netting set of all products of the portfolio and a new SIMM scheme on it. If the model is set, the gradient
+	 * of the netting set is calculated (one backward sweep). With analytic swap sensitivities the swaps are not recorded on the tape.
+	 * 
+	 * @param calculationCCY The currency in which the IM is calculated
+	 * @throws CalculationException
+	 */
+	private void setNettingSet(String calculationCCY) throws CalculationException{
+		boolean isUseAnalyticSwapSensis = sensitivityCalculationScheme != null && sensitivityCalculationScheme.isUseAnalyticSwapSensitivities;
+		if(nettingSet.getProducts().length != products.length || !Arrays.asList(nettingSet.getProducts()).containsAll(Arrays.asList(products))
+				|| nettingSet.isUseAnalyticSwapSensitivities() != isUseAnalyticSwapSensis) {
+			this.nettingSet = new SIMMNettingSet(products, isUseAnalyticSwapSensis);
+			if(cacheMemoryBudget != MemoryBoundedCache.UNBOUNDED) nettingSet.setExactDeltaCacheMemoryBudget(cacheMemoryBudget);
+		}
+		if(model != null) setModel(model);
+		this.SIMMScheme = new CalculationSchemeInitialMarginISDA(nettingSet, calculationCCY);
+		this.SIMMScheme.setRetainNetSensitivities(isRetainNetSensitivities);
+	}
+	
+	
+	/**Returns the products of the SIMM scheme of the portfolio: the products or, with netted gradient, the netting set and the products
+	 * added since the netting set was built.
+	 * 
+	 * @return The products of the SIMM scheme
+	 */
+	private AbstractSIMMProduct[] getSchemeProducts(){
+		if(nettingSet == null) return products;
+		AbstractSIMMProduct[] addedProducts = Arrays.stream(products).filter(product -> !ArrayUtils.contains(nettingSet.getProducts(), product)).toArray(AbstractSIMMProduct[]::new);
+		return ArrayUtils.add(addedProducts, 0, nettingSet);
 	}
 	
 	
@@ -108,14 +394,29 @@ public class SIMMPortfolio {
 	private void setModel(LIBORModelMonteCarloSimulationInterface model) throws CalculationException{
 		
 		this.model = model;
-		for(AbstractSIMMProduct product : products){
-			// Within the method setModel sensitivity maps are cleared and the gradient of each product is set to null.
-			product.setGradient(model);
-			product.clearDeltaCache();
- 	        product.setNullExerciseIndicator();
-			product.setSIMMSensitivityCalculation(sensitivityCalculationScheme);
+		if(nettingSet != null){
+			// One gradient for the whole portfolio
+			nettingSet.setGradient(model);
+			nettingSet.clearDeltaCache();
+			nettingSet.setSIMMSensitivityCalculation(sensitivityCalculationScheme);
+			return;
 		}
+		for(AbstractSIMMProduct product : products) setModel(product);
 		
 	}
+	
+	
+	/**Set the model and the sensitivity calculation of the portfolio for one product.
+	 * 
+	 * @param product The product
+	 * @throws CalculationException 
+	 */
+	private void setModel(AbstractSIMMProduct product) throws CalculationException{
+		// Within the method setModel sensitivity maps are cleared and the gradient of each product is set to null.
+		product.setGradient(model);
+		product.clearDeltaCache();
+        product.setNullExerciseIndicator();
+		product.setSIMMSensitivityCalculation(sensitivityCalculationScheme);
+	}
 
 } 
\ No newline at end of file
@@ -1,15 +1,15 @@
 package initialmargin.isdasimm.products;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 
 import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
 import initialmargin.isdasimm.changedfinmath.products.AbstractLIBORMonteCarloProduct;
 import initialmargin.isdasimm.changedfinmath.products.SimpleSwap;
 import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation;
+import initialmargin.isdasimm.sensitivity.RegressionOperator;
+import initialmargin.isdasimm.sensitivity.SensitivityTransformCache;
 import net.finmath.exception.CalculationException;
 import net.finmath.montecarlo.RandomVariable;
-import net.finmath.montecarlo.conditionalexpectation.MonteCarloConditionalExpectationRegression;
 import net.finmath.stochastic.RandomVariableInterface;
 import net.finmath.time.TimeDiscretization;
 
@@ -158,8 +158,7 @@ public class SIMMSimpleSwap extends AbstractSIMMProduct{
 		if(sensitivityCalculationScheme.isUseAnalyticSwapSensitivities) {
 			
 			RandomVariableInterface[] swapSensis = getAnalyticSensitivities(evaluationTime, model.getLiborPeriodDiscretization().getTimeStep(0), model, "Libor");
-			RandomVariableInterface[][] dLdL =  AbstractSIMMSensitivityCalculation.getLiborTimeGridAdjustment(evaluationTime, model);
-			return AbstractSIMMSensitivityCalculation.multiply(swapSensis,dLdL);
+			return SensitivityTransformCache.getLiborTimeGridAdjustment(model, evaluationTime).multiplyLeft(swapSensis);
 			
 		}
 		
@@ -214,27 +213,11 @@ public class SIMMSimpleSwap extends AbstractSIMMProduct{
 	@Override
 	public void setConditionalExpectationOperator(double evaluationTime) throws CalculationException{
 		
-		// Create a conditional expectation estimator with some basis functions (predictor variables) for conditional expectation estimation.
-        RandomVariableInterface[] regressor = new RandomVariableInterface[2];
-        regressor[0]= modelCache.getLIBOR(evaluationTime, evaluationTime,evaluationTime+modelCache.getLiborPeriodDiscretization().getTimeStep(0));
-		regressor[1]= modelCache.getLIBOR(evaluationTime, evaluationTime, modelCache.getLiborPeriodDiscretization().getTime(modelCache.getNumberOfLibors()-1));
-       	ArrayList<RandomVariableInterface> basisFunctions = getRegressionBasisFunctions(regressor, 2);
-       	this.conditionalExpectationOperator = new MonteCarloConditionalExpectationRegression(basisFunctions.toArray(new RandomVariableInterface[0]));
+		// The conditional expectation estimator on the basis functions 1, L, L^2 of the Libors L(t,t+\Delta_T;t) and L(t,T_n;t).
+		// It is shared by all products on the same model at this evaluation time.
+       	this.conditionalExpectationOperator = RegressionOperator.getLiborRegressionOperator(modelCache, evaluationTime, 2);
 
 	}
-	
-	private static ArrayList<RandomVariableInterface> getRegressionBasisFunctions(RandomVariableInterface[] libors, int order) {
-		ArrayList<RandomVariableInterface> basisFunctions = new ArrayList<RandomVariableInterface>();
-		// Create basis functions - here: 1, S, S^2, S^3, S^4
-		
-		for(int liborIndex=0; liborIndex<libors.length;liborIndex++){
-		  for(int powerOfRegressionMonomial=0; powerOfRegressionMonomial<=order; powerOfRegressionMonomial++) {
-			  basisFunctions.add(libors[liborIndex].pow(powerOfRegressionMonomial));
-		  }
-		  
-		}
-		return basisFunctions;
-	}
 
 
 }
@@ -2,17 +2,18 @@ package initialmargin.isdasimm.products;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 
 import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
 import initialmargin.isdasimm.changedfinmath.products.AbstractLIBORMonteCarloProduct;
 import initialmargin.isdasimm.changedfinmath.products.SimpleSwap;
 import initialmargin.isdasimm.changedfinmath.products.Swaption;
-import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation;
+import initialmargin.isdasimm.sensitivity.RegressionOperator;
+import initialmargin.isdasimm.sensitivity.SensitivityTransformCache;
 import net.finmath.exception.CalculationException;
 import net.finmath.montecarlo.RandomVariable;
 import net.finmath.montecarlo.automaticdifferentiation.RandomVariableDifferentiableInterface;
-import net.finmath.montecarlo.conditionalexpectation.MonteCarloConditionalExpectationRegression;
 import net.finmath.stochastic.RandomVariableInterface;
 
 /** This class describes a Swaption for SIMM initial margin (MVA) calculation.
@@ -33,6 +34,13 @@ public class SIMMSwaption extends AbstractSIMMProduct{
 	private Swaption swaption;
 	public enum DeliveryType {Physical, CashSettled};
 	private DeliveryType deliveryType;
+	
+	// Gradient of the swap after exercise (delivery product) and the numeraire adjustments used in its valuation
+	private Map<Long, RandomVariableInterface> swapGradient;
+	private Map<Double, RandomVariableInterface> swapNumeraireAdjustmentMap;
+	// Gradient of the swaption and its numeraire adjustments, restored for evaluation times before exercise
+	private Map<Long, RandomVariableInterface> swaptionGradient;
+	private Map<Double, RandomVariableInterface> swaptionNumeraireAdjustmentMap;
 			
 		
 	/** Construct a swaption as a product for the SIMM. Initial margin and MVA can be calculated for this product.
@@ -92,6 +100,8 @@ public class SIMMSwaption extends AbstractSIMMProduct{
 	@Override
 	public RandomVariableInterface[] getValueLiborSensitivities(double evaluationTime, LIBORModelMonteCarloSimulationInterface model) throws CalculationException{
 		
+		if(deliveryType == DeliveryType.Physical && evaluationTime < swaption.getExerciseDate()) setSwaptionGradient();
+		
 		if(deliveryType == DeliveryType.Physical && evaluationTime >= swaption.getExerciseDate()){
 			
 			if(sensitivityCalculationScheme.isUseAnalyticSwapSensitivities){
@@ -101,9 +111,7 @@ public class SIMMSwaption extends AbstractSIMMProduct{
 			   RandomVariableInterface indicator = getExerciseIndicator(evaluationTime);
 			   swapSensis = Arrays.stream(swapSensis).map(n->n.mult(indicator)).toArray(RandomVariableInterface[]::new);
 			   // Get time grid adjustment
-			   RandomVariableInterface[][] dLdL =  AbstractSIMMSensitivityCalculation.getLiborTimeGridAdjustment(evaluationTime, model);
-			   
-			   return AbstractSIMMSensitivityCalculation.multiply(swapSensis,dLdL);
+			   return SensitivityTransformCache.getLiborTimeGridAdjustment(model, evaluationTime).multiplyLeft(swapSensis);
 			
 			} else setSwapGradient();
 					
@@ -121,6 +129,8 @@ public class SIMMSwaption extends AbstractSIMMProduct{
 		double[] futureDiscountTimes = null; // the times of the times after evaluation time at which the numeraire has been used for this product
 		RandomVariableInterface[] dVdP = null;
 		
+		if(deliveryType == DeliveryType.Physical && evaluationTime < swaption.getExerciseDate()) setSwaptionGradient();
+		
 		if(deliveryType == DeliveryType.Physical && evaluationTime >= swaption.getExerciseDate()){
 			
 			// Return zero if evaluationTime is later than the last time where an adjustment is available (i.e. the last time where a cash flow occurred)
@@ -162,19 +172,52 @@ public class SIMMSwaption extends AbstractSIMMProduct{
 	@Override
 	public void setConditionalExpectationOperator(double evaluationTime) throws CalculationException{
 		
+		// Before exercise the basis is that of the swap, hence the operator is shared with the other products at this evaluation time
+		if(evaluationTime<swaption.getExerciseDate()) {
+			this.conditionalExpectationOperator = RegressionOperator.getLiborRegressionOperator(modelCache, evaluationTime, 2);
+			return;
+		}
+		
 		// Swaption: Set paths on which we have not exercised to zero
-		RandomVariableInterface indicator = new RandomVariable(1.0);
-		if(evaluationTime>=swaption.getExerciseDate()) indicator = getExerciseIndicator(evaluationTime); // 1 if exercised on this path		   
+		RandomVariableInterface indicator = getExerciseIndicator(evaluationTime); // 1 if exercised on this path		   
 		
 		// Create a conditional expectation estimator with some basis functions (predictor variables) for conditional expectation estimation.
         RandomVariableInterface[] regressor = new RandomVariableInterface[2];
         regressor[0]= modelCache.getLIBOR(evaluationTime, evaluationTime,evaluationTime+modelCache.getLiborPeriodDiscretization().getTimeStep(0));
 		regressor[1]= modelCache.getLIBOR(evaluationTime, evaluationTime, modelCache.getLiborPeriodDiscretization().getTime(modelCache.getNumberOfLibors()-1));
        	ArrayList<RandomVariableInterface> basisFunctions = getRegressionBasisFunctions(regressor, 2, indicator);
-       	this.conditionalExpectationOperator = new MonteCarloConditionalExpectationRegression(basisFunctions.toArray(new RandomVariableInterface[0]));
+       	this.conditionalExpectationOperator = new RegressionOperator(basisFunctions.toArray(new RandomVariableInterface[0]));
 
 	}
 	
+	@Override
+	public void setGradient(LIBORModelMonteCarloSimulationInterface model) throws CalculationException{
+		this.swapGradient = null;
+		this.swapNumeraireAdjustmentMap = null;
+		this.swaptionGradient = null;
+		this.swaptionNumeraireAdjustmentMap = null;
+		super.setGradient(model);
+	}
+	
+	@Override
+	protected void prepareEvaluationContexts() throws CalculationException{
+		super.prepareEvaluationContexts();
+		getExerciseIndicator(swaption.getExerciseDate());
+		if(deliveryType == DeliveryType.Physical && !sensitivityCalculationScheme.isUseAnalyticSwapSensitivities) getSwapGradient();
+	}
+	
+	@Override
+	protected boolean hasDeliveryProductGradient(){
+		// After exercise the sensitivities are those of the delivered swap (see setSwapGradient)
+		return deliveryType == DeliveryType.Physical;
+	}
+	
+	@Override
+	protected boolean isNettable(){
+		// After exercise the conditional expectations are estimated on the exercised paths (see setConditionalExpectationOperator)
+		return false;
+	}
+	
 	private static ArrayList<RandomVariableInterface> getRegressionBasisFunctions(RandomVariableInterface[] libors, int order, RandomVariableInterface indicator) {
 		ArrayList<RandomVariableInterface> basisFunctions = new ArrayList<RandomVariableInterface>();
 		// Create basis functions - here: 1, S, S^2, S^3, S^4
@@ -195,20 +238,47 @@ public class SIMMSwaption extends AbstractSIMMProduct{
 	 */
     private void setSwapGradient() throws CalculationException{
 		 if(!super.isGradientOfDeliveryProduct){
-		    // Clear cache of numeraire adjustments of the model to capture the numeraire adjustments from the product valuation
-		    modelCache.clearNumeraireAdjustmentCache();
-		    // Calculate the product value as of time 0.
-		    RandomVariableInterface indicator = getExerciseIndicator(swaption.getExerciseDate());
-		    RandomVariableDifferentiableInterface productValue = (RandomVariableDifferentiableInterface) swap.getValue(0.0, modelCache).mult(indicator);
+		    // Keep the gradient of the swaption for evaluation times before exercise
+		    this.swaptionGradient = super.getGradient();
+		    this.swaptionNumeraireAdjustmentMap = new HashMap<>(super.numeraireAdjustmentMap);
 		    // Get the map of numeraire adjustments used specifically for this product
-	        super.numeraireAdjustmentMap.putAll(modelCache.getNumeraireAdjustmentMap());
-		    // Calculate the gradient
-		    Map<Long, RandomVariableInterface> gradientOfProduct = productValue.getGradient(); 
+	        super.numeraireAdjustmentMap.putAll(getSwapNumeraireAdjustmentMap());
 		    // Set the gradient
-		    super.gradient = gradientOfProduct;
+		    super.gradient = getSwapGradient();
 		    super.isGradientOfDeliveryProduct = true;
 		 }	 
 	}
+    
+    /** Set the gradient of the swaption, if the gradient of the swap has been set for an evaluation time after exercise.
+     * 
+     * @throws CalculationException
+     */
+    private void setSwaptionGradient() throws CalculationException{
+    	if(super.isGradientOfDeliveryProduct){
+    		super.numeraireAdjustmentMap = new HashMap<>(swaptionNumeraireAdjustmentMap);
+    		super.gradient = swaptionGradient;
+    		super.isGradientOfDeliveryProduct = false;
+    	}
+    }
+    
+    private Map<Long, RandomVariableInterface> getSwapGradient() throws CalculationException{
+    	if(swapGradient==null){
+    		// Clear cache of numeraire adjustments of the model to capture the numeraire adjustments from the product valuation
+    		modelCache.clearNumeraireAdjustmentCache();
+    		// Calculate the product value as of time 0.
+    		RandomVariableInterface indicator = getExerciseIndicator(swaption.getExerciseDate());
+    		RandomVariableDifferentiableInterface productValue = (RandomVariableDifferentiableInterface) swap.getValue(0.0, modelCache).mult(indicator);
+    		this.swapNumeraireAdjustmentMap = new HashMap<>(modelCache.getNumeraireAdjustmentMap());
+    		// Calculate the gradient
+    		this.swapGradient = productValue.getGradient(); 
+    	}
+    	return swapGradient;
+    }
+    
+    private Map<Double, RandomVariableInterface> getSwapNumeraireAdjustmentMap() throws CalculationException{
+    	getSwapGradient();
+    	return swapNumeraireAdjustmentMap;
+    }
 
     
 	public DeliveryType getDeliveryType(){
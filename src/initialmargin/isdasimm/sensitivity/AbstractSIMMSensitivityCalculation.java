@@ -1,12 +1,7 @@
 package initialmargin.isdasimm.sensitivity;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.stream.IntStream;
 
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.SingularValueDecomposition;
 
 import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
 import initialmargin.isdasimm.products.AbstractSIMMProduct;
@@ -42,7 +37,6 @@ public abstract class AbstractSIMMSensitivityCalculation {
 	}
     
     private WeightMode liborWeightMethod;  
-    private HashMap<Double /*time*/, RandomVariableInterface[][]> riskWeightMap = new HashMap<>();
     
     
     /**
@@ -198,27 +192,18 @@ public abstract class AbstractSIMMSensitivityCalculation {
 		// the following line will be removed later. Just checking how timeGridAdjustment affects the result
 		int timeGridIndicator = 0; if(!isUseTimeGridAdjustment && !onLiborPeriodDiscretization(evaluationTime,model)) timeGridIndicator = 1;
 		
-		RandomVariableInterface[] delta = new RandomVariableInterface[dVdL.length-timeGridIndicator];
-		RandomVariableInterface[][] dLdS;
+		RandomVariableMatrix dLdS;
 		if(this.liborWeightMethod == WeightMode.Stochastic){
-			   dLdS = getLiborSwapSensitivities(evaluationTime, model);
-		} else dLdS = getLiborSwapSensitivities(0.0, model);
-		// Calculate Sensitivities wrt Swaps
-		// return multiply(dVdL,dLdS);
-		for(int swapIndex = 0; swapIndex<dVdL.length-timeGridIndicator; swapIndex++){
-			RandomVariableInterface dVdS  =new RandomVariable(0.0);
-			RandomVariableInterface factor;
-			for(int liborIndex=0;liborIndex<dVdL.length-timeGridIndicator;liborIndex++){
-			    factor = dLdS[liborIndex][swapIndex]==null ?  new RandomVariable(0.0) : dLdS[liborIndex][swapIndex];
-			    dVdS = dVdS.addProduct(dVdL[liborIndex+timeGridIndicator], factor);
-		    }
-			delta[swapIndex]=dVdS;
-		}
-		return delta;
+			   dLdS = SensitivityTransformCache.getLiborSwapSensitivities(model, evaluationTime);
+		} else dLdS = SensitivityTransformCache.getLiborSwapSensitivities(model, 0.0);
+		// Calculate Sensitivities wrt Swaps: dV/dS = dV/dL * dL/dS, only the (bidiagonal) non-zero entries of dL/dS are used
+		int numberOfSwaps = dVdL.length-timeGridIndicator;
+		return dLdS.multiplyLeft(dVdL, timeGridIndicator, numberOfSwaps, numberOfSwaps);
 	 }
 	
 	
 	/**Performs rebucketing of sensitivities to the SIMM buckets by linear interpolation (Source: Master Thesis of Jamal Issa, modified).
+	 * The weights depend on the risk factor days only and are kept as sparse matrix per model (see <code> SensitivityTransformCache.getRebucketingMatrix </code>).
 	 * 
 	 * @param sensitivities The sensitivities wrt swap rates dV/dS
 	 * @param riskClass The risk class
@@ -226,58 +211,72 @@ public abstract class AbstractSIMMSensitivityCalculation {
 	 * @return The sensitivities on the SIMM maturity buckets
 	 */
 	public static RandomVariableInterface[] mapSensitivitiesOnBuckets(RandomVariableInterface[] sensitivities, String riskClass, int[] riskFactorDays, LIBORModelMonteCarloSimulationInterface model){
-		//rebucketing to SIMM structure(buckets: 2w, 1m, 3m, 6m, 1y, 2y, 3y, 5y, 10y, 15y, 20y, 30y)	
-		int[] riskFactorsSIMM = riskClass=="InterestRate" ? new int[] {14, 30, 90, 180, 365, 730, 1095, 1825, 3650, 5475, 7300, 10950} : /*Credit*/ new int[] {365, 730, 1095, 1825, 3650};	
-		RandomVariableInterface[] deltaSIMM = new RandomVariableInterface[riskFactorsSIMM.length];
-		for(int i = 0;i<deltaSIMM.length;i++) deltaSIMM[i] = new RandomVariable(0.0);
-		
 		if(riskFactorDays==null) riskFactorDays = riskFactorDaysLibor(sensitivities, model);
-		int counter = 0;
-		for(int simmFactor =0; simmFactor<riskFactorsSIMM.length;simmFactor++){
-			for(int i = counter; i<sensitivities.length; i++){
-				
-							    
-					if(riskFactorDays[i] < riskFactorsSIMM[0]){
-						deltaSIMM[0] = deltaSIMM[0].add(sensitivities[i]);
-						counter++;
-					}
-					else{
-						if(riskFactorDays[i] >= riskFactorsSIMM[riskFactorsSIMM.length-1]){
-							deltaSIMM[deltaSIMM.length-1] = deltaSIMM[deltaSIMM.length-1].add(sensitivities[i]);
-						}
-					
-						else{
-							if(riskFactorDays[i] >= riskFactorsSIMM[simmFactor] && riskFactorDays[i] < riskFactorsSIMM[simmFactor+1]){
-					
-							deltaSIMM[simmFactor] = deltaSIMM[simmFactor].addProduct(sensitivities[i],((double)(riskFactorsSIMM[simmFactor+1] - riskFactorDays[i]) / (riskFactorsSIMM[simmFactor+1]-riskFactorsSIMM[simmFactor])));
-							deltaSIMM[simmFactor+1] = deltaSIMM[simmFactor+1].addProduct(sensitivities[i],((double)(riskFactorDays[i]-riskFactorsSIMM[simmFactor]) / (riskFactorsSIMM[simmFactor+1]-riskFactorsSIMM[simmFactor])));
-							counter++;
-							}							
-							else{
-							break;
-							}
-						}
-					
-					}
+		return SensitivityTransformCache.getRebucketingMatrix(model, riskClass, riskFactorDays).multiplyLeft(sensitivities);
+	}
+	
+	
+	/**Returns the weights of the rebucketing of sensitivities on the given (ascending) risk factor days to the SIMM buckets
+	 * (buckets: 2w, 1m, 3m, 6m, 1y, 2y, 3y, 5y, 10y, 15y, 20y, 30y for InterestRate, 1y, 2y, 3y, 5y, 10y for Credit).
+	 * A sensitivity between two buckets is split linearly on both, sensitivities before the first or after the last bucket are
+	 * assigned to the first or last bucket. The matrix (risk factors x buckets) has at most two non-zero entries per row.
+	 * Not cached, the products use <code> SensitivityTransformCache.getRebucketingMatrix </code>.
+	 * 
+	 * @param riskClass The risk class
+	 * @param riskFactorDays The number of days corresponding to the sensitivities
+	 * @return The rebucketing matrix
+	 */
+	public static RandomVariableMatrix getRebucketingMatrix(String riskClass, int[] riskFactorDays){
+		double[][] weights = getRebucketingWeights(getSIMMRiskFactorDays(riskClass), riskFactorDays);
+		RandomVariableInterface[][] matrix = new RandomVariableInterface[weights.length][];
+		for(int i=0; i<weights.length; i++) matrix[i] = Arrays.stream(weights[i]).mapToObj(RandomVariable::new).toArray(RandomVariableInterface[]::new);
+		return new RandomVariableMatrix(matrix);
+	}
+	
+	
+	/**Returns the number of days of the SIMM buckets of a risk class: 2w, 1m, 3m, 6m, 1y, 2y, 3y, 5y, 10y, 15y, 20y, 30y for 
+	 * InterestRate and 1y, 2y, 3y, 5y, 10y for Credit.
+	 * 
+	 * @param riskClass The risk class
+	 * @return The days of the SIMM buckets
+	 */
+	protected static int[] getSIMMRiskFactorDays(String riskClass){
+		return "InterestRate".equals(riskClass) ? new int[] {14, 30, 90, 180, 365, 730, 1095, 1825, 3650, 5475, 7300, 10950} : /*Credit*/ new int[] {365, 730, 1095, 1825, 3650};
+	}
+	
+	
+	/**Returns the (dense) weights of the rebucketing of sensitivities on the risk factor days to the SIMM buckets, see <code> getRebucketingMatrix </code>.
+	 * 
+	 * @param riskFactorsSIMM The days of the SIMM buckets
+	 * @param riskFactorDays The number of days corresponding to the sensitivities
+	 * @return The weights (risk factors x buckets)
+	 */
+	protected static double[][] getRebucketingWeights(int[] riskFactorsSIMM, int[] riskFactorDays){
+		int lastBucket = riskFactorsSIMM.length-1;
+		double[][] weights = new double[riskFactorDays.length][riskFactorsSIMM.length];
+		for(int i=0; i<riskFactorDays.length; i++){
+			if(riskFactorDays[i] < riskFactorsSIMM[0]) weights[i][0] = 1.0;
+			else if(riskFactorDays[i] >= riskFactorsSIMM[lastBucket]) weights[i][lastBucket] = 1.0;
+			else {
+				int simmFactor = 0;
+				while(riskFactorDays[i] >= riskFactorsSIMM[simmFactor+1]) simmFactor++;
+				weights[i][simmFactor]   = (double)(riskFactorsSIMM[simmFactor+1] - riskFactorDays[i]) / (riskFactorsSIMM[simmFactor+1]-riskFactorsSIMM[simmFactor]);
+				weights[i][simmFactor+1] = (double)(riskFactorDays[i]-riskFactorsSIMM[simmFactor]) / (riskFactorsSIMM[simmFactor+1]-riskFactorsSIMM[simmFactor]);
 			}
-			
 		}
-		
-	return deltaSIMM;		
-			
+		return weights;
 	}
 	
 	
 	/**Calculates dL/dS: The risk weights used to apply Libor Sensitivities to SIMM: dV/dS = dV/dL * dL/dS.
+	 * Not cached, the products use <code> SensitivityTransformCache.getLiborSwapSensitivities </code>.
 	 * 
 	 * @param evaluationTime The time at which the sensitivity is calculated
 	 * @param model The Libor market model
 	 * @return The matrix dL/dS 
 	 * @throws CalculationException
 	 */
-	private RandomVariableInterface[][] getLiborSwapSensitivities(double evaluationTime, LIBORModelMonteCarloSimulationInterface model) throws CalculationException{
-
-		if(riskWeightMap.containsKey(evaluationTime)) return riskWeightMap.get(evaluationTime);
+	public static RandomVariableInterface[][] getLiborSwapSensitivities(double evaluationTime, LIBORModelMonteCarloSimulationInterface model) throws CalculationException{
 		
 		RandomVariableInterface[][] dLdS=null;
 		double liborPeriodLength = model.getLiborPeriodDiscretization().getTimeStep(0);
@@ -300,12 +299,12 @@ public abstract class AbstractSIMMSensitivityCalculation {
 		  
 		}
 		
-		riskWeightMap.put(evaluationTime, dLdS);		
 		return dLdS;
 	}
 	
 	
 	/**Calculates dPdS in a single curve context. Used for calculating sensis with respect to discount curve.
+	 * Not cached, the products use <code> SensitivityTransformCache.getBondSwapSensitivity </code>.
 	 * 
 	 * @param evaluationTime The time at which the initial margin is calculated
 	 * @param model The Libor market model
@@ -336,7 +335,7 @@ public abstract class AbstractSIMMSensitivityCalculation {
 	
 	
 	/**Since dV/dL is wrt the incorrect Libor times this function provides a matrix dL/dL to be multiplied with dV/dL in order to 
-	 * have the correct libor times starting at evaluationTime. 
+	 * have the correct libor times starting at evaluationTime. Not cached, the products use <code> SensitivityTransformCache.getLiborTimeGridAdjustment </code>.
 	 * @param evaluationTime The time at which the adjustment should be calculated.
 	 * @param model The Libor market model
 	 * @return Pseudo Inverse of derivative band matrix; Identity matrix in case of evaluationTime on LiborPeriodDiscretization; 
@@ -422,10 +421,6 @@ public abstract class AbstractSIMMSensitivityCalculation {
 		return this.liborWeightMethod;
 	}
 	
-	public void clearRiskWeights(){
-		if(riskWeightMap!=null) riskWeightMap.clear();
-	}
-	
 	public void setWeightMode(WeightMode mode){
 		this.liborWeightMethod = mode;
 	}
@@ -437,41 +432,16 @@ public abstract class AbstractSIMMSensitivityCalculation {
     // Some auxiliary functions
 	//----------------------------------------------------------------------------------------------------------------------------------
 
-		/**Calculate Pseudo Inverse of matrix of type RandomVariableInterface[][]
+		/**Calculate Pseudo Inverse of matrix of type RandomVariableInterface[][]. The structure of the matrix (triangular, banded) is 
+		 * exploited path by path, see {@link PathwiseMatrixSolver}. General matrices are inverted by SVD.
 		 * 
 		 * @param matrix The matrix for which the pseudo inverse is calculated
 		 * @return The pseudo inverse of the matrix
 		 */
 	    public static RandomVariableInterface[][] getPseudoInverse(RandomVariableInterface[][] matrix, int numberOfPaths){
 
-	    	double[][][] inv = new double[matrix[0].length][matrix.length][numberOfPaths];
-			double[][] matrixOnPath = new double[matrix.length][matrix[0].length];
 			long start = System.currentTimeMillis();
-			IntStream.range(0, numberOfPaths).parallel().forEach(pathIndex -> {
-				for(int i=0;i<matrixOnPath.length;i++){
-					for(int j=0;j<matrixOnPath[0].length;j++){
-						matrixOnPath[i][j]=matrix[i][j]==null ? 0 : matrix[i][j].get(pathIndex);
-					}
-				}
-				// Get Pseudo Inverse 
-				RealMatrix pseudoInverse = new SingularValueDecomposition(MatrixUtils.createRealMatrix(matrixOnPath)).getSolver().getInverse();
-				for(int j=0;j<pseudoInverse.getColumnDimension();j++){
-					double[] columnValues = pseudoInverse.getColumn(j);
-					for(int i=0;i<pseudoInverse.getRowDimension();i++){
-						inv[i][j][pathIndex]= columnValues[i];
-					}
-				}
-
-			});
-			
-			
-			// Wrap to RandomVariableInterface[][]
-			RandomVariableInterface[][] pseudoInverse = new RandomVariableInterface[matrix[0].length][matrix.length];
-			for(int i=0;i<pseudoInverse.length; i++){
-				for(int j=0;j<pseudoInverse[0].length; j++){
-					pseudoInverse[i][j] = new RandomVariable(0.0 /*should be evaluationTime*/,inv[i][j]);
-				}
-			}
+			RandomVariableInterface[][] pseudoInverse = PathwiseMatrixSolver.getPseudoInverse(matrix, numberOfPaths);
 			long end= System.currentTimeMillis();
 			secondsPseudoInverse = secondsPseudoInverse + ((end-start)/1000.0);
 		//	System.out.println("Total time of pseudo inverse: " + secondsPseudoInverse); 
@@ -479,34 +449,24 @@ public abstract class AbstractSIMMSensitivityCalculation {
 	    }
 	   
 
+		/**Multiply two matrices of random variables. Structural zeros (null or deterministic zero) are skipped, see {@link RandomVariableMatrix}.
+		 * 
+		 * @param A The left matrix
+		 * @param B The right matrix
+		 * @return The product AB
+		 */
 		public static RandomVariableInterface[][] multiply(RandomVariableInterface[][] A,RandomVariableInterface[][] B){
-			RandomVariableInterface[][] AB = new RandomVariableInterface[A.length][B.length];
-			RandomVariableInterface ABproduct;
-			for(int i=0;i<A.length;i++){
-				for(int j=0; j<B.length; j++){
-					AB[i][j] = new RandomVariable(0.0);
-					for(int k=0;k<B.length;k++) {
-						if(A[i][k]==null || B[k][j]==null) {ABproduct = new RandomVariable(0.0);}
-						else {ABproduct = A[i][k].mult(B[k][j]);}
-						AB[i][j]=AB[i][j].add(ABproduct);
-					}
-				}
-			}
-			return AB;
+			return new RandomVariableMatrix(B).multiplyLeft(A);
 		}
 		
+		/**Multiply a (row) vector with a matrix of random variables. Structural zeros (null or deterministic zero) are skipped, see {@link RandomVariableMatrix}.
+		 * 
+		 * @param A The vector
+		 * @param B The matrix
+		 * @return The product AB
+		 */
 		public static RandomVariableInterface[] multiply(RandomVariableInterface[] A,RandomVariableInterface[][] B){
-			RandomVariableInterface[] AB = new RandomVariableInterface[B[0].length];
-			RandomVariableInterface ABproduct;
-			for(int i=0;i<B[0].length;i++){
-					AB[i] = new RandomVariable(0.0);
-					for(int k=0;k<A.length;k++) {
-						if(A[k]==null || B[k][i]==null) {ABproduct = new RandomVariable(0.0);}
-						else {ABproduct = A[k].mult(B[k][i]);}
-						AB[i]=AB[i].add(ABproduct);
-					}
-			}
-			return AB;
+			return new RandomVariableMatrix(B).multiplyLeft(A);
 		}
 		
 }
@@ -0,0 +1,207 @@
+package initialmargin.isdasimm.sensitivity;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+import net.finmath.exception.CalculationException;
+import net.finmath.stochastic.RandomVariableInterface;
+
+/** A cache with a memory budget which evicts the least recently used entries. The size of an entry is estimated by a size function,
+ *  for random variables by the number of paths x 8 bytes (<code> getSizeInBytes </code>). If an entry is not in the cache (never
+ *  calculated or evicted) it is recalculated by the calculation given to <code> get </code>, hence a run with a small budget is slower
+ *  but does not fail. The most recently added entry is never evicted, even if it exceeds the budget alone.
+ *
+ *  The numbers of hits, misses and evictions are counted. All methods are synchronized on the cache, a calculation on a miss is
+ *  performed outside the lock. If two threads calculate the same entry, the first result is kept.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+public class MemoryBoundedCache<K, V> {
+
+	/** The calculation of a value of the cache on a miss.
+	 *
+	 * @param <K> The type of the keys
+	 * @param <V> The type of the values
+	 */
+	@FunctionalInterface
+	public interface Calculation<K, V> {
+		V calculate(K key) throws CalculationException;
+	}
+
+	/** The memory budget of a cache without limit. */
+	public static final long UNBOUNDED = Long.MAX_VALUE;
+
+	private static final long BYTES_PER_VALUE = 8;
+
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true /*accessOrder*/);
+	private final ToLongFunction<V> sizeEstimator;
+
+	private long memoryBudget;
+	private long sizeInBytes;
+
+	private long numberOfHits;
+	private long numberOfMisses;
+	private long numberOfEvictions;
+
+	private static final class Entry<V> {
+		private final V    value;
+		private final long sizeInBytes;
+
+		private Entry(V value, long sizeInBytes){
+			this.value = value;
+			this.sizeInBytes = sizeInBytes;
+		}
+	}
+
+	/** Create an empty cache.
+	 *
+	 * @param memoryBudget The maximal (estimated) size of all entries in bytes
+	 * @param sizeEstimator The estimated size of a value in bytes
+	 */
+	public MemoryBoundedCache(long memoryBudget, ToLongFunction<V> sizeEstimator){
+		if(memoryBudget <= 0) throw new IllegalArgumentException("The memory budget must be positive.");
+		this.memoryBudget = memoryBudget;
+		this.sizeEstimator = sizeEstimator;
+	}
+
+	/** Returns the value of a key or null if the key is not in the cache. The access counts as hit or miss.
+	 *
+	 * @param key The key
+	 * @return The value or null
+	 */
+	public synchronized V get(K key){
+		Entry<V> entry = entries.get(key);
+		if(entry == null) {
+			numberOfMisses++;
+			return null;
+		}
+		numberOfHits++;
+		return entry.value;
+	}
+
+	/** Returns the value of a key. If the key is not in the cache, the value is calculated and added to the cache.
+	 *
+	 * @param key The key
+	 * @param calculation The calculation of the value on a miss
+	 * @return The value
+	 * @throws CalculationException Thrown if the calculation fails
+	 */
+	public V get(K key, Calculation<K, V> calculation) throws CalculationException{
+		V value = get(key);
+		if(value != null) return value;
+		return putIfAbsent(key, calculation.calculate(key));
+	}
+
+	/** Add a value to the cache unless the key is already in the cache. Least recently used entries are evicted until the cache is within its budget.
+	 *
+	 * @param key The key
+	 * @param value The value
+	 * @return The value in the cache (the given value or the value added before)
+	 */
+	public synchronized V putIfAbsent(K key, V value){
+		Entry<V> entry = entries.get(key);
+		if(entry != null) return entry.value;
+
+		entry = new Entry<V>(value, sizeEstimator.applyAsLong(value));
+		entries.put(key, entry);
+		sizeInBytes += entry.sizeInBytes;
+		evict();
+		return value;
+	}
+
+	public synchronized boolean containsKey(K key){
+		return entries.containsKey(key);
+	}
+
+	public synchronized void remove(K key){
+		Entry<V> entry = entries.remove(key);
+		if(entry != null) sizeInBytes -= entry.sizeInBytes;
+	}
+
+	/** Remove all entries. The counters are kept.
+	 */
+	public synchronized void clear(){
+		entries.clear();
+		sizeInBytes = 0;
+	}
+
+	/** Set the memory budget. Entries are evicted if the cache exceeds the new budget.
+	 *
+	 * @param memoryBudget The maximal (estimated) size of all entries in bytes
+	 */
+	public synchronized void setMemoryBudget(long memoryBudget){
+		if(memoryBudget <= 0) throw new IllegalArgumentException("The memory budget must be positive.");
+		this.memoryBudget = memoryBudget;
+		evict();
+	}
+
+	public synchronized long getMemoryBudget(){
+		return memoryBudget;
+	}
+
+	public synchronized long getSizeInBytes(){
+		return sizeInBytes;
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	public synchronized long getNumberOfHits(){
+		return numberOfHits;
+	}
+
+	public synchronized long getNumberOfMisses(){
+		return numberOfMisses;
+	}
+
+	public synchronized long getNumberOfEvictions(){
+		return numberOfEvictions;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "MemoryBoundedCache [entries=" + entries.size() + ", sizeInBytes=" + sizeInBytes + ", memoryBudget=" + memoryBudget
+				+ ", hits=" + numberOfHits + ", misses=" + numberOfMisses + ", evictions=" + numberOfEvictions + "]";
+	}
+
+	/*
+	 * Evict least recently used entries (in access order) until the cache is within its budget, keeping the most recent entry.
+	 */
+	private void evict(){
+		Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+		while(sizeInBytes > memoryBudget && entries.size() > 1) {
+			Entry<V> eldest = iterator.next().getValue();
+			iterator.remove();
+			sizeInBytes -= eldest.sizeInBytes;
+			numberOfEvictions++;
+		}
+	}
+
+	/** Returns the estimated size of random variables: 8 bytes per path of a stochastic random variable, 8 bytes for a deterministic one.
+	 *
+	 * @param randomVariables The random variables (may contain null)
+	 * @return The estimated size in bytes
+	 */
+	public static long getSizeInBytes(RandomVariableInterface[] randomVariables){
+		long size = 0;
+		for(RandomVariableInterface randomVariable : randomVariables) {
+			if(randomVariable != null) size += BYTES_PER_VALUE * (randomVariable.isDeterministic() ? 1 : randomVariable.size());
+		}
+		return size;
+	}
+
+	/** Returns the estimated size of a matrix of random variables (see <code> getSizeInBytes(RandomVariableInterface[]) </code>).
+	 *
+	 * @param randomVariables The random variables (rows may be null)
+	 * @return The estimated size in bytes
+	 */
+	public static long getSizeInBytes(RandomVariableInterface[][] randomVariables){
+		long size = 0;
+		for(RandomVariableInterface[] row : randomVariables) if(row != null) size += getSizeInBytes(row);
+		return size;
+	}
+}
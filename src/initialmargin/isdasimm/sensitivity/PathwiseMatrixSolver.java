@@ -0,0 +1,434 @@
+package initialmargin.isdasimm.sensitivity;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
+
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+
+import net.finmath.montecarlo.RandomVariable;
+import net.finmath.stochastic.RandomVariableInterface;
+
+/** This class calculates the (pseudo) inverse of a matrix of random variables path by path. Unlike a plain SVD on every path,
+ *  the structure of the matrix (triangular or banded) is detected once from its structural zeros and the inverse is then
+ *  obtained by forward/backward substitution, by a banded LU decomposition with partial pivoting (square band matrices) or
+ *  by a banded QR decomposition (non-square band matrices), which only touch the entries within the (widened) band.
+ *  The matrices <code> dS/dP </code> (lower triangular) and the time grid adjustment <code> dL/dL </code> (a n x (n+1) band matrix)
+ *  are of this type. General matrices fall back to the SVD.
+ *
+ *  The solver works on the realizations of the random variables, i.e. on <code> double[] </code>, and uses one workspace per thread.
+ *
+ */
+public final class PathwiseMatrixSolver {
+
+	public enum MatrixStructure{
+		Diagonal,
+		LowerTriangular,
+		UpperTriangular,
+		Banded,       // square matrix with lower bandwidth + upper bandwidth + 1 < n
+		BandedWide,   // n x m matrix with n < m (full row rank), pseudo inverse from the QR decomposition of A^T
+		BandedTall,   // n x m matrix with n > m (full column rank), pseudo inverse from the QR decomposition of A
+		General
+	}
+
+	// Relative size of a pivot below which the structured solver gives up on a path and uses the SVD instead.
+	private static final double PIVOT_TOLERANCE = 1E-13;
+
+	private static final ThreadLocal<Workspace> workspace = ThreadLocal.withInitial(Workspace::new);
+
+	private PathwiseMatrixSolver(){
+	}
+
+	/** Calculate the (pseudo) inverse of a matrix of random variables path by path, exploiting its structure.
+	 *  Null entries and deterministic zeros are considered as structural zeros.
+	 *
+	 * @param matrix The n x m matrix to be inverted
+	 * @param numberOfPaths The number of paths of the random variables
+	 * @return The m x n (pseudo) inverse of the matrix
+	 */
+	public static RandomVariableInterface[][] getPseudoInverse(RandomVariableInterface[][] matrix, int numberOfPaths){
+
+		final int rows    = matrix.length;
+		final int columns = matrix[0].length;
+
+		// Extract the realizations once: stochastic entries as arrays, deterministic entries as constants.
+		final double[][][] realizations = new double[rows][columns][];
+		final double[][]   constants    = new double[rows][columns];
+		final boolean[][]  isNonZero    = new boolean[rows][columns];
+		int lowerBandwidth = 0;
+		int upperBandwidth = 0;
+		for(int i=0;i<rows;i++){
+			for(int j=0;j<columns;j++){
+				RandomVariableInterface entry = matrix[i][j];
+				if(entry == null) continue;
+				if(entry.isDeterministic()) {
+					constants[i][j] = entry.get(0);
+					if(constants[i][j] == 0.0) continue;
+				}
+				else realizations[i][j] = entry.getRealizations();
+				isNonZero[i][j] = true;
+				lowerBandwidth = Math.max(lowerBandwidth, i-j);
+				upperBandwidth = Math.max(upperBandwidth, j-i);
+			}
+		}
+
+		final MatrixStructure structure = getStructure(rows, columns, lowerBandwidth, upperBandwidth);
+		final int kl = lowerBandwidth;
+		final int ku = upperBandwidth;
+
+		final double[][][] inverse = new double[columns][rows][];
+		final boolean[][] isInverseNonZero = getInverseNonZeroPattern(structure, rows, columns);
+		for(int i=0;i<columns;i++) for(int j=0;j<rows;j++) if(isInverseNonZero[i][j]) inverse[i][j] = new double[numberOfPaths];
+
+		// Paths on which the structured solver fails (singular pivot) are collected and inverted by SVD afterwards
+		final Queue<Integer> singularPaths = new ConcurrentLinkedQueue<Integer>();
+
+		IntStream.range(0, numberOfPaths).parallel().forEach(pathIndex -> {
+			Workspace work = workspace.get();
+			double[][] a = work.getMatrix(rows, columns);
+			fillMatrixOnPath(a, rows, columns, isNonZero, realizations, constants, pathIndex);
+
+			boolean isSolved;
+			switch(structure){
+			case Diagonal:
+			case LowerTriangular:
+				isSolved = invertLowerTriangular(a, rows, kl, work, inverse, pathIndex);
+				break;
+			case UpperTriangular:
+				isSolved = invertUpperTriangular(a, rows, ku, work, inverse, pathIndex);
+				break;
+			case Banded:
+				isSolved = invertBanded(a, rows, kl, ku, work, inverse, pathIndex);
+				break;
+			case BandedWide:
+				isSolved = pseudoInvertBandedWide(a, rows, columns, kl, ku, work, inverse, pathIndex);
+				break;
+			case BandedTall:
+				isSolved = pseudoInvertBandedTall(a, rows, columns, kl, ku, work, inverse, pathIndex);
+				break;
+			default:
+				isSolved = false;
+			}
+
+			if(!isSolved) singularPaths.add(pathIndex);
+		});
+
+		if(!singularPaths.isEmpty()){
+			// The pseudo inverse of a singular matrix does not share the structure of the matrix
+			for(int i=0;i<columns;i++) for(int j=0;j<rows;j++) if(inverse[i][j] == null) inverse[i][j] = new double[numberOfPaths];
+			singularPaths.parallelStream().forEach(pathIndex -> {
+				double[][] a = workspace.get().getMatrix(rows, columns);
+				fillMatrixOnPath(a, rows, columns, isNonZero, realizations, constants, pathIndex);
+				pseudoInvertSVD(a, rows, columns, inverse, pathIndex);
+			});
+		}
+
+		// Wrap to RandomVariableInterface[][]
+		RandomVariableInterface[][] pseudoInverse = new RandomVariableInterface[columns][rows];
+		for(int i=0;i<columns; i++){
+			for(int j=0;j<rows; j++){
+				pseudoInverse[i][j] = inverse[i][j] == null ? new RandomVariable(0.0) : new RandomVariable(0.0 /*should be evaluationTime*/,inverse[i][j]);
+			}
+		}
+		return pseudoInverse;
+	}
+
+	private static void fillMatrixOnPath(double[][] a, int rows, int columns, boolean[][] isNonZero, double[][][] realizations, double[][] constants, int pathIndex){
+		for(int i=0;i<rows;i++){
+			double[] row = a[i];
+			for(int j=0;j<columns;j++){
+				row[j] = !isNonZero[i][j] ? 0.0 : realizations[i][j] != null ? realizations[i][j][pathIndex] : constants[i][j];
+			}
+		}
+	}
+
+	/** Classify the matrix from its dimension and its lower and upper bandwidth.
+	 *
+	 * @param rows The number of rows
+	 * @param columns The number of columns
+	 * @param lowerBandwidth The largest i-j of a non-zero entry a_ij
+	 * @param upperBandwidth The largest j-i of a non-zero entry a_ij
+	 * @return The structure of the matrix
+	 */
+	public static MatrixStructure getStructure(int rows, int columns, int lowerBandwidth, int upperBandwidth){
+		if(rows == columns){
+			if(lowerBandwidth == 0 && upperBandwidth == 0) return MatrixStructure.Diagonal;
+			if(upperBandwidth == 0) return MatrixStructure.LowerTriangular;
+			if(lowerBandwidth == 0) return MatrixStructure.UpperTriangular;
+			if(lowerBandwidth+upperBandwidth+1 < rows) return MatrixStructure.Banded;
+			return MatrixStructure.General;
+		}
+		// For non-square matrices the triangular factor of the QR decomposition has bandwidth kl+ku. Only worth it if this is still a band.
+		int normalDimension = Math.min(rows, columns);
+		if(lowerBandwidth+upperBandwidth < normalDimension) return rows < columns ? MatrixStructure.BandedWide : MatrixStructure.BandedTall;
+		return MatrixStructure.General;
+	}
+
+	private static boolean[][] getInverseNonZeroPattern(MatrixStructure structure, int rows, int columns){
+		boolean[][] pattern = new boolean[columns][rows];
+		for(int i=0;i<columns;i++){
+			for(int j=0;j<rows;j++){
+				switch(structure){
+				case Diagonal:        pattern[i][j] = i==j; break;
+				case LowerTriangular: pattern[i][j] = i>=j; break;
+				case UpperTriangular: pattern[i][j] = i<=j; break;
+				default:              pattern[i][j] = true;
+				}
+			}
+		}
+		return pattern;
+	}
+
+	/*
+	 * Triangular matrices: column j of the inverse solves L x = e_j by forward substitution, using only the entries within the band.
+	 */
+	private static boolean invertLowerTriangular(double[][] l, int n, int kl, Workspace work, double[][][] inverse, int pathIndex){
+		double scale = work.getMaxAbs(l, n, n);
+		for(int i=0;i<n;i++) if(Math.abs(l[i][i]) <= PIVOT_TOLERANCE*scale) return false;
+
+		double[] x = work.getVector(n);
+		for(int j=0;j<n;j++){
+			x[j] = 1.0/l[j][j];
+			inverse[j][j][pathIndex] = x[j];
+			if(kl == 0) continue; // diagonal matrix
+			for(int i=j+1;i<n;i++){
+				double sum = 0.0;
+				for(int k=Math.max(j, i-kl);k<i;k++) sum += l[i][k]*x[k];
+				x[i] = -sum/l[i][i];
+				inverse[i][j][pathIndex] = x[i];
+			}
+		}
+		return true;
+	}
+
+	private static boolean invertUpperTriangular(double[][] u, int n, int ku, Workspace work, double[][][] inverse, int pathIndex){
+		double scale = work.getMaxAbs(u, n, n);
+		for(int i=0;i<n;i++) if(Math.abs(u[i][i]) <= PIVOT_TOLERANCE*scale) return false;
+
+		double[] x = work.getVector(n);
+		for(int j=n-1;j>=0;j--){
+			x[j] = 1.0/u[j][j];
+			inverse[j][j][pathIndex] = x[j];
+			for(int i=j-1;i>=0;i--){
+				double sum = 0.0;
+				for(int k=i+1;k<=Math.min(j, i+ku);k++) sum += u[i][k]*x[k];
+				x[i] = -sum/u[i][i];
+				inverse[i][j][pathIndex] = x[i];
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Square band matrices: LU decomposition with partial pivoting restricted to the band (O(n kl (kl+ku))), then one
+	 * forward and one backward substitution per column of the inverse (O(n (2 kl+ku))).
+	 */
+	private static boolean invertBanded(double[][] a, int n, int kl, int ku, Workspace work, double[][][] inverse, int pathIndex){
+		// Factorize a copy such that the SVD fallback still sees the original matrix
+		double[][] lu = work.getFactorMatrix(n, n);
+		for(int i=0;i<n;i++) System.arraycopy(a[i], 0, lu[i], 0, n);
+		int[] pivots = work.getPivots(n);
+		if(!factorizeBanded(lu, n, kl, ku, pivots)) return false;
+
+		double[] x = work.getVector(n);
+		for(int j=0;j<n;j++){
+			java.util.Arrays.fill(x, 0, n, 0.0);
+			x[j] = 1.0;
+			solveBandedInPlace(lu, n, kl, ku, pivots, x);
+			for(int i=0;i<n;i++) inverse[i][j][pathIndex] = x[i];
+		}
+		return true;
+	}
+
+	/*
+	 * Wide band matrices A (n x m, n < m): A^+ = ((A^T)^+)^T, where A^T is a tall band matrix with lower bandwidth ku and upper bandwidth kl.
+	 */
+	private static boolean pseudoInvertBandedWide(double[][] a, int n, int m, int kl, int ku, Workspace work, double[][][] inverse, int pathIndex){
+		double[][] r = work.getFactorMatrix(m, n);
+		for(int i=0;i<m;i++) for(int j=Math.max(0, i-ku);j<=Math.min(n-1, i+kl);j++) r[i][j] = a[j][i];
+		double[][] q = work.getOrthogonalMatrix(m);
+		if(!factorizeBandedQR(r, m, n, ku, kl, q)) return false;
+
+		// Row j of A^+ is column j of (A^T)^+ = R^-1 Q^T
+		double[] y = work.getVector(n);
+		for(int j=0;j<m;j++){
+			solveBandedQR(r, q, n, kl+ku, j, y);
+			for(int i=0;i<n;i++) inverse[j][i][pathIndex] = y[i];
+		}
+		return true;
+	}
+
+	/*
+	 * Tall band matrices A (n x m, n > m): A^+ = R^-1 Q^T, where A = Q R and R is an upper triangular m x m band matrix with bandwidth kl+ku.
+	 */
+	private static boolean pseudoInvertBandedTall(double[][] a, int n, int m, int kl, int ku, Workspace work, double[][][] inverse, int pathIndex){
+		double[][] r = work.getFactorMatrix(n, m);
+		for(int i=0;i<n;i++) System.arraycopy(a[i], 0, r[i], 0, m);
+		double[][] q = work.getOrthogonalMatrix(n);
+		if(!factorizeBandedQR(r, n, m, kl, ku, q)) return false;
+
+		double[] y = work.getVector(m);
+		for(int j=0;j<n;j++){
+			solveBandedQR(r, q, m, kl+ku, j, y);
+			for(int i=0;i<m;i++) inverse[i][j][pathIndex] = y[i];
+		}
+		return true;
+	}
+
+	/*
+	 * In place LU decomposition (partial pivoting within the band) of a band matrix, P A = L U. The multipliers of L (unit diagonal) are
+	 * stored below the diagonal, U on and above the diagonal with upper bandwidth kl+ku, pivots[k] is the row interchanged with row k.
+	 */
+	private static boolean factorizeBanded(double[][] a, int n, int kl, int ku, int[] pivots){
+		double scale = 0.0;
+		for(int i=0;i<n;i++) for(int j=Math.max(0, i-kl);j<=Math.min(n-1, i+ku);j++) scale = Math.max(scale, Math.abs(a[i][j]));
+
+		for(int k=0;k<n;k++){
+			int lastRow    = Math.min(n-1, k+kl);
+			int lastColumn = Math.min(n-1, k+kl+ku);
+			int pivotRow = k;
+			for(int i=k+1;i<=lastRow;i++) if(Math.abs(a[i][k]) > Math.abs(a[pivotRow][k])) pivotRow = i;
+			pivots[k] = pivotRow;
+			if(Math.abs(a[pivotRow][k]) <= PIVOT_TOLERANCE*scale) return false;
+			if(pivotRow != k) {
+				for(int j=k;j<=lastColumn;j++){
+					double swap = a[k][j];
+					a[k][j] = a[pivotRow][j];
+					a[pivotRow][j] = swap;
+				}
+			}
+
+			double pivot = a[k][k];
+			for(int i=k+1;i<=lastRow;i++){
+				double factor = a[i][k] / pivot;
+				a[i][k] = factor;
+				if(factor == 0.0) continue;
+				for(int j=k+1;j<=lastColumn;j++) a[i][j] -= factor*a[k][j];
+			}
+		}
+		return true;
+	}
+
+	private static void solveBandedInPlace(double[][] lu, int n, int kl, int ku, int[] pivots, double[] x){
+		// Forward substitution with the row interchanges and the unit lower triangular L
+		for(int k=0;k<n;k++){
+			if(pivots[k] != k) {
+				double swap = x[k];
+				x[k] = x[pivots[k]];
+				x[pivots[k]] = swap;
+			}
+			if(x[k] == 0.0) continue;
+			for(int i=k+1;i<=Math.min(n-1, k+kl);i++) x[i] -= lu[i][k]*x[k];
+		}
+		// Backward substitution with U
+		for(int i=n-1;i>=0;i--){
+			double sum = x[i];
+			for(int k=i+1;k<=Math.min(n-1, i+kl+ku);k++) sum -= lu[i][k]*x[k];
+			x[i] = sum / lu[i][i];
+		}
+	}
+
+	/*
+	 * In place QR decomposition of a tall band matrix A (n x m, n >= m) by Givens rotations, restricted to the band. R (upper bandwidth kl+ku)
+	 * is stored in the first m rows, the rotations are applied to q (initially the identity) such that q = Q^T.
+	 */
+	private static boolean factorizeBandedQR(double[][] r, int n, int m, int kl, int ku, double[][] q){
+		double scale = 0.0;
+		for(int i=0;i<n;i++) for(int j=Math.max(0, i-kl);j<=Math.min(m-1, i+ku);j++) scale = Math.max(scale, Math.abs(r[i][j]));
+
+		for(int k=0;k<m;k++){
+			int lastColumn = Math.min(m-1, k+kl+ku);
+			for(int i=k+1;i<=Math.min(n-1, k+kl);i++){
+				if(r[i][k] == 0.0) continue;
+				double norm   = Math.hypot(r[k][k], r[i][k]);
+				double cosine = r[k][k] / norm;
+				double sine   = r[i][k] / norm;
+				for(int j=k;j<=lastColumn;j++){
+					double upper = r[k][j];
+					double lower = r[i][j];
+					r[k][j] = cosine*upper + sine*lower;
+					r[i][j] = cosine*lower - sine*upper;
+				}
+				for(int j=0;j<n;j++){
+					double upper = q[k][j];
+					double lower = q[i][j];
+					q[k][j] = cosine*upper + sine*lower;
+					q[i][j] = cosine*lower - sine*upper;
+				}
+			}
+			if(Math.abs(r[k][k]) <= PIVOT_TOLERANCE*scale) return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Column j of R^-1 Q^T: backward substitution with R on the first m entries of column j of Q^T.
+	 */
+	private static void solveBandedQR(double[][] r, double[][] q, int m, int bandwidth, int column, double[] y){
+		for(int i=m-1;i>=0;i--){
+			double sum = q[i][column];
+			for(int k=i+1;k<=Math.min(m-1, i+bandwidth);k++) sum -= r[i][k]*y[k];
+			y[i] = sum / r[i][i];
+		}
+	}
+
+	private static void pseudoInvertSVD(double[][] a, int rows, int columns, double[][][] inverse, int pathIndex){
+		double[][] matrixOnPath = new double[rows][];
+		for(int i=0;i<rows;i++) matrixOnPath[i] = java.util.Arrays.copyOf(a[i], columns);
+		RealMatrix pseudoInverse = new SingularValueDecomposition(MatrixUtils.createRealMatrix(matrixOnPath)).getSolver().getInverse();
+		for(int i=0;i<columns;i++){
+			for(int j=0;j<rows;j++){
+				inverse[i][j][pathIndex] = pseudoInverse.getEntry(i, j);
+			}
+		}
+	}
+
+	/**
+	 * Per thread buffers such that no arrays are allocated per path.
+	 */
+	private static class Workspace{
+		private double[][] matrix = new double[0][0];
+		private double[][] factorMatrix = new double[0][0];
+		private double[][] orthogonalMatrix = new double[0][0];
+		private int[]      pivots = new int[0];
+		private double[]   vector = new double[0];
+
+		double[][] getMatrix(int rows, int columns){
+			if(matrix.length < rows || (rows > 0 && matrix[0].length < columns)) matrix = new double[rows][columns];
+			return matrix;
+		}
+
+		double[][] getFactorMatrix(int rows, int columns){
+			if(factorMatrix.length < rows || (rows > 0 && factorMatrix[0].length < columns)) factorMatrix = new double[rows][columns];
+			for(int i=0;i<rows;i++) java.util.Arrays.fill(factorMatrix[i], 0, columns, 0.0);
+			return factorMatrix;
+		}
+
+		double[][] getOrthogonalMatrix(int n){
+			if(orthogonalMatrix.length < n) orthogonalMatrix = new double[n][n];
+			for(int i=0;i<n;i++) {
+				java.util.Arrays.fill(orthogonalMatrix[i], 0, n, 0.0);
+				orthogonalMatrix[i][i] = 1.0;
+			}
+			return orthogonalMatrix;
+		}
+
+		int[] getPivots(int n){
+			if(pivots.length < n) pivots = new int[n];
+			return pivots;
+		}
+
+		double[] getVector(int n){
+			if(vector.length < n) vector = new double[n];
+			return vector;
+		}
+
+		double getMaxAbs(double[][] a, int rows, int columns){
+			double max = 0.0;
+			for(int i=0;i<rows;i++) for(int j=0;j<columns;j++) max = Math.max(max, Math.abs(a[i][j]));
+			return max;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package initialmargin.isdasimm.sensitivity;
+
+import java.util.Arrays;
+
+import net.finmath.montecarlo.RandomVariable;
+import net.finmath.stochastic.RandomVariableInterface;
+
+/** A matrix of random variables which records its structure: the structural zeros (null entries and deterministic zeros) are
+ *  dropped and the remaining entries are kept row by row (compressed rows) as realizations, or as constants if they are deterministic.
+ *  The matrices of the sensitivity mapping are sparse: <code> dL/dS </code> is lower bidiagonal, <code> dS/dP </code> and its inverse are
+ *  triangular and the time grid adjustment <code> dL/dL </code> is a band matrix.
+ *
+ *  The products with the matrix only visit the non-zero entries, use the constant for deterministic entries and accumulate into one
+ *  <code> double[] </code> per result entry. The terms of each result entry are summed in the order of the dense product (ascending inner
+ *  index), hence the result agrees with the dense product of random variables.
+ *
+ */
+public final class RandomVariableMatrix {
+
+	private final int numberOfRows;
+	private final int numberOfColumns;
+	private final int lowerBandwidth;
+	private final int upperBandwidth;
+
+	// Compressed rows: column index, realizations (null if deterministic), constant (if deterministic) and filtration time of the non-zero entries
+	private final int[][]      columnIndices;
+	private final double[][][] realizations;
+	private final double[][]   constants;
+	private final double[][]   filtrationTimes;
+
+	/** Create the matrix from random variables. Null entries and deterministic zeros are structural zeros.
+	 *
+	 * @param matrix The entries of the matrix (rows of equal length)
+	 */
+	public RandomVariableMatrix(RandomVariableInterface[][] matrix){
+		this.numberOfRows    = matrix.length;
+		this.numberOfColumns = matrix.length > 0 ? matrix[0].length : 0;
+
+		columnIndices   = new int[numberOfRows][];
+		realizations    = new double[numberOfRows][][];
+		constants       = new double[numberOfRows][];
+		filtrationTimes = new double[numberOfRows][];
+
+		int lowerBandwidth = 0;
+		int upperBandwidth = 0;
+		int[]      rowColumns   = new int[numberOfColumns];
+		double[][] rowValues    = new double[numberOfColumns][];
+		double[]   rowConstants = new double[numberOfColumns];
+		double[]   rowTimes     = new double[numberOfColumns];
+		for(int row=0; row<numberOfRows; row++) {
+			int numberOfNonZeros = 0;
+			for(int column=0; column<numberOfColumns; column++) {
+				RandomVariableInterface entry = matrix[row][column];
+				if(entry == null) continue;
+				if(entry.isDeterministic()) {
+					if(entry.get(0) == 0.0) continue;
+					rowValues[numberOfNonZeros] = null;
+					rowConstants[numberOfNonZeros] = entry.get(0);
+				}
+				else {
+					rowValues[numberOfNonZeros] = entry.getRealizations();
+					rowConstants[numberOfNonZeros] = 0.0;
+				}
+				rowColumns[numberOfNonZeros] = column;
+				rowTimes[numberOfNonZeros] = entry.getFiltrationTime();
+				numberOfNonZeros++;
+				lowerBandwidth = Math.max(lowerBandwidth, row-column);
+				upperBandwidth = Math.max(upperBandwidth, column-row);
+			}
+			columnIndices[row]   = Arrays.copyOf(rowColumns, numberOfNonZeros);
+			realizations[row]    = Arrays.copyOf(rowValues, numberOfNonZeros);
+			constants[row]       = Arrays.copyOf(rowConstants, numberOfNonZeros);
+			filtrationTimes[row] = Arrays.copyOf(rowTimes, numberOfNonZeros);
+		}
+		this.lowerBandwidth = lowerBandwidth;
+		this.upperBandwidth = upperBandwidth;
+	}
+
+	/** Returns the product <code> v^T M </code> of a (row) vector with this matrix, where the vector is given by the first
+	 *  <code> numberOfRows </code> entries of <code> vector </code> starting at <code> vectorOffset </code>, multiplied with the first
+	 *  <code> numberOfRows </code> rows and <code> numberOfColumns </code> columns of this matrix. Null entries of the vector are zero.
+	 *
+	 * @param vector The vector
+	 * @param vectorOffset The index of the first entry of the vector
+	 * @param numberOfRows The number of entries of the vector (rows of the matrix)
+	 * @param numberOfColumns The number of columns of the matrix (entries of the result)
+	 * @return The product
+	 */
+	public RandomVariableInterface[] multiplyLeft(RandomVariableInterface[] vector, int vectorOffset, int numberOfRows, int numberOfColumns){
+		Accumulator accumulator = new Accumulator(numberOfColumns);
+		for(int row=0; row<numberOfRows; row++) {
+			RandomVariableInterface entry = vector[vectorOffset+row];
+			if(entry == null) continue;
+			accumulator.addRow(entry, row);
+		}
+		return accumulator.getResult();
+	}
+
+	/** Returns the product <code> v^T M </code> of a (row) vector with this matrix. The length of the vector is the number of rows used.
+	 *
+	 * @param vector The vector
+	 * @return The product
+	 */
+	public RandomVariableInterface[] multiplyLeft(RandomVariableInterface[] vector){
+		return multiplyLeft(vector, 0, vector.length, numberOfColumns);
+	}
+
+	/** Returns the product <code> A M </code> of a matrix with this matrix.
+	 *
+	 * @param matrix The matrix A (the length of its rows is the number of rows of this matrix used)
+	 * @return The product
+	 */
+	public RandomVariableInterface[][] multiplyLeft(RandomVariableInterface[][] matrix){
+		RandomVariableInterface[][] product = new RandomVariableInterface[matrix.length][];
+		for(int row=0; row<matrix.length; row++) product[row] = multiplyLeft(matrix[row]);
+		return product;
+	}
+
+	public int getNumberOfRows(){
+		return numberOfRows;
+	}
+
+	public int getNumberOfColumns(){
+		return numberOfColumns;
+	}
+
+	public int getLowerBandwidth(){
+		return lowerBandwidth;
+	}
+
+	public int getUpperBandwidth(){
+		return upperBandwidth;
+	}
+
+	/** Returns the estimated size of the matrix: 8 bytes per path of a stochastic entry, 8 bytes per deterministic entry.
+	 *
+	 * @return The estimated size in bytes
+	 */
+	public long getSizeInBytes(){
+		long size = 0;
+		for(double[][] row : realizations) for(double[] values : row) size += 8L * (values == null ? 1 : values.length);
+		return size;
+	}
+
+	public int getNumberOfNonZeros(){
+		int numberOfNonZeros = 0;
+		for(int[] row : columnIndices) numberOfNonZeros += row.length;
+		return numberOfNonZeros;
+	}
+
+	/*
+	 * The entries of v^T M: a constant as long as all terms are deterministic, then one double[] over the paths.
+	 */
+	private final class Accumulator {
+		private final int        numberOfResults;
+		private final double[]   sums;
+		private final double[][] pathSums;
+		private final double[]   times;
+
+		private Accumulator(int numberOfResults){
+			this.numberOfResults = numberOfResults;
+			this.sums     = new double[numberOfResults];
+			this.pathSums = new double[numberOfResults][];
+			this.times    = new double[numberOfResults];
+			Arrays.fill(times, Double.NEGATIVE_INFINITY);
+		}
+
+		private void addRow(RandomVariableInterface vectorEntry, int row){
+			boolean isVectorEntryDeterministic = vectorEntry.isDeterministic();
+			double   vectorConstant = isVectorEntryDeterministic ? vectorEntry.get(0) : 0.0;
+			double[] vectorValues   = isVectorEntryDeterministic ? null : vectorEntry.getRealizations();
+			if(isVectorEntryDeterministic && vectorConstant == 0.0) return;
+			double vectorTime = vectorEntry.getFiltrationTime();
+
+			int[]      rowColumns   = columnIndices[row];
+			double[][] rowValues    = realizations[row];
+			double[]   rowConstants = constants[row];
+			for(int index=0; index<rowColumns.length; index++) {
+				int column = rowColumns[index];
+				if(column >= numberOfResults) break;
+				times[column] = Math.max(times[column], Math.max(vectorTime, filtrationTimes[row][index]));
+
+				double[] matrixValues = rowValues[index];
+				if(vectorValues == null && matrixValues == null) {
+					double term = vectorConstant * rowConstants[index];
+					if(pathSums[column] == null) sums[column] = sums[column] + term;
+					else {
+						double[] pathSum = pathSums[column];
+						for(int path=0; path<pathSum.length; path++) pathSum[path] = pathSum[path] + term;
+					}
+					continue;
+				}
+
+				int numberOfPaths = vectorValues != null ? vectorValues.length : matrixValues.length;
+				double[] pathSum = pathSums[column];
+				if(pathSum == null) {
+					pathSum = new double[numberOfPaths];
+					Arrays.fill(pathSum, sums[column]);
+					pathSums[column] = pathSum;
+				}
+				if(vectorValues == null) {
+					double vectorValue = vectorConstant;
+					for(int path=0; path<numberOfPaths; path++) pathSum[path] = pathSum[path] + vectorValue * matrixValues[path];
+				}
+				else if(matrixValues == null) {
+					double matrixValue = rowConstants[index];
+					for(int path=0; path<numberOfPaths; path++) pathSum[path] = pathSum[path] + vectorValues[path] * matrixValue;
+				}
+				else {
+					for(int path=0; path<numberOfPaths; path++) pathSum[path] = pathSum[path] + vectorValues[path] * matrixValues[path];
+				}
+			}
+		}
+
+		private RandomVariableInterface[] getResult(){
+			RandomVariableInterface[] result = new RandomVariableInterface[numberOfResults];
+			for(int column=0; column<numberOfResults; column++) {
+				result[column] = pathSums[column] != null ? new RandomVariable(times[column], pathSums[column]) : new RandomVariable(times[column], sums[column]);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package initialmargin.isdasimm.sensitivity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.DecompositionSolver;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+
+import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
+import net.finmath.exception.CalculationException;
+import net.finmath.montecarlo.RandomVariable;
+import net.finmath.stochastic.ConditionalExpectationEstimatorInterface;
+import net.finmath.stochastic.RandomVariableInterface;
+
+/** A conditional expectation estimator by linear regression on a fixed set of basis functions whose normal equations are factorized once.
+ *  The matrix <code> X^T X </code> of the basis functions and its (pseudo) inverse are calculated when the operator is created, hence the
+ *  regression of a random variable only requires <code> X^T y </code> and the projection on the basis functions. Several random variables
+ *  (e.g. the derivatives of a product w.r.t. all Libors) are regressed in one pass over the paths by <code> getConditionalExpectations </code>.
+ *
+ *  The normal equations are solved with the singular value decomposition, as <code> MonteCarloConditionalExpectationRegression </code>, since
+ *  the basis functions may be linearly dependent (e.g. the constant of each regressor). The averages are taken with Kahan summation, as
+ *  <code> RandomVariable.getAverage </code>, such that the conditional expectations agree with those of
+ *  <code> MonteCarloConditionalExpectationRegression </code>.
+ *
+ *  The operator is immutable and may be shared by several products and threads. The operators on the Libor basis of the swaps are kept
+ *  per model, evaluation time and order of the basis (<code> getLiborRegressionOperator </code>).
+ *
+ */
+public final class RegressionOperator implements ConditionalExpectationEstimatorInterface {
+
+	private static final Map<LIBORModelMonteCarloSimulationInterface, Map<BasisKey, RegressionOperator>> liborRegressionOperators =
+			Collections.synchronizedMap(new WeakHashMap<LIBORModelMonteCarloSimulationInterface, Map<BasisKey, RegressionOperator>>());
+
+	private final int      numberOfPaths;
+	private final boolean  isDeterministic;
+	private final double   filtrationTime;
+	private final double[][] basisFunctions;		// [basis function][path], length 1 for deterministic basis functions
+	private final DecompositionSolver solver;
+
+	/** Create the regression operator and factorize the normal equations. Null basis functions are ignored.
+	 *
+	 * @param basisFunctions The basis functions (predictor variables)
+	 */
+	public RegressionOperator(RandomVariableInterface[] basisFunctions){
+		ArrayList<double[]> nonZeroBasisFunctions = new ArrayList<double[]>();
+		int numberOfPaths = 1;
+		boolean isDeterministic = true;
+		double filtrationTime = Double.NEGATIVE_INFINITY;
+		for(RandomVariableInterface basisFunction : basisFunctions) {
+			if(basisFunction == null) continue;
+			nonZeroBasisFunctions.add(basisFunction.isDeterministic() ? new double[] { basisFunction.get(0) } : basisFunction.getRealizations());
+			numberOfPaths = Math.max(numberOfPaths, basisFunction.size());
+			isDeterministic &= basisFunction.isDeterministic();
+			filtrationTime = Math.max(filtrationTime, basisFunction.getFiltrationTime());
+		}
+		this.numberOfPaths  = numberOfPaths;
+		this.isDeterministic = isDeterministic;
+		this.filtrationTime = filtrationTime;
+		this.basisFunctions = nonZeroBasisFunctions.toArray(new double[0][]);
+
+		int numberOfBasisFunctions = this.basisFunctions.length;
+		double[][] xTx = new double[numberOfBasisFunctions][numberOfBasisFunctions];
+		for(int i=0; i<numberOfBasisFunctions; i++) {
+			for(int j=i; j<numberOfBasisFunctions; j++) {
+				xTx[i][j] = getAverageOfProduct(this.basisFunctions[i], this.basisFunctions[j]);
+				xTx[j][i] = xTx[i][j];
+			}
+		}
+		this.solver = new SingularValueDecomposition(new Array2DRowRealMatrix(xTx, false)).getSolver();
+	}
+
+	/** Returns the regression operator on the Libor basis of the swaps: the powers 0 to <code> order </code> of the Libors
+	 *  <code> L(t,t+\Delta_T;t) </code> and <code> L(t,T_n;t) </code>, where <code> T_n </code> is the last time of the Libor period discretization.
+	 *  The operator is created once per model, evaluation time and order and shared by all products.
+	 *
+	 * @param model The Libor market model
+	 * @param evaluationTime The time of the conditional expectation
+	 * @param order The maximal power of the Libors
+	 * @return The regression operator
+	 * @throws CalculationException Thrown if the Libors cannot be obtained from the model
+	 */
+	public static RegressionOperator getLiborRegressionOperator(LIBORModelMonteCarloSimulationInterface model, double evaluationTime, int order) throws CalculationException{
+		Map<BasisKey, RegressionOperator> operators;
+		synchronized (liborRegressionOperators) {
+			operators = liborRegressionOperators.get(model);
+			if(operators == null) {
+				operators = new ConcurrentHashMap<BasisKey, RegressionOperator>();
+				liborRegressionOperators.put(model, operators);
+			}
+		}
+
+		BasisKey key = new BasisKey(evaluationTime, order);
+		RegressionOperator operator = operators.get(key);
+		if(operator == null) {
+			RandomVariableInterface[] regressor = new RandomVariableInterface[2];
+			regressor[0]= model.getLIBOR(evaluationTime, evaluationTime, evaluationTime+model.getLiborPeriodDiscretization().getTimeStep(0));
+			regressor[1]= model.getLIBOR(evaluationTime, evaluationTime, model.getLiborPeriodDiscretization().getTime(model.getNumberOfLibors()-1));
+			RandomVariableInterface[] basisFunctions = new RandomVariableInterface[regressor.length*(order+1)];
+			for(int regressorIndex=0; regressorIndex<regressor.length; regressorIndex++){
+				for(int power=0; power<=order; power++) basisFunctions[regressorIndex*(order+1)+power] = regressor[regressorIndex].pow(power);
+			}
+			operator = new RegressionOperator(basisFunctions);
+			RegressionOperator publishedOperator = operators.putIfAbsent(key, operator);
+			if(publishedOperator != null) operator = publishedOperator;
+		}
+		return operator;
+	}
+
+	@Override
+	public RandomVariableInterface getConditionalExpectation(RandomVariableInterface randomVariable) {
+		return getConditionalExpectations(new RandomVariableInterface[] { randomVariable })[0];
+	}
+
+	/** Returns the conditional expectations of several random variables. The right hand sides <code> X^T y </code> of all random variables
+	 *  are calculated in one pass over the paths and solved with the factorization of the normal equations.
+	 *
+	 * @param randomVariables The random variables (null entries give null)
+	 * @return The conditional expectations
+	 */
+	public RandomVariableInterface[] getConditionalExpectations(RandomVariableInterface[] randomVariables){
+		int numberOfBasisFunctions = basisFunctions.length;
+		int numberOfRandomVariables = randomVariables.length;
+
+		// The basis functions may be deterministic (e.g. at time 0) while the random variables are not
+		int numberOfPaths = this.numberOfPaths;
+		double[][] values = new double[numberOfRandomVariables][];
+		for(int index=0; index<numberOfRandomVariables; index++) {
+			RandomVariableInterface randomVariable = randomVariables[index];
+			if(randomVariable == null) continue;
+			values[index] = randomVariable.isDeterministic() ? new double[] { randomVariable.get(0) } : randomVariable.getRealizations();
+			numberOfPaths = Math.max(numberOfPaths, values[index].length);
+		}
+
+		// X^T y for all random variables in one pass, with Kahan summation per entry
+		double[][] sums   = new double[numberOfRandomVariables][numberOfBasisFunctions];
+		double[][] errors = new double[numberOfRandomVariables][numberOfBasisFunctions];
+		for(int path=0; path<numberOfPaths; path++) {
+			for(int index=0; index<numberOfRandomVariables; index++) {
+				double[] value = values[index];
+				if(value == null) continue;
+				double y = value.length == 1 ? value[0] : value[path];
+				double[] sum   = sums[index];
+				double[] error = errors[index];
+				for(int i=0; i<numberOfBasisFunctions; i++) {
+					double[] basisFunction = basisFunctions[i];
+					double summand = y * (basisFunction.length == 1 ? basisFunction[0] : basisFunction[path]) - error[i];
+					double newSum = sum[i] + summand;
+					error[i] = (newSum - sum[i]) - summand;
+					sum[i] = newSum;
+				}
+			}
+		}
+
+		RandomVariableInterface[] conditionalExpectations = new RandomVariableInterface[numberOfRandomVariables];
+		for(int index=0; index<numberOfRandomVariables; index++) {
+			if(values[index] == null) continue;
+			double[] xTy = sums[index];
+			for(int i=0; i<numberOfBasisFunctions; i++) {
+				// The average of a deterministic product is the product itself
+				xTy[i] = values[index].length == 1 && basisFunctions[i].length == 1 ? values[index][0] * basisFunctions[i][0] : xTy[i] / numberOfPaths;
+			}
+			double[] parameters = solver.solve(new ArrayRealVector(xTy, false)).toArray();
+			conditionalExpectations[index] = getProjection(parameters);
+		}
+		return conditionalExpectations;
+	}
+
+	/*
+	 * The average of the product of two basis functions with Kahan summation, as RandomVariable.getAverage.
+	 */
+	private double getAverageOfProduct(double[] basisFunction1, double[] basisFunction2){
+		if(basisFunction1.length == 1 && basisFunction2.length == 1) return basisFunction1[0] * basisFunction2[0];
+		double sum = 0.0;
+		double error = 0.0;
+		for(int path=0; path<numberOfPaths; path++){
+			double value = (basisFunction1.length == 1 ? basisFunction1[0] : basisFunction1[path]) * (basisFunction2.length == 1 ? basisFunction2[0] : basisFunction2[path]) - error;
+			double newSum = sum + value;
+			error = (newSum - sum) - value;
+			sum = newSum;
+		}
+		return sum / numberOfPaths;
+	}
+
+	/*
+	 * The projection sum_i beta_i x_i, evaluated as basisFunctions[0].mult(beta_0).addProduct(basisFunctions[i], beta_i).
+	 */
+	private RandomVariableInterface getProjection(double[] parameters){
+		if(isDeterministic) {
+			double projection = basisFunctions[0][0] * parameters[0];
+			for(int i=1; i<basisFunctions.length; i++) projection = projection + basisFunctions[i][0] * parameters[i];
+			return new RandomVariable(filtrationTime, projection);
+		}
+
+		double[] projection = new double[numberOfPaths];
+		double[] basisFunction = basisFunctions[0];
+		for(int path=0; path<numberOfPaths; path++) projection[path] = (basisFunction.length == 1 ? basisFunction[0] : basisFunction[path]) * parameters[0];
+		for(int i=1; i<basisFunctions.length; i++) {
+			basisFunction = basisFunctions[i];
+			double parameter = parameters[i];
+			for(int path=0; path<numberOfPaths; path++) projection[path] = projection[path] + (basisFunction.length == 1 ? basisFunction[0] : basisFunction[path]) * parameter;
+		}
+		return new RandomVariable(filtrationTime, projection);
+	}
+
+	private static final class BasisKey {
+		private final double evaluationTime;
+		private final int    order;
+
+		private BasisKey(double evaluationTime, int order){
+			this.evaluationTime = evaluationTime;
+			this.order = order;
+		}
+
+		@Override
+		public boolean equals(Object other){
+			if(!(other instanceof BasisKey)) return false;
+			BasisKey key = (BasisKey) other;
+			return Double.compare(evaluationTime, key.evaluationTime) == 0 && order == key.order;
+		}
+
+		@Override
+		public int hashCode(){
+			return 31 * Double.hashCode(evaluationTime) + order;
+		}
+	}
+}
@@ -1,5 +1,4 @@
 package initialmargin.isdasimm.sensitivity;
-import java.util.Arrays;
 import java.util.stream.IntStream;
 
 import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
@@ -123,6 +122,7 @@ public class SIMMSensitivityCalculation extends AbstractSIMMSensitivityCalculati
 	/**Linear melting of the sensitivities given on the SIMM Buckets. The melting is perfromed linearly such that
 	 * the time zero sensitivities on bucket with maturity N years have vanished after N years. After N years, half of
 	 * the sensitivities which are originally on the 2N year bucket will have moved onto the N year bucket.
+	 * The melting and the mapping on the SIMM buckets are applied as one sparse matrix (see <code> getMeltingMatrix </code>).
      * 
 	 * @param initialMeltingTime The time at which the melting should start, i.e. time zero
 	 * @param evaluationTime The time at which the melted sensitivites are calculated
@@ -152,31 +152,36 @@ public class SIMMSensitivityCalculation extends AbstractSIMMSensitivityCalculati
 			  sensitivities = product.getExactDeltaFromCache(meltingZeroTime, riskClass, curveIndexName);		 
 		  }
 		  
-		  double[] initialMeltingTime = new double[]{meltingZeroTime};
-		  
-		  // t^B_i
-	      int[] riskFactorsSIMM = riskClass=="InterestRate" ? new int[] {14, 30, 90, 180, 365, 730, 1095, 1825, 3650, 5475, 7300, 10950} : /*Credit*/ new int[] {365, 730, 1095, 1825, 3650};	
-			   
-	      // If sensitivities are given on LiborPeriodDiscretization, map them on SIMM Buckets 
-		  //if(sensitivities.length!=riskFactorsSIMM.length) sensitivities = mapSensitivitiesOnBuckets(sensitivities, riskClass, null, model); 
-			   
-		  // Get new riskFactor times: t^B_i - (t-t_{IMT})
-		  int[] riskFactorDays = Arrays.stream(riskFactorsSIMM).filter(n -> n > (int)Math.round(365*(evaluationTime-initialMeltingTime[0]))).map(n -> n-(int)Math.round(365*(evaluationTime-initialMeltingTime[0]))).toArray();
-		       
-		  // Find first bucket later than evaluationTime
-		  int firstIndex = IntStream.range(0, riskFactorsSIMM.length)
-			                          .filter(i -> riskFactorsSIMM[i]>(int)Math.round(365*(evaluationTime-initialMeltingTime[0]))).findFirst().getAsInt();
-			   
-		  //Calculate melted sensitivities
-		  RandomVariableInterface[] meltedSensis = new RandomVariableInterface[sensitivities.length-firstIndex];
-			   
-		  for(int i=0;i<meltedSensis.length;i++){
-			  meltedSensis[i]=sensitivities[i+firstIndex].mult(1.0-(double)Math.round(365*(evaluationTime-initialMeltingTime[0]))/(double)riskFactorsSIMM[i+firstIndex]);
-		  }
-			   
-		  return mapSensitivitiesOnBuckets(meltedSensis, riskClass, riskFactorDays, null); 
+		  // Melt and map on the SIMM buckets in one pass: the weights depend only on the days t-t_{IMT} since the start of the melting
+		  return SensitivityTransformCache.getMeltingMatrix(model, riskClass, (int)Math.round(365*(evaluationTime-meltingZeroTime))).multiplyLeft(sensitivities);
 			  
 	  }
+	
+	
+	/**Returns the weights of the linear melting of sensitivities on the SIMM buckets after a number of days: the sensitivity on
+	 * bucket t^B_i is multiplied by 1-d/t^B_i and moved onto the days t^B_i-d, which are mapped linearly on the SIMM buckets
+	 * (see <code> getRebucketingMatrix </code>). Sensitivities on buckets t^B_i <= d have vanished. The matrix (buckets x buckets)
+	 * depends only on the risk class and the number of days. Not cached, the products use <code> SensitivityTransformCache.getMeltingMatrix </code>.
+	 * 
+	 * @param riskClass The risk class
+	 * @param meltingDays The number of days d since the start of the melting
+	 * @return The melting matrix
+	 */
+	public static RandomVariableMatrix getMeltingMatrix(String riskClass, int meltingDays){
+		// t^B_i and the new risk factor days t^B_i - d of the buckets which have not vanished
+		int[] riskFactorsSIMM = getSIMMRiskFactorDays(riskClass);
+		int firstIndex = 0;
+		while(firstIndex < riskFactorsSIMM.length && riskFactorsSIMM[firstIndex] <= meltingDays) firstIndex++;
+		int[] riskFactorDays = IntStream.range(firstIndex, riskFactorsSIMM.length).map(i -> riskFactorsSIMM[i]-meltingDays).toArray();
+		double[][] weights = getRebucketingWeights(riskFactorsSIMM, riskFactorDays);
+		
+		RandomVariableInterface[][] matrix = new RandomVariableInterface[riskFactorsSIMM.length][riskFactorsSIMM.length];
+		for(int i=firstIndex; i<riskFactorsSIMM.length; i++){
+			double meltingFactor = 1.0-(double)meltingDays/(double)riskFactorsSIMM[i];
+			for(int j=0; j<riskFactorsSIMM.length; j++) matrix[i][j] = new RandomVariable(meltingFactor * weights[i-firstIndex][j]);
+		}
+		return new RandomVariableMatrix(matrix);
+	}
 	   
 	   
 	/** Interpolates sensitivities on SIMM buckets linearly between two exact sensitivities obtained by AAD. 
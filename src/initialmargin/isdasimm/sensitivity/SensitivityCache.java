@@ -0,0 +1,247 @@
+package initialmargin.isdasimm.sensitivity;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.finmath.stochastic.RandomVariableInterface;
+
+/** A flat store of SIMM sensitivities keyed by dense indices: evaluation time slot, risk class, curve and SIMM vertex.
+ *  The sensitivities of one (time, risk class, curve) are kept as one array over the vertices. Evaluation times are
+ *  mapped to time slots by an open addressing table on the bits of the <code> double </code> (no boxing), such that
+ *  <code> get </code> and <code> put </code> are O(1).
+ *
+ *  This class replaces the nested maps <code> HashMap<Double,List<HashMap<String,List<HashMap<String,RandomVariableInterface[]>>>>> </code>.
+ *  The curve slots cover all interest rate curve index names of the SIMM parameters (OIS, Libor1m, Libor3m, Libor6m, Libor12m).
+ *  It is not thread safe: a cache which is shared by several threads must be synchronized externally.
+ *
+ */
+public class SensitivityCache {
+
+	public enum RiskClass {InterestRate, CreditQ, CreditNonQ, Equity, Commodity, FX}
+
+	/** The interest rate curves, one per curve index name of <code> CalculationSchemeInitialMarginISDA.ParameterCollection.IRCurveIndexNames </code>. */
+	public enum CurveIndex {OIS, Libor1m, Libor3m, Libor6m, Libor12m}
+
+	public static final int numberOfRiskClasses = RiskClass.values().length;
+	public static final int numberOfCurves      = CurveIndex.values().length;
+
+	private static final int EMPTY = -1;
+
+	private static final Map<String, CurveIndex> curveIndices = new HashMap<>();
+	static {
+		for(CurveIndex curve : CurveIndex.values()) curveIndices.put(curve.name(), curve);
+	}
+
+	private final int numberOfVertices;
+
+	// Open addressing table: double bits of time -> time slot
+	private long[] keys;
+	private int[]  slots;
+	private int    numberOfTimes;
+
+	// Time slot -> (riskClass, curve) -> vertices
+	private double[]                    times;
+	private RandomVariableInterface[][][] sensitivities;
+
+	/** Create an empty sensitivity cache.
+	 *
+	 * @param numberOfVertices The number of SIMM vertices (maturity buckets) per risk class and curve
+	 */
+	public SensitivityCache(int numberOfVertices){
+		this.numberOfVertices = numberOfVertices;
+		allocate(16);
+	}
+
+	/** Returns the time slot of the given evaluation time.
+	 *
+	 * @param time The evaluation time
+	 * @return The time slot or -1 if the cache contains no sensitivities for this time
+	 */
+	public int getTimeIndex(double time){
+		long key = Double.doubleToLongBits(time);
+		int mask = keys.length-1;
+		for(int position = hash(key) & mask; slots[position] != EMPTY; position = (position+1) & mask){
+			if(keys[position] == key) return slots[position];
+		}
+		return EMPTY;
+	}
+
+	/** Returns the time slot of the given evaluation time. A new slot is created if the time is not yet contained.
+	 *
+	 * @param time The evaluation time
+	 * @return The time slot
+	 */
+	public int getOrCreateTimeIndex(double time){
+		int timeIndex = getTimeIndex(time);
+		if(timeIndex != EMPTY) return timeIndex;
+
+		if(2*(numberOfTimes+1) > keys.length) grow();
+		timeIndex = numberOfTimes++;
+		insert(Double.doubleToLongBits(time), timeIndex);
+		times[timeIndex] = time;
+		return timeIndex;
+	}
+
+	/** Returns true if the sensitivities for the given time slot, risk class and curve are contained in the cache.
+	 *
+	 * @param timeIndex The time slot (may be -1)
+	 * @param riskClass The risk class
+	 * @param curve The curve
+	 * @return True if the sensitivities are contained
+	 */
+	public boolean contains(int timeIndex, RiskClass riskClass, CurveIndex curve){
+		return timeIndex != EMPTY && sensitivities[timeIndex][getKeyIndex(riskClass, curve)] != null;
+	}
+
+	/** Returns true if the sensitivities for any curve of the risk class are contained in the cache at the given time slot.
+	 *
+	 * @param timeIndex The time slot (may be -1)
+	 * @param riskClass The risk class
+	 * @return True if the risk class is contained
+	 */
+	public boolean contains(int timeIndex, RiskClass riskClass){
+		if(timeIndex == EMPTY) return false;
+		for(int curveIndex=0;curveIndex<numberOfCurves;curveIndex++){
+			if(sensitivities[timeIndex][riskClass.ordinal()*numberOfCurves+curveIndex] != null) return true;
+		}
+		return false;
+	}
+
+	/** Returns the sensitivities on all vertices for the given time slot, risk class and curve. The returned array is the stored array.
+	 *
+	 * @param timeIndex The time slot
+	 * @param riskClass The risk class
+	 * @param curve The curve
+	 * @return The sensitivities on the SIMM vertices or null if not contained
+	 */
+	public RandomVariableInterface[] get(int timeIndex, RiskClass riskClass, CurveIndex curve){
+		return timeIndex == EMPTY ? null : sensitivities[timeIndex][getKeyIndex(riskClass, curve)];
+	}
+
+	/** Returns the sensitivity on one vertex for the given time slot, risk class and curve.
+	 *
+	 * @param timeIndex The time slot
+	 * @param riskClass The risk class
+	 * @param curve The curve
+	 * @param vertex The index of the SIMM vertex
+	 * @return The sensitivity or null if not contained
+	 */
+	public RandomVariableInterface get(int timeIndex, RiskClass riskClass, CurveIndex curve, int vertex){
+		RandomVariableInterface[] vertices = get(timeIndex, riskClass, curve);
+		return vertices == null ? null : vertices[vertex];
+	}
+
+	/** Store the sensitivities on all vertices for the given time slot, risk class and curve.
+	 *
+	 * @param timeIndex The time slot as obtained by <code> getOrCreateTimeIndex </code>
+	 * @param riskClass The risk class
+	 * @param curve The curve
+	 * @param vertexSensitivities The sensitivities on the SIMM vertices
+	 */
+	public void put(int timeIndex, RiskClass riskClass, CurveIndex curve, RandomVariableInterface[] vertexSensitivities){
+		if(vertexSensitivities.length != numberOfVertices) throw new IllegalArgumentException("Expected " + numberOfVertices + " vertices, got " + vertexSensitivities.length + ".");
+		sensitivities[timeIndex][getKeyIndex(riskClass, curve)] = vertexSensitivities;
+	}
+
+	/** Returns the evaluation time of a time slot.
+	 *
+	 * @param timeIndex The time slot
+	 * @return The evaluation time
+	 */
+	public double getTime(int timeIndex){
+		return times[timeIndex];
+	}
+
+	public int getNumberOfTimes(){
+		return numberOfTimes;
+	}
+
+	public int getNumberOfVertices(){
+		return numberOfVertices;
+	}
+
+	public boolean isEmpty(){
+		return numberOfTimes == 0;
+	}
+
+	public void clear(){
+		Arrays.fill(slots, EMPTY);
+		for(int timeIndex=0;timeIndex<numberOfTimes;timeIndex++) Arrays.fill(sensitivities[timeIndex], null);
+		numberOfTimes = 0;
+	}
+
+	/*
+	 * Mapping of the string keys used throughout the SIMM classes to the indices of this cache
+	 */
+
+	public static RiskClass getRiskClass(String riskClass){
+		return RiskClass.valueOf(riskClass);
+	}
+
+	public static CurveIndex getCurveIndex(String curveIndexName){
+		CurveIndex curve = curveIndices.get(curveIndexName);
+		if(curve == null) throw new IllegalArgumentException("Unknown curve index name " + curveIndexName + ".");
+		return curve;
+	}
+
+	/** Returns the index of an interest rate maturity bucket ("2w","1m",...,"30y").
+	 *
+	 * @param maturityBucket The maturity bucket
+	 * @return The index of the vertex
+	 */
+	public static int getVertexIndexIR(String maturityBucket){
+		switch(maturityBucket){
+		case "2w":  return 0;
+		case "1m":  return 1;
+		case "3m":  return 2;
+		case "6m":  return 3;
+		case "1y":  return 4;
+		case "2y":  return 5;
+		case "3y":  return 6;
+		case "5y":  return 7;
+		case "10y": return 8;
+		case "15y": return 9;
+		case "20y": return 10;
+		case "30y": return 11;
+		default: throw new IllegalArgumentException("Unknown maturity bucket " + maturityBucket + ".");
+		}
+	}
+
+	private static int getKeyIndex(RiskClass riskClass, CurveIndex curve){
+		return riskClass.ordinal()*numberOfCurves+curve.ordinal();
+	}
+
+	private static int hash(long key){
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	private void allocate(int capacity){
+		keys  = new long[capacity];
+		slots = new int[capacity];
+		Arrays.fill(slots, EMPTY);
+		times = new double[capacity/2];
+		sensitivities = new RandomVariableInterface[capacity/2][numberOfRiskClasses*numberOfCurves][];
+	}
+
+	private void insert(long key, int timeIndex){
+		int mask = keys.length-1;
+		int position = hash(key) & mask;
+		while(slots[position] != EMPTY) position = (position+1) & mask;
+		keys[position]  = key;
+		slots[position] = timeIndex;
+	}
+
+	private void grow(){
+		long[] oldKeys  = keys;
+		int[]  oldSlots = slots;
+		double[] oldTimes = times;
+		RandomVariableInterface[][][] oldSensitivities = sensitivities;
+
+		allocate(2*oldKeys.length);
+		for(int position=0;position<oldKeys.length;position++) if(oldSlots[position] != EMPTY) insert(oldKeys[position], oldSlots[position]);
+		System.arraycopy(oldTimes, 0, times, 0, numberOfTimes);
+		System.arraycopy(oldSensitivities, 0, sensitivities, 0, numberOfTimes);
+	}
+}
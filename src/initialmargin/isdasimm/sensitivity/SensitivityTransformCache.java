@@ -0,0 +1,199 @@
+package initialmargin.isdasimm.sensitivity;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
+import net.finmath.exception.CalculationException;
+
+/** The matrices which transform the sensitivities of a product to the SIMM sensitivities, per model and evaluation time:
+ *  the Libor time grid adjustment <code> dL/dL </code> and the weights <code> dL/dS </code> of the forward curve and the bond swap
+ *  sensitivities <code> dP/dS </code> of the OIS curve. They depend on the model and the evaluation time only, hence they are
+ *  calculated once and shared by all products (and evaluation contexts) on the same model. The weights of the rebucketing on the
+ *  SIMM buckets depend on the risk factor days of the tenor grid of the model and the weights of the linear melting on the days
+ *  since the start of the melting; they are kept with the transformations.
+ *
+ *  The matrices are kept as <code> RandomVariableMatrix </code> in a <code> MemoryBoundedCache </code> per model (thread safe, unbounded
+ *  by default), keyed by evaluation time and transformation, by the risk factor days or by the melting days. The cache of a model is released with the model.
+ *
+ */
+public final class SensitivityTransformCache {
+
+	/** The transformations, with the curve they apply to.
+	 */
+	public enum Transform {
+		LiborTimeGridAdjustment,	// dL/dL, forward curve
+		LiborSwapSensitivity,		// dL/dS, forward curve
+		BondSwapSensitivity			// dP/dS, OIS curve
+	}
+
+	// The values must not reference the model (key of the weak map)
+	private static final Map<LIBORModelMonteCarloSimulationInterface, MemoryBoundedCache<Object, RandomVariableMatrix>> transformsByModel =
+			Collections.synchronizedMap(new WeakHashMap<LIBORModelMonteCarloSimulationInterface, MemoryBoundedCache<Object, RandomVariableMatrix>>());
+
+	private SensitivityTransformCache(){
+	}
+
+	/** Returns the Libor time grid adjustment <code> dL/dL </code>, see <code> AbstractSIMMSensitivityCalculation.getLiborTimeGridAdjustment </code>.
+	 *
+	 * @param model The Libor market model
+	 * @param evaluationTime The evaluation time
+	 * @return The time grid adjustment
+	 * @throws CalculationException
+	 */
+	public static RandomVariableMatrix getLiborTimeGridAdjustment(LIBORModelMonteCarloSimulationInterface model, double evaluationTime) throws CalculationException{
+		return getTransforms(model).get(new TransformKey(evaluationTime, Transform.LiborTimeGridAdjustment),
+				key -> new RandomVariableMatrix(AbstractSIMMSensitivityCalculation.getLiborTimeGridAdjustment(evaluationTime, model)));
+	}
+
+	/** Returns the weights <code> dL/dS </code>, see <code> AbstractSIMMSensitivityCalculation.getLiborSwapSensitivities </code>.
+	 *
+	 * @param model The Libor market model
+	 * @param evaluationTime The evaluation time
+	 * @return The weights dL/dS
+	 * @throws CalculationException
+	 */
+	public static RandomVariableMatrix getLiborSwapSensitivities(LIBORModelMonteCarloSimulationInterface model, double evaluationTime) throws CalculationException{
+		return getTransforms(model).get(new TransformKey(evaluationTime, Transform.LiborSwapSensitivity),
+				key -> new RandomVariableMatrix(AbstractSIMMSensitivityCalculation.getLiborSwapSensitivities(evaluationTime, model)));
+	}
+
+	/** Returns the bond swap sensitivities <code> dP/dS </code>, see <code> AbstractSIMMSensitivityCalculation.getBondSwapSensitivity </code>.
+	 *
+	 * @param model The Libor market model
+	 * @param evaluationTime The evaluation time
+	 * @return The bond swap sensitivities
+	 * @throws CalculationException
+	 */
+	public static RandomVariableMatrix getBondSwapSensitivity(LIBORModelMonteCarloSimulationInterface model, double evaluationTime) throws CalculationException{
+		return getTransforms(model).get(new TransformKey(evaluationTime, Transform.BondSwapSensitivity),
+				key -> new RandomVariableMatrix(AbstractSIMMSensitivityCalculation.getBondSwapSensitivity(evaluationTime, model)));
+	}
+
+	/** Returns the weights of the rebucketing on the SIMM buckets, see <code> AbstractSIMMSensitivityCalculation.getRebucketingMatrix </code>.
+	 *
+	 * @param model The Libor market model
+	 * @param riskClass The risk class
+	 * @param riskFactorDays The number of days corresponding to the sensitivities
+	 * @return The rebucketing matrix
+	 */
+	public static RandomVariableMatrix getRebucketingMatrix(LIBORModelMonteCarloSimulationInterface model, String riskClass, int[] riskFactorDays){
+		MemoryBoundedCache<Object, RandomVariableMatrix> transforms = getTransforms(model);
+		RandomVariableMatrix rebucketingMatrix = transforms.get(new RebucketingKey(riskClass, riskFactorDays));
+		if(rebucketingMatrix != null) return rebucketingMatrix;
+		return transforms.putIfAbsent(new RebucketingKey(riskClass, riskFactorDays.clone()), AbstractSIMMSensitivityCalculation.getRebucketingMatrix(riskClass, riskFactorDays));
+	}
+
+	/** Returns the weights of the linear melting on the SIMM buckets, see <code> SIMMSensitivityCalculation.getMeltingMatrix </code>.
+	 *
+	 * @param model The Libor market model
+	 * @param riskClass The risk class
+	 * @param meltingDays The number of days since the start of the melting
+	 * @return The melting matrix
+	 */
+	public static RandomVariableMatrix getMeltingMatrix(LIBORModelMonteCarloSimulationInterface model, String riskClass, int meltingDays){
+		MemoryBoundedCache<Object, RandomVariableMatrix> transforms = getTransforms(model);
+		MeltingKey key = new MeltingKey(riskClass, meltingDays);
+		RandomVariableMatrix meltingMatrix = transforms.get(key);
+		if(meltingMatrix != null) return meltingMatrix;
+		return transforms.putIfAbsent(key, SIMMSensitivityCalculation.getMeltingMatrix(riskClass, meltingDays));
+	}
+
+	/** Set the memory budget of the cache of a model. If the budget is exceeded, the least recently used matrices are evicted and recalculated on request.
+	 *  This is a global setting of the model: the cache is shared by all products and portfolios on the model.
+	 *
+	 * @param model The Libor market model
+	 * @param memoryBudget The memory budget in bytes (<code> MemoryBoundedCache.UNBOUNDED </code> for no limit)
+	 */
+	public static void setMemoryBudget(LIBORModelMonteCarloSimulationInterface model, long memoryBudget){
+		getTransforms(model).setMemoryBudget(memoryBudget);
+	}
+
+	/** Returns the cache of a model, e.g. for its counters of hits, misses and evictions.
+	 *
+	 * @param model The Libor market model
+	 * @return The cache of the transformations of the model
+	 */
+	public static MemoryBoundedCache<?, RandomVariableMatrix> getCache(LIBORModelMonteCarloSimulationInterface model){
+		return getTransforms(model);
+	}
+
+	private static MemoryBoundedCache<Object, RandomVariableMatrix> getTransforms(LIBORModelMonteCarloSimulationInterface model){
+		synchronized (transformsByModel) {
+			MemoryBoundedCache<Object, RandomVariableMatrix> transforms = transformsByModel.get(model);
+			if(transforms == null) {
+				transforms = new MemoryBoundedCache<>(MemoryBoundedCache.UNBOUNDED, RandomVariableMatrix::getSizeInBytes);
+				transformsByModel.put(model, transforms);
+			}
+			return transforms;
+		}
+	}
+
+	private static final class TransformKey {
+		private final double    evaluationTime;
+		private final Transform transform;
+
+		private TransformKey(double evaluationTime, Transform transform){
+			this.evaluationTime = evaluationTime;
+			this.transform = transform;
+		}
+
+		@Override
+		public boolean equals(Object other){
+			if(!(other instanceof TransformKey)) return false;
+			TransformKey key = (TransformKey) other;
+			return Double.compare(evaluationTime, key.evaluationTime) == 0 && transform == key.transform;
+		}
+
+		@Override
+		public int hashCode(){
+			return 31 * Double.hashCode(evaluationTime) + transform.ordinal();
+		}
+	}
+
+	private static final class RebucketingKey {
+		private final String riskClass;
+		private final int[]  riskFactorDays;
+
+		private RebucketingKey(String riskClass, int[] riskFactorDays){
+			this.riskClass = riskClass;
+			this.riskFactorDays = riskFactorDays;
+		}
+
+		@Override
+		public boolean equals(Object other){
+			if(!(other instanceof RebucketingKey)) return false;
+			RebucketingKey key = (RebucketingKey) other;
+			return riskClass.equals(key.riskClass) && Arrays.equals(riskFactorDays, key.riskFactorDays);
+		}
+
+		@Override
+		public int hashCode(){
+			return 31 * riskClass.hashCode() + Arrays.hashCode(riskFactorDays);
+		}
+	}
+
+	private static final class MeltingKey {
+		private final String riskClass;
+		private final int    meltingDays;
+
+		private MeltingKey(String riskClass, int meltingDays){
+			this.riskClass = riskClass;
+			this.meltingDays = meltingDays;
+		}
+
+		@Override
+		public boolean equals(Object other){
+			if(!(other instanceof MeltingKey)) return false;
+			MeltingKey key = (MeltingKey) other;
+			return riskClass.equals(key.riskClass) && meltingDays == key.meltingDays;
+		}
+
+		@Override
+		public int hashCode(){
+			return 31 * riskClass.hashCode() + meltingDays;
+		}
+	}
+}
@@ -8,6 +8,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -16,28 +17,47 @@ import initialmargin.isdasimm.changedfinmath.LIBORMarketModel;
 import initialmargin.isdasimm.changedfinmath.LIBORMarketModel.CalibrationItem;
 import initialmargin.isdasimm.changedfinmath.LIBORModelInterface;
 import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulation;
+import initialmargin.isdasimm.changedfinmath.LIBORMarketModelWithTenorRefinement;
 import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
+import initialmargin.isdasimm.changedfinmath.TermStructureModelMonteCarloSimulation;
+import initialmargin.isdasimm.changedfinmath.modelplugins.AbstractLIBORCovarianceModel;
 import initialmargin.isdasimm.changedfinmath.modelplugins.AbstractLIBORCovarianceModelParametric;
 import initialmargin.isdasimm.changedfinmath.modelplugins.BlendedLocalVolatilityModel;
 import initialmargin.isdasimm.changedfinmath.modelplugins.LIBORCovarianceModelFromVolatilityAndCorrelation;
 import initialmargin.isdasimm.changedfinmath.modelplugins.LIBORVolatilityModel;
+import initialmargin.isdasimm.changedfinmath.modelplugins.LIBORVolatilityModelFourParameterExponentialForm;
 import initialmargin.isdasimm.changedfinmath.modelplugins.LIBORVolatilityModelPiecewiseConstant;
 import initialmargin.isdasimm.changedfinmath.products.SwaptionSimple;
 import initialmargin.isdasimm.changedfinmath.products.AbstractLIBORMonteCarloProduct;
 import net.finmath.exception.CalculationException;
+import net.finmath.functions.AnalyticFormulas;
 import net.finmath.marketdata.model.curves.DiscountCurve;
 import net.finmath.marketdata.model.curves.DiscountCurveInterface;
 import net.finmath.marketdata.model.curves.ForwardCurve;
 import net.finmath.marketdata.model.curves.ForwardCurveInterface;
+import net.finmath.marketdata.products.Swap;
+import net.finmath.marketdata.products.SwapAnnuity;
+import net.finmath.montecarlo.AbstractRandomVariableFactory;
+import net.finmath.montecarlo.BrownianMotion;
 import net.finmath.montecarlo.BrownianMotionInterface;
+import net.finmath.montecarlo.RandomVariable;
 import net.finmath.montecarlo.RandomVariableFactory;
+import net.finmath.montecarlo.automaticdifferentiation.RandomVariableDifferentiableInterface;
+import net.finmath.montecarlo.automaticdifferentiation.backward.RandomVariableDifferentiableAAD;
 import net.finmath.montecarlo.interestrate.modelplugins.LIBORCorrelationModel;
 import net.finmath.montecarlo.interestrate.modelplugins.LIBORCorrelationModelExponentialDecay;
+import net.finmath.montecarlo.interestrate.modelplugins.LIBORCovarianceModelExponentialForm5Param;
+import net.finmath.montecarlo.interestrate.modelplugins.TermStructCovarianceModelFromLIBORCovarianceModelParametric;
+import net.finmath.montecarlo.interestrate.modelplugins.TermStructureCovarianceModelInterface;
+import net.finmath.montecarlo.interestrate.modelplugins.TermStructureTenorTimeScalingPicewiseConstant;
 import net.finmath.montecarlo.process.ProcessEulerScheme;
 import net.finmath.optimizer.OptimizerFactoryInterface;
 import net.finmath.optimizer.OptimizerFactoryLevenbergMarquardt;
 import net.finmath.optimizer.SolverException;
+import net.finmath.stochastic.RandomVariableInterface;
+import net.finmath.time.RegularSchedule;
 import net.finmath.time.TimeDiscretization;
+import net.finmath.time.TimeDiscretizationInterface;
 import net.finmath.time.businessdaycalendar.BusinessdayCalendar;
 import net.finmath.time.businessdaycalendar.BusinessdayCalendarExcludingTARGETHolidays;
 import net.finmath.time.daycount.DayCountConventionInterface;
@@ -271,6 +291,637 @@ public class LMMCalibrationTest{
 		Assert.assertTrue(Math.abs(averageDeviation) < 1E-3);
 	}
 	
+	/**
+	 * Compares the forward bonds of the Libor market model, which are ratios of the cached tables of Libor discount factors, with the
+	 * product of the discount factors \( 1/(1+L_i(t)\delta_i) \) calculated for each bond, at simulation times on and between the Libor
+	 * times and for maturities on and between the Libor times.
+	 * 
+	 * @throws CalculationException
+	 */
+	@Test
+	public void testForwardBondLibor() throws CalculationException {
+		LIBORModelMonteCarloSimulationInterface model = SIMMTest.createTestModel(500);
+		TimeDiscretizationInterface liborPeriodDiscretization = model.getLiborPeriodDiscretization();
+
+		for(double evaluationTime : new double[]{0.0, 0.3, 0.5, 1.0, 2.3, 2.5, 7.15}){
+			int timeIndex = model.getTimeDiscretization().getTimeIndexNearestLessOrEqual(evaluationTime);
+			for(double maturity = evaluationTime+0.1; maturity <= liborPeriodDiscretization.getTime(model.getNumberOfLibors()); maturity += 0.35){
+				int firstLiborIndex = liborPeriodDiscretization.getTimeIndex(evaluationTime);
+				int lastLiborIndex  = liborPeriodDiscretization.getTimeIndex(maturity);
+				if(firstLiborIndex == lastLiborIndex) continue;
+
+				// The forward bond P(T;t) as product of the discount factors of the Libor periods
+				int initialIndex = firstLiborIndex < 0 ? -firstLiborIndex-1 : firstLiborIndex;
+				int finalIndex   = lastLiborIndex < 0 ? -lastLiborIndex-2 : lastLiborIndex;
+				double firstLiborTime = liborPeriodDiscretization.getTime(initialIndex);
+				double lastLiborTime  = liborPeriodDiscretization.getTime(finalIndex);
+				RandomVariableInterface bond = new RandomVariable(1.0);
+				if(firstLiborIndex < 0) bond = bond.mult(model.getLIBOR(evaluationTime, evaluationTime, firstLiborTime).mult(firstLiborTime-evaluationTime).add(1.0).invert());
+				if(lastLiborIndex < 0)  bond = bond.mult(model.getLIBOR(evaluationTime, lastLiborTime, maturity).mult(maturity-lastLiborTime).add(1.0).invert());
+				for(int liborIndex=initialIndex; liborIndex<finalIndex; liborIndex++){
+					bond = bond.mult(model.getLIBOR(timeIndex, liborIndex).mult(liborPeriodDiscretization.getTimeStep(liborIndex)).add(1.0).invert());
+				}
+
+				Assert.assertEquals(0.0, model.getForwardBondLibor(maturity, evaluationTime).sub(bond).div(bond).abs().getMax(), 1E-13);
+			}
+		}
+	}
+
+	/**
+	 * Checks the numeraires of the Libor market model between two Libor period times, served from the numeraire table: the value is
+	 * the log linear interpolation of the numeraires on the Libor period times, times the adjustment to the discount curve.
+	 * 
+	 * @throws CalculationException
+	 */
+	@Test
+	public void testNumeraireInterpolation() throws CalculationException {
+		LIBORModelMonteCarloSimulationInterface model = SIMMTest.createTestModel(500);
+
+		for(double time : new double[]{0.1, 0.3, 1.25, 2.3, 7.15}){
+			int upperIndex = -model.getLiborPeriodDiscretization().getTimeIndex(time)-1;
+			double lowerTime = model.getLiborPeriodDiscretization().getTime(upperIndex-1);
+			double upperTime = model.getLiborPeriodDiscretization().getTime(upperIndex);
+			double alpha = (time-lowerTime)/(upperTime-lowerTime);
+
+			RandomVariableInterface numeraireUpper = model.getNumeraire(upperTime).div(model.getNumeraireAdjustment(upperTime));
+			RandomVariableInterface numeraireLower = model.getNumeraire(lowerTime).div(model.getNumeraireAdjustment(lowerTime));
+			RandomVariableInterface numeraire = numeraireUpper.log().mult(alpha).add(numeraireLower.log().mult(1.0-alpha)).exp();
+			numeraire = numeraire.mult(numeraire.pow(-1.0).getAverage()/model.getModel().getDiscountCurve().getDiscountFactor(time));
+
+			Assert.assertEquals(0.0, model.getNumeraire(time).sub(numeraire).div(numeraire).abs().getMax(), 1E-14);
+		}
+	}
+
+	/**
+	 * The interpolated numeraires are calculated on the AAD tape of the numeraires on the Libor period times, i.e. their derivatives
+	 * w.r.t. these are \( \alpha N(t)/N(T_{i+1}) \) and \( (1-\alpha) N(t)/N(T_i) \).
+	 * 
+	 * @throws CalculationException
+	 */
+	@Test
+	public void testNumeraireInterpolationGradient() throws CalculationException {
+		// Without discount curve the numeraires are not adjusted, the numeraires on the Libor period times are the AAD leaves
+		ForwardCurve forwardCurve = ForwardCurve.createForwardCurveFromForwards("forwardCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0}, new double[] {0.02, 0.02, 0.02, 0.02, 0.02}, 0.5);
+		LIBORModelMonteCarloSimulationInterface model = SIMMTest.createLIBORMarketModel(false, SIMMTest.createRandomVariableFactoryAAD(), 500, 1 /*numberOfFactors*/, null /*discountCurve*/, forwardCurve);
+
+		for(double time : new double[]{0.1, 0.3, 1.25, 2.3, 7.15}){
+			int upperIndex = -model.getLiborPeriodDiscretization().getTimeIndex(time)-1;
+			double lowerTime = model.getLiborPeriodDiscretization().getTime(upperIndex-1);
+			double upperTime = model.getLiborPeriodDiscretization().getTime(upperIndex);
+			double alpha = (time-lowerTime)/(upperTime-lowerTime);
+
+			RandomVariableInterface numeraireUpper = model.getNumeraire(upperTime);
+			RandomVariableInterface numeraireLower = model.getNumeraire(lowerTime);
+			RandomVariableInterface numeraire = model.getNumeraire(time);
+			Map<Long, RandomVariableInterface> gradient = ((RandomVariableDifferentiableInterface)numeraire).getGradient();
+
+			RandomVariableInterface derivativeUpper = gradient.get(((RandomVariableDifferentiableInterface)numeraireUpper).getID());
+			RandomVariableInterface derivativeLower = gradient.get(((RandomVariableDifferentiableInterface)numeraireLower).getID());
+			Assert.assertNotNull(derivativeUpper);
+			Assert.assertNotNull(derivativeLower);
+
+			RandomVariableInterface expectedUpper = numeraire.div(numeraireUpper).mult(alpha);
+			RandomVariableInterface expectedLower = numeraire.div(numeraireLower).mult(1.0-alpha);
+			Assert.assertEquals(0.0, derivativeUpper.sub(expectedUpper).div(expectedUpper).abs().getMax(), 1E-12);
+			Assert.assertEquals(0.0, derivativeLower.sub(expectedLower).div(expectedLower).abs().getMax(), 1E-12);
+		}
+	}
+
+	/**
+	 * The numeraire table is rebuilt when the process of the model changes (here by a simulation with a modified seed on the same model):
+	 * the recorded adjustments of the previous process are cleared and the numeraires of the new process agree with the lazily filled
+	 * table of a fresh model with the same seed.
+	 * 
+	 * @throws CalculationException
+	 */
+	@Test
+	public void testNumeraireTableRebuild() throws CalculationException {
+		LIBORModelMonteCarloSimulationInterface model = SIMMTest.createTestModel(500);
+		LIBORMarketModel liborMarketModel = (LIBORMarketModel)model.getModel();
+
+		model.getNumeraire(1.25);
+		model.getNumeraire(3.0);
+		Assert.assertEquals(2, liborMarketModel.getNumeraireAdjustmentMap().size());
+
+		LIBORModelMonteCarloSimulationInterface modelWithModifiedSeed = (LIBORModelMonteCarloSimulationInterface)((LIBORModelMonteCarloSimulation)model).getCloneWithModifiedSeed(1234);
+		Assert.assertSame(liborMarketModel, modelWithModifiedSeed.getModel());
+		RandomVariableInterface numeraire = modelWithModifiedSeed.getNumeraire(2.3);
+		Assert.assertEquals(1, liborMarketModel.getNumeraireAdjustmentMap().size());
+		Assert.assertSame(modelWithModifiedSeed.getNumeraireAdjustment(2.3), liborMarketModel.getNumeraireAdjustmentMap().get(2.3));
+
+		LIBORModelMonteCarloSimulationInterface freshModel = (LIBORModelMonteCarloSimulationInterface)((LIBORModelMonteCarloSimulation)SIMMTest.createTestModel(500)).getCloneWithModifiedSeed(1234);
+		RandomVariableInterface freshNumeraire = freshModel.getNumeraire(2.3);
+		Assert.assertEquals(0.0, numeraire.sub(freshNumeraire).abs().getMax(), 0.0);
+		for(double time : new double[]{1.0, 1.25, 3.0}) {
+			Assert.assertEquals(0.0, modelWithModifiedSeed.getNumeraire(time).sub(freshModel.getNumeraire(time)).abs().getMax(), 0.0);
+		}
+	}
+
+	/**
+	 * Compares the factor loadings and variances of <code> LIBORCovarianceModelFromVolatilityAndCorrelation </code>, which are kept per
+	 * time index, with the calculation from the volatility and the correlation model on every request, for deterministic and for AAD
+	 * volatilities. A <code> BlendedLocalVolatilityModel </code> delegates the values of the factor loadings to this model, scaled on
+	 * deterministic Libors. The simulations with the scalar factor loadings of the drift and with the uncached covariance model (or a
+	 * blended model without the values) are bit-identical (spot and terminal measure, normal and log-normal state space).
+	 * 
+	 * @throws CalculationException
+	 */
+	@Test
+	public void testFactorLoadingCache() throws CalculationException {
+		TimeDiscretization timeDiscretization = new TimeDiscretization(0.0, 40, 0.25);
+		TimeDiscretization liborPeriodDiscretization = new TimeDiscretization(0.0, 20, 0.5);
+		for(AbstractRandomVariableFactory randomVariableFactory : new AbstractRandomVariableFactory[]{new RandomVariableFactory(), SIMMTest.createRandomVariableFactoryAAD()}){
+			LIBORCovarianceModelFromVolatilityAndCorrelation covarianceModel = createCovarianceModel(randomVariableFactory, timeDiscretization, liborPeriodDiscretization);
+			UncachedCovarianceModel uncachedCovarianceModel = new UncachedCovarianceModel(covarianceModel);
+			BlendedLocalVolatilityModel blendedCovarianceModel = new BlendedLocalVolatilityModel(randomVariableFactory, covarianceModel, 0.5 /*displacement*/, false);
+			RandomVariableInterface[] deterministicLibors = new RandomVariableInterface[liborPeriodDiscretization.getNumberOfTimeSteps()];
+			RandomVariableInterface[] stochasticLibors = new RandomVariableInterface[liborPeriodDiscretization.getNumberOfTimeSteps()];
+			Arrays.fill(deterministicLibors, new RandomVariable(0.02));
+			Arrays.fill(stochasticLibors, new RandomVariable(0.0, new double[]{0.01, 0.03}));
+			for(int timeIndex=0; timeIndex<timeDiscretization.getNumberOfTimeSteps(); timeIndex++){
+				for(int component=0; component<liborPeriodDiscretization.getNumberOfTimeSteps(); component++){
+					RandomVariableInterface[] factorLoading = covarianceModel.getFactorLoading(timeIndex, component, null);
+					RandomVariableInterface[] uncachedFactorLoading = uncachedCovarianceModel.getFactorLoading(timeIndex, component, null);
+					double[] factorLoadingValues = covarianceModel.getFactorLoadingValues(timeDiscretization.getTime(timeIndex), liborPeriodDiscretization.getTime(component), null);
+					Assert.assertNull(uncachedCovarianceModel.getFactorLoadingValues(timeIndex, component, null));
+					Assert.assertSame(factorLoadingValues, blendedCovarianceModel.getFactorLoadingValues(timeIndex, component, null));
+					Assert.assertNull(blendedCovarianceModel.getFactorLoadingValues(timeIndex, component, stochasticLibors));
+					double[] blendedFactorLoadingValues = blendedCovarianceModel.getFactorLoadingValues(timeIndex, component, deterministicLibors);
+					RandomVariableInterface[] blendedFactorLoading = blendedCovarianceModel.getFactorLoading(timeIndex, component, deterministicLibors);
+					Assert.assertEquals(factorLoadingValues != null, blendedFactorLoadingValues != null);
+					for(int factorIndex=0; factorIndex<blendedFactorLoading.length; factorIndex++){
+						if(blendedFactorLoadingValues != null) Assert.assertEquals(blendedFactorLoading[factorIndex].get(0), blendedFactorLoadingValues[factorIndex], 0.0);
+					}
+					Assert.assertSame(factorLoading, covarianceModel.getFactorLoading(timeIndex, component, null));
+					Assert.assertEquals(randomVariableFactory instanceof RandomVariableFactory, factorLoadingValues != null);
+					for(int factorIndex=0; factorIndex<factorLoading.length; factorIndex++){
+						Assert.assertEquals(uncachedFactorLoading[factorIndex].get(0), factorLoading[factorIndex].get(0), 0.0);
+						if(factorLoadingValues != null) Assert.assertEquals(uncachedFactorLoading[factorIndex].get(0), factorLoadingValues[factorIndex], 0.0);
+					}
+					Assert.assertEquals(uncachedCovarianceModel.getCovariance(timeIndex, component, component, null).get(0), covarianceModel.getCovariance(timeIndex, component, component, null).get(0), 0.0);
+				}
+			}
+		}
+
+		for(boolean isBlended : new boolean[]{false, true}){
+			for(LIBORMarketModel.Measure measure : new LIBORMarketModel.Measure[]{LIBORMarketModel.Measure.SPOT, LIBORMarketModel.Measure.TERMINAL}){
+				for(LIBORMarketModel.StateSpace stateSpace : LIBORMarketModel.StateSpace.values()){
+					LIBORCovarianceModelFromVolatilityAndCorrelation covarianceModel = createCovarianceModel(new RandomVariableFactory(), timeDiscretization, liborPeriodDiscretization);
+					LIBORModelMonteCarloSimulationInterface model;
+					LIBORModelMonteCarloSimulationInterface uncachedModel;
+					if(isBlended) {
+						model = createSimulation(new BlendedLocalVolatilityModel(new RandomVariableFactory(), covarianceModel, 0.5 /*displacement*/, false), measure, stateSpace);
+						uncachedModel = createSimulation(new BlendedLocalVolatilityModel(new RandomVariableFactory(), covarianceModel, 0.5 /*displacement*/, false) {
+							@Override
+							public double[] getFactorLoadingValues(int timeIndex, int component, RandomVariableInterface[] realizationAtTimeIndex){
+								return null;
+							}
+						}, measure, stateSpace);
+					}
+					else {
+						model = createSimulation(covarianceModel, measure, stateSpace);
+						uncachedModel = createSimulation(new UncachedCovarianceModel(covarianceModel), measure, stateSpace);
+					}
+					for(int timeIndex=0; timeIndex<timeDiscretization.getNumberOfTimes(); timeIndex++){
+						for(int liborIndex=0; liborIndex<liborPeriodDiscretization.getNumberOfTimeSteps(); liborIndex++){
+							// Libors which have fixed are not simulated further
+							if(timeIndex > 0 && liborPeriodDiscretization.getTime(liborIndex) <= timeDiscretization.getTime(timeIndex)) continue;
+							Assert.assertEquals(0.0, model.getLIBOR(timeIndex, liborIndex).sub(uncachedModel.getLIBOR(timeIndex, liborIndex)).abs().getMax(), 0.0);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compares the drift of the Libor market model calculated on the realizations with the drift on random variables, for deterministic
+	 * (scalar) and state dependent factor loadings, in the spot and terminal measure and both state spaces, at all time indices. Values
+	 * and filtration times are identical. For AAD Libors the drift is calculated on random variables and has the same values.
+	 * 
+	 * @throws CalculationException
+	 */
+	@Test
+	public void testDriftOnRealizations() throws CalculationException {
+		TimeDiscretization timeDiscretization = new TimeDiscretization(0.0, 40, 0.25);
+		TimeDiscretization liborPeriodDiscretization = new TimeDiscretization(0.0, 20, 0.5);
+		Random random = new Random(2017);
+		for(boolean isStateDependent : new boolean[]{false, true}){
+			for(LIBORMarketModel.Measure measure : new LIBORMarketModel.Measure[]{LIBORMarketModel.Measure.SPOT, LIBORMarketModel.Measure.TERMINAL}){
+				for(LIBORMarketModel.StateSpace stateSpace : LIBORMarketModel.StateSpace.values()){
+					AbstractLIBORCovarianceModel covarianceModel = createCovarianceModel(new RandomVariableFactory(), timeDiscretization, liborPeriodDiscretization);
+					if(isStateDependent) covarianceModel = new BlendedLocalVolatilityModel(new RandomVariableFactory(), (AbstractLIBORCovarianceModelParametric)covarianceModel, 0.5 /*displacement*/, false);
+					LIBORMarketModel model = (LIBORMarketModel)createSimulation(covarianceModel, measure, stateSpace).getModel();
+
+					for(int timeIndex=0; timeIndex<timeDiscretization.getNumberOfTimeSteps(); timeIndex++){
+						// Libors around 2% on the paths, one of them deterministic
+						RandomVariableInterface[] realizations = new RandomVariableInterface[model.getNumberOfComponents()];
+						for(int componentIndex=0; componentIndex<realizations.length; componentIndex++){
+							double[] values = new double[200];
+							for(int path=0; path<values.length; path++) values[path] = 0.02 + 0.005*random.nextGaussian();
+							realizations[componentIndex] = componentIndex == realizations.length-2 ? new RandomVariable(0.02) : new RandomVariable(model.getTime(timeIndex), values);
+						}
+						RandomVariableInterface[] drift = model.getDrift(timeIndex, realizations, null);
+						RandomVariableInterface[] expected = getDriftOnRandomVariables(model, stateSpace, timeIndex, realizations);
+						Assert.assertEquals(expected.length, drift.length);
+						for(int componentIndex=0; componentIndex<expected.length; componentIndex++){
+							if(expected[componentIndex] == null) {
+								Assert.assertNull(drift[componentIndex]);
+								continue;
+							}
+							Assert.assertEquals(expected[componentIndex].getFiltrationTime(), drift[componentIndex].getFiltrationTime(), 0.0);
+							Assert.assertEquals(0.0, expected[componentIndex].sub(drift[componentIndex]).abs().getMax(), 0.0);
+						}
+
+						if(isStateDependent && timeIndex == 4) {
+							RandomVariableInterface[] driftAAD = model.getDrift(timeIndex, Arrays.stream(realizations).map(RandomVariableDifferentiableAAD::new).toArray(RandomVariableInterface[]::new), null);
+							for(int componentIndex=0; componentIndex<expected.length; componentIndex++){
+								if(expected[componentIndex] != null) Assert.assertEquals(0.0, expected[componentIndex].sub(driftAAD[componentIndex]).abs().getMax(), 0.0);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The drift of <code> LIBORMarketModel.getDrift </code> on random variables.
+	 */
+	private static RandomVariableInterface[] getDriftOnRandomVariables(LIBORMarketModel model, LIBORMarketModel.StateSpace stateSpace, int timeIndex, RandomVariableInterface[] realizationAtTimeIndex){
+		double	time				= model.getTime(timeIndex);
+		int		firstLiborIndex		= model.getLiborPeriodIndex(time)+1;
+		if(firstLiborIndex<0) firstLiborIndex = -firstLiborIndex-1 + 1;
+		int		numberOfComponents	= model.getNumberOfComponents();
+		int		numberOfFactors		= model.getNumberOfFactors();
+
+		RandomVariableInterface		zero	= model.getRandomVariableForConstant(0.0);
+		RandomVariableInterface[]	drift	= new RandomVariableInterface[numberOfComponents];
+		for(int componentIndex=firstLiborIndex; componentIndex<numberOfComponents; componentIndex++) drift[componentIndex] = zero;
+
+		RandomVariableInterface[]	covarianceFactorSums	= new RandomVariableInterface[numberOfFactors];
+		for(int factorIndex=0; factorIndex<numberOfFactors; factorIndex++) covarianceFactorSums[factorIndex] = zero;
+
+		for(int step=0; step<numberOfComponents-firstLiborIndex; step++) {
+			int componentIndex = model.getMeasure() == LIBORMarketModel.Measure.SPOT ? firstLiborIndex+step : numberOfComponents-1-step;
+			double					periodLength	= model.getLiborPeriodDiscretization().getTimeStep(componentIndex);
+			RandomVariableInterface	libor			= realizationAtTimeIndex[componentIndex];
+			RandomVariableInterface	oneStepMeasureTransform = model.getRandomVariableForConstant(periodLength).discount(libor, periodLength);
+			if(stateSpace == LIBORMarketModel.StateSpace.LOGNORMAL) oneStepMeasureTransform = oneStepMeasureTransform.mult(libor);
+
+			RandomVariableInterface[]	factorLoading	= model.getFactorLoading(timeIndex, componentIndex, realizationAtTimeIndex);
+			for(int factorIndex=0; factorIndex<numberOfFactors; factorIndex++) {
+				if(model.getMeasure() == LIBORMarketModel.Measure.SPOT) {
+					covarianceFactorSums[factorIndex] = covarianceFactorSums[factorIndex].add(oneStepMeasureTransform.mult(factorLoading[factorIndex]));
+					drift[componentIndex] = drift[componentIndex].addProduct(covarianceFactorSums[factorIndex], factorLoading[factorIndex]);
+				}
+				else {
+					drift[componentIndex] = drift[componentIndex].addProduct(covarianceFactorSums[factorIndex], factorLoading[factorIndex]);
+					covarianceFactorSums[factorIndex] = covarianceFactorSums[factorIndex].sub(oneStepMeasureTransform.mult(factorLoading[factorIndex]));
+				}
+			}
+		}
+
+		if(stateSpace == LIBORMarketModel.StateSpace.LOGNORMAL) {
+			for(int componentIndex=firstLiborIndex; componentIndex<numberOfComponents; componentIndex++) {
+				RandomVariableInterface		variance		= model.getCovarianceModel().getCovariance(time, componentIndex, componentIndex, realizationAtTimeIndex);
+				drift[componentIndex] = drift[componentIndex].addProduct(variance, -0.5);
+			}
+		}
+		return drift;
+	}
+
+	/**
+	 * Compares the state variables of <code> LIBORMarketModelWithTenorRefinement </code>, which sums the state variables of the full
+	 * periods as a difference of prefix sums, with the loop over the periods (<code> getStateVariableForPeriod </code>) on the same
+	 * simulated state variables, for periods on the tenor discretization and periods with partial boundary periods.
+	 * 
+	 * @throws CalculationException
+	 */
+	@Test
+	public void testTenorRefinementStateVariables() throws CalculationException {
+		TimeDiscretization timeDiscretization = new TimeDiscretization(0.0, 20, 0.25);
+		TimeDiscretizationInterface[] liborPeriodDiscretizations = new TimeDiscretizationInterface[]{
+				new TimeDiscretization(0.0, 80, 0.25), new TimeDiscretization(0.0, 40, 0.5), new TimeDiscretization(0.0, 20, 1.0)};
+		Integer[] numberOfDiscretizationIntervalls = new Integer[]{4, 4, 100};
+
+		DiscountCurve discountCurve = DiscountCurve.createDiscountCurveFromDiscountFactors("discountCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0}, new double[] {0.996 , 0.995, 0.994, 0.993, 0.98});
+		ForwardCurve forwardCurve = ForwardCurve.createForwardCurveFromForwards("forwardCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0}, new double[] {0.02, 0.021, 0.022, 0.025, 0.03}, 0.5);
+		double[] tenorTimeScalingParameters = new double[liborPeriodDiscretizations[0].getNumberOfTimeSteps()];
+		for(int timeIndex=0; timeIndex<tenorTimeScalingParameters.length; timeIndex++) tenorTimeScalingParameters[timeIndex] = 0.1*Math.sin(timeIndex);
+		TermStructureCovarianceModelInterface covarianceModel = new TermStructCovarianceModelFromLIBORCovarianceModelParametric(
+				new TermStructureTenorTimeScalingPicewiseConstant(liborPeriodDiscretizations[0], tenorTimeScalingParameters),
+				new LIBORCovarianceModelExponentialForm5Param(timeDiscretization, liborPeriodDiscretizations[0], 3 /*numberOfFactors*/, new double[] { 0.20/100.0, 0.05/100.0, 0.10, 0.05/100.0, 0.10}));
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("stateSpace", "NORMAL");
+		LIBORMarketModelWithTenorRefinement model = new LIBORMarketModelWithTenorRefinement(liborPeriodDiscretizations, numberOfDiscretizationIntervalls,
+				null, forwardCurve, discountCurve, covarianceModel, null, properties);
+		new TermStructureModelMonteCarloSimulation(model, new ProcessEulerScheme(new BrownianMotion(timeDiscretization, 3 /*numberOfFactors*/, 500 /*numberOfPaths*/, 3141 /*seed*/)));
+
+		double[][] periods = new double[][]{{0.0, 0.25}, {1.0, 2.0}, {2.0, 5.0}, {3.0, 10.0}, {1.25, 4.5}, {2.75, 7.75}, {4.75, 15.5}};
+		for(int timeIndex=0; timeIndex<timeDiscretization.getNumberOfTimeSteps(); timeIndex+=3){
+			double time = timeDiscretization.getTime(timeIndex);
+			TimeDiscretizationInterface liborPeriodDiscretization = getTenorDiscretization(liborPeriodDiscretizations, numberOfDiscretizationIntervalls, time);
+			// The state variables and integrated variances of the periods of the tenor discretization at the time
+			RandomVariableInterface[] stateVariables = new RandomVariableInterface[model.getNumberOfComponents()];
+			for(int periodIndex=0; periodIndex<Math.min(liborPeriodDiscretization.getNumberOfTimeSteps(), model.getNumberOfLibors()); periodIndex++){
+				stateVariables[periodIndex] = model.getProcessValue(timeIndex, periodIndex);
+				stateVariables[model.getNumberOfLibors()+periodIndex] = model.getProcessValue(timeIndex, model.getNumberOfLibors()+periodIndex);
+			}
+
+			for(double[] period : periods){
+				double periodStart = period[0] + Math.ceil(time);
+				double periodEnd = period[1] + Math.ceil(time);
+				if(periodEnd > liborPeriodDiscretization.getTime(liborPeriodDiscretization.getNumberOfTimeSteps())) continue;
+
+				RandomVariableInterface stateVariable = model.getStateVariable(timeIndex, periodStart, periodEnd);
+				RandomVariableInterface stateVariableLoop = model.getStateVariableForPeriod(liborPeriodDiscretization, stateVariables, periodStart, periodEnd);
+				// The sums are added in a different order, relative deviation (absolute for the vanishing state variables at time 0)
+				double scale = stateVariableLoop.abs().getMax() > 0 ? stateVariableLoop.abs().getMax() : 1.0;
+				Assert.assertEquals(0.0, stateVariable.sub(stateVariableLoop).abs().getMax()/scale, 1E-12);
+			}
+		}
+	}
+
+	/**
+	 * The tenor discretization of the tenor refinement model at a time (as its private <code> calculateLiborPeriodDiscretization </code>).
+	 */
+	private static TimeDiscretizationInterface getTenorDiscretization(TimeDiscretizationInterface[] liborPeriodDiscretizations, Integer[] numberOfDiscretizationIntervalls, double time){
+		ArrayList<Double> tenorTimes = new ArrayList<Double>();
+		double firstTime	= liborPeriodDiscretizations[0].getTime(liborPeriodDiscretizations[0].getTimeIndexNearestLessOrEqual(time));
+		double lastTime		= firstTime;
+		tenorTimes.add(firstTime);
+		for(int discretizationLevelIndex = 0; discretizationLevelIndex<liborPeriodDiscretizations.length; discretizationLevelIndex++) {
+			int tenorIntervallStartIndex = liborPeriodDiscretizations[discretizationLevelIndex].getTimeIndexNearestLessOrEqual(lastTime)+1;
+			for(int tenorIntervall=0; tenorIntervall<numberOfDiscretizationIntervalls[discretizationLevelIndex]; tenorIntervall++) {
+				if(tenorIntervallStartIndex+tenorIntervall >= liborPeriodDiscretizations[discretizationLevelIndex].getNumberOfTimes()) break;
+				lastTime = liborPeriodDiscretizations[discretizationLevelIndex].getTime(tenorIntervallStartIndex+tenorIntervall);
+				lastTime = liborPeriodDiscretizations[0].getTime(liborPeriodDiscretizations[0].getTimeIndexNearestLessOrEqual(lastTime));
+				tenorTimes.add(lastTime);
+			}
+		}
+		return new TimeDiscretization(tenorTimes);
+	}
+
+	/**
+	 * Calibrates the covariance model to ATM swaptions: the products valued in the calling thread (default) and on four threads give
+	 * identical parameters, and for AAD parameters the Levenberg-Marquardt solver with the AAD Jacobian (<tt>jacobianByAAD</tt>)
+	 * calibrates to the same error as the default finite differences.
+	 * 
+	 * @throws CalculationException
+	 */
+	@Test
+	public void testCovarianceCalibration() throws CalculationException {
+		BrownianMotionInterface brownianMotion = new BrownianMotion(new TimeDiscretization(0.0, 20, 0.5), 3 /*numberOfFactors*/, 500 /*numberOfPaths*/, 31415 /*seed*/);
+		Map<String, Object> calibrationParameters = new HashMap<String, Object>();
+		calibrationParameters.put("brownianMotion", brownianMotion);
+		calibrationParameters.put("maxIterations", 20);
+		calibrationParameters.put("accuracy", 1E-7);
+
+		for(AbstractRandomVariableFactory randomVariableFactory : new AbstractRandomVariableFactory[]{new RandomVariableFactory(), SIMMTest.createRandomVariableFactoryAAD()}){
+			AbstractLIBORCovarianceModelParametric covarianceModel = createCalibrationCovarianceModel(randomVariableFactory);
+			LIBORMarketModel calibrationModel = createCalibrationModel(covarianceModel, randomVariableFactory, LIBORMarketModel.StateSpace.NORMAL);
+			AbstractLIBORMonteCarloProduct[] calibrationProducts = new AbstractLIBORMonteCarloProduct[5];
+			double[] calibrationTargetValues = new double[calibrationProducts.length];
+			for(int i=0; i<calibrationProducts.length; i++){
+				// ATM swaptions on normal volatilities from 0.6% to 0.8%
+				CalibrationItem calibrationItem = createCalibrationItem(1.0, 1.0+1.5*i, 0.5, 4+2*(i%2), 0.0, 0.006+0.0005*i, "VOLATILITYNORMAL", calibrationModel.getForwardRateCurve(), calibrationModel.getDiscountCurve());
+				calibrationProducts[i] = calibrationItem.calibrationProduct;
+				calibrationTargetValues[i] = calibrationItem.calibrationTargetValue;
+			}
+
+			if(randomVariableFactory instanceof RandomVariableFactory) {
+				double[] parameters = covarianceModel.getCloneCalibrated(calibrationModel, calibrationProducts, calibrationTargetValues, null, calibrationParameters).getParameter();
+				calibrationParameters.put("numberOfThreads", 4);
+				double[] parametersParallel = covarianceModel.getCloneCalibrated(calibrationModel, calibrationProducts, calibrationTargetValues, null, calibrationParameters).getParameter();
+				calibrationParameters.remove("numberOfThreads");
+				Assert.assertFalse(Arrays.equals(covarianceModel.getParameter(), parameters));
+				Assert.assertArrayEquals(parameters, parametersParallel, 0.0);
+			}
+			else {
+				double errorFiniteDifferences = getCalibrationError(covarianceModel.getCloneCalibrated(calibrationModel, calibrationProducts, calibrationTargetValues, null, calibrationParameters), calibrationModel, calibrationProducts, calibrationTargetValues, brownianMotion);
+				calibrationParameters.put("jacobianByAAD", Boolean.TRUE);
+				double errorAAD = getCalibrationError(covarianceModel.getCloneCalibrated(calibrationModel, calibrationProducts, calibrationTargetValues, null, calibrationParameters), calibrationModel, calibrationProducts, calibrationTargetValues, brownianMotion);
+				Assert.assertEquals(errorFiniteDifferences, errorAAD, 1E-5);
+				Assert.assertTrue(errorAAD < 0.1*getCalibrationError(covarianceModel, calibrationModel, calibrationProducts, calibrationTargetValues, brownianMotion));
+			}
+		}
+	}
+
+	/**
+	 * The derivatives of the differentiable implied volatilities (and variances) of <code>SwaptionSimple</code> with respect to the
+	 * covariance parameters are the derivatives of the value times d vol / d value (finite difference of the implied volatility function).
+	 * 
+	 * @throws CalculationException
+	 */
+	@Test
+	public void testImpliedVolatilityDerivative() throws CalculationException {
+		AbstractRandomVariableFactory randomVariableFactory = SIMMTest.createRandomVariableFactoryAAD();
+		AbstractLIBORCovarianceModelParametric covarianceModel = createCalibrationCovarianceModel(randomVariableFactory);
+		LIBORMarketModel model = createCalibrationModel(covarianceModel, randomVariableFactory, LIBORMarketModel.StateSpace.NORMAL);
+		LIBORModelMonteCarloSimulation simulation = new LIBORModelMonteCarloSimulation(model, new ProcessEulerScheme(new BrownianMotion(new TimeDiscretization(0.0, 20, 0.5), 3 /*numberOfFactors*/, 1000 /*numberOfPaths*/, 31415 /*seed*/)));
+
+		double[] swapTenor = new double[]{2.0, 2.5, 3.0, 3.5, 4.0};
+		// as SwaptionSimple: the model has no analytic model, hence the swap rate and the annuity are those of the forward curve
+		double parSwaprate = Swap.getForwardSwapRate(new RegularSchedule(new TimeDiscretization(swapTenor)), new RegularSchedule(new TimeDiscretization(swapTenor)), model.getForwardRateCurve(), null);
+		double swapAnnuity = SwapAnnuity.getSwapAnnuity(new TimeDiscretization(swapTenor), model.getForwardRateCurve());
+		double optionMaturity = swapTenor[0];
+		double swaprate = parSwaprate + 0.002;
+
+		RandomVariableInterface value = new SwaptionSimple(swaprate, swapTenor, SwaptionSimple.ValueUnit.VALUE).getValue(0.0, simulation);
+		Map<Long, RandomVariableInterface> valueGradient = ((RandomVariableDifferentiableInterface)value.average()).getGradient();
+
+		int numberOfDerivatives = 0;
+		for(SwaptionSimple.ValueUnit valueUnit : new SwaptionSimple.ValueUnit[]{SwaptionSimple.ValueUnit.VOLATILITYNORMAL, SwaptionSimple.ValueUnit.INTEGRATEDNORMALVARIANCE, SwaptionSimple.ValueUnit.VOLATILITYLOGNORMAL, SwaptionSimple.ValueUnit.INTEGRATEDLOGNORMALVARIANCE}){
+			boolean isNormal = valueUnit == SwaptionSimple.ValueUnit.VOLATILITYNORMAL || valueUnit == SwaptionSimple.ValueUnit.INTEGRATEDNORMALVARIANCE;
+			boolean isVariance = valueUnit == SwaptionSimple.ValueUnit.INTEGRATEDNORMALVARIANCE || valueUnit == SwaptionSimple.ValueUnit.INTEGRATEDLOGNORMALVARIANCE;
+
+			RandomVariableInterface impliedVolatility = new SwaptionSimple(swaprate, swapTenor, valueUnit).getValue(0.0, simulation);
+			Assert.assertEquals(getImpliedVolatility(value.getAverage(), isNormal, isVariance, parSwaprate, optionMaturity, swaprate, swapAnnuity), impliedVolatility.getAverage(), 0.0);
+
+			double valueShift = 1E-6 * value.getAverage();
+			double impliedVolatilityDerivative = (getImpliedVolatility(value.getAverage()+valueShift, isNormal, isVariance, parSwaprate, optionMaturity, swaprate, swapAnnuity)
+					- getImpliedVolatility(value.getAverage()-valueShift, isNormal, isVariance, parSwaprate, optionMaturity, swaprate, swapAnnuity)) / (2 * valueShift);
+
+			Map<Long, RandomVariableInterface> impliedVolatilityGradient = ((RandomVariableDifferentiableInterface)impliedVolatility).getGradient();
+			for(RandomVariableInterface parameter : covarianceModel.getParameterAsRandomVariable()){
+				RandomVariableInterface valueDerivative = valueGradient.get(((RandomVariableDifferentiableInterface)parameter).getID());
+				RandomVariableInterface derivative = impliedVolatilityGradient.get(((RandomVariableDifferentiableInterface)parameter).getID());
+				if(valueDerivative == null || valueDerivative.getAverage() == 0.0) {
+					Assert.assertTrue(derivative == null || derivative.getAverage() == 0.0);
+					continue;
+				}
+				double expected = valueDerivative.getAverage() * impliedVolatilityDerivative;
+				Assert.assertEquals(expected, derivative.getAverage(), 1E-7 * Math.abs(expected));
+				numberOfDerivatives++;
+			}
+		}
+		Assert.assertTrue(numberOfDerivatives > 0);
+	}
+
+	private static double getImpliedVolatility(double value, boolean isNormal, boolean isVariance, double parSwaprate, double optionMaturity, double swaprate, double swapAnnuity){
+		double volatility = isNormal ? AnalyticFormulas.bachelierOptionImpliedVolatility(parSwaprate, optionMaturity, swaprate, swapAnnuity, value)
+				: AnalyticFormulas.blackScholesOptionImpliedVolatility(parSwaprate, optionMaturity, swaprate, swapAnnuity, value);
+		return isVariance ? volatility * volatility * optionMaturity : volatility;
+	}
+
+	/**
+	 * The analytic approximation of <code>SwaptionSimple</code> agrees with its Monte-Carlo value in the normal and the lognormal
+	 * state space, for all value units.
+	 * 
+	 * @throws CalculationException
+	 */
+	@Test
+	public void testSwaptionAnalyticApproximation() throws CalculationException {
+		BrownianMotionInterface brownianMotion = new BrownianMotion(new TimeDiscretization(0.0, 20, 0.5), 3 /*numberOfFactors*/, 5000 /*numberOfPaths*/, 27182 /*seed*/);
+		double[][] swapTenors = new double[][]{{1.0, 1.5, 2.0, 2.5, 3.0}, {3.0, 3.5, 4.0, 4.5, 5.0, 5.5, 6.0}, {5.0, 5.5, 6.0}};
+
+		for(LIBORMarketModel.StateSpace stateSpace : LIBORMarketModel.StateSpace.values()){
+			AbstractLIBORCovarianceModelParametric covarianceModel = createCalibrationCovarianceModel(new RandomVariableFactory());
+			if(stateSpace == LIBORMarketModel.StateSpace.LOGNORMAL) {
+				// lognormal volatilities of 10% instead of normal volatilities of 0.5%
+				double[] parameters = covarianceModel.getParameter();
+				for(int i=0; i<parameters.length; i++) parameters[i] *= 20.0;
+				covarianceModel = covarianceModel.getCloneWithModifiedParameters(parameters);
+			}
+			LIBORMarketModel model = createCalibrationModel(covarianceModel, new RandomVariableFactory(), stateSpace);
+			LIBORModelMonteCarloSimulation simulation = new LIBORModelMonteCarloSimulation(model, new ProcessEulerScheme(brownianMotion));
+
+			for(double[] swapTenor : swapTenors){
+				double swaprate = getParSwaprate(model.getForwardRateCurve(), model.getDiscountCurve(), swapTenor);
+				for(SwaptionSimple.ValueUnit valueUnit : SwaptionSimple.ValueUnit.values()){
+					SwaptionSimple swaption = new SwaptionSimple(swaprate, swapTenor, valueUnit);
+					double valueMonteCarlo = swaption.getValue(simulation);
+					double valueAnalytic = swaption.getAnalyticApproximation().getValue(0.0, simulation).getAverage();
+					// the Monte-Carlo error of the volatilities is about 2.5%, that of the variances about 5%
+					Assert.assertEquals(valueMonteCarlo, valueAnalytic, 0.075 * Math.abs(valueMonteCarlo));
+				}
+			}
+		}
+	}
+
+	/**
+	 * The analytic pre-calibration reduces the calibration error without a Monte-Carlo iteration, and the Monte-Carlo calibration
+	 * starting from the pre-calibrated parameters reaches the error of the Monte-Carlo calibration alone.
+	 * 
+	 * @throws CalculationException
+	 */
+	@Test
+	public void testAnalyticPreCalibration() throws CalculationException {
+		AbstractLIBORCovarianceModelParametric covarianceModel = createCalibrationCovarianceModel(new RandomVariableFactory());
+		LIBORMarketModel calibrationModel = createCalibrationModel(covarianceModel, new RandomVariableFactory(), LIBORMarketModel.StateSpace.NORMAL);
+		AbstractLIBORMonteCarloProduct[] calibrationProducts = new AbstractLIBORMonteCarloProduct[5];
+		double[] calibrationTargetValues = new double[calibrationProducts.length];
+		for(int i=0; i<calibrationProducts.length; i++){
+			CalibrationItem calibrationItem = createCalibrationItem(1.0, 1.0+1.5*i, 0.5, 4+2*(i%2), 0.0, 0.006+0.0005*i, "VOLATILITYNORMAL", calibrationModel.getForwardRateCurve(), calibrationModel.getDiscountCurve());
+			calibrationProducts[i] = calibrationItem.calibrationProduct;
+			calibrationTargetValues[i] = calibrationItem.calibrationTargetValue;
+		}
+		BrownianMotionInterface brownianMotion = new BrownianMotion(new TimeDiscretization(0.0, 20, 0.5), 3 /*numberOfFactors*/, 500 /*numberOfPaths*/, 31415 /*seed*/);
+
+		Map<String, Object> calibrationParameters = new HashMap<String, Object>();
+		calibrationParameters.put("brownianMotion", brownianMotion);
+		calibrationParameters.put("maxIterations", 20);
+		double errorMonteCarlo = getCalibrationError(covarianceModel.getCloneCalibrated(calibrationModel, calibrationProducts, calibrationTargetValues, null, calibrationParameters), calibrationModel, calibrationProducts, calibrationTargetValues, brownianMotion);
+
+		// The analytically calibrated parameters only (no Monte-Carlo iteration)
+		calibrationParameters.put("analyticPreCalibration", Boolean.TRUE);
+		calibrationParameters.put("maxIterations", 0);
+		double errorAnalytic = getCalibrationError(covarianceModel.getCloneCalibrated(calibrationModel, calibrationProducts, calibrationTargetValues, null, calibrationParameters), calibrationModel, calibrationProducts, calibrationTargetValues, brownianMotion);
+
+		calibrationParameters.remove("maxIterations");
+		double errorPreCalibrated = getCalibrationError(covarianceModel.getCloneCalibrated(calibrationModel, calibrationProducts, calibrationTargetValues, null, calibrationParameters), calibrationModel, calibrationProducts, calibrationTargetValues, brownianMotion);
+
+		Assert.assertTrue(errorAnalytic < 0.2*getCalibrationError(covarianceModel, calibrationModel, calibrationProducts, calibrationTargetValues, brownianMotion));
+		Assert.assertEquals(errorMonteCarlo, errorPreCalibrated, 1E-6);
+	}
+
+	/**
+	 * The root mean square error of the calibration products under a covariance model.
+	 */
+	private static double getCalibrationError(AbstractLIBORCovarianceModelParametric covarianceModel, LIBORMarketModel calibrationModel, AbstractLIBORMonteCarloProduct[] calibrationProducts, double[] calibrationTargetValues, BrownianMotionInterface brownianMotion) throws CalculationException{
+		LIBORModelMonteCarloSimulation simulation = new LIBORModelMonteCarloSimulation(calibrationModel.getCloneWithModifiedCovarianceModel(covarianceModel), new ProcessEulerScheme(brownianMotion));
+		double errorSquaredSum = 0.0;
+		for(int i=0; i<calibrationProducts.length; i++) errorSquaredSum += Math.pow(calibrationProducts[i].getValue(simulation) - calibrationTargetValues[i], 2);
+		return Math.sqrt(errorSquaredSum / calibrationProducts.length);
+	}
+
+	private static AbstractLIBORCovarianceModelParametric createCalibrationCovarianceModel(AbstractRandomVariableFactory randomVariableFactory){
+		TimeDiscretization timeDiscretization = new TimeDiscretization(0.0, 20, 0.5);
+		TimeDiscretization volatilityDiscretization = new TimeDiscretization(0.0, 1.0, 2.0, 5.0, 10.0);
+		LIBORVolatilityModel volatilityModel = new LIBORVolatilityModelPiecewiseConstant(randomVariableFactory, timeDiscretization, timeDiscretization, volatilityDiscretization, volatilityDiscretization, new double[]{ 0.50 / 100}, true);
+		LIBORCorrelationModel correlationModel = new LIBORCorrelationModelExponentialDecay(timeDiscretization, timeDiscretization, 3 /*numberOfFactors*/, 0.04, false);
+		return new LIBORCovarianceModelFromVolatilityAndCorrelation(timeDiscretization, timeDiscretization, volatilityModel, correlationModel);
+	}
+
+	private static LIBORMarketModel createCalibrationModel(AbstractLIBORCovarianceModelParametric covarianceModel, AbstractRandomVariableFactory randomVariableFactory, LIBORMarketModel.StateSpace stateSpace) throws CalculationException{
+		DiscountCurve discountCurve = DiscountCurve.createDiscountCurveFromDiscountFactors("discountCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0}, new double[] {0.990099, 0.980296, 0.960980, 0.905287, 0.550450});
+		ForwardCurve forwardCurve = ForwardCurve.createForwardCurveFromForwards("forwardCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0}, new double[] {0.02, 0.02, 0.02, 0.02, 0.02}, 0.5);
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("stateSpace", stateSpace.name());
+		return new LIBORMarketModel(covarianceModel.getLiborPeriodDiscretization(), null, forwardCurve, discountCurve, randomVariableFactory, covarianceModel, new CalibrationItem[0], properties);
+	}
+
+	private static LIBORCovarianceModelFromVolatilityAndCorrelation createCovarianceModel(AbstractRandomVariableFactory randomVariableFactory, TimeDiscretizationInterface timeDiscretization, TimeDiscretizationInterface liborPeriodDiscretization){
+		LIBORVolatilityModel volatilityModel = new LIBORVolatilityModelFourParameterExponentialForm(randomVariableFactory, timeDiscretization, liborPeriodDiscretization, 0.002, 0.001, 0.3, 0.004, true);
+		LIBORCorrelationModel correlationModel = new LIBORCorrelationModelExponentialDecay(timeDiscretization, liborPeriodDiscretization, 3 /*numberOfFactors*/, 0.05, false);
+		return new LIBORCovarianceModelFromVolatilityAndCorrelation(timeDiscretization, liborPeriodDiscretization, volatilityModel, correlationModel);
+	}
+
+	private static LIBORModelMonteCarloSimulationInterface createSimulation(AbstractLIBORCovarianceModel covarianceModel, LIBORMarketModel.Measure measure, LIBORMarketModel.StateSpace stateSpace) throws CalculationException{
+		DiscountCurve discountCurve = DiscountCurve.createDiscountCurveFromDiscountFactors("discountCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0}, new double[] {0.996 , 0.995, 0.994, 0.993, 0.98});
+		ForwardCurve forwardCurve = ForwardCurve.createForwardCurveFromForwards("forwardCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0}, new double[] {0.02, 0.02, 0.02, 0.02, 0.02}, 0.5);
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("measure", measure.name());
+		properties.put("stateSpace", stateSpace.name());
+
+		LIBORMarketModel liborMarketModel = new LIBORMarketModel(covarianceModel.getLiborPeriodDiscretization(), null, forwardCurve, discountCurve, new RandomVariableFactory(), covarianceModel, new CalibrationItem[0], properties);
+		ProcessEulerScheme process = new ProcessEulerScheme(new BrownianMotion(covarianceModel.getTimeDiscretization(), covarianceModel.getNumberOfFactors(), 200 /*numberOfPaths*/, 31415 /*seed*/), ProcessEulerScheme.Scheme.EULER_FUNCTIONAL);
+		return new LIBORModelMonteCarloSimulation(liborMarketModel, process);
+	}
+
+	/**
+	 * The covariance model without cache: factor loadings and variances calculated from the volatility and the correlation model on every request.
+	 */
+	private static class UncachedCovarianceModel extends AbstractLIBORCovarianceModel {
+
+		private final LIBORCovarianceModelFromVolatilityAndCorrelation covarianceModel;
+
+		private UncachedCovarianceModel(LIBORCovarianceModelFromVolatilityAndCorrelation covarianceModel){
+			super(covarianceModel.getTimeDiscretization(), covarianceModel.getLiborPeriodDiscretization(), covarianceModel.getNumberOfFactors());
+			this.covarianceModel = covarianceModel;
+		}
+
+		@Override
+		public RandomVariableInterface[] getFactorLoading(int timeIndex, int component, RandomVariableInterface[] realizationAtTimeIndex){
+			RandomVariableInterface volatility = covarianceModel.getVolatilityModel().getVolatility(timeIndex, component);
+			RandomVariableInterface[] factorLoading = new RandomVariableInterface[getNumberOfFactors()];
+			for(int factorIndex=0; factorIndex<factorLoading.length; factorIndex++) factorLoading[factorIndex] = volatility.mult(covarianceModel.getCorrelationModel().getFactorLoading(timeIndex, factorIndex, component));
+			return factorLoading;
+		}
+
+		@Override
+		public RandomVariableInterface getFactorLoadingPseudoInverse(int timeIndex, int component, int factor, RandomVariableInterface[] realizationAtTimeIndex){
+			return covarianceModel.getFactorLoadingPseudoInverse(timeIndex, component, factor, realizationAtTimeIndex);
+		}
+
+		@Override
+		public RandomVariableInterface getCovariance(int timeIndex, int component1, int component2, RandomVariableInterface[] realizationAtTimeIndex){
+			return covarianceModel.getVolatilityModel().getVolatility(timeIndex, component1).mult(covarianceModel.getVolatilityModel().getVolatility(timeIndex, component2))
+					.mult(covarianceModel.getCorrelationModel().getCorrelation(timeIndex, component1, component2));
+		}
+	}
+
 	public static double getParSwaprate(ForwardCurveInterface forwardCurve, DiscountCurveInterface discountCurve, double[] swapTenor) throws CalculationException {
 		return net.finmath.marketdata.products.Swap.getForwardSwapRate(new TimeDiscretization(swapTenor), new TimeDiscretization(swapTenor), forwardCurve, discountCurve);
 	}
@@ -1,15 +1,28 @@
 package initialmargin.isdasimm.test;
 
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
 import java.util.stream.IntStream;
 
+import org.junit.Assert;
+import org.junit.Test;
+
 import net.finmath.exception.CalculationException;
 import initialmargin.isdasimm.aggregationscheme.CalculationSchemeInitialMarginISDA;
+import initialmargin.isdasimm.aggregationscheme.SIMMParameterSet;
+import initialmargin.isdasimm.aggregationscheme.SIMMParameterSet.VolatilityClass;
+import initialmargin.isdasimm.aggregationscheme.SIMMSensitivitySnapshot;
 import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
+import initialmargin.isdasimm.products.AbstractSIMMProduct;
 import initialmargin.isdasimm.products.SIMMSimpleSwap;
 import net.finmath.marketdata.model.curves.DiscountCurve;
 import net.finmath.marketdata.model.curves.ForwardCurve;
 import net.finmath.montecarlo.AbstractRandomVariableFactory;
+import net.finmath.montecarlo.RandomVariable;
+import net.finmath.montecarlo.automaticdifferentiation.RandomVariableDifferentiableInterface;
+import net.finmath.montecarlo.automaticdifferentiation.backward.RandomVariableDifferentiableAAD;
+import net.finmath.stochastic.RandomVariableInterface;
 
 public class RiskWeightCalibrationTest {
 
@@ -88,4 +101,257 @@ public class RiskWeightCalibrationTest {
 
 	}
 
+	/**
+	 * Compares the variance covariance aggregations of the SIMM (the workloads of <code> AggregationBenchmark </code>) with the
+	 * aggregation by random variable operations: the intra bucket correlation of the interest rate risk class with contributions
+	 * which are null or deterministic, a constant correlation and the primitive kernel on the weighted sensitivities of all paths.
+	 */
+	@Test
+	public void testVarianceCovarianceAggregation() throws CalculationException{
+		CalculationSchemeInitialMarginISDA.ParameterCollection parameters = new CalculationSchemeInitialMarginISDA.ParameterCollection();
+		Double[][] correlation = parameters.MapRiskClassCorrelationIntraBucketMap.get("InterestRate");
+		RandomVariableInterface[] contributions = createContributions(correlation.length);
+		contributions[3] = null;
+		contributions[7] = new RandomVariable(25.0);
+		assertEqualsRelative(getVarianceCovarianceAggregation(contributions, correlation), CalculationSchemeInitialMarginISDA.getVarianceCovarianceAggregation(contributions, correlation), 1E-12);
+
+		contributions = createContributions(4);
+		Double[][] constantCorrelation = new Double[contributions.length][contributions.length];
+		for(Double[] row : constantCorrelation) Arrays.fill(row, parameters.IRCorrelationCrossCurrency);
+		assertEqualsRelative(getVarianceCovarianceAggregation(contributions, constantCorrelation), CalculationSchemeInitialMarginISDA.getVarianceCovarianceAggregation(contributions, parameters.IRCorrelationCrossCurrency), 1E-12);
+
+		contributions = createContributions(correlation.length);
+		double[][] weightedSensitivities = new double[contributions[0].size()][contributions.length];
+		for(int i=0; i<contributions.length; i++) for(int path=0; path<weightedSensitivities.length; path++) weightedSensitivities[path][i] = contributions[i].get(path);
+		double[] aggregation = new double[weightedSensitivities.length];
+		CalculationSchemeInitialMarginISDA.getVarianceCovarianceAggregation(weightedSensitivities, CalculationSchemeInitialMarginISDA.getCorrelationArray(correlation), aggregation);
+		assertEqualsRelative(getVarianceCovarianceAggregation(contributions, correlation), new RandomVariable(0.0, aggregation), 1E-12);
+	}
+
+	/**
+	 * The aggregation of differentiable contributions stays on the AAD tape, also with contributions which are null or plain random
+	 * variables: its derivatives are \( (\rho S)_k / \sqrt{S^T \rho S} \).
+	 */
+	@Test
+	public void testDifferentiableAggregation(){
+		Double[][] correlation = new CalculationSchemeInitialMarginISDA.ParameterCollection().MapRiskClassCorrelationIntraBucketMap.get("InterestRate");
+		RandomVariableInterface[] contributions = createContributions(correlation.length);
+		for(int i=0; i<contributions.length; i++) contributions[i] = new RandomVariableDifferentiableAAD(contributions[i]);
+		contributions[0] = new RandomVariable(0.0); // e.g. a zero sensitivity, not differentiable
+		contributions[3] = null;
+
+		RandomVariableInterface aggregation = CalculationSchemeInitialMarginISDA.getVarianceCovarianceAggregation(contributions, correlation);
+		assertEqualsRelative(getVarianceCovarianceAggregation(contributions, correlation), aggregation, 1E-12);
+		Assert.assertTrue(aggregation instanceof RandomVariableDifferentiableInterface);
+
+		Map<Long, RandomVariableInterface> gradient = ((RandomVariableDifferentiableInterface)aggregation).getGradient();
+		for(int k=0; k<contributions.length; k++){
+			if(!(contributions[k] instanceof RandomVariableDifferentiableInterface)) continue;
+			RandomVariableInterface correlatedContribution = contributions[k];
+			for(int j=0; j<contributions.length; j++){
+				if(j != k && contributions[j] != null) correlatedContribution = correlatedContribution.add(contributions[j].mult(correlation[k][j]));
+			}
+			assertEqualsRelative(correlatedContribution.div(aggregation), gradient.get(((RandomVariableDifferentiableInterface)contributions[k]).getID()), 1E-10);
+		}
+	}
+
+	/**
+	 * Compares the compiled <code> SIMMParameterSet </code> with the nested maps of the <code> ParameterCollection </code> it is compiled from:
+	 * risk weights and thresholds of the volatility classes, the intra bucket correlation and the volatility classes of the currencies.
+	 */
+	@Test
+	public void testParameterSet(){
+		CalculationSchemeInitialMarginISDA.ParameterCollection parameterCollection = new CalculationSchemeInitialMarginISDA.ParameterCollection();
+		SIMMParameterSet parameterSet = SIMMParameterSet.getDefault();
+
+		Map<String, Double[][]> riskWeights = parameterCollection.MapRiskClassRiskweightMap.get("delta").get("InterestRate");
+		for(VolatilityClass volatilityClass : VolatilityClass.values()){
+			Assert.assertArrayEquals(Arrays.stream(riskWeights.get(volatilityClass.getKey())[0]).mapToDouble(Double::doubleValue).toArray(), parameterSet.getIRDeltaRiskWeights(volatilityClass), 0.0);
+		}
+		Assert.assertEquals(riskWeights.get("inflation")[0][0], parameterSet.getIRInflationRiskWeight(), 0.0);
+		Assert.assertEquals(riskWeights.get("ccybasis")[0][0], parameterSet.getIRCcyBasisRiskWeight(), 0.0);
+		Assert.assertEquals(parameterCollection.MapRiskClassThresholdMap.get("delta").get("InterestRate").get("Regular_Volatility_Currencies")[0][0],
+				parameterSet.getIRDeltaConcentrationThreshold(VolatilityClass.Regular), 0.0);
+		Assert.assertEquals(parameterCollection.IRCorrelationCrossCurrency, parameterSet.getIRCrossCurrencyCorrelation(), 0.0);
+
+		Double[][] correlation = parameterCollection.MapRiskClassCorrelationIntraBucketMap.get("InterestRate");
+		double[] correlationArray = parameterSet.getIRIntraBucketCorrelation();
+		for(int i=0; i<correlation.length; i++) for(int j=0; j<correlation.length; j++){
+			Assert.assertEquals(i == j ? 1.0 : correlation[i][j], correlationArray[i*correlation.length+j], 0.0);
+		}
+
+		for(Map.Entry<String, String> entry : parameterCollection.IRCurrencyMap.entrySet()){
+			Assert.assertEquals(VolatilityClass.getVolatilityClass(entry.getValue()), parameterSet.getVolatilityClass(entry.getKey()));
+		}
+		Assert.assertEquals(VolatilityClass.High, parameterSet.getVolatilityClass("XXX"));
+	}
+
+	/**
+	 * A parameter collection set on a scheme is compiled, i.e. later changes of the collection take effect only when it is set again,
+	 * and calibrated risk weights give the parameters of a collection with these risk weights. The deprecated getter of the collection
+	 * returns the collection set or a collection compiling to the parameters of the scheme.
+	 */
+	@Test
+	public void testSetParameterCollection() throws CalculationException{
+		double[] riskWeights = Arrays.stream(SIMMParameterSet.getDefault().getIRDeltaRiskWeights(VolatilityClass.Regular)).map(weight -> 1.1*weight).toArray();
+		CalculationSchemeInitialMarginISDA.ParameterCollection parameterCollection = new CalculationSchemeInitialMarginISDA.ParameterCollection();
+		parameterCollection.setRiskWeightsRegular(riskWeights);
+		parameterCollection.IRCurrencyMap.put("JPY", "Low_Volatility_Currencies");
+
+		CalculationSchemeInitialMarginISDA scheme = new CalculationSchemeInitialMarginISDA("EUR");
+		scheme.setParameterCollection(parameterCollection);
+		Assert.assertArrayEquals(riskWeights, scheme.getParameterSet().getIRDeltaRiskWeights(VolatilityClass.Regular), 0.0);
+		Assert.assertEquals(VolatilityClass.Low, scheme.getParameterSet().getVolatilityClass("JPY"));
+
+		parameterCollection.setRiskWeightsRegular(SIMMParameterSet.getDefault().getIRDeltaRiskWeights(VolatilityClass.Regular).clone());
+		Assert.assertArrayEquals(riskWeights, scheme.getParameterSet().getIRDeltaRiskWeights(VolatilityClass.Regular), 0.0);
+		scheme.setParameterCollection(parameterCollection);
+		Assert.assertArrayEquals(SIMMParameterSet.getDefault().getIRDeltaRiskWeights(VolatilityClass.Regular), scheme.getParameterSet().getIRDeltaRiskWeights(VolatilityClass.Regular), 0.0);
+		Assert.assertSame(parameterCollection, scheme.getParameterCollection());
+
+		CalculationSchemeInitialMarginISDA schemeCalibrated = new CalculationSchemeInitialMarginISDA("EUR");
+		schemeCalibrated.setRiskWeightsRegular(riskWeights);
+		Assert.assertArrayEquals(riskWeights, schemeCalibrated.getParameterSet().getIRDeltaRiskWeights(VolatilityClass.Regular), 0.0);
+		Assert.assertArrayEquals(SIMMParameterSet.getDefault().getIRDeltaRiskWeights(VolatilityClass.Low), schemeCalibrated.getParameterSet().getIRDeltaRiskWeights(VolatilityClass.Low), 0.0);
+		Assert.assertArrayEquals(SIMMParameterSet.getDefault().getIRIntraBucketCorrelation(), schemeCalibrated.getParameterSet().getIRIntraBucketCorrelation(), 0.0);
+
+		Assert.assertArrayEquals(riskWeights, new SIMMParameterSet(schemeCalibrated.getParameterCollection()).getIRDeltaRiskWeights(VolatilityClass.Regular), 0.0);
+		double[] riskWeightsRecalibrated = Arrays.stream(riskWeights).map(weight -> 1.1*weight).toArray();
+		schemeCalibrated.setRiskWeightsRegular(riskWeightsRecalibrated);
+		Assert.assertArrayEquals(riskWeightsRecalibrated, new SIMMParameterSet(schemeCalibrated.getParameterCollection()).getIRDeltaRiskWeights(VolatilityClass.Regular), 0.0);
+	}
+
+	/**
+	 * Compares the analytic derivatives of the initial margin of the calibration products w.r.t. the regular risk weights, which
+	 * the calibration uses as its Jacobian (the derivatives of the sensitivity snapshot), with central finite differences of the
+	 * initial margin.
+	 */
+	@Test
+	public void testRiskWeightDerivatives() throws CalculationException{
+		DiscountCurve discountCurve = DiscountCurve.createDiscountCurveFromDiscountFactors("discountCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0}, new double[] {0.996 , 0.995, 0.994, 0.993, 0.98});
+		ForwardCurve forwardCurve = ForwardCurve.createForwardCurveFromForwards("forwardCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0}, new double[] {0.02, 0.02, 0.02, 0.02, 0.02}, 0.5);
+		LIBORModelMonteCarloSimulationInterface model = SIMMTest.createLIBORMarketModel(false, SIMMTest.createRandomVariableFactoryAAD(), numberOfPaths, 1 /*numberOfFactors*/, discountCurve, forwardCurve);
+		SIMMSimpleSwap[] products = createCalibrationProducts(1000000 /*notional*/, new int[]{10, 20, 30}, 0.5 /*periodLength*/, forwardCurve, discountCurve);
+
+		CalculationSchemeInitialMarginISDA scheme = new CalculationSchemeInitialMarginISDA("EUR");
+		double[] riskWeights = scheme.getParameterSet().getIRDeltaRiskWeights(VolatilityClass.Regular).clone();
+		for(SIMMSimpleSwap product : products) product.getInitialMargin(0.0, model, scheme);
+		SIMMSensitivitySnapshot snapshot = new SIMMSensitivitySnapshot(products, new double[]{0.0}, scheme.getParameterSet(), "EUR");
+		double[][][] derivatives = snapshot.getExpectedInitialMarginRiskWeightDerivatives(scheme.getParameterSet(), VolatilityClass.Regular);
+		for(int productIndex=0; productIndex<products.length; productIndex++){
+			SIMMSimpleSwap product = products[productIndex];
+			double initialMargin = product.getInitialMargin(0.0, model, scheme).getAverage();
+			for(int riskWeightIndex=0; riskWeightIndex<riskWeights.length; riskWeightIndex++){
+				double shift = 1E-6*riskWeights[riskWeightIndex];
+				double[] riskWeightsShifted = riskWeights.clone();
+				riskWeightsShifted[riskWeightIndex] = riskWeights[riskWeightIndex]+shift;
+				scheme.setRiskWeightsRegular(riskWeightsShifted);
+				double initialMarginUp = product.getInitialMargin(0.0, model, scheme).getAverage();
+				riskWeightsShifted[riskWeightIndex] = riskWeights[riskWeightIndex]-shift;
+				scheme.setRiskWeightsRegular(riskWeightsShifted);
+				double initialMarginDown = product.getInitialMargin(0.0, model, scheme).getAverage();
+				scheme.setRiskWeightsRegular(riskWeights);
+
+				Assert.assertEquals((initialMarginUp-initialMarginDown)/(2*shift), derivatives[productIndex][0][riskWeightIndex], 1E-6*initialMargin);
+			}
+			Assert.assertEquals(initialMargin, product.getInitialMargin(0.0, model, scheme).getAverage(), 0.0);
+		}
+	}
+
+	/**
+	 * The calibrated risk weights are set on the scheme and reproduce the target values when the calibration products are re-evaluated.
+	 */
+	@Test
+	public void testCalibratedRiskWeights() throws CalculationException{
+		DiscountCurve discountCurve = DiscountCurve.createDiscountCurveFromDiscountFactors("discountCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0}, new double[] {0.996 , 0.995, 0.994, 0.993, 0.98});
+		ForwardCurve forwardCurve = ForwardCurve.createForwardCurveFromForwards("forwardCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0}, new double[] {0.02, 0.02, 0.02, 0.02, 0.02}, 0.5);
+		LIBORModelMonteCarloSimulationInterface model = SIMMTest.createLIBORMarketModel(false, SIMMTest.createRandomVariableFactoryAAD(), numberOfPaths, 1 /*numberOfFactors*/, discountCurve, forwardCurve);
+		SIMMSimpleSwap[] products = createCalibrationProducts(1000000 /*notional*/, new int[]{10, 20, 30}, 0.5 /*periodLength*/, forwardCurve, discountCurve);
+
+		CalculationSchemeInitialMarginISDA scheme = new CalculationSchemeInitialMarginISDA("EUR");
+		double[] targetValues = new double[products.length];
+		for(int productIndex=0; productIndex<products.length; productIndex++) targetValues[productIndex] = (0.9+0.1*productIndex)*products[productIndex].getInitialMargin(0.0, model, scheme).getAverage();
+
+		double[] riskWeights = scheme.getRiskWeightsCalibrated(model, products, targetValues, null /*calibrationParameters*/);
+		Assert.assertArrayEquals(riskWeights, scheme.getParameterSet().getIRDeltaRiskWeights(VolatilityClass.Regular), 0.0);
+		for(int productIndex=0; productIndex<products.length; productIndex++){
+			Assert.assertEquals(targetValues[productIndex], products[productIndex].getInitialMargin(0.0, model, scheme).getAverage(), 1E-6*targetValues[productIndex]);
+		}
+	}
+
+	/**
+	 * Compares the initial margin of the sensitivity snapshot, on which the risk weights are calibrated, with the initial margin of
+	 * the scheme path by path, for swaps and swaptions and for risk weights other than the default ones.
+	 */
+	@Test
+	public void testSensitivitySnapshot() throws CalculationException{
+		LIBORModelMonteCarloSimulationInterface model = SIMMTest.createTestModel(numberOfPaths);
+		AbstractSIMMProduct[] products = SIMMTest.createTestProducts(6);
+		for(AbstractSIMMProduct product : products) product.getInitialMargin(0.0, model, "EUR");
+
+		double[] evaluationTimes = new double[]{0.0, 0.5, 1.0, 1.5, 2.0};
+		double[] riskWeights = Arrays.stream(SIMMParameterSet.getDefault().getIRDeltaRiskWeights(VolatilityClass.Regular)).map(weight -> 1.3*weight).toArray();
+		SIMMParameterSet parameterSet = SIMMParameterSet.getDefault().getCloneWithRegularRiskWeights(riskWeights);
+		SIMMSensitivitySnapshot snapshot = new SIMMSensitivitySnapshot(products, evaluationTimes, parameterSet, "EUR");
+
+		for(int productIndex=0; productIndex<products.length; productIndex++){
+			CalculationSchemeInitialMarginISDA scheme = new CalculationSchemeInitialMarginISDA(products[productIndex], "EUR");
+			scheme.setRiskWeightsRegular(riskWeights);
+			for(int timeIndex=0; timeIndex<evaluationTimes.length; timeIndex++){
+				RandomVariableInterface initialMargin = scheme.getValue(evaluationTimes[timeIndex]);
+				double[] initialMarginSnapshot = snapshot.getInitialMargin(parameterSet, productIndex, timeIndex);
+				for(int path=0; path<initialMarginSnapshot.length; path++){
+					double expected = initialMargin.get(initialMargin.isDeterministic() ? 0 : path);
+					Assert.assertEquals(expected, initialMarginSnapshot[path], 1E-12*Math.max(Math.abs(expected), 1E-10));
+				}
+			}
+		}
+	}
+
+	/**
+	 * The sensitivity snapshot reproduces the initial margin of interest rate products only, products with other risk classes are
+	 * rejected.
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testSensitivitySnapshotRejectsOtherRiskClasses() throws CalculationException{
+		AbstractSIMMProduct product = new SIMMSimpleSwap(new double[]{0.0, 0.5}, new double[]{0.5, 1.0}, new double[]{0.02, 0.02}, true /*isPayFix*/, 100 /*notional*/, new String[]{"OIS","Libor6m"}, "EUR") {
+			@Override
+			public String[] getRiskClasses(){
+				return new String[]{"InterestRate","FX"};
+			}
+		};
+		new SIMMSensitivitySnapshot(new AbstractSIMMProduct[]{product}, new double[]{0.0}, SIMMParameterSet.getDefault(), "EUR");
+	}
+
+	/** The aggregation \( \sqrt{ \sum_{i,j} \rho_{i,j} S_i S_j } \) by random variable operations, skipping null contributions. */
+	private static RandomVariableInterface getVarianceCovarianceAggregation(RandomVariableInterface[] contributions, Double[][] correlation){
+		RandomVariableInterface value = null;
+		for(int i=0; i<contributions.length; i++){
+			if(contributions[i] == null) continue;
+			value = value == null ? contributions[i].squared() : value.add(contributions[i].squared());
+			for(int j=0; j<contributions.length; j++){
+				if(contributions[j] != null && i != j) value = value.add(contributions[i].mult(contributions[j]).mult(correlation[i][j]));
+			}
+		}
+		return value.sqrt();
+	}
+
+	private static RandomVariableInterface[] createContributions(int numberOfContributions){
+		Random random = new Random(3141);
+		RandomVariableInterface[] contributions = new RandomVariableInterface[numberOfContributions];
+		for(int i=0; i<numberOfContributions; i++){
+			double[] realizations = new double[1000];
+			for(int path=0; path<realizations.length; path++) realizations[path] = 100.0 * random.nextGaussian();
+			contributions[i] = new RandomVariable(0.0, realizations);
+		}
+		return contributions;
+	}
+
+	private static void assertEqualsRelative(RandomVariableInterface expected, RandomVariableInterface actual, double tolerance){
+		Assert.assertEquals(0.0, expected.sub(actual).abs().div(expected.abs()).getMax(), tolerance);
+	}
 }
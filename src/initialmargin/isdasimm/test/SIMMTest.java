@@ -4,8 +4,14 @@ import java.text.DecimalFormat;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.IntStream;
 
+import org.junit.Assert;
+import org.junit.Test;
+
+import initialmargin.isdasimm.aggregationscheme.CalculationSchemeInitialMarginISDA;
 import initialmargin.isdasimm.changedfinmath.LIBORMarketModel;
 import initialmargin.isdasimm.changedfinmath.LIBORMarketModel.StateSpace;
 import initialmargin.isdasimm.changedfinmath.LIBORMarketModelInterface;
@@ -41,8 +47,10 @@ import net.finmath.montecarlo.automaticdifferentiation.backward.RandomVariableDi
 import net.finmath.montecarlo.interestrate.modelplugins.LIBORCorrelationModel;
 import net.finmath.montecarlo.interestrate.modelplugins.LIBORCorrelationModelExponentialDecay;
 import net.finmath.montecarlo.process.ProcessEulerScheme;
+import net.finmath.optimizer.SolverException;
 import net.finmath.stochastic.RandomVariableInterface;
 import net.finmath.time.TimeDiscretization;
+import net.finmath.time.TimeDiscretizationInterface;
 
 
 public class SIMMTest {
@@ -440,6 +448,234 @@ public class SIMMTest {
 	}
 
 	
+	/**
+	 * Compares the initial margin of a portfolio whose netted sensitivities are obtained by one adjoint sweep over the netting set
+	 * with the initial margin calculated from the sensitivities of the single products, including the exercise dates of the swaptions.
+	 * With analytic swap sensitivities the swaps of the netting set use their analytic sensitivities.
+	 */
+	@Test
+	public void testNettedGradient() throws CalculationException{
+		LIBORModelMonteCarloSimulationInterface model = createTestModel(400);
+		for(boolean isUseAnalyticSwapSensis : new boolean[]{false, true}){
+			SIMMPortfolio portfolio       = new SIMMPortfolio(createTestProducts(6), "EUR");
+			SIMMPortfolio portfolioNetted = new SIMMPortfolio(createTestProducts(6), "EUR", true /*isUseNettedGradient*/);
+			for(int timeIndex=0; timeIndex<10; timeIndex++){
+				double evaluationTime = timeIndex*0.5;
+				double initialMargin = portfolio.getInitialMargin(evaluationTime, model, "EUR", SensitivityMode.Exact, WeightMode.Stochastic, 1.0, true, isUseAnalyticSwapSensis, true).getAverage();
+				double initialMarginNetted = portfolioNetted.getInitialMargin(evaluationTime, model, "EUR", SensitivityMode.Exact, WeightMode.Stochastic, 1.0, true, isUseAnalyticSwapSensis, true).getAverage();
+				Assert.assertEquals(initialMargin, initialMarginNetted, 1E-10*Math.abs(initialMargin));
+			}
+		}
+	}
+
+	/**
+	 * Compares the concurrent forward initial margin profile on one and on four threads with the serial calculation time by time.
+	 * The profiles must coincide path by path.
+	 */
+	@Test
+	public void testInitialMarginProfile() throws CalculationException{
+		LIBORModelMonteCarloSimulationInterface model = createTestModel(100);
+		TimeDiscretizationInterface evaluationTimes = new TimeDiscretization(0.0, 16, 0.25);
+
+		ExecutorService oneThread   = Executors.newFixedThreadPool(1);
+		ExecutorService fourThreads = Executors.newFixedThreadPool(4);
+		try {
+			for(boolean isUseNettedGradient : new boolean[]{false, true}) {
+				for(SensitivityMode sensitivityMode : new SensitivityMode[]{SensitivityMode.Exact, SensitivityMode.LinearMelting, SensitivityMode.Interpolation}){
+					// New products for each portfolio, since the products keep state
+					SIMMPortfolio portfolio = new SIMMPortfolio(createTestProducts(6), "EUR", isUseNettedGradient);
+					RandomVariableInterface[] profileOneThread   = new SIMMPortfolio(createTestProducts(6), "EUR", isUseNettedGradient).getInitialMarginProfile(evaluationTimes, model, "EUR", sensitivityMode, WeightMode.Stochastic, 0.5, oneThread);
+					RandomVariableInterface[] profileFourThreads = new SIMMPortfolio(createTestProducts(6), "EUR", isUseNettedGradient).getInitialMarginProfile(evaluationTimes, model, "EUR", sensitivityMode, WeightMode.Stochastic, 0.5, fourThreads);
+					for(int timeIndex=0; timeIndex<evaluationTimes.getNumberOfTimes(); timeIndex++){
+						RandomVariableInterface initialMargin = portfolio.getInitialMargin(evaluationTimes.getTime(timeIndex), model, "EUR", sensitivityMode, WeightMode.Stochastic, 0.5, true, false, true);
+						Assert.assertEquals(0.0, initialMargin.sub(profileOneThread[timeIndex]).abs().getMax(), 0.0);
+						Assert.assertEquals(0.0, profileOneThread[timeIndex].sub(profileFourThreads[timeIndex]).abs().getMax(), 0.0);
+					}
+				}
+			}
+		} finally {
+			oneThread.shutdown();
+			fourThreads.shutdown();
+		}
+	}
+
+	/**
+	 * Compares the net sensitivities of the index of <code> CalculationSchemeInitialMarginISDA </code>, calculated on all maturity buckets
+	 * in one pass over the products, with the sum of the sensitivities of the products on each maturity bucket.
+	 */
+	@Test
+	public void testNetSensitivityIndex() throws CalculationException, SolverException, CloneNotSupportedException{
+		LIBORModelMonteCarloSimulationInterface model = createTestModel(100);
+		AbstractSIMMProduct[] products = createTestProducts(6);
+		SIMMPortfolio portfolio = new SIMMPortfolio(products, "EUR");
+		CalculationSchemeInitialMarginISDA scheme = new CalculationSchemeInitialMarginISDA(portfolio, "EUR");
+		for(double evaluationTime : new double[]{0.0, 1.5, 3.0}){
+			// Sets the model and the sensitivity calculation of the products
+			portfolio.getInitialMargin(evaluationTime, model, "EUR", SensitivityMode.Exact, WeightMode.Constant, 0.5, true, false, true);
+			for(String curveIndexName : new String[]{"OIS","Libor6m"}){
+				for(String maturityBucket : scheme.getParameterSet().getIRMaturityBuckets()){
+					RandomVariableInterface netSensitivity = null;
+					for(AbstractSIMMProduct product : products){
+						RandomVariableInterface sensitivity = product.getSensitivity("RatesFX", "InterestRate", maturityBucket, curveIndexName, "EUR", "delta", evaluationTime);
+						if(sensitivity != null) netSensitivity = netSensitivity == null ? sensitivity : netSensitivity.add(sensitivity);
+					}
+					RandomVariableInterface netSensitivityIndex = scheme.getNetSensitivity("RatesFX", "InterestRate", maturityBucket, curveIndexName, "EUR", "delta", evaluationTime);
+					Assert.assertEquals(0.0, netSensitivityIndex.sub(netSensitivity).abs().getMax(), 1E-12);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compares the initial margin profile of a portfolio which retains its net sensitivities and to which a product is added, or from
+	 * which products are removed, with the profile of a portfolio built from new instances of the same products.
+	 */
+	@Test
+	public void testAddRemoveProduct() throws CalculationException{
+		assertAddRemoveEqualsRebuild(false /*isUseNettedGradient*/);
+	}
+
+	/**
+	 * As <code> testAddRemoveProduct </code> with netted gradient, where both a product added to the portfolio and a product recorded
+	 * on the tape of the netting set are removed.
+	 */
+	@Test
+	public void testAddRemoveProductNetted() throws CalculationException{
+		assertAddRemoveEqualsRebuild(true /*isUseNettedGradient*/);
+	}
+
+	private static void assertAddRemoveEqualsRebuild(boolean isUseNettedGradient) throws CalculationException{
+		LIBORModelMonteCarloSimulationInterface model = createTestModel(100);
+		AbstractSIMMProduct[] products = createTestProducts(6);
+		TimeDiscretizationInterface evaluationTimes = new TimeDiscretization(0.0, 7, 0.5);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			SIMMPortfolio portfolio = new SIMMPortfolio(Arrays.copyOf(products, 5), "EUR", isUseNettedGradient);
+			portfolio.setRetainNetSensitivities(true);
+			portfolio.getInitialMarginProfile(evaluationTimes, model, "EUR", SensitivityMode.Exact, WeightMode.Stochastic, 1.0, executor);
+
+			portfolio.addProduct(products[5]);
+			assertEqualsRebuild(portfolio, new int[]{0,1,2,3,4,5}, isUseNettedGradient, evaluationTimes, model, executor);
+			portfolio.removeProduct(products[5]);
+			assertEqualsRebuild(portfolio, new int[]{0,1,2,3,4}, isUseNettedGradient, evaluationTimes, model, executor);
+			portfolio.addProduct(products[5]);
+			portfolio.removeProduct(products[1]);
+			assertEqualsRebuild(portfolio, new int[]{0,2,3,4,5}, isUseNettedGradient, evaluationTimes, model, executor);
+			portfolio.removeProduct(products[0]);
+			assertEqualsRebuild(portfolio, new int[]{2,3,4,5}, isUseNettedGradient, evaluationTimes, model, executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void assertEqualsRebuild(SIMMPortfolio portfolio, int[] productIndices, boolean isUseNettedGradient, TimeDiscretizationInterface evaluationTimes, LIBORModelMonteCarloSimulationInterface model, ExecutorService executor) throws CalculationException{
+		AbstractSIMMProduct[] newProducts = createTestProducts(6);
+		SIMMPortfolio portfolioRebuilt = new SIMMPortfolio(Arrays.stream(productIndices).mapToObj(productIndex -> newProducts[productIndex]).toArray(AbstractSIMMProduct[]::new), "EUR", isUseNettedGradient);
+		Assert.assertEquals(productIndices.length, portfolio.getProducts().length);
+		RandomVariableInterface[] initialMargin = portfolio.getInitialMarginProfile(evaluationTimes, model, "EUR", SensitivityMode.Exact, WeightMode.Stochastic, 1.0, executor);
+		RandomVariableInterface[] initialMarginRebuilt = portfolioRebuilt.getInitialMarginProfile(evaluationTimes, model, "EUR", SensitivityMode.Exact, WeightMode.Stochastic, 1.0, executor);
+		for(int timeIndex=0; timeIndex<initialMargin.length; timeIndex++){
+			double expected = initialMarginRebuilt[timeIndex].getAverage();
+			Assert.assertEquals(expected, initialMargin[timeIndex].getAverage(), 1E-10*Math.abs(expected));
+		}
+	}
+
+	/**
+	 * Checks that the Euler allocations of the products sum to the initial margin of a portfolio of the same products path by path.
+	 */
+	@Test
+	public void testInitialMarginAllocation() throws CalculationException{
+		LIBORModelMonteCarloSimulationInterface model = createTestModel(100);
+		AbstractSIMMProduct[] products = createTestProducts(6);
+		TimeDiscretizationInterface evaluationTimes = new TimeDiscretization(0.0, 7, 0.5);
+		RandomVariableInterface[][] allocation = new SIMMPortfolio(products, "EUR").getInitialMarginAllocation(evaluationTimes, model, "EUR", SensitivityMode.Exact, WeightMode.Stochastic, 1.0);
+		SIMMPortfolio portfolio = new SIMMPortfolio(createTestProducts(6), "EUR");
+		for(int timeIndex=0; timeIndex<evaluationTimes.getNumberOfTimes(); timeIndex++){
+			RandomVariableInterface initialMargin = portfolio.getInitialMargin(evaluationTimes.getTime(timeIndex), model, "EUR", SensitivityMode.Exact, WeightMode.Stochastic, 1.0, true, false, true);
+			RandomVariableInterface sumOfAllocations = allocation[0][timeIndex];
+			for(int productIndex=1; productIndex<products.length; productIndex++) sumOfAllocations = sumOfAllocations.add(allocation[productIndex][timeIndex]);
+			Assert.assertEquals(0.0, sumOfAllocations.sub(initialMargin).abs().getMax(), 1E-11*initialMargin.abs().getMax());
+		}
+	}
+
+	/**
+	 * A portfolio with netted gradient calculates the netted sensitivities only, hence it does not allocate its initial margin.
+	 */
+	@Test(expected=UnsupportedOperationException.class)
+	public void testInitialMarginAllocationNetted() throws CalculationException{
+		new SIMMPortfolio(createTestProducts(6), "EUR", true /*isUseNettedGradient*/).getInitialMarginAllocation(new TimeDiscretization(0.0, 7, 0.5), createTestModel(100), "EUR", SensitivityMode.Exact, WeightMode.Stochastic, 1.0);
+	}
+
+	/**
+	 * The Euler allocation covers the interest rate delta margin only, a scheme with other risk classes is rejected.
+	 */
+	@Test(expected=UnsupportedOperationException.class)
+	public void testEulerAllocationRejectsOtherRiskClasses() throws CalculationException{
+		AbstractSIMMProduct product = new SIMMSimpleSwap(new double[]{0.0, 0.5}, new double[]{0.5, 1.0}, new double[]{0.02, 0.02}, true /*isPayFix*/, 100 /*notional*/, new String[]{"OIS","Libor6m"}, "EUR") {
+			@Override
+			public String[] getRiskClasses(){
+				return new String[]{"InterestRate","FX"};
+			}
+		};
+		new CalculationSchemeInitialMarginISDA(product, "EUR").getEulerAllocation(0.0);
+	}
+
+	/**
+	 * Pins the initial margin of a cash settled swaption (exercise in 2 years) before and after the exercise date. The final maturity of
+	 * a cash settled swaption is its exercise date, but the portfolio does not filter its products by final maturity: the sensitivities
+	 * after exercise are those of the product (e.g. interpolated between the exact sensitivities at exercise and half a year later).
+	 * The expected values are those of the nested map implementation.
+	 */
+	@Test
+	public void testCashSettledSwaptionAfterExercise() throws CalculationException{
+		LIBORModelMonteCarloSimulationInterface model = createTestModel(100);
+		double[] evaluationTimes = new double[]{1.75, 2.0, 2.25, 2.5, 2.75};
+		double[][] expectedInitialMargin = new double[][]{
+			{0.8696049896826408, 0.7448973199334228, 0.3055912750006117, 0.0, 0.0},	// Exact
+			{0.7790756061624436, 0.7448973199334228, 0.3724486599667114, 0.0, 0.0}};	// Interpolation
+
+		SensitivityMode[] sensitivityModes = new SensitivityMode[]{SensitivityMode.Exact, SensitivityMode.Interpolation};
+		for(int modeIndex=0; modeIndex<sensitivityModes.length; modeIndex++){
+			double[] fixingDates = IntStream.range(0, 8).mapToDouble(i -> 2.0+i*0.5).toArray();
+			double[] paymentDates = IntStream.range(0, 8).mapToDouble(i -> 2.5+i*0.5).toArray();
+			double[] swapRates = new double[fixingDates.length];
+			Arrays.fill(swapRates, 0.02);
+			SIMMPortfolio portfolio = new SIMMPortfolio(new AbstractSIMMProduct[]{new SIMMSwaption(2.0 /*exerciseDate*/, fixingDates, paymentDates, swapRates, 100 /*notional*/, DeliveryType.CashSettled, new String[]{"OIS","Libor6m"}, "EUR")}, "EUR");
+			for(int timeIndex=0; timeIndex<evaluationTimes.length; timeIndex++){
+				double initialMargin = portfolio.getInitialMargin(evaluationTimes[timeIndex], model, "EUR", sensitivityModes[modeIndex], WeightMode.Constant, 0.5, true, false, true).getAverage();
+				Assert.assertEquals(expectedInitialMargin[modeIndex][timeIndex], initialMargin, 1E-6*expectedInitialMargin[modeIndex][timeIndex]);
+			}
+		}
+	}
+
+	static LIBORModelMonteCarloSimulationInterface createTestModel(int numberOfPaths) throws CalculationException{
+		DiscountCurve discountCurve = DiscountCurve.createDiscountCurveFromDiscountFactors("discountCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0} /*times*/, new double[] {0.996 , 0.995, 0.994, 0.993, 0.98} /*discountFactors*/);
+		ForwardCurve forwardCurve = ForwardCurve.createForwardCurveFromForwards("forwardCurve",
+				new double[] {0.5 , 1.0, 2.0, 5.0, 30.0} /*fixings*/, new double[] {0.02, 0.02, 0.02, 0.02, 0.02} /*forwards*/, 0.5 /*periodLength*/);
+		return createLIBORMarketModel(false, createRandomVariableFactoryAAD(), numberOfPaths, 1 /*numberOfFactors*/, discountCurve, forwardCurve);
+	}
+
+	/** Swaps of different start and length and, for every third product, a physically or cash settled swaption (exercise one year after the start). */
+	static AbstractSIMMProduct[] createTestProducts(int numberOfProducts) throws CalculationException{
+		AbstractSIMMProduct[] products = new AbstractSIMMProduct[numberOfProducts];
+		for(int productIndex=0; productIndex<numberOfProducts; productIndex++){
+			int numberOfPeriods = 8+productIndex%6;
+			double startTime = 0.5*(productIndex%4);
+			double[] fixingDates = IntStream.range(0, numberOfPeriods).mapToDouble(i -> startTime+i*0.5).toArray();
+			double[] paymentDates = IntStream.range(0, numberOfPeriods).mapToDouble(i -> startTime+(i+1)*0.5).toArray();
+			double[] swapRates = new double[numberOfPeriods];
+			Arrays.fill(swapRates, 0.015+0.001*productIndex);
+			if(productIndex%3 == 1) {
+				products[productIndex] = new SIMMSwaption(startTime+1.0, Arrays.stream(fixingDates).map(time -> time+1.0).toArray(), Arrays.stream(paymentDates).map(time -> time+1.0).toArray(),
+						swapRates, 100 /*notional*/, productIndex%2 == 0 ? DeliveryType.CashSettled : DeliveryType.Physical, new String[]{"OIS","Libor6m"}, "EUR");
+			} else {
+				products[productIndex] = new SIMMSimpleSwap(fixingDates, paymentDates, swapRates, productIndex%2 == 0 /*isPayFix*/, 100 /*notional*/, new String[]{"OIS","Libor6m"}, "EUR");
+			}
+		}
+		return products;
+	}
+
 	public static  LIBORModelMonteCarloSimulationInterface createLIBORMarketModel(boolean isUseTenorRefinement,
 										AbstractRandomVariableFactory randomVariableFactory,
 										int numberOfPaths, int numberOfFactors, DiscountCurve discountCurve, ForwardCurve forwardCurve) throws CalculationException {
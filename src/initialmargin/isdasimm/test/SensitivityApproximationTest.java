@@ -5,8 +5,15 @@ import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Locale;
+import java.util.Random;
 import java.util.stream.IntStream;
 
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.junit.Assert;
+import org.junit.Test;
+
 import net.finmath.exception.CalculationException;
 import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulationInterface;
 import initialmargin.isdasimm.products.AbstractSIMMProduct;
@@ -17,9 +24,17 @@ import initialmargin.isdasimm.products.SIMMBermudanSwaption.ExerciseType;
 import initialmargin.isdasimm.products.SIMMSwaption.DeliveryType;
 import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation.SensitivityMode;
 import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation.WeightMode;
+import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation;
+import initialmargin.isdasimm.sensitivity.PathwiseMatrixSolver;
+import initialmargin.isdasimm.sensitivity.MemoryBoundedCache;
+import initialmargin.isdasimm.sensitivity.RandomVariableMatrix;
+import initialmargin.isdasimm.sensitivity.SensitivityTransformCache;
+import initialmargin.isdasimm.sensitivity.RegressionOperator;
 import net.finmath.marketdata.model.curves.DiscountCurve;
 import net.finmath.marketdata.model.curves.ForwardCurve;
 import net.finmath.montecarlo.AbstractRandomVariableFactory;
+import net.finmath.montecarlo.RandomVariable;
+import net.finmath.montecarlo.conditionalexpectation.MonteCarloConditionalExpectationRegression;
 import net.finmath.stochastic.RandomVariableInterface;
 
 
@@ -297,4 +312,276 @@ public class SensitivityApproximationTest {
 
 	}
 
+	/**
+	 * Compares the structured path-wise (pseudo) inverse of <code> PathwiseMatrixSolver </code> with the SVD pseudo inverse for the matrix
+	 * types of the sensitivity transformations: lower triangular (dS/dP), n x (n+1) band (Libor time grid adjustment), square band and
+	 * general matrices. A singular triangular matrix falls back to the SVD. The square band matrix with small diagonal entries
+	 * requires pivoting, the wide and the tall band matrices with two almost parallel rows or columns are too ill-conditioned for the
+	 * normal equations.
+	 */
+	@Test
+	public void testPathwiseMatrixSolver(){
+		Random random = new Random(3141);
+		RandomVariableInterface[][] singularMatrix = createBandMatrix(20, 20, 19, 0, random);
+		singularMatrix[5][5] = new RandomVariable(0.0);
+		RandomVariableInterface[][] pivotingMatrix = createBandMatrix(40, 40, 1, 1, random);
+		for(int i=0;i<40;i++) pivotingMatrix[i][i] = pivotingMatrix[i][i].sub(2.0).mult(1E-8);
+		RandomVariableInterface[][] illConditionedWideMatrix = createBandMatrix(40, 41, 1, 1, random);
+		illConditionedWideMatrix[1][0] = illConditionedWideMatrix[0][0];
+		illConditionedWideMatrix[1][1] = illConditionedWideMatrix[0][1].add(illConditionedWideMatrix[1][1].mult(1E-4));
+		illConditionedWideMatrix[1][2] = new RandomVariable(0.0);
+		RandomVariableInterface[][] illConditionedTallMatrix = new RandomVariableInterface[41][40];
+		for(int i=0;i<41;i++) for(int j=0;j<40;j++) illConditionedTallMatrix[i][j] = illConditionedWideMatrix[j][i];
+		RandomVariableInterface[][][] matrices = new RandomVariableInterface[][][]{createBandMatrix(40, 40, 39, 0, random), createBandMatrix(40, 41, 0, 1, random),
+			createBandMatrix(40, 40, 2, 1, random), createBandMatrix(10, 10, 9, 9, random), singularMatrix, createBandMatrix(41, 40, 2, 0, random),
+			createBandMatrix(40, 43, 1, 2, random), pivotingMatrix, illConditionedWideMatrix, illConditionedTallMatrix};
+		for(RandomVariableInterface[][] matrix : matrices) Assert.assertEquals(0.0, getMaxDeviationFromSVD(matrix), 1E-10);
+	}
+
+	/**
+	 * Compares the conditional expectations of the shared regression operator on the Libor basis with those of
+	 * <code> MonteCarloConditionalExpectationRegression </code> on the same basis functions, at time zero (deterministic basis)
+	 * and at later times. The conditional expectations are bit-identical and the operator is shared per evaluation time and order.
+	 */
+	@Test
+	public void testRegressionOperator() throws CalculationException{
+		LIBORModelMonteCarloSimulationInterface model = SIMMTest.createTestModel(1000);
+		int order = 2;
+		for(double evaluationTime : new double[]{0.0, 1.0, 2.5}){
+			RandomVariableInterface[] randomVariables = new RandomVariableInterface[]{
+					model.getLIBOR(evaluationTime+1.0, evaluationTime+1.0, evaluationTime+1.5),
+					model.getLIBOR(evaluationTime+2.0, evaluationTime+2.0, evaluationTime+4.0),
+					model.getLIBOR(evaluationTime+1.0, evaluationTime+1.0, evaluationTime+1.5).mult(model.getLIBOR(evaluationTime+3.0, evaluationTime+3.0, evaluationTime+3.5)),
+					null,
+					new RandomVariable(0.02)
+			};
+			RegressionOperator regressionOperator = RegressionOperator.getLiborRegressionOperator(model, evaluationTime, order);
+			RandomVariableInterface[] conditionalExpectations = regressionOperator.getConditionalExpectations(randomVariables);
+			MonteCarloConditionalExpectationRegression regression = new MonteCarloConditionalExpectationRegression(getLiborBasisFunctions(model, evaluationTime, order));
+
+			Assert.assertNull(conditionalExpectations[3]);
+			for(int index=0; index<randomVariables.length; index++){
+				if(randomVariables[index] != null) Assert.assertEquals(0.0, conditionalExpectations[index].sub(regression.getConditionalExpectation(randomVariables[index])).abs().getMax(), 0.0);
+			}
+			Assert.assertSame(regressionOperator, RegressionOperator.getLiborRegressionOperator(model, evaluationTime, order));
+			Assert.assertNotSame(regressionOperator, RegressionOperator.getLiborRegressionOperator(model, evaluationTime, order+1));
+		}
+	}
+
+	/** The basis functions of the swaps: the powers 0 to order of L(t,t+dT) and L(t,T_n). */
+	private static RandomVariableInterface[] getLiborBasisFunctions(LIBORModelMonteCarloSimulationInterface model, double evaluationTime, int order) throws CalculationException{
+		RandomVariableInterface[] regressor = new RandomVariableInterface[]{
+				model.getLIBOR(evaluationTime, evaluationTime, evaluationTime+model.getLiborPeriodDiscretization().getTimeStep(0)),
+				model.getLIBOR(evaluationTime, evaluationTime, model.getLiborPeriodDiscretization().getTime(model.getNumberOfLibors()-1))
+		};
+		RandomVariableInterface[] basisFunctions = new RandomVariableInterface[regressor.length*(order+1)];
+		for(int regressorIndex=0; regressorIndex<regressor.length; regressorIndex++){
+			for(int power=0; power<=order; power++) basisFunctions[regressorIndex*(order+1)+power] = regressor[regressorIndex].pow(power);
+		}
+		return basisFunctions;
+	}
+
+	/**
+	 * Compares the products of the compressed <code> RandomVariableMatrix </code> with the dense products of random variables, for
+	 * band and triangular matrices and a non square right factor. The results are bit-identical.
+	 */
+	@Test
+	public void testRandomVariableMatrix(){
+		Random random = new Random(2718);
+		int dimension = 12;
+		for(int[] bandwidths : new int[][]{{1, 0}, {dimension, 0}, {0, dimension}, {2, 3}}){
+			RandomVariableInterface[][] matrix = createBandMatrix(dimension, dimension, bandwidths[0], bandwidths[1], random);
+			RandomVariableInterface[] vector = createBandMatrix(1, dimension, 0, dimension, random)[0];
+			assertEqualsOnPaths(multiplyDense(vector, matrix), new RandomVariableMatrix(matrix).multiplyLeft(vector));
+			assertEqualsOnPaths(multiplyDense(vector, matrix), AbstractSIMMSensitivityCalculation.multiply(vector, matrix));
+		}
+
+		RandomVariableInterface[][] matrixA = createBandMatrix(dimension, dimension, dimension, 1, random);
+		RandomVariableInterface[][] matrixB = createBandMatrix(dimension, dimension-4, 2, 2, random);
+		RandomVariableInterface[][] product = AbstractSIMMSensitivityCalculation.multiply(matrixA, matrixB);
+		Assert.assertEquals(dimension, product.length);
+		for(int row=0; row<dimension; row++) assertEqualsOnPaths(multiplyDense(matrixA[row], matrixB), product[row]);
+	}
+
+	/** The dense product of a vector with a matrix, null entries being zero. */
+	private static RandomVariableInterface[] multiplyDense(RandomVariableInterface[] A, RandomVariableInterface[][] B){
+		RandomVariableInterface[] AB = new RandomVariableInterface[B[0].length];
+		for(int i=0; i<B[0].length; i++){
+			AB[i] = new RandomVariable(0.0);
+			for(int k=0; k<A.length; k++) AB[i] = AB[i].add(A[k] == null || B[k][i] == null ? new RandomVariable(0.0) : A[k].mult(B[k][i]));
+		}
+		return AB;
+	}
+
+	private static void assertEqualsOnPaths(RandomVariableInterface[] expected, RandomVariableInterface[] actual){
+		Assert.assertEquals(expected.length, actual.length);
+		for(int index=0; index<expected.length; index++){
+			for(int path=0; path<numberOfPaths; path++) Assert.assertEquals(expected[index].get(path), actual[index].get(path), 0.0);
+		}
+	}
+
+	/**
+	 * Compares the cached sensitivity transformations dL/dL, dL/dS and dP/dS with the uncached calculation of
+	 * <code> AbstractSIMMSensitivityCalculation </code> entry by entry, also after the matrices have been evicted and recalculated.
+	 */
+	@Test
+	public void testSensitivityTransformCache() throws CalculationException{
+		LIBORModelMonteCarloSimulationInterface model = SIMMTest.createTestModel(100);
+		for(long memoryBudget : new long[]{MemoryBoundedCache.UNBOUNDED, 1}){
+			SensitivityTransformCache.setMemoryBudget(model, memoryBudget);
+			for(double evaluationTime : new double[]{0.0, 0.5, 1.25, 3.0}){
+				assertEqualsOnPaths(AbstractSIMMSensitivityCalculation.getLiborTimeGridAdjustment(evaluationTime, model), SensitivityTransformCache.getLiborTimeGridAdjustment(model, evaluationTime));
+				assertEqualsOnPaths(AbstractSIMMSensitivityCalculation.getLiborSwapSensitivities(evaluationTime, model), SensitivityTransformCache.getLiborSwapSensitivities(model, evaluationTime));
+				assertEqualsOnPaths(AbstractSIMMSensitivityCalculation.getBondSwapSensitivity(evaluationTime, model), SensitivityTransformCache.getBondSwapSensitivity(model, evaluationTime));
+			}
+		}
+		Assert.assertTrue(SensitivityTransformCache.getCache(model).getNumberOfEvictions() > 0);
+	}
+
+	/** Compares the rows of the compressed matrix (unit vectors times the matrix) with the dense matrix, null entries being zero. */
+	private static void assertEqualsOnPaths(RandomVariableInterface[][] expected, RandomVariableMatrix actual){
+		Assert.assertEquals(expected.length, actual.getNumberOfRows());
+		Assert.assertEquals(expected[0].length, actual.getNumberOfColumns());
+		for(int row=0; row<expected.length; row++){
+			RandomVariableInterface[] unitVector = new RandomVariableInterface[expected.length];
+			unitVector[row] = new RandomVariable(1.0);
+			RandomVariableInterface[] expectedRow = Arrays.stream(expected[row]).map(entry -> entry == null ? new RandomVariable(0.0) : entry).toArray(RandomVariableInterface[]::new);
+			assertEqualsOnPaths(expectedRow, actual.multiplyLeft(unitVector));
+		}
+	}
+
+	/**
+	 * Compares the rebucketing of sensitivities on the SIMM buckets by the precomputed sparse weights with the former loop over the
+	 * buckets, for InterestRate and CreditQ and random risk factor days before the last bucket. Sensitivities at or after the last
+	 * bucket are assigned to the last bucket once. The weights are kept in the cache of the model.
+	 */
+	@Test
+	public void testRebucketing() throws CalculationException{
+		LIBORModelMonteCarloSimulationInterface model = SIMMTest.createTestModel(100);
+		Random random = new Random(577);
+		for(String riskClass : new String[]{"InterestRate", "CreditQ"}){
+			for(int sample=0; sample<20; sample++){
+				int[] riskFactorDays = random.ints(1+random.nextInt(40), 1, riskClass.equals("InterestRate") ? 10950 : 3650).sorted().toArray();
+				RandomVariableInterface[] sensitivities = createBandMatrix(1, riskFactorDays.length, 0, riskFactorDays.length, random)[0];
+				sensitivities = Arrays.stream(sensitivities).map(sensitivity -> sensitivity == null ? new RandomVariable(0.0) : sensitivity).toArray(RandomVariableInterface[]::new);
+
+				RandomVariableInterface[] expected = mapSensitivitiesOnBucketsLoop(sensitivities, riskClass, riskFactorDays);
+				RandomVariableInterface[] actual = AbstractSIMMSensitivityCalculation.mapSensitivitiesOnBuckets(sensitivities, riskClass, riskFactorDays, model);
+				Assert.assertEquals(expected.length, actual.length);
+				for(int bucket=0; bucket<expected.length; bucket++) Assert.assertEquals(0.0, expected[bucket].sub(actual[bucket]).abs().getMax(), 1E-15);
+			}
+		}
+
+		RandomVariableInterface[] sensitivities = new RandomVariableInterface[]{new RandomVariable(1.0), new RandomVariable(2.0), new RandomVariable(4.0), new RandomVariable(8.0)};
+		int[] riskFactorDays = new int[]{7, 5475, 10950, 12000};
+		RandomVariableInterface[] buckets = AbstractSIMMSensitivityCalculation.mapSensitivitiesOnBuckets(sensitivities, "InterestRate", riskFactorDays, model);
+		Assert.assertEquals(1.0, buckets[0].get(0), 0.0);
+		Assert.assertEquals(2.0, buckets[9].get(0), 0.0);
+		Assert.assertEquals(12.0, buckets[11].get(0), 0.0);
+
+		// The key copies the risk factor days, the weights of another model are calculated separately
+		RandomVariableMatrix rebucketingMatrix = SensitivityTransformCache.getRebucketingMatrix(model, "InterestRate", riskFactorDays);
+		riskFactorDays[3] = 13000;
+		Assert.assertSame(rebucketingMatrix, SensitivityTransformCache.getRebucketingMatrix(model, "InterestRate", new int[]{7, 5475, 10950, 12000}));
+		Assert.assertNotSame(rebucketingMatrix, SensitivityTransformCache.getRebucketingMatrix(SIMMTest.createTestModel(100), "InterestRate", new int[]{7, 5475, 10950, 12000}));
+	}
+
+	/** The former rebucketing: a loop over the SIMM buckets and the (ascending) risk factor days. */
+	private static RandomVariableInterface[] mapSensitivitiesOnBucketsLoop(RandomVariableInterface[] sensitivities, String riskClass, int[] riskFactorDays){
+		int[] riskFactorsSIMM = riskClass.equals("InterestRate") ? new int[] {14, 30, 90, 180, 365, 730, 1095, 1825, 3650, 5475, 7300, 10950} : new int[] {365, 730, 1095, 1825, 3650};
+		RandomVariableInterface[] deltaSIMM = new RandomVariableInterface[riskFactorsSIMM.length];
+		for(int i=0; i<deltaSIMM.length; i++) deltaSIMM[i] = new RandomVariable(0.0);
+
+		int counter = 0;
+		for(int simmFactor=0; simmFactor<riskFactorsSIMM.length; simmFactor++){
+			for(int i=counter; i<sensitivities.length; i++){
+				if(riskFactorDays[i] < riskFactorsSIMM[0]){
+					deltaSIMM[0] = deltaSIMM[0].add(sensitivities[i]);
+					counter++;
+				}
+				else if(riskFactorDays[i] >= riskFactorsSIMM[riskFactorsSIMM.length-1]){
+					deltaSIMM[deltaSIMM.length-1] = deltaSIMM[deltaSIMM.length-1].add(sensitivities[i]);
+				}
+				else if(riskFactorDays[i] >= riskFactorsSIMM[simmFactor] && riskFactorDays[i] < riskFactorsSIMM[simmFactor+1]){
+					deltaSIMM[simmFactor] = deltaSIMM[simmFactor].addProduct(sensitivities[i], ((double)(riskFactorsSIMM[simmFactor+1] - riskFactorDays[i]) / (riskFactorsSIMM[simmFactor+1]-riskFactorsSIMM[simmFactor])));
+					deltaSIMM[simmFactor+1] = deltaSIMM[simmFactor+1].addProduct(sensitivities[i], ((double)(riskFactorDays[i]-riskFactorsSIMM[simmFactor]) / (riskFactorsSIMM[simmFactor+1]-riskFactorsSIMM[simmFactor])));
+					counter++;
+				}
+				else break;
+			}
+		}
+		return deltaSIMM;
+	}
+
+	/**
+	 * Compares the linear melting by the precomputed melting matrix with the former melting: the sensitivities on the remaining
+	 * buckets are scaled by 1-d/t^B_i and rebucketed from the days t^B_i-d, for InterestRate and CreditQ and random melting days.
+	 * The melting matrices are kept in the cache of the model per risk class and melting days.
+	 */
+	@Test
+	public void testMeltingMatrix() throws CalculationException{
+		LIBORModelMonteCarloSimulationInterface model = SIMMTest.createTestModel(100);
+		Random random = new Random(1729);
+		for(String riskClass : new String[]{"InterestRate", "CreditQ"}){
+			int[] riskFactorsSIMM = riskClass.equals("InterestRate") ? new int[] {14, 30, 90, 180, 365, 730, 1095, 1825, 3650, 5475, 7300, 10950} : new int[] {365, 730, 1095, 1825, 3650};
+			for(int sample=0; sample<50; sample++){
+				int meltingDays = 1+random.nextInt(riskFactorsSIMM[riskFactorsSIMM.length-1]-1);
+				RandomVariableInterface[] sensitivities = createBandMatrix(1, riskFactorsSIMM.length, 0, riskFactorsSIMM.length, random)[0];
+				sensitivities = Arrays.stream(sensitivities).map(sensitivity -> sensitivity == null ? new RandomVariable(0.0) : sensitivity).toArray(RandomVariableInterface[]::new);
+
+				// The former melting
+				int[] riskFactorDays = Arrays.stream(riskFactorsSIMM).filter(days -> days > meltingDays).map(days -> days-meltingDays).toArray();
+				int firstIndex = riskFactorsSIMM.length-riskFactorDays.length;
+				RandomVariableInterface[] meltedSensitivities = new RandomVariableInterface[riskFactorDays.length];
+				for(int i=0; i<meltedSensitivities.length; i++) meltedSensitivities[i] = sensitivities[i+firstIndex].mult(1.0-(double)meltingDays/riskFactorsSIMM[i+firstIndex]);
+				RandomVariableInterface[] expected = AbstractSIMMSensitivityCalculation.mapSensitivitiesOnBuckets(meltedSensitivities, riskClass, riskFactorDays, model);
+
+				RandomVariableInterface[] actual = SensitivityTransformCache.getMeltingMatrix(model, riskClass, meltingDays).multiplyLeft(sensitivities);
+				Assert.assertEquals(expected.length, actual.length);
+				for(int bucket=0; bucket<expected.length; bucket++) Assert.assertEquals(0.0, expected[bucket].sub(actual[bucket]).abs().getMax(), 1E-14*Math.max(1.0, expected[bucket].abs().getMax()));
+			}
+		}
+
+		RandomVariableMatrix meltingMatrix = SensitivityTransformCache.getMeltingMatrix(model, "InterestRate", 400);
+		Assert.assertSame(meltingMatrix, SensitivityTransformCache.getMeltingMatrix(model, "InterestRate", 400));
+		Assert.assertNotSame(meltingMatrix, SensitivityTransformCache.getMeltingMatrix(model, "InterestRate", 401));
+		Assert.assertNotSame(meltingMatrix, SensitivityTransformCache.getMeltingMatrix(model, "CreditQ", 400));
+		Assert.assertNotSame(meltingMatrix, SensitivityTransformCache.getMeltingMatrix(SIMMTest.createTestModel(100), "InterestRate", 400));
+	}
+
+	private static RandomVariableInterface[][] createBandMatrix(int rows, int columns, int lowerBandwidth, int upperBandwidth, Random random){
+		RandomVariableInterface[][] matrix = new RandomVariableInterface[rows][columns];
+		for(int i=0;i<rows;i++){
+			for(int j=0;j<columns;j++){
+				if(i-j > lowerBandwidth || j-i > upperBandwidth) {
+					matrix[i][j] = (i+j)%2==0 ? null : new RandomVariable(0.0); // both are structural zeros
+				}
+				else if((7*i+j)%5==0) {
+					matrix[i][j] = new RandomVariable(i==j ? 3.0 : 0.3);
+				}
+				else {
+					double[] realizations = new double[numberOfPaths];
+					for(int path=0;path<numberOfPaths;path++) realizations[path] = (i==j ? 2.0 : 0.0) + random.nextDouble() - 0.5;
+					matrix[i][j] = new RandomVariable(0.0, realizations);
+				}
+			}
+		}
+		return matrix;
+	}
+
+	/** The max deviation from the SVD pseudo inverse, relative to the norm of the pseudo inverse if this is larger than one. */
+	private static double getMaxDeviationFromSVD(RandomVariableInterface[][] matrix){
+		RandomVariableInterface[][] inverse = PathwiseMatrixSolver.getPseudoInverse(matrix, numberOfPaths);
+		double maxDeviation = 0.0;
+		for(int path=0;path<numberOfPaths;path++){
+			double[][] matrixOnPath = new double[matrix.length][matrix[0].length];
+			for(int i=0;i<matrix.length;i++) for(int j=0;j<matrix[0].length;j++) matrixOnPath[i][j] = matrix[i][j]==null ? 0.0 : matrix[i][j].get(path);
+			RealMatrix pseudoInverse = new SingularValueDecomposition(MatrixUtils.createRealMatrix(matrixOnPath)).getSolver().getInverse();
+			double scale = Math.max(1.0, pseudoInverse.getNorm());
+			for(int i=0;i<inverse.length;i++) for(int j=0;j<inverse[0].length;j++) {
+				maxDeviation = Math.max(maxDeviation, Math.abs(pseudoInverse.getEntry(i, j)-inverse[i][j].get(path))/scale);
+			}
+		}
+		return maxDeviation;
+	}
 }
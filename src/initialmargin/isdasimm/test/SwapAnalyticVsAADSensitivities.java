@@ -6,11 +6,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 import java.util.stream.IntStream;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import initialmargin.isdasimm.aggregationscheme.CalculationSchemeInitialMarginISDA;
 import initialmargin.isdasimm.changedfinmath.LIBORMarketModel;
 import initialmargin.isdasimm.changedfinmath.LIBORMarketModelInterface;
 import initialmargin.isdasimm.changedfinmath.LIBORModelMonteCarloSimulation;
@@ -26,6 +28,13 @@ import initialmargin.isdasimm.changedfinmath.products.components.AbstractNotiona
 import initialmargin.isdasimm.changedfinmath.products.components.Notional;
 import initialmargin.isdasimm.changedfinmath.products.indices.AbstractIndex;
 import initialmargin.isdasimm.changedfinmath.products.indices.LIBORIndex;
+import initialmargin.isdasimm.products.AbstractSIMMProduct;
+import initialmargin.isdasimm.products.SIMMPortfolio;
+import initialmargin.isdasimm.sensitivity.MemoryBoundedCache;
+import initialmargin.isdasimm.sensitivity.SensitivityTransformCache;
+import initialmargin.isdasimm.sensitivity.SensitivityCache;
+import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation.SensitivityMode;
+import initialmargin.isdasimm.sensitivity.AbstractSIMMSensitivityCalculation.WeightMode;
 import net.finmath.montecarlo.interestrate.modelplugins.LIBORCorrelationModelExponentialDecay;
 import net.finmath.montecarlo.process.ProcessEulerScheme;
 import net.finmath.marketdata.model.curves.DiscountCurveInterface;
@@ -385,4 +394,115 @@ public class SwapAnalyticVsAADSensitivities {
 		return basisFunctions;
 	}
 
+	/**
+	 * Compares the flat <code> SensitivityCache </code> with the nested hash maps it replaces (time -> risk class -> curve -> vertices).
+	 * The times grow the open addressing table several times and include repeated and negative zero times.
+	 */
+	@Test
+	public void testSensitivityCache(){
+		Random random = new Random(3141);
+		SensitivityCache.RiskClass[] riskClasses = SensitivityCache.RiskClass.values();
+		SensitivityCache.CurveIndex[] curves = SensitivityCache.CurveIndex.values();
+
+		SensitivityCache cache = new SensitivityCache(12 /*numberOfVertices*/);
+		Map<Double, Map<String, Map<String, RandomVariableInterface[]>>> reference = new HashMap<>();
+		for(int put=0; put<2000; put++){
+			double time = random.nextInt(200) * 0.125 * (put % 97 == 0 ? -1.0 : 1.0);
+			String riskClass = riskClasses[random.nextInt(riskClasses.length)].name();
+			String curveIndexName = curves[random.nextInt(curves.length)].name();
+			RandomVariableInterface[] vertices = new RandomVariableInterface[12];
+			Arrays.fill(vertices, new RandomVariable(put));
+
+			cache.put(cache.getOrCreateTimeIndex(time), SensitivityCache.getRiskClass(riskClass), SensitivityCache.getCurveIndex(curveIndexName), vertices);
+			reference.computeIfAbsent(time, key -> new HashMap<>()).computeIfAbsent(riskClass, key -> new HashMap<>()).put(curveIndexName, vertices);
+		}
+
+		Assert.assertEquals(reference.size(), cache.getNumberOfTimes());
+		for(int time=-200; time<200; time++){
+			double evaluationTime = time * 0.125;
+			int timeIndex = cache.getTimeIndex(evaluationTime);
+			Assert.assertEquals(reference.containsKey(evaluationTime), timeIndex != -1);
+			for(SensitivityCache.RiskClass riskClass : riskClasses){
+				Map<String, RandomVariableInterface[]> sensitivities = reference.containsKey(evaluationTime) ? reference.get(evaluationTime).get(riskClass.name()) : null;
+				Assert.assertEquals(sensitivities != null, cache.contains(timeIndex, riskClass));
+				for(SensitivityCache.CurveIndex curve : curves){
+					Assert.assertSame(sensitivities == null ? null : sensitivities.get(curve.name()), cache.get(timeIndex, riskClass, curve));
+				}
+			}
+		}
+
+		cache.clear();
+		Assert.assertTrue(cache.isEmpty());
+		Assert.assertEquals(-1, cache.getTimeIndex(0.125));
+	}
+
+
+	/**
+	 * Every interest rate curve index name of the SIMM parameters has its own slot in the <code> SensitivityCache </code>,
+	 * and unknown curve index names are rejected.
+	 */
+	@Test
+	public void testSensitivityCacheCurveIndexNames(){
+		String[] curveIndexNames = new CalculationSchemeInitialMarginISDA.ParameterCollection().IRCurveIndexNames;
+		Assert.assertEquals(curveIndexNames.length, SensitivityCache.numberOfCurves);
+
+		SensitivityCache cache = new SensitivityCache(12 /*numberOfVertices*/);
+		int timeIndex = cache.getOrCreateTimeIndex(0.5);
+		for(int curveIndex=0; curveIndex<curveIndexNames.length; curveIndex++){
+			RandomVariableInterface[] vertices = new RandomVariableInterface[12];
+			Arrays.fill(vertices, new RandomVariable(curveIndex));
+			cache.put(timeIndex, SensitivityCache.RiskClass.InterestRate, SensitivityCache.getCurveIndex(curveIndexNames[curveIndex]), vertices);
+		}
+		for(int curveIndex=0; curveIndex<curveIndexNames.length; curveIndex++){
+			Assert.assertEquals(curveIndex, cache.get(timeIndex, SensitivityCache.RiskClass.InterestRate, SensitivityCache.getCurveIndex(curveIndexNames[curveIndex]))[0].get(0), 0.0);
+		}
+
+		try {
+			SensitivityCache.getCurveIndex("Libor9m");
+			Assert.fail("Expected an IllegalArgumentException");
+		} catch(IllegalArgumentException e) {
+		}
+	}
+
+	/**
+	 * Checks the least recently used eviction of the memory bounded cache and that the initial margin of a portfolio whose caches
+	 * of exact deltas evict almost every entry equals the initial margin with unbounded caches. The budget of a portfolio applies to
+	 * the caches of its products only, not to other portfolios or to the (model wide) cache of the sensitivity transformations.
+	 * Without eviction every exact delta is calculated once.
+	 */
+	@Test
+	public void testMemoryBoundedCache() throws CalculationException{
+		MemoryBoundedCache<Integer, double[]> cache = new MemoryBoundedCache<>(24, values -> 8L*values.length);
+		cache.putIfAbsent(1, new double[1]);
+		cache.putIfAbsent(2, new double[1]);
+		cache.putIfAbsent(3, new double[1]);
+		Assert.assertNotNull(cache.get(1));	// 2 is now the least recently used
+		cache.putIfAbsent(4, new double[1]);
+		Assert.assertFalse(cache.containsKey(2));
+		Assert.assertTrue(cache.containsKey(1) && cache.containsKey(3) && cache.containsKey(4));
+		cache.putIfAbsent(5, new double[4]);	// the most recent entry is kept even if it exceeds the budget alone
+		Assert.assertEquals(1, cache.size());
+		Assert.assertEquals(2, cache.get(6, key -> new double[2]).length);
+		Assert.assertEquals(1, cache.getNumberOfMisses());
+
+		LIBORModelMonteCarloSimulationInterface model = SIMMTest.createTestModel(100);
+		AbstractSIMMProduct[] products = SIMMTest.createTestProducts(6);
+		AbstractSIMMProduct[] productsBounded = SIMMTest.createTestProducts(6);
+		SIMMPortfolio portfolio = new SIMMPortfolio(products, "EUR");
+		SIMMPortfolio portfolioBounded = new SIMMPortfolio(productsBounded, "EUR");
+		portfolioBounded.setCacheMemoryBudget(1);
+		for(int timeIndex=0; timeIndex<10; timeIndex++){
+			double evaluationTime = timeIndex*0.5;
+			double initialMargin = portfolio.getInitialMargin(evaluationTime, model, "EUR", SensitivityMode.Interpolation, WeightMode.Constant, 1.0).getAverage();
+			double initialMarginBounded = portfolioBounded.getInitialMargin(evaluationTime, model, "EUR", SensitivityMode.Interpolation, WeightMode.Constant, 1.0).getAverage();
+			Assert.assertEquals(initialMargin, initialMarginBounded, 0.0);
+		}
+		for(int productIndex=0; productIndex<products.length; productIndex++){
+			Assert.assertEquals(1, productsBounded[productIndex].getExactDeltaCache().getMemoryBudget());
+			Assert.assertTrue(productsBounded[productIndex].getExactDeltaCache().size() <= 1);
+			Assert.assertEquals(MemoryBoundedCache.UNBOUNDED, products[productIndex].getExactDeltaCache().getMemoryBudget());
+			Assert.assertEquals(products[productIndex].getExactDeltaCache().size(), products[productIndex].getExactDeltaCache().getNumberOfMisses());
+		}
+		Assert.assertEquals(MemoryBoundedCache.UNBOUNDED, SensitivityTransformCache.getCache(model).getMemoryBudget());
+	}
 }